@@ -140,33 +140,81 @@ public final class ClusterStats {
                 // Math.log(sigma2).
                 //
                 if (R_n > K) {
+                    LSum += computeLogLikelihood(R_n, computeDistortion(tuples, cluster), K, M, R);
+                }
+            }
 
-                    // Estimate variance
-                    double sigma2 = computeDistortion(tuples, cluster);
-                    if (sigma2 > 0) {
-                        sigma2 /= (R_n - K);
-                    }
+            bic = computeBIC(LSum, K, M, R);
+        }
 
-                    // Estimate log-likelihood
-                    double L = -R_n / 2 * LOG2PI - (R_n * M / 2) * Math.log(sigma2)
-                            - (R_n - K) / 2 + R_n * Math.log(R_n) - R_n
-                            * Math.log(R);
+        return bic;
+    }
 
-                    LSum += L;
-                }
-            }
+    /**
+     * Computes the log-likelihood term contributed by one cluster to the Bayes
+     * Information Criterion of a clustering. This allows the criterion to be
+     * computed from cluster sizes and distortions which have been accumulated
+     * elsewhere, without revisiting the tuples. It should only be called for 
+     * clusters having more members than there are clusters.
+     *
+     * @param clusterSize the number of members in the cluster.
+     * @param distortion the sum of the per-dimension variances of the cluster 
+     *   members, multiplied by the cluster size.
+     * @param clusterCount the number of clusters in the clustering.
+     * @param tupleLength the dimensionality of the tuples.
+     * @param tupleCount the total number of tuples in all the clusters.
+     *
+     * @return the log-likelihood term.
+     */
+    public static double computeLogLikelihood(final int clusterSize, final double distortion,
+            final int clusterCount, final int tupleLength, final int tupleCount) {
+        
+        final int R_n = clusterSize;
+        final int K = clusterCount;
+        final int M = tupleLength;
+        final int R = tupleCount;
+
+        // Estimate variance
+        double sigma2 = distortion;
+        if (sigma2 > 0) {
+            sigma2 /= (R_n - K);
+        }
 
-            // Count the parameters in the model
-            double p = K * (M + 1);
-            // Compute the criterion
-            bic = LSum - p / 2 * Math.log(R);
+        // Estimate log-likelihood
+        return -R_n / 2 * LOG2PI - (R_n * M / 2) * Math.log(sigma2)
+                - (R_n - K) / 2 + R_n * Math.log(R_n) - R_n
+                * Math.log(R);
+    }
 
-			// Added this on 3/13/2006 to normalize on cluster size. I don't
-            // think
-            // the paper we got the bic formula from does this. -- R.Scarberry
-            if (R > 0) {
-                bic /= R;
-            }
+    /**
+     * Computes the Bayes Information Criterion from the summed log-likelihood
+     * terms of the clusters as returned by 
+     * <code>computeLogLikelihood()</code>.
+     *
+     * @param logLikelihood the sum of the cluster log-likelihood terms.
+     * @param clusterCount the number of clusters.
+     * @param tupleLength the dimensionality of the tuples.
+     * @param tupleCount the total number of tuples in all the clusters.
+     *
+     * @return the Bayes Information Criterion.
+     */
+    public static double computeBIC(final double logLikelihood, final int clusterCount,
+            final int tupleLength, final int tupleCount) {
+        
+        final int K = clusterCount;
+        final int M = tupleLength;
+        final int R = tupleCount;
+
+        // Count the parameters in the model
+        double p = K * (M + 1);
+        // Compute the criterion
+        double bic = logLikelihood - p / 2 * Math.log(R);
+
+	// Added this on 3/13/2006 to normalize on cluster size. I don't
+        // think
+        // the paper we got the bic formula from does this. -- R.Scarberry
+        if (R > 0) {
+            bic /= R;
         }
 
         return bic;
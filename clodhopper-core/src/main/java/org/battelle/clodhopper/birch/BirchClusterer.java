@@ -0,0 +1,453 @@
+package org.battelle.clodhopper.birch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.battelle.clodhopper.AbstractClusterer;
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.hierarchical.HierarchicalParams;
+import org.battelle.clodhopper.hierarchical.ReverseNNHierarchicalClusterer;
+import org.battelle.clodhopper.kmeans.KMeansClusterer;
+import org.battelle.clodhopper.kmeans.KMeansParams;
+import org.battelle.clodhopper.seeding.KMeansPlusPlusSeeder;
+import org.battelle.clodhopper.task.AbstractTask;
+import org.battelle.clodhopper.task.ProgressHandler;
+import org.battelle.clodhopper.task.TaskAdapter;
+import org.battelle.clodhopper.task.TaskEvent;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.TupleList;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * BirchClusterer.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * An implementation of BIRCH clustering, for tuple lists far too large for
+ * hierarchical clustering. In a single pass over the tuples, a height-balanced
+ * tree of clustering features is built, each leaf entry of which summarizes a
+ * small subcluster by its count, linear sum, and square sum. Whenever the tree
+ * outgrows the memory limit, it is rebuilt from its leaf entries with a greater
+ * threshold on the radius of the subclusters, so the number of summaries stays
+ * bounded however many tuples there are.
+ * </p>
+ * <p>
+ * The centroids of the summaries are then clustered by
+ * <code>KMeansClusterer</code> or <code>ReverseNNHierarchicalClusterer</code>.
+ * The reverse nearest neighbor clusterer weights each centroid by the number
+ * of tuples its summary holds. K-means has no notion of weights, so it treats
+ * every centroid alike and a summary of a few outliers pulls on the centers as
+ * hard as one of many tuples; only the final centers, computed from the
+ * clustering features, reflect the counts. Finally, unless turned off, a second pass assigns every tuple to the nearest
+ * of the resulting cluster centers.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class BirchClusterer extends AbstractClusterer {
+
+    // How many tuples are inserted between progress posts.
+    private static final int TUPLES_PER_STEP = 4096;
+
+    private TupleList tuples;
+    private BirchParams params;
+
+    // The centroids and counts of the leaf entries of the tree.
+    private TupleList summaries;
+    private long[] summaryCounts;
+
+    public BirchClusterer(TupleList tuples, BirchParams params) {
+        if (tuples == null || params == null) {
+            throw new NullPointerException();
+        }
+        this.tuples = tuples;
+        this.params = params;
+    }
+
+    @Override
+    public String taskName() {
+        return "BIRCH";
+    }
+
+    /**
+     * Get the centroids of the subclusters summarized by the leaves of the tree,
+     * which were clustered in the global phase. This method should not be called
+     * until the task has finished successfully.
+     *
+     * @return the centroids.
+     */
+    public TupleList getSummaries() {
+        return summaries;
+    }
+
+    /**
+     * Get the number of tuples in each of the subclusters whose centroids are
+     * returned by <code>getSummaries()</code>.
+     *
+     * @return the counts, one per summary.
+     */
+    public long[] getSummaryCounts() {
+        return summaryCounts;
+    }
+
+    @Override
+    protected List<Cluster> doTask() throws Exception {
+
+        final int tupleCount = tuples.getTupleCount();
+        final int tupleLength = tuples.getTupleLength();
+
+        if (tupleCount == 0) {
+            finishWithError("zero tuples");
+        }
+        if (params.getClusterCount() <= 0) {
+            finishWithError("requested cluster count must be greater than 0: " + params.getClusterCount());
+        }
+
+        final boolean assignTuples = params.getAssignTuples();
+
+        ProgressHandler ph = new ProgressHandler(this);
+        ph.postBegin();
+
+        // Phase 1: the tree.
+        ph.subsection(assignTuples ? 0.6 : 0.85, (tupleCount + TUPLES_PER_STEP - 1) / TUPLES_PER_STEP);
+
+        CFTree tree = new CFTree(tupleLength, params.getBranchingFactor(),
+                params.getLeafEntryCount(), params.getThreshold());
+        final long memoryLimit = params.getMemoryLimit();
+        final double[] buf = new double[tupleLength];
+
+        for (int i = 0; i < tupleCount; i++) {
+            tree.insert(tuples.getTuple(i, buf));
+            if (tree.memoryUsed() > memoryLimit) {
+                do {
+                    tree = tree.rebuild(tree.nextThreshold());
+                } while (tree.memoryUsed() > memoryLimit && tree.getEntryCount() > 1);
+                ph.postMessage(String.format("tree rebuilt with threshold %g: %d summaries",
+                        tree.getThreshold(), tree.getEntryCount()));
+            }
+            if ((i + 1) % TUPLES_PER_STEP == 0 || i == tupleCount - 1) {
+                checkForCancel();
+                ph.postStep();
+            }
+        }
+
+        final int summaryCount = tree.getEntryCount();
+        final double[] summarySums = new double[summaryCount * tupleLength];
+        summaryCounts = new long[summaryCount];
+        tree.copyEntries(summaryCounts, summarySums, new double[summaryCount]);
+        tree = null;
+
+        final double[] centroids = new double[summaryCount * tupleLength];
+        for (int s = 0; s < summaryCount; s++) {
+            for (int k = 0; k < tupleLength; k++) {
+                centroids[s * tupleLength + k] = summarySums[s * tupleLength + k] / summaryCounts[s];
+            }
+        }
+        summaries = new ArrayTupleList(tupleLength, summaryCount, centroids);
+
+        ph.postMessage(String.format("%d tuples summarized by %d subclusters", tupleCount, summaryCount));
+        ph.postEnd();
+
+        // Phase 2: clustering the summaries.
+        ph.subsection(assignTuples ? 0.1 : 0.15);
+
+        final int[] summaryClusters = new int[summaryCount];
+        int clusterCount = clusterSummaries(summaryClusters);
+
+        // The centers weighted by the counts of the summaries.
+        final double[] centers = new double[clusterCount * tupleLength];
+        final long[] clusterCounts = new long[clusterCount];
+        for (int s = 0; s < summaryCount; s++) {
+            int c = summaryClusters[s];
+            clusterCounts[c] += summaryCounts[s];
+            for (int k = 0; k < tupleLength; k++) {
+                centers[c * tupleLength + k] += summarySums[s * tupleLength + k];
+            }
+        }
+        for (int c = 0; c < clusterCount; c++) {
+            for (int k = 0; k < tupleLength; k++) {
+                centers[c * tupleLength + k] /= clusterCounts[c];
+            }
+        }
+
+        ph.postEnd();
+
+        List<Cluster> clusters = null;
+
+        if (assignTuples) {
+            // Phase 3: assigning the tuples.
+            ph.subsection(0.3, (tupleCount + TUPLES_PER_STEP - 1) / TUPLES_PER_STEP);
+            clusters = assignTuples(centers, clusterCount, ph);
+            ph.postEnd();
+        } else {
+            clusters = buildClusters(summaryClusters, summaryCount, centers, clusterCount);
+        }
+
+        ph.postEnd();
+
+        return clusters;
+    }
+
+    // Clusters the centroids of the summaries, filling in the cluster of each.
+    // Returns the number of clusters.
+    private int clusterSummaries(int[] summaryClusters) throws Exception {
+
+        final int summaryCount = summaries.getTupleCount();
+        final int clusterCount = params.getClusterCount();
+
+        if (summaryCount <= clusterCount) {
+            postMessage(String.format("only %d summaries, each of which is a cluster", summaryCount));
+            for (int s = 0; s < summaryCount; s++) {
+                summaryClusters[s] = s;
+            }
+            return summaryCount;
+        }
+
+        AbstractTask<List<Cluster>> clusterer = null;
+        final String label;
+
+        if (params.getGlobalClustering() == BirchParams.GlobalClustering.KMEANS) {
+            KMeansParams kparams = new KMeansParams.Builder()
+                .clusterCount(clusterCount)
+                .workerThreadCount(params.getWorkerThreadCount())
+                .distanceMetric(params.getDistanceMetric())
+                .clusterSeeder(new KMeansPlusPlusSeeder(params.getRandomSeed(), new Random(),
+                        params.getDistanceMetric()))
+                .build();
+            clusterer = new KMeansClusterer(summaries, kparams);
+            label = "  (k-means): ";
+        } else {
+            HierarchicalParams hparams = new HierarchicalParams.Builder()
+                .clusterCount(clusterCount)
+                .workerThreadCount(params.getWorkerThreadCount())
+                .distanceMetric(params.getDistanceMetric())
+                .randomSeed(params.getRandomSeed())
+                .build();
+            ReverseNNHierarchicalClusterer rnn = new ReverseNNHierarchicalClusterer(summaries, hparams);
+            // The counts sum to the tuple count, so each fits in an int.
+            int[] weights = new int[summaryCount];
+            for (int s = 0; s < summaryCount; s++) {
+                weights[s] = (int) summaryCounts[s];
+            }
+            rnn.setLeafWeights(weights);
+            clusterer = rnn;
+            label = "  (reverse nearest neighbor): ";
+        }
+
+        clusterer.addTaskListener(new TaskAdapter() {
+            @Override
+            public void taskMessage(TaskEvent e) {
+                postMessage(label + e.getMessage());
+            }
+        });
+
+        clusterer.run();
+
+        if (clusterer.getTaskOutcome() != TaskOutcome.SUCCESS) {
+            checkForCancel();
+            finishWithError("clustering of the summaries failed: " + clusterer.getErrorMessage());
+        }
+
+        List<Cluster> clusters = clusterer.get();
+        final int n = clusters.size();
+        for (int c = 0; c < n; c++) {
+            Cluster cluster = clusters.get(c);
+            final int memberCount = cluster.getMemberCount();
+            for (int m = 0; m < memberCount; m++) {
+                summaryClusters[cluster.getMember(m)] = c;
+            }
+        }
+
+        return n;
+    }
+
+    // Groups ids by their clusters, omitting empty clusters.
+    private List<Cluster> buildClusters(int[] assignments, int count, double[] centers, int clusterCount) {
+
+        final int tupleLength = tuples.getTupleLength();
+
+        int[] sizes = new int[clusterCount];
+        for (int i = 0; i < count; i++) {
+            sizes[assignments[i]]++;
+        }
+
+        int[][] members = new int[clusterCount][];
+        for (int c = 0; c < clusterCount; c++) {
+            members[c] = new int[sizes[c]];
+            sizes[c] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int c = assignments[i];
+            members[c][sizes[c]++] = i;
+        }
+
+        List<Cluster> clusters = new ArrayList<Cluster>(clusterCount);
+        double[] center = new double[tupleLength];
+        for (int c = 0; c < clusterCount; c++) {
+            if (sizes[c] > 0) {
+                System.arraycopy(centers, c * tupleLength, center, 0, tupleLength);
+                clusters.add(new Cluster(members[c], center));
+            }
+        }
+
+        return clusters;
+    }
+
+    // Assigns every tuple to the nearest center in parallel, then computes the
+    // centers of the tuples assigned.
+    private List<Cluster> assignTuples(final double[] centers, final int clusterCount,
+            final ProgressHandler ph) throws Exception {
+
+        final int tupleCount = tuples.getTupleCount();
+        final int tupleLength = tuples.getTupleLength();
+
+        int workerCount = params.getWorkerThreadCount();
+        if (workerCount <= 0) {
+            workerCount = Runtime.getRuntime().availableProcessors();
+        }
+        workerCount = Math.max(1, Math.min(workerCount, tupleCount));
+
+        final int[] assignments = new int[tupleCount];
+
+        List<Assigner> assigners = new ArrayList<Assigner>(workerCount);
+        int tuplesSoFar = 0;
+        for (int w = 0; w < workerCount; w++) {
+            int tuplesForThisWorker = (int) Math.round(((double) tupleCount) * (w + 1) / workerCount)
+                    - tuplesSoFar;
+            assigners.add(new Assigner(tuplesSoFar, tuplesSoFar + tuplesForThisWorker,
+                    centers, clusterCount, assignments, ph));
+            tuplesSoFar += tuplesForThisWorker;
+        }
+
+        if (workerCount > 1) {
+            ExecutorService threadPool = Executors.newFixedThreadPool(workerCount);
+            try {
+                for (Future<Void> future : threadPool.invokeAll(assigners)) {
+                    future.get();
+                }
+            } finally {
+                threadPool.shutdownNow();
+            }
+        } else {
+            assigners.get(0).call();
+        }
+
+        checkForCancel();
+
+        final double[] newCenters = new double[clusterCount * tupleLength];
+        final long[] counts = new long[clusterCount];
+        for (Assigner assigner : assigners) {
+            for (int c = 0; c < clusterCount; c++) {
+                counts[c] += assigner.counts[c];
+            }
+            for (int j = 0; j < newCenters.length; j++) {
+                newCenters[j] += assigner.sums[j];
+            }
+        }
+        for (int c = 0; c < clusterCount; c++) {
+            if (counts[c] > 0) {
+                for (int k = 0; k < tupleLength; k++) {
+                    newCenters[c * tupleLength + k] /= counts[c];
+                }
+            }
+        }
+
+        return buildClusters(assignments, tupleCount, newCenters, clusterCount);
+    }
+
+    // Assigns a range of tuples to their nearest centers, accumulating the sums
+    // of the tuples assigned to each.
+    private class Assigner implements Callable<Void> {
+
+        private final int start, end;
+        private final double[] centers;
+        private final int clusterCount;
+        private final int[] assignments;
+        private final long[] counts;
+        private final double[] sums;
+        private final ProgressHandler ph;
+
+        Assigner(int start, int end, double[] centers, int clusterCount, int[] assignments,
+                ProgressHandler ph) {
+            this.start = start;
+            this.end = end;
+            this.centers = centers;
+            this.clusterCount = clusterCount;
+            this.assignments = assignments;
+            this.counts = new long[clusterCount];
+            this.sums = new double[centers.length];
+            this.ph = ph;
+        }
+
+        @Override
+        public Void call() throws Exception {
+
+            final int tupleLength = tuples.getTupleLength();
+            final DistanceMetric dm = params.getDistanceMetric().clone();
+            final double[] tuple = new double[tupleLength];
+            final double[][] centerBufs = new double[clusterCount][];
+            for (int c = 0; c < clusterCount; c++) {
+                centerBufs[c] = new double[tupleLength];
+                System.arraycopy(centers, c * tupleLength, centerBufs[c], 0, tupleLength);
+            }
+
+            for (int i = start; i < end; i++) {
+                tuples.getTuple(i, tuple);
+                int nearest = 0;
+                double nearestDistance = Double.MAX_VALUE;
+                for (int c = 0; c < clusterCount; c++) {
+                    double d = dm.distance(tuple, centerBufs[c]);
+                    if (d < nearestDistance) {
+                        nearest = c;
+                        nearestDistance = d;
+                    }
+                }
+                assignments[i] = nearest;
+                counts[nearest]++;
+                final int offset = nearest * tupleLength;
+                for (int k = 0; k < tupleLength; k++) {
+                    sums[offset + k] += tuple[k];
+                }
+                if ((i - start + 1) % TUPLES_PER_STEP == 0) {
+                    checkForCancel();
+                    synchronized (ph) {
+                        ph.postStep();
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+}
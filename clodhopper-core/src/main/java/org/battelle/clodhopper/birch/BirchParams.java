@@ -0,0 +1,374 @@
+package org.battelle.clodhopper.birch;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * BirchParams.java
+ *
+ *===================================================================*/
+/**
+ * Parameters for <code>BirchClusterer</code>.
+ *
+ * @since 2.0.1
+ */
+public class BirchParams {
+
+    /**
+     * The methods for clustering the leaf summaries of the tree.
+     */
+    public enum GlobalClustering {
+        /**
+         * Cluster the summaries with <code>KMeansClusterer</code>, which
+         * ignores the number of tuples in each summary.
+         */
+        KMEANS,
+        /**
+         * Cluster the summaries with
+         * <code>ReverseNNHierarchicalClusterer</code>, weighting each by
+         * the number of tuples it summarizes.
+         */
+        REVERSE_NN
+    };
+
+    public static final int DEFAULT_BRANCHING_FACTOR = 50;
+    public static final int DEFAULT_LEAF_ENTRY_COUNT = 50;
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024L * 1024L;
+
+    private int clusterCount;
+    private double threshold;
+    private int branchingFactor = DEFAULT_BRANCHING_FACTOR;
+    private int leafEntryCount = DEFAULT_LEAF_ENTRY_COUNT;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private GlobalClustering globalClustering = GlobalClustering.KMEANS;
+    private boolean assignTuples = true;
+    private DistanceMetric distanceMetric;
+    private int workerThreadCount = Runtime.getRuntime().availableProcessors();
+    private long randomSeed = System.currentTimeMillis();
+
+    /**
+     * Constructor
+     */
+    public BirchParams() {
+        distanceMetric = new EuclideanDistanceMetric();
+    }
+
+    /**
+     * Get the number of requested clusters.
+     *
+     * @return the number of clusters requested.
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Set the number of requested clusters.
+     *
+     * @param n the number desired
+     *
+     * @throws IllegalArgumentException if n is not a positive integer.
+     */
+    public void setClusterCount(final int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("cluster count must be greater than 0");
+        }
+        this.clusterCount = n;
+    }
+
+    /**
+     * Get the initial threshold, the greatest radius of the subclusters
+     * summarized by the leaf entries of the tree.
+     *
+     * @return the threshold.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Set the initial threshold. A tuple is absorbed by the nearest leaf entry
+     * if the radius of the entry's subcluster would not then exceed the
+     * threshold. Whenever the tree outgrows the memory limit, it is rebuilt with
+     * a greater threshold, so the default of 0 merely lets the threshold be found
+     * from the data.
+     *
+     * @param threshold the threshold.
+     *
+     * @throws IllegalArgumentException if negative.
+     */
+    public void setThreshold(final double threshold) {
+        if (threshold < 0.0) {
+            throw new IllegalArgumentException("threshold < 0.0: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Get the greatest number of children of an interior node.
+     *
+     * @return the branching factor.
+     */
+    public int getBranchingFactor() {
+        return branchingFactor;
+    }
+
+    /**
+     * Set the greatest number of children of an interior node.
+     *
+     * @param n the branching factor.
+     *
+     * @throws IllegalArgumentException if less than 2.
+     */
+    public void setBranchingFactor(final int n) {
+        if (n < 2) {
+            throw new IllegalArgumentException("branching factor must be at least 2");
+        }
+        this.branchingFactor = n;
+    }
+
+    /**
+     * Get the greatest number of entries in a leaf.
+     *
+     * @return the number of entries.
+     */
+    public int getLeafEntryCount() {
+        return leafEntryCount;
+    }
+
+    /**
+     * Set the greatest number of entries in a leaf.
+     *
+     * @param n the number of entries.
+     *
+     * @throws IllegalArgumentException if less than 2.
+     */
+    public void setLeafEntryCount(final int n) {
+        if (n < 2) {
+            throw new IllegalArgumentException("leaf entry count must be at least 2");
+        }
+        this.leafEntryCount = n;
+    }
+
+    /**
+     * Get the memory budget for the tree.
+     *
+     * @return the budget in bytes.
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * Set the memory budget for the tree. The number of leaf summaries clustered
+     * in the global phase is roughly proportional to it.
+     *
+     * @param limit the budget in bytes.
+     *
+     * @throws IllegalArgumentException if not positive.
+     */
+    public void setMemoryLimit(final long limit) {
+        if (limit <= 0L) {
+            throw new IllegalArgumentException("memory limit must be greater than 0");
+        }
+        this.memoryLimit = limit;
+    }
+
+    /**
+     * Get the method used to cluster the leaf summaries.
+     *
+     * @return the method.
+     */
+    public GlobalClustering getGlobalClustering() {
+        return globalClustering;
+    }
+
+    /**
+     * Set the method used to cluster the leaf summaries.
+     *
+     * @param globalClustering the method.
+     *
+     * @throws NullPointerException if null.
+     */
+    public void setGlobalClustering(final GlobalClustering globalClustering) {
+        if (globalClustering == null) {
+            throw new NullPointerException();
+        }
+        this.globalClustering = globalClustering;
+    }
+
+    /**
+     * Get whether a final pass assigns every tuple to the nearest cluster.
+     *
+     * @return true if the tuples are assigned.
+     */
+    public boolean getAssignTuples() {
+        return assignTuples;
+    }
+
+    /**
+     * Set whether a final pass assigns every tuple to the nearest cluster. If
+     * false, the members of the clusters are the indexes of the leaf summaries
+     * returned by <code>BirchClusterer.getSummaries()</code> instead of
+     * tuple indexes. The default is true.
+     *
+     * @param b true to assign the tuples.
+     */
+    public void setAssignTuples(final boolean b) {
+        this.assignTuples = b;
+    }
+
+    /**
+     * Get the distance metric used to cluster the leaf summaries and to assign
+     * the tuples.
+     *
+     * @return the <code>DistanceMetric</code>.
+     */
+    public DistanceMetric getDistanceMetric() {
+        return distanceMetric;
+    }
+
+    /**
+     * Set the distance metric used to cluster the leaf summaries and to assign
+     * the tuples. The tree itself is always built with Euclidean distances,
+     * since clustering features only summarize those.
+     *
+     * @param distanceMetric a <code>DistanceMetric</code> instance.
+     *
+     * @throws NullPointerException if null
+     */
+    public void setDistanceMetric(final DistanceMetric distanceMetric) {
+        if (distanceMetric == null) {
+            throw new NullPointerException();
+        }
+        this.distanceMetric = distanceMetric;
+    }
+
+    /**
+     * Get the number of worker threads to be used for concurrent subtasks.
+     *
+     * @return the number of worker threads to use for concurrent subtasks.
+     */
+    public int getWorkerThreadCount() {
+        return workerThreadCount;
+    }
+
+    /**
+     * Set the number of worker threads to be used for concurrent subtasks.
+     *
+     * @param n the number of worker threads to use.
+     *
+     * @throws IllegalArgumentException if less than 1
+     */
+    public void setWorkerThreadCount(final int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+        this.workerThreadCount = n;
+    }
+
+    /**
+     * Get the seed for the random number generator of the global clustering.
+     *
+     * @return the seed.
+     */
+    public long getRandomSeed() {
+        return randomSeed;
+    }
+
+    /**
+     * Set the seed for the random number generator of the global clustering.
+     *
+     * @param randomSeed the seed.
+     */
+    public void setRandomSeed(final long randomSeed) {
+        this.randomSeed = randomSeed;
+    }
+
+    public static class Builder {
+
+        private BirchParams params;
+
+        public Builder() {
+            params = new BirchParams();
+        }
+
+        public Builder clusterCount(int clusterCount) {
+            params.setClusterCount(clusterCount);
+            return this;
+        }
+
+        public Builder threshold(double threshold) {
+            params.setThreshold(threshold);
+            return this;
+        }
+
+        public Builder branchingFactor(int branchingFactor) {
+            params.setBranchingFactor(branchingFactor);
+            return this;
+        }
+
+        public Builder leafEntryCount(int leafEntryCount) {
+            params.setLeafEntryCount(leafEntryCount);
+            return this;
+        }
+
+        public Builder memoryLimit(long memoryLimit) {
+            params.setMemoryLimit(memoryLimit);
+            return this;
+        }
+
+        public Builder globalClustering(GlobalClustering globalClustering) {
+            params.setGlobalClustering(globalClustering);
+            return this;
+        }
+
+        public Builder assignTuples(boolean assignTuples) {
+            params.setAssignTuples(assignTuples);
+            return this;
+        }
+
+        public Builder distanceMetric(DistanceMetric distanceMetric) {
+            params.setDistanceMetric(distanceMetric);
+            return this;
+        }
+
+        public Builder workerThreadCount(int workerThreadCount) {
+            params.setWorkerThreadCount(workerThreadCount);
+            return this;
+        }
+
+        public Builder randomSeed(long randomSeed) {
+            params.setRandomSeed(randomSeed);
+            return this;
+        }
+
+        public BirchParams build() {
+            return params;
+        }
+    }
+}
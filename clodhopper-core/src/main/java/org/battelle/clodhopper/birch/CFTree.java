@@ -0,0 +1,411 @@
+package org.battelle.clodhopper.birch;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * CFTree.java
+ *
+ *===================================================================*/
+/**
+ * A height-balanced tree of clustering features, as used by BIRCH. A clustering
+ * feature summarizes a subcluster by its count, the sum of its tuples, and the
+ * sum of their squared norms, from which the centroid and the radius follow.
+ * Features are additive, so the entry for an interior node is the sum of the
+ * entries of its child.
+ * <p>
+ * An inserted feature descends to the leaf with the nearest centroids, where
+ * it is absorbed by the nearest entry if the radius of the merged subcluster
+ * does not exceed the threshold, and otherwise becomes a new entry. Nodes which
+ * overflow are split around their farthest pair of entries, and splits
+ * propagate up to the root. The leaves are chained, so their entries can be
+ * visited in order.
+ * </p>
+ */
+class CFTree {
+
+    private final int dim;
+    private final int branchingFactor;
+    private final int leafEntryCount;
+    private final double threshold;
+
+    private Node root;
+    private Node firstLeaf;
+
+    private int leafCount;
+    private int interiorCount;
+    private int entryCount;
+
+    /**
+     * Constructor
+     *
+     * @param dim the tuple length.
+     * @param branchingFactor the greatest number of children of an interior
+     *   node.
+     * @param leafEntryCount the greatest number of entries in a leaf.
+     * @param threshold the greatest radius of the subcluster of a leaf entry.
+     */
+    CFTree(int dim, int branchingFactor, int leafEntryCount, double threshold) {
+        this.dim = dim;
+        this.branchingFactor = branchingFactor;
+        this.leafEntryCount = leafEntryCount;
+        this.threshold = threshold;
+        root = firstLeaf = new Node(true);
+        leafCount = 1;
+    }
+
+    /**
+     * Get the threshold.
+     *
+     * @return the greatest radius of the subcluster of a leaf entry.
+     */
+    double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the number of leaf entries, which summarize the subclusters.
+     *
+     * @return the number of entries.
+     */
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Estimate the memory taken by the nodes.
+     *
+     * @return the number of bytes.
+     */
+    long memoryUsed() {
+        return leafCount * nodeBytes(leafEntryCount) + interiorCount * nodeBytes(branchingFactor);
+    }
+
+    // Each entry has a count, a square sum, dim sums and a child reference, and
+    // a node has room for one entry more than its capacity.
+    private long nodeBytes(int capacity) {
+        return 64L + (capacity + 1L) * (24L + 8L * dim);
+    }
+
+    /**
+     * Inserts a tuple.
+     *
+     * @param tuple the tuple.
+     */
+    void insert(double[] tuple) {
+        double squares = 0.0;
+        for (int k = 0; k < dim; k++) {
+            squares += tuple[k] * tuple[k];
+        }
+        insert(1L, tuple, 0, squares);
+    }
+
+    /**
+     * Inserts a clustering feature.
+     *
+     * @param count the number of tuples summarized.
+     * @param sums array holding the sums of the tuples.
+     * @param offset where the sums begin in the array.
+     * @param squares the sum of the squared norms of the tuples.
+     */
+    void insert(long count, double[] sums, int offset, double squares) {
+        Node sibling = insert(root, count, sums, offset, squares);
+        if (sibling != null) {
+            Node newRoot = new Node(false);
+            interiorCount++;
+            newRoot.children[0] = root;
+            summarize(root, newRoot, 0);
+            newRoot.children[1] = sibling;
+            summarize(sibling, newRoot, 1);
+            newRoot.size = 2;
+            root = newRoot;
+        }
+    }
+
+    /**
+     * Copies the clustering features of the leaf entries, in the order of the
+     * leaves.
+     *
+     * @param counts receives the counts, and must have a length of at least
+     *   <code>getEntryCount()</code>.
+     * @param sums receives the sums, <code>dim</code> values per entry.
+     * @param squares receives the square sums.
+     */
+    void copyEntries(long[] counts, double[] sums, double[] squares) {
+        int n = 0;
+        for (Node leaf = firstLeaf; leaf != null; leaf = leaf.next) {
+            System.arraycopy(leaf.counts, 0, counts, n, leaf.size);
+            System.arraycopy(leaf.sums, 0, sums, n * dim, leaf.size * dim);
+            System.arraycopy(leaf.squares, 0, squares, n, leaf.size);
+            n += leaf.size;
+        }
+    }
+
+    /**
+     * Builds a tree with a greater threshold from the leaf entries of this one.
+     *
+     * @param newThreshold the threshold of the new tree.
+     *
+     * @return the new tree.
+     */
+    CFTree rebuild(double newThreshold) {
+        CFTree tree = new CFTree(dim, branchingFactor, leafEntryCount, newThreshold);
+        for (Node leaf = firstLeaf; leaf != null; leaf = leaf.next) {
+            for (int e = 0; e < leaf.size; e++) {
+                tree.insert(leaf.counts[e], leaf.sums, e * dim, leaf.squares[e]);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Chooses a threshold for rebuilding the tree so that it shrinks. For every
+     * leaf, the radius of the subcluster formed by merging its two closest
+     * entries is found, and the average of those is taken, since that many
+     * entries would be absorbed on rebuilding. The result is at least double
+     * the current threshold.
+     *
+     * @return the new threshold.
+     */
+    double nextThreshold() {
+        double total = 0.0;
+        int leaves = 0;
+        for (Node leaf = firstLeaf; leaf != null; leaf = leaf.next) {
+            double least = Double.MAX_VALUE;
+            for (int e1 = 0; e1 < leaf.size; e1++) {
+                for (int e2 = e1 + 1; e2 < leaf.size; e2++) {
+                    double r = mergedRadiusSquared(leaf, e1, leaf.counts[e2], leaf.sums,
+                            e2 * dim, leaf.squares[e2]);
+                    if (r < least) {
+                        least = r;
+                    }
+                }
+            }
+            if (least < Double.MAX_VALUE) {
+                total += Math.sqrt(least);
+                leaves++;
+            }
+        }
+        double t = leaves > 0 ? total / leaves : 0.0;
+        t = Math.max(t, 2.0 * threshold);
+        return t > 0.0 ? t : Double.MIN_NORMAL;
+    }
+
+    // Inserts a feature beneath a node, returning the new sibling of the node
+    // if it had to be split.
+    private Node insert(Node node, long count, double[] sums, int offset, double squares) {
+
+        final int closest = closestEntry(node, count, sums, offset);
+
+        if (node.leaf) {
+            if (closest >= 0 && mergedRadiusSquared(node, closest, count, sums, offset, squares)
+                    <= threshold * threshold) {
+                addTo(node, closest, count, sums, offset, squares);
+                return null;
+            }
+            setEntry(node, node.size++, count, sums, offset, squares);
+            entryCount++;
+            return node.size > leafEntryCount ? split(node) : null;
+        }
+
+        Node child = node.children[closest];
+        Node sibling = insert(child, count, sums, offset, squares);
+        if (sibling == null) {
+            addTo(node, closest, count, sums, offset, squares);
+            return null;
+        }
+
+        summarize(child, node, closest);
+        node.children[node.size] = sibling;
+        summarize(sibling, node, node.size++);
+
+        return node.size > branchingFactor ? split(node) : null;
+    }
+
+    // Finds the entry of a node with the centroid nearest to that of a feature.
+    // Returns -1 if the node is empty, which only happens to the first root.
+    private int closestEntry(Node node, long count, double[] sums, int offset) {
+        int closest = -1;
+        double closestDistance = Double.MAX_VALUE;
+        for (int e = 0; e < node.size; e++) {
+            double d = centroidDistanceSquared(node.counts[e], node.sums, e * dim,
+                    count, sums, offset);
+            if (d < closestDistance) {
+                closest = e;
+                closestDistance = d;
+            }
+        }
+        return closest;
+    }
+
+    private double centroidDistanceSquared(long count1, double[] sums1, int offset1,
+            long count2, double[] sums2, int offset2) {
+        double d = 0.0;
+        for (int k = 0; k < dim; k++) {
+            double diff = sums1[offset1 + k] / count1 - sums2[offset2 + k] / count2;
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    // The squared radius of the subcluster formed by merging an entry with a feature.
+    private double mergedRadiusSquared(Node node, int e, long count, double[] sums,
+            int offset, double squares) {
+        final double n = node.counts[e] + count;
+        final int entryOffset = e * dim;
+        double norm = 0.0;
+        for (int k = 0; k < dim; k++) {
+            double s = node.sums[entryOffset + k] + sums[offset + k];
+            norm += s * s;
+        }
+        double r = (node.squares[e] + squares) / n - norm / (n * n);
+        // Rounding can make it slightly negative.
+        return r > 0.0 ? r : 0.0;
+    }
+
+    private void addTo(Node node, int e, long count, double[] sums, int offset, double squares) {
+        node.counts[e] += count;
+        final int entryOffset = e * dim;
+        for (int k = 0; k < dim; k++) {
+            node.sums[entryOffset + k] += sums[offset + k];
+        }
+        node.squares[e] += squares;
+    }
+
+    private void setEntry(Node node, int e, long count, double[] sums, int offset, double squares) {
+        node.counts[e] = count;
+        System.arraycopy(sums, offset, node.sums, e * dim, dim);
+        node.squares[e] = squares;
+    }
+
+    // Sets entry e of parent to the sum of the entries of child.
+    private void summarize(Node child, Node parent, int e) {
+        parent.counts[e] = 0L;
+        parent.squares[e] = 0.0;
+        final int entryOffset = e * dim;
+        for (int k = 0; k < dim; k++) {
+            parent.sums[entryOffset + k] = 0.0;
+        }
+        for (int c = 0; c < child.size; c++) {
+            addTo(parent, e, child.counts[c], child.sums, c * dim, child.squares[c]);
+        }
+    }
+
+    // Splits an overflowing node around its farthest pair of entries, moving
+    // the entries nearer the second of the pair to a new sibling.
+    private Node split(Node node) {
+
+        final int n = node.size;
+
+        int seed1 = 0, seed2 = 1;
+        double farthest = -1.0;
+        for (int e1 = 0; e1 < n; e1++) {
+            for (int e2 = e1 + 1; e2 < n; e2++) {
+                double d = centroidDistanceSquared(node.counts[e1], node.sums, e1 * dim,
+                        node.counts[e2], node.sums, e2 * dim);
+                if (d > farthest) {
+                    farthest = d;
+                    seed1 = e1;
+                    seed2 = e2;
+                }
+            }
+        }
+
+        final double[] centroid1 = new double[dim];
+        final double[] centroid2 = new double[dim];
+        for (int k = 0; k < dim; k++) {
+            centroid1[k] = node.sums[seed1 * dim + k] / node.counts[seed1];
+            centroid2[k] = node.sums[seed2 * dim + k] / node.counts[seed2];
+        }
+
+        Node sibling = new Node(node.leaf);
+        if (node.leaf) {
+            sibling.next = node.next;
+            node.next = sibling;
+            leafCount++;
+        } else {
+            interiorCount++;
+        }
+
+        // Going down, so the entry swapped into a vacated slot has been seen.
+        for (int e = n - 1; e >= 0; e--) {
+            boolean move;
+            if (e == seed1 || e == seed2) {
+                move = e == seed2;
+            } else {
+                move = distanceSquared(node, e, centroid2) < distanceSquared(node, e, centroid1);
+            }
+            if (move) {
+                int s = sibling.size++;
+                setEntry(sibling, s, node.counts[e], node.sums, e * dim, node.squares[e]);
+                int last = --node.size;
+                if (e != last) {
+                    setEntry(node, e, node.counts[last], node.sums, last * dim, node.squares[last]);
+                }
+                if (!node.leaf) {
+                    sibling.children[s] = node.children[e];
+                    node.children[e] = node.children[last];
+                    node.children[last] = null;
+                }
+            }
+        }
+
+        return sibling;
+    }
+
+    private double distanceSquared(Node node, int e, double[] point) {
+        final long count = node.counts[e];
+        final int entryOffset = e * dim;
+        double d = 0.0;
+        for (int k = 0; k < dim; k++) {
+            double diff = node.sums[entryOffset + k] / count - point[k];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    // A node of the tree, whose entries are kept in parallel arrays with room for
+    // one more than the capacity, so a node can overflow before it is split.
+    private final class Node {
+
+        final boolean leaf;
+        int size;
+        final long[] counts;
+        final double[] sums;
+        final double[] squares;
+        // Null for leaves.
+        final Node[] children;
+        // The next leaf, for leaves.
+        Node next;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+            int capacity = (leaf ? leafEntryCount : branchingFactor) + 1;
+            counts = new long[capacity];
+            sums = new double[capacity * dim];
+            squares = new double[capacity];
+            children = leaf ? null : new Node[capacity];
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.battelle.clodhopper.distance;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * AbstractRAMDistanceCache.java
+ *
+ *===================================================================*/
+/**
+ * Base class for the <code>DistanceCache</code> implementations that keep all
+ * the distances in memory in some compact form. Subclasses only have to store
+ * and retrieve distances at positions in <code>[0 - (getNumDistances() - 1)]</code>.
+ *
+ * @since 2.0.1
+ */
+abstract class AbstractRAMDistanceCache implements DistanceCache {
+
+    protected final int indexCount;
+    protected final long distanceCount;
+
+    protected AbstractRAMDistanceCache(final int indexCount) {
+        if (indexCount < 0) {
+            throw new IllegalArgumentException("number of indices < 0: " + indexCount);
+        }
+        this.indexCount = indexCount;
+        this.distanceCount = ((long) indexCount * ((long) indexCount - 1L)) / 2L;
+    }
+
+    /**
+     * Get the distance stored at a position.
+     * 
+     * @param pos the position, which has already been validated.
+     * 
+     * @return the distance.
+     */
+    protected abstract double get(long pos);
+
+    /**
+     * Store the distance at a position.
+     * 
+     * @param pos the position, which has already been validated.
+     * @param distance the distance.
+     */
+    protected abstract void put(long pos, double distance);
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= indexCount) {
+            throw new IllegalArgumentException("index not in [0 - (" + indexCount + " - 1)]: " + index);
+        }
+    }
+
+    /**
+     * Get the number of indices, N. Valid indices for the other methods are
+     * then [0 - (N-1)].
+     *
+     * @return - the number of indices.
+     */
+    @Override
+    public int getNumIndices() {
+        return indexCount;
+    }
+
+    /**
+     * Get the number of distances maintained by this cache.
+     */
+    @Override
+    public long getNumDistances() {
+        return distanceCount;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double getDistance(final long n) {
+        if (n < 0 || n >= distanceCount) {
+            throw new IndexOutOfBoundsException("distance position not in [0 - (" + distanceCount + " - 1)]: " + n);
+        }
+        return get(n);
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public long distancePos(int index1, int index2) {
+        if (index1 == index2) {
+            throw new IllegalArgumentException("indices are equal: " + index1);
+        }
+        if (index1 > index2) { // Swap them
+            index1 ^= index2;
+            index2 ^= index1;
+            index1 ^= index2;
+        }
+        long n = indexCount - index1;
+        return distanceCount - n * (n - 1) / 2 + index2 - index1 - 1;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double getDistance(final int index1, final int index2) {
+        checkIndex(index1);
+        checkIndex(index2);
+        double d = 0.0;
+        if (index1 != index2) {
+            d = get(distancePos(index1, index2));
+        }
+        return d;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getDistances(final int[] indices1, final int[] indices2, final double[] distances) {
+        int n = indices1.length;
+        if (n != indices2.length) {
+            throw new IllegalArgumentException(String.valueOf(n) + " != " + indices2.length);
+        }
+        double[] d = distances;
+        if (distances != null) {
+            if (distances.length != n) {
+                throw new IllegalArgumentException("distance buffer length not equal to number of indices");
+            }
+        } else {
+            d = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            d[i] = getDistance(indices1[i], indices2[i]);
+        }
+        return d;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setDistance(final int index1, final int index2, final double distance) {
+        checkIndex(index1);
+        checkIndex(index2);
+        if (index1 != index2) {
+            put(distancePos(index1, index2), distance);
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setDistances(final int[] indices1, final int[] indices2, final double[] distances) {
+        final int n = indices1.length;
+        if (n != indices2.length) {
+            throw new IllegalArgumentException(String.valueOf(n) + " != " + indices2.length);
+        }
+        if (n != distances.length) {
+            throw new IllegalArgumentException("distance buffer length not equal to number of indices");
+        }
+        for (int i = 0; i < n; i++) {
+            setDistance(indices1[i], indices2[i], distances[i]);
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setRowDistances(final int index1, final int index2Start, final double[] distances,
+            final int offset, final int count) {
+        DistanceCache.checkRow(this, index1, index2Start, count);
+        if (count > 0) {
+            long pos = distancePos(index1, index2Start);
+            for (int i = 0; i < count; i++) {
+                put(pos + i, distances[offset + i]);
+            }
+        }
+    }
+
+}
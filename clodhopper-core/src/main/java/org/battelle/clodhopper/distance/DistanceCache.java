@@ -58,4 +58,43 @@ public interface DistanceCache extends ReadOnlyDistanceCache {
      */
     public void setDistances(int[] indices1, int[] indices2, double[] distances) throws IOException;
 
+    /**
+     * Set a run of distances from one index to a range of greater indices. These
+     * distances are stored contiguously, so implementations can write them in 
+     * bulk. This default implementation sets them one at a time.
+     *
+     * @param index1 the first index.
+     * @param index2Start the second index of the first distance, which must be
+     *   greater than index1.
+     * @param distances array containing the distances from index1 to 
+     *   <code>index2Start, index2Start + 1, ...</code>
+     * @param offset the offset into distances of the first distance.
+     * @param count the number of distances to set.
+     * @throws IOException if an IO error occurs.
+     */
+    default void setRowDistances(int index1, int index2Start, double[] distances, int offset, int count) 
+            throws IOException {
+        checkRow(this, index1, index2Start, count);
+        for (int i = 0; i < count; i++) {
+            setDistance(index1, index2Start + i, distances[offset + i]);
+        }
+    }
+
+    /**
+     * Checks the arguments to <code>setRowDistances()</code>.
+     *
+     * @param cache the cache.
+     * @param index1 the first index.
+     * @param index2Start the second index of the first distance.
+     * @param count the number of distances.
+     * @throws IllegalArgumentException if the indices are out of order or out of range.
+     */
+    static void checkRow(ReadOnlyDistanceCache cache, int index1, int index2Start, int count) {
+        if (index1 < 0 || index2Start <= index1 || count < 0 
+                || (long) index2Start + count > cache.getNumIndices()) {
+            throw new IllegalArgumentException(String.format(
+                    "invalid row: index1 = %d, index2Start = %d, count = %d", index1, index2Start, count));
+        }
+    }
+
 }
@@ -1,15 +1,14 @@
 package org.battelle.clodhopper.distance;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
 
+import org.battelle.clodhopper.util.ChannelIO;
+
 /*=====================================================================
  * 
  *                       CLODHOPPER CLUSTERING API
@@ -76,19 +75,74 @@ public class DistanceCacheFactory {
         final long memoryThreshold,
         final long fileThreshold,
         final File cacheFile) throws IOException {
+        return newDistanceCache(tupleCount, memoryThreshold, fileThreshold, cacheFile, 
+                DistancePrecision.DOUBLE);
+    }
+
+    /**
+     * Creates a new distance cache for holding pairwise distances, storing them
+     * in memory at a reduced precision if that is what it takes to meet the
+     * memory threshold. The highest precision no lower than the specified
+     * precision whose space requirement fits within the memory threshold is
+     * chosen. If none fits, the distances are stored as doubles in a disk file 
+     * if the file threshold can be met.
+     *
+     * @param tupleCount the number of tuples for which distances must be
+     * maintained.
+     * @param memoryThreshold the memory threshold determining whether or not to
+     * create a cache storing all the distances in memory.
+     * @param fileThreshold the threshold determining whether or not the
+     * distances can be stored in a disk file.
+     * @param cacheFile the file to use for the cache if a disk file is used for
+     * the cache.
+     * @param precision the lowest acceptable precision for distances kept in memory.
+     *
+     * @return an <code>Optional</code> containing an instance of <code>DistanceCache</code> or 
+     *     <code>Optional.absent()</code> if neither of the thresholds can be met.
+     *
+     * @throws IOException if an IO error occurs.
+     */
+    public static Optional<DistanceCache> newDistanceCache(
+        final int tupleCount,
+        final long memoryThreshold,
+        final long fileThreshold,
+        final File cacheFile,
+        final DistancePrecision precision) throws IOException {
 
         DistanceCache cache = null;
-        
-        long size = distanceCacheSize(tupleCount);
-        if (size <= memoryThreshold) {
-            cache = new RAMDistanceCache(tupleCount);
-        } else if (size <= fileThreshold) {
-            cache = new FileDistanceCache(tupleCount, cacheFile);
+
+        // The precisions are declared from highest to lowest.
+        for (DistancePrecision p : DistancePrecision.values()) {
+            if (distanceCacheSize(tupleCount, p) <= memoryThreshold) {
+                cache = newRAMDistanceCache(tupleCount, p);
+                break;
+            }
+            if (p == precision) {
+                break;
+            }
+        }
+
+        if (cache == null && distanceCacheSize(tupleCount) <= fileThreshold) {
+            cache = new MappedFileDistanceCache(tupleCount, cacheFile);
         }
 
         return Optional.ofNullable(cache);
     }
 
+    private static DistanceCache newRAMDistanceCache(final int tupleCount, 
+            final DistancePrecision precision) {
+        switch (precision) {
+            case FLOAT:
+                return new FloatRAMDistanceCache(tupleCount);
+            case QUANTIZED_16:
+                return new QuantizedRAMDistanceCache(tupleCount);
+            default:
+                // A single array can only hold the distances for so many tuples.
+                return tupleCount <= RAMDistanceCache.MAX_INDEX_COUNT ? new RAMDistanceCache(tupleCount)
+                        : new SegmentedRAMDistanceCache(tupleCount);
+        }
+    }
+
     /**
      * Wraps the provided distance cache to hide write operations.
      *
@@ -104,6 +158,22 @@ public class DistanceCacheFactory {
         }
     }
 
+    /**
+     * Returns the precision at which a cache holds its distances.
+     *
+     * @param cache the cache.
+     *
+     * @return the precision.
+     */
+    public static DistancePrecision precisionOf(final ReadOnlyDistanceCache cache) {
+        if (cache instanceof FloatRAMDistanceCache) {
+            return DistancePrecision.FLOAT;
+        } else if (cache instanceof QuantizedRAMDistanceCache) {
+            return DistancePrecision.QUANTIZED_16;
+        }
+        return DistancePrecision.DOUBLE;
+    }
+
     /**
      * Returns the amount of file space required to store all the distances for
      * the specified number of tuples.
@@ -115,6 +185,18 @@ public class DistanceCacheFactory {
         return 4L + 4L * tupleCount * ((long) tupleCount - 1);
     }
 
+    /**
+     * Returns the amount of space required to store all the distances for
+     * the specified number of tuples at the specified precision.
+     *
+     * @param tupleCount the number of tuples.
+     * @param precision the precision at which the distances are stored.
+     * @return the size in bytes required for the distances.
+     */
+    public static long distanceCacheSize(final int tupleCount, final DistancePrecision precision) {
+        return 4L + (long) precision.getBytesPerDistance() * tupleCount * ((long) tupleCount - 1) / 2L;
+    }
+
     /**
      * Returns the maximum number of tuples whose pairwise distances can fit
      * within the specified number of bytes.
@@ -127,6 +209,26 @@ public class DistanceCacheFactory {
         return (int) ((Math.sqrt(16.0 + 16.0 * (byteThreshold - 4L)) + 4.0) / 8.0);
     }
 
+    /**
+     * Returns the maximum number of tuples whose pairwise distances can fit
+     * within the specified number of bytes when stored at the specified precision.
+     *
+     * @param byteThreshold the threshold in bytes.
+     * @param precision the precision at which the distances are stored.
+     * @return the maximum number of tuples whose pairwise distances can be
+     *     stored in the given number of bytes.
+     */
+    public static int tupleLimit(final long byteThreshold, final DistancePrecision precision) {
+        // Solve b*n*(n-1)/2 <= byteThreshold - 4 for n.
+        double b = precision.getBytesPerDistance();
+        double n = (1.0 + Math.sqrt(1.0 + 8.0 * (byteThreshold - 4L) / b)) / 2.0;
+        int limit = (int) Math.min(n, Integer.MAX_VALUE);
+        while (limit > 0 && distanceCacheSize(limit, precision) > byteThreshold) {
+            limit--;
+        }
+        return limit;
+    }
+
     /**
      * Returns a 2-element array containing the indexes of the tuples whose
      * distance is stored at the specified position in the distance cache.
@@ -170,80 +272,37 @@ public class DistanceCacheFactory {
                 fileCache.closeFile();
             }
 
-            File src = fileCache.getFile();
-            FileInputStream fis = null;
-            FileOutputStream fos = null;
-
-            try {
-
-				// The first version of this used the nio method of
-                // getting the source FileChannel and the destination
-                // FileChannel and using the FileChannel method 
-                // transferTo.  But this failed on large files ( > 2GB), 
-                // so I changed it to the more traditional copy method.
-                long flen = src.length();
-                fis = new FileInputStream(src);
-
-				// Found this buffer size to give the speediest 
-                // performance on my Windows XP laptop.  May want
-                // to make the buffer size a static class member
-                // initialized to an optimum value for the OS.
-                byte[] ioBuffer = new byte[16 * 1024];
-
-                fos = new FileOutputStream(f);
-
-                long transferred = 0L;
-                while (transferred < flen) {
-                    int bytesRead = fis.read(ioBuffer);
-                    if (bytesRead > 0) {
-                        fos.write(ioBuffer, 0, bytesRead);
-                    }
-                    transferred += bytesRead;
-                }
+            ChannelIO.copyFile(fileCache.getFile(), f);
 
-            } finally {
-
-                if (fos != null) {
-					// Don't trap IOException, because if this file
-                    // doesn't close successfully, the cache probably didn't
-                    // save successfully.
-                    fos.close();
-                }
+        } else if (cache instanceof MappedFileDistanceCache) {
 
-                if (fis != null) {
-                    try {
-                        fis.close();
-                    } catch (IOException ioe) {
-                        // Ignore, since this probably didn't hose the save.
-                    }
-                }
+            MappedFileDistanceCache mappedCache = (MappedFileDistanceCache) cache;
+            // Make sure the file is up to date before copying it.
+            mappedCache.flush();
 
-            }
+            ChannelIO.copyFile(mappedCache.getFile(), f);
 
         } else { // Some other kind, probably a RAMDistanceCache
 
-            DataOutputStream dos = null;
-
-            try {
-
-                dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-                dos.writeInt(cache.getNumIndices());
-                long numDistances = cache.getNumDistances();
-
-                for (long d = 0L; d < numDistances; d++) {
-                    dos.writeDouble(cache.getDistance(d));
-                }
-
-            } finally {
-
-                if (dos != null) {
-					// Don't trap IOException, because if this file
-                    // doesn't close successfully, the cache probably didn't
-                    // save successfully.
-                    dos.close();
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                ByteBuffer buffer = ChannelIO.allocateBuffer();
+                buffer.putInt(cache.getNumIndices());
+                buffer.flip();
+                ChannelIO.writeFully(channel, buffer);
+
+                // The distances are written in large blocks.
+                final long numDistances = cache.getNumDistances();
+                double[] distances = new double[ChannelIO.BUFFER_SIZE / 8];
+                long pos = 0L;
+                while (pos < numDistances) {
+                    int n = (int) Math.min(distances.length, numDistances - pos);
+                    cache.getDistances(pos, distances, 0, n);
+                    ChannelIO.writeDoubles(channel, buffer, distances, 0, n);
+                    pos += n;
                 }
             }
-
         }
     }
 
@@ -253,7 +312,7 @@ public class DistanceCacheFactory {
      *
      * @param f the file from which to read the distances.
      * @param memoryThreshold the max threshold for storing all distances in a <code>RAMDistanceCache</code>.
-     * @param fileThreshold the max threshold for accessing the distances using a <code>FileDistanceCache</code>.
+     * @param fileThreshold the max threshold for accessing the distances using a <code>MappedFileDistanceCache</code>.
      * @return an <code>Optional</code> containing an instance of <code>DistanceCache</code> or 
      *     <code>Optional.absent()</code> if neither of the thresholds can be met.
      * @throws IOException if an IO error occurs.
@@ -265,15 +324,16 @@ public class DistanceCacheFactory {
 
         DistanceCache cache = null;
 
-        DataInputStream dis = null;
-
-        try {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
 
-            long flen = f.length();
+            long flen = channel.size();
 
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+            buffer.limit(4);
+            ChannelIO.readFully(channel, buffer);
+            buffer.flip();
 
-            int numIndices = dis.readInt();
+            int numIndices = buffer.getInt();
             long expectedLen = distanceCacheSize(numIndices);
 
             if (numIndices < 0 || flen != expectedLen) {
@@ -282,40 +342,39 @@ public class DistanceCacheFactory {
 
             if (numIndices <= RAMDistanceCache.MAX_INDEX_COUNT && flen <= memoryThreshold) {
 
-                int numDistances = numIndices * (numIndices - 1) / 2;
+                int numDistances = (int) ((long) numIndices * (numIndices - 1) / 2L);
 
                 double[] distances = new double[numDistances];
-                for (int i = 0; i < numDistances; i++) {
-                    distances[i] = dis.readDouble();
-                }
+                ChannelIO.readDoubles(channel, buffer, distances, 0, numDistances);
 
                 cache = new RAMDistanceCache(numIndices, distances);
 
-            } else if (flen <= fileThreshold) {
+            } else if (flen <= memoryThreshold) {
 
-                try {
-                    dis.close();
-                } catch (IOException x) {
-                }
+                // Too many distances for one array.
+                SegmentedRAMDistanceCache segmentedCache = new SegmentedRAMDistanceCache(numIndices);
+                long numDistances = segmentedCache.getNumDistances();
 
-                cache = new FileDistanceCache(f);
+                double[] distances = new double[ChannelIO.BUFFER_SIZE / 8];
+                long pos = 0L;
+                while (pos < numDistances) {
+                    int n = (int) Math.min(distances.length, numDistances - pos);
+                    ChannelIO.readDoubles(channel, buffer, distances, 0, n);
+                    segmentedCache.setDistances(pos, distances, 0, n);
+                    pos += n;
+                }
 
-            } else {
+                cache = segmentedCache;
 
-                throw new IOException("cache file is too large: " + flen + " > " + fileThreshold);
+            } else if (flen <= fileThreshold) {
 
-            }
+                cache = new MappedFileDistanceCache(f);
 
-        } finally {
+            } else {
 
-            if (dis != null) {
-                try {
-                    dis.close();
-                } catch (IOException ioe) {
+                throw new IOException("cache file is too large: " + flen + " > " + fileThreshold);
 
-                }
             }
-
         }
 
         return Optional.ofNullable(cache);
@@ -336,6 +395,11 @@ public class DistanceCacheFactory {
             return mCache.getNumIndices();
         }
 
+        @Override
+        public void getDistances(long pos, double[] distances, int offset, int count) throws IOException {
+            mCache.getDistances(pos, distances, offset, count);
+        }
+
         @Override
         public double getDistance(int index1, int index2) throws IOException {
             return mCache.getDistance(index1, index2);
@@ -0,0 +1,378 @@
+package org.battelle.clodhopper.distance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.battelle.clodhopper.tuple.TupleList;
+import org.battelle.clodhopper.util.ChannelIO;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * DistanceCacheStore.java
+ *
+ *===================================================================*/
+/**
+ * A directory of saved pairwise distances which may be reused by later runs on
+ * the same tuples. Each entry is a file in the format written by
+ * <code>DistanceCacheFactory.save()</code>, named by a key derived from a hash of
+ * the content of the tuples, the distance metric, and the precision with which
+ * the distances were cached. So an entry is found again for the same data, no
+ * matter which file or list the tuples came from, and never for different data.
+ * <p>
+ * Distance metrics are identified only by their classes. A metric whose
+ * distances depend on settings of its own, such as a weighting of the
+ * coordinates, must not be used with a store, since entries computed with one
+ * setting would be found again for another.
+ * </p>
+ * <p>
+ * Entries are copied into a working cache rather than used directly, so the
+ * stored distances are never modified by the cache's user. A cache backed by a
+ * file receives a copy of the whole entry file in one transfer; a cache in memory
+ * is filled through a read-only memory mapping of the entry. When the total
+ * size of the entries exceeds the limit, the least recently used entries are
+ * deleted.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class DistanceCacheStore {
+
+    /**
+     * The extension of the files holding the entries.
+     */
+    public static final String FILE_EXTENSION = ".dcache";
+
+    // Each segment of a stored file maps 2^27 distances, or 1GB.
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1L;
+
+    private final File directory;
+    private final long sizeLimit;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory in which to keep the entries. It is created
+     *   if it doesn't exist.
+     * @param sizeLimit the limit on the total size of the entries in bytes.
+     *
+     * @throws IOException if the directory cannot be created.
+     * @throws IllegalArgumentException if sizeLimit is negative.
+     * @throws NullPointerException if directory is null.
+     */
+    public DistanceCacheStore(final File directory, final long sizeLimit) throws IOException {
+        if (directory == null) {
+            throw new NullPointerException();
+        }
+        if (sizeLimit < 0L) {
+            throw new IllegalArgumentException("size limit < 0: " + sizeLimit);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory: " + directory);
+        }
+        this.directory = directory;
+        this.sizeLimit = sizeLimit;
+    }
+
+    /**
+     * Get the directory containing the entries.
+     *
+     * @return the directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the limit on the total size of the entries.
+     *
+     * @return the limit in bytes.
+     */
+    public long getSizeLimit() {
+        return sizeLimit;
+    }
+
+    /**
+     * Computes the key for the distances between tuples. The key is a hex
+     * encoding of a SHA-256 hash of the tuple count, the tuple length, the values of
+     * the tuples, the class of the distance metric, and the precision.
+     *
+     * @param tuples the tuples.
+     * @param distanceMetric the distance metric. Since metrics are identified by
+     *   their classes, the metric must not have settings that affect the distances.
+     * @param precision the precision of the cached distances.
+     *
+     * @return the key.
+     */
+    public static String computeKey(final TupleList tuples, final DistanceMetric distanceMetric,
+            final DistancePrecision precision) {
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        final int tupleCount = tuples.getTupleCount();
+        final int tupleLength = tuples.getTupleLength();
+
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(8 * tupleLength, 8));
+        buffer.putInt(tupleCount).putInt(tupleLength);
+        buffer.flip();
+        digest.update(buffer);
+
+        double[] values = new double[tupleLength];
+        for (int i = 0; i < tupleCount; i++) {
+            tuples.getTuple(i, values);
+            buffer.clear();
+            for (int j = 0; j < tupleLength; j++) {
+                buffer.putDouble(values[j]);
+            }
+            buffer.flip();
+            digest.update(buffer);
+        }
+
+        digest.update(distanceMetric.getClass().getName().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(precision.name().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the file for an entry, which may or may not exist.
+     *
+     * @param key the key of the entry.
+     *
+     * @return the file.
+     */
+    public File getFile(final String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+
+    /**
+     * Is there an entry for a key?
+     *
+     * @param key the key of the entry.
+     *
+     * @return true if there is.
+     */
+    public boolean contains(final String key) {
+        return getFile(key).isFile();
+    }
+
+    /**
+     * Loads the distances of an entry into a cache. The cache must have the
+     * same number of indices as the entry. The file backing a
+     * <code>MappedFileDistanceCache</code> or <code>FileDistanceCache</code> is
+     * overwritten with a copy of the entry file, so the cache must not be in use
+     * by other threads.
+     *
+     * @param key the key of the entry.
+     * @param cache the cache to receive the distances.
+     *
+     * @return true if the distances were loaded, false if there is no entry for the key.
+     *
+     * @throws IOException if an I/O error occurs or the entry is not a valid file
+     *   of distances for the cache. The content of the cache is then undefined, and
+     *   the entry should be removed.
+     */
+    public boolean load(final String key, final DistanceCache cache) throws IOException {
+
+        final File f = getFile(key);
+        if (!f.isFile()) {
+            return false;
+        }
+
+        final int indexCount = cache.getNumIndices();
+        final long distanceCount = cache.getNumDistances();
+
+        try (RandomAccessFile raFile = new RandomAccessFile(f, "r")) {
+
+            if (raFile.length() != DistanceCacheFactory.distanceCacheSize(indexCount)
+                    || raFile.readInt() != indexCount) {
+                throw new IOException("invalid distance cache entry: " + f);
+            }
+
+            File cacheFile = null;
+            if (cache instanceof MappedFileDistanceCache) {
+                cacheFile = ((MappedFileDistanceCache) cache).getFile();
+            } else if (cache instanceof FileDistanceCache) {
+                cacheFile = ((FileDistanceCache) cache).getFile();
+            }
+
+            if (cacheFile != null) {
+                // The backing file has the same format as the entry, and the same
+                // length, so its mapping stays valid.
+                ChannelIO.copyFile(f, cacheFile);
+                f.setLastModified(System.currentTimeMillis());
+                return true;
+            }
+
+            FileChannel channel = raFile.getChannel();
+            int segmentCount = (int) ((distanceCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            DoubleBuffer[] segments = new DoubleBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = ((long) i) << SEGMENT_SHIFT;
+                long count = Math.min(distanceCount - start, SEGMENT_MASK + 1L);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, 8L * start + 4L, 8L * count)
+                        .asDoubleBuffer();
+            }
+
+            // Copy the rows, each of which is contiguous in the file.
+            double[] row = new double[Math.max(0, indexCount - 1)];
+            long pos = 0L;
+            for (int i = 0; i < indexCount - 1; i++) {
+                int count = indexCount - i - 1;
+                int done = 0;
+                while (done < count) {
+                    DoubleBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+                    int offset = (int) (pos & SEGMENT_MASK);
+                    int n = Math.min(count - done, segment.limit() - offset);
+                    segment.position(offset);
+                    segment.get(row, done, n);
+                    done += n;
+                    pos += n;
+                }
+                cache.setRowDistances(i, i + 1, row, 0, count);
+            }
+        }
+
+        // Mark the entry as recently used.
+        f.setLastModified(System.currentTimeMillis());
+
+        return true;
+    }
+
+    /**
+     * Deletes the entry for a key, if there is one.
+     *
+     * @param key the key of the entry.
+     *
+     * @return true if an entry was deleted.
+     */
+    public boolean remove(final String key) {
+        return getFile(key).delete();
+    }
+
+    /**
+     * Saves the distances in a cache as the entry for a key, then deletes
+     * the least recently used entries as needed to respect the size limit. Nothing
+     * is saved if the distances alone exceed the limit.
+     *
+     * @param key the key of the entry.
+     * @param cache the cache containing the distances.
+     *
+     * @return true if the entry was saved.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean store(final String key, final DistanceCache cache) throws IOException {
+
+        if (DistanceCacheFactory.distanceCacheSize(cache.getNumIndices()) > sizeLimit) {
+            return false;
+        }
+
+        // Save to a temporary file first, so other processes never see a partial entry.
+        File tmp = File.createTempFile("dcache", ".tmp", directory);
+        try {
+            DistanceCacheFactory.save(cache, tmp);
+            Files.move(tmp.toPath(), getFile(key).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+
+        evict(key);
+
+        return true;
+    }
+
+    /**
+     * Get the total size of the entries.
+     *
+     * @return the size in bytes.
+     */
+    public long getTotalSize() {
+        long total = 0L;
+        for (File f : entryFiles()) {
+            total += f.length();
+        }
+        return total;
+    }
+
+    // Deletes the least recently used entries, other than the one for keep, until
+    // the total size is within the limit.
+    private void evict(final String keep) {
+        List<File> files = entryFiles();
+        long total = 0L;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= sizeLimit) {
+            return;
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        final File kept = getFile(keep);
+        for (File f : files) {
+            if (total <= sizeLimit) {
+                break;
+            }
+            if (!f.equals(kept)) {
+                long length = f.length();
+                if (f.delete()) {
+                    total -= length;
+                }
+            }
+        }
+    }
+
+    private List<File> entryFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        return files != null ? new ArrayList<>(Arrays.asList(files)) : new ArrayList<File>();
+    }
+}
@@ -0,0 +1,69 @@
+package org.battelle.clodhopper.distance;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * DistancePrecision.java
+ *
+ *===================================================================*/
+/**
+ * Precisions at which pairwise distances may be cached. When passed to
+ * <code>DistanceCacheFactory</code>, a precision is the lowest that is 
+ * acceptable. The factory always chooses the highest precision whose memory 
+ * requirement fits within the memory threshold.
+ *
+ * @since 2.0.1
+ */
+public enum DistancePrecision {
+
+    /**
+     * Distances are stored as 8-byte doubles.
+     */
+    DOUBLE(8),
+    /**
+     * Distances are stored as 4-byte floats.
+     */
+    FLOAT(4),
+    /**
+     * Distances are stored as monotone 2-byte codes.
+     * See <code>QuantizedRAMDistanceCache</code>.
+     */
+    QUANTIZED_16(2);
+
+    private final int bytesPerDistance;
+
+    DistancePrecision(int bytesPerDistance) {
+        this.bytesPerDistance = bytesPerDistance;
+    }
+
+    /**
+     * Get the number of bytes used to store each distance.
+     *
+     * @return the number of bytes.
+     */
+    public int getBytesPerDistance() {
+        return bytesPerDistance;
+    }
+}
@@ -392,6 +392,24 @@ public class FileDistanceCache implements DistanceCache {
         }
     }
 
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void setRowDistances(int index1, int index2Start, double[] distances, 
+            int offset, int count) throws IOException {
+        DistanceCache.checkRow(this, index1, index2Start, count);
+        if (count > 0) {
+            byte[] writeBuffer = new byte[count * 8]; // 8 bytes per distance.
+            toBytes(distances, offset, writeBuffer, 0, count);
+            if (!isOpen()) {
+                openFile();
+            }
+            raFile.seek(fileOffset(index1, index2Start));
+            raFile.write(writeBuffer);
+        }
+    }
+
     /**
      * Converts a source array of doubles values to an array of bytes. This is
      * convenient, say, if double data needs to be written to a stream in bulk
@@ -0,0 +1,76 @@
+package org.battelle.clodhopper.distance;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * FloatRAMDistanceCache.java
+ *
+ *===================================================================*/
+/**
+ * An implementation of <code>DistanceCache</code> that stores the distances in
+ * memory as 4-byte floats, taking half the space of a <code>RAMDistanceCache</code>.
+ * Distances retain about 7 significant digits, which is ample for the decisions 
+ * made by hierarchical clustering.
+ *
+ * @since 2.0.1
+ */
+public class FloatRAMDistanceCache extends AbstractRAMDistanceCache {
+
+    // The distances are spread over segments, so the number of indices is not
+    // limited by the maximum length of an array.
+    private final float[][] segments;
+
+    /**
+     * Constructor
+     *
+     * @param indexCount the number of entities for which to maintain distances.
+     * The total number of distances is
+     * <code>indexCount*(indexCount-1)/2</code>, since Dij == Dji and Dii = 0,
+     * for i, j from 0 to (indexCount - 1).
+     *
+     * @throws IllegalArgumentException if indexCount is negative.
+     */
+    public FloatRAMDistanceCache(final int indexCount) {
+        super(indexCount);
+        int segmentCount = SegmentedRAMDistanceCache.segmentCount(distanceCount);
+        segments = new float[segmentCount][];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new float[SegmentedRAMDistanceCache.segmentLength(distanceCount, i)];
+        }
+    }
+
+    @Override
+    protected double get(final long pos) {
+        return segments[(int) (pos >>> SegmentedRAMDistanceCache.SEGMENT_SHIFT)]
+                [(int) (pos & SegmentedRAMDistanceCache.SEGMENT_MASK)];
+    }
+
+    @Override
+    protected void put(final long pos, final double distance) {
+        segments[(int) (pos >>> SegmentedRAMDistanceCache.SEGMENT_SHIFT)]
+                [(int) (pos & SegmentedRAMDistanceCache.SEGMENT_MASK)] = (float) distance;
+    }
+
+}
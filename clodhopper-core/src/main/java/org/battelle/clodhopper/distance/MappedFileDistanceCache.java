@@ -0,0 +1,362 @@
+package org.battelle.clodhopper.distance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * MappedFileDistanceCache.java
+ *
+ *===================================================================*/
+/**
+ * An implementation of <code>DistanceCache</code> that maintains the distances
+ * in a memory-mapped file on disk. The file has the same format as the files
+ * used by <code>FileDistanceCache</code>, so it may be saved and read by
+ * <code>DistanceCacheFactory</code>.
+ * <p>
+ * Since a single mapping cannot exceed 2GB, the file is mapped in segments.
+ * Distances are read and written with absolute buffer operations, so no locking
+ * is done. Multiple threads may concurrently read, and may concurrently write
+ * distances at different positions, which is how the hierarchical clustering
+ * workers use the cache.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class MappedFileDistanceCache implements DistanceCache {
+
+    // Each segment maps 2^27 distances, or 1GB.
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1L;
+
+    private final File file;
+    private final int indexCount;
+    private final long distanceCount;
+
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Constructor for creating an entirely new memory-mapped distance cache.
+     *
+     * @param indexCount the number of entities for which to maintain distances.
+     * The total number of distances is
+     * <code>indexCount*(indexCount-1)/2</code>, since Dij == Dji and Dii = 0,
+     * for i, j from 0 to (indexCount - 1).
+     * @param f the file in which to store the distances.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws IllegalArgumentException if indexCount is negative.
+     * @throws NullPointerException if f is null.
+     */
+    public MappedFileDistanceCache(final int indexCount, final File f) throws IOException {
+
+        if (indexCount < 0) {
+            throw new IllegalArgumentException("number of indices < 0: " + indexCount);
+        }
+
+        if (f == null) {
+            throw new NullPointerException();
+        }
+
+        this.indexCount = indexCount;
+        this.file = f;
+        this.distanceCount = ((long) indexCount * ((long) indexCount - 1L)) / 2L;
+
+        RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+        try {
+            // Expand the file to its complete size up front, so it can be used
+            // by DistanceCacheFactory.read() even if not all distances are set.
+            raFile.setLength(0L);
+            raFile.setLength(8L * distanceCount + 4L);
+            // In order to restore from a file, need to write the index count.
+            raFile.writeInt(indexCount);
+            segments = mapSegments(raFile.getChannel());
+        } finally {
+            raFile.close();
+        }
+    }
+
+    /**
+     * Constructor for opening an existing file-based distance cache. The
+     * distances are assumed to already be present in the file.
+     *
+     * @param f a file containing the distances.
+     *
+     * @throws IOException if an IO error occurs.
+     */
+    public MappedFileDistanceCache(final File f) throws IOException {
+
+        this.file = f;
+
+        RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+        try {
+
+            this.indexCount = raFile.readInt();
+            if (this.indexCount < 0) {
+                throw new IOException("invalid distance cache file: indexCount = " + indexCount);
+            }
+
+            this.distanceCount = ((long) indexCount * ((long) indexCount - 1L)) / 2L;
+
+            long actualLength = raFile.length();
+            long expectedLength = 8L * this.distanceCount + 4L;
+            if (expectedLength != actualLength) {
+                throw new IOException(String.format("invalid distance cache file: expected file length == %d, actual length == %d",
+                        expectedLength, actualLength));
+            }
+
+            segments = mapSegments(raFile.getChannel());
+
+        } finally {
+            raFile.close();
+        }
+    }
+
+    // A mapping remains valid after the channel that created it is closed.
+    private MappedByteBuffer[] mapSegments(FileChannel channel) throws IOException {
+        int segmentCount = (int) ((distanceCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] buffers = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = ((long) i) << SEGMENT_SHIFT;
+            long count = Math.min(distanceCount - start, SEGMENT_MASK + 1L);
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, 8L * start + 4L, 8L * count);
+        }
+        return buffers;
+    }
+
+    /**
+     * Is the cache still mapped?
+     *
+     * @return true if open, false otherwise.
+     */
+    public boolean isOpen() {
+        return segments != null;
+    }
+
+    /**
+     * Writes any changes to the distances to the backing file.
+     */
+    public void flush() {
+        MappedByteBuffer[] buffers = segments;
+        if (buffers != null) {
+            for (MappedByteBuffer buffer : buffers) {
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Flushes the distances to the backing file and releases the mappings. The
+     * cache cannot be used afterwards. The mappings are actually released
+     * when garbage collected.
+     */
+    public void close() {
+        flush();
+        segments = null;
+    }
+
+    /**
+     * Get the backing file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    private MappedByteBuffer[] checkOpen() throws IOException {
+        MappedByteBuffer[] buffers = segments;
+        if (buffers == null) {
+            throw new IOException("distance cache has been closed");
+        }
+        return buffers;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= indexCount) {
+            throw new IllegalArgumentException("index not in [0 - (" + indexCount + " - 1)]: " + index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long distancePos(int index1, int index2) {
+        if (index1 == index2) {
+            throw new IllegalArgumentException("indices are equal: " + index1);
+        }
+        if (index1 > index2) { // Swap them
+            index1 ^= index2;
+            index2 ^= index1;
+            index1 ^= index2;
+        }
+        long n = indexCount - index1;
+        return distanceCount - n * (n - 1) / 2 + index2 - index1 - 1;
+    }
+
+    /**
+     * Get the number of indices, N. Valid indices for the other methods are
+     * then [0 - (N-1)].
+     *
+     * @return - the number of indices.
+     */
+    public int getNumIndices() {
+        return indexCount;
+    }
+
+    public long getNumDistances() {
+        return distanceCount;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double getDistance(long n) throws IOException {
+        if (n < 0 || n >= distanceCount) {
+            throw new IndexOutOfBoundsException("distance position not in [0 - (" + distanceCount + " - 1)]: " + n);
+        }
+        return get(checkOpen(), n);
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double getDistance(int index1, int index2) throws IOException {
+        checkIndex(index1);
+        checkIndex(index2);
+        return get(checkOpen(), distancePos(index1, index2));
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public double[] getDistances(int[] indices1, int[] indices2, double[] distances) throws IOException {
+        int n = indices1.length;
+        if (n != indices2.length) {
+            throw new IllegalArgumentException(String.valueOf(n) + " != " + indices2.length);
+        }
+        double[] d = distances;
+        if (distances != null) {
+            if (distances.length != n) {
+                throw new IllegalArgumentException("distance buffer length not equal to number of indices");
+            }
+        } else {
+            d = new double[n];
+        }
+        MappedByteBuffer[] buffers = checkOpen();
+        for (int i = 0; i < n; i++) {
+            checkIndex(indices1[i]);
+            checkIndex(indices2[i]);
+            d[i] = get(buffers, distancePos(indices1[i], indices2[i]));
+        }
+        return d;
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void getDistances(long pos, double[] distances, int offset, int count) throws IOException {
+        if (pos < 0 || count < 0 || pos + count > distanceCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        MappedByteBuffer[] buffers = checkOpen();
+        while (count > 0) {
+            MappedByteBuffer segment = buffers[(int) (pos >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(count, (segment.capacity() >>> 3) - segmentOffset);
+            // A duplicate, so that concurrent readers don't share a position.
+            ByteBuffer view = segment.duplicate();
+            view.position(segmentOffset << 3);
+            view.asDoubleBuffer().get(distances, offset, n);
+            pos += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setDistance(int index1, int index2, double distance) throws IOException {
+        checkIndex(index1);
+        checkIndex(index2);
+        put(checkOpen(), distancePos(index1, index2), distance);
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setDistances(int[] indices1, int[] indices2, double[] distances)
+            throws IOException {
+        int n = indices1.length;
+        if (n != indices2.length) {
+            throw new IllegalArgumentException(String.valueOf(n) + " != " + indices2.length);
+        }
+        if (n != distances.length) {
+            throw new IllegalArgumentException("distance buffer length not equal to number of indices");
+        }
+        MappedByteBuffer[] buffers = checkOpen();
+        for (int i = 0; i < n; i++) {
+            checkIndex(indices1[i]);
+            checkIndex(indices2[i]);
+            put(buffers, distancePos(indices1[i], indices2[i]), distances[i]);
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setRowDistances(int index1, int index2Start, double[] distances, int offset, int count)
+            throws IOException {
+        DistanceCache.checkRow(this, index1, index2Start, count);
+        MappedByteBuffer[] buffers = checkOpen();
+        if (count > 0) {
+            long pos = distancePos(index1, index2Start);
+            for (int i = 0; i < count; i++) {
+                put(buffers, pos + i, distances[offset + i]);
+            }
+        }
+    }
+
+    private static double get(MappedByteBuffer[] buffers, long pos) {
+        return buffers[(int) (pos >>> SEGMENT_SHIFT)].getDouble(((int) (pos & SEGMENT_MASK)) << 3);
+    }
+
+    private static void put(MappedByteBuffer[] buffers, long pos, double distance) {
+        buffers[(int) (pos >>> SEGMENT_SHIFT)].putDouble(((int) (pos & SEGMENT_MASK)) << 3, distance);
+    }
+}
@@ -0,0 +1,112 @@
+package org.battelle.clodhopper.distance;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * QuantizedRAMDistanceCache.java
+ *
+ *===================================================================*/
+/**
+ * An implementation of <code>DistanceCache</code> that stores the distances in
+ * memory as 2-byte codes, taking a quarter of the space of a 
+ * <code>RAMDistanceCache</code>.
+ * <p>
+ * A code is the upper 16 bits of the float representation of a distance, 
+ * rounded to nearest, after the float bits have been flipped so that they sort 
+ * in the same order as the values. The quantization is therefore monotone: if
+ * one distance is less than another, its code is never greater. Distances 
+ * retain the full range of a float, but only about 3 significant digits. 
+ * Distances that are closer than that are treated as equal.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class QuantizedRAMDistanceCache extends AbstractRAMDistanceCache {
+
+    // The codes are spread over segments, so the number of indices is not
+    // limited by the maximum length of an array.
+    private final char[][] segments;
+
+    /**
+     * Constructor
+     *
+     * @param indexCount the number of entities for which to maintain distances.
+     * The total number of distances is
+     * <code>indexCount*(indexCount-1)/2</code>, since Dij == Dji and Dii = 0,
+     * for i, j from 0 to (indexCount - 1).
+     *
+     * @throws IllegalArgumentException if indexCount is negative.
+     */
+    public QuantizedRAMDistanceCache(final int indexCount) {
+        super(indexCount);
+        int segmentCount = SegmentedRAMDistanceCache.segmentCount(distanceCount);
+        segments = new char[segmentCount][];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new char[SegmentedRAMDistanceCache.segmentLength(distanceCount, i)];
+        }
+    }
+
+    @Override
+    protected double get(final long pos) {
+        return decode(segments[(int) (pos >>> SegmentedRAMDistanceCache.SEGMENT_SHIFT)]
+                [(int) (pos & SegmentedRAMDistanceCache.SEGMENT_MASK)]);
+    }
+
+    @Override
+    protected void put(final long pos, final double distance) {
+        segments[(int) (pos >>> SegmentedRAMDistanceCache.SEGMENT_SHIFT)]
+                [(int) (pos & SegmentedRAMDistanceCache.SEGMENT_MASK)] = encode(distance);
+    }
+
+    /**
+     * Quantizes a distance to a 16-bit code.
+     * 
+     * @param distance the distance.
+     * 
+     * @return the code.
+     */
+    public static char encode(final double distance) {
+        int bits = Float.floatToIntBits((float) distance);
+        // Flip the bits so that they sort as unsigned ints in the same order as
+        // the floats they represent.
+        long sortable = (bits < 0 ? ~bits : bits ^ 0x80000000) & 0xFFFFFFFFL;
+        // Round to nearest, without overflowing the largest code.
+        return (char) Math.min((sortable + 0x8000L) >>> 16, 0xFFFFL);
+    }
+
+    /**
+     * Converts a 16-bit code back to a distance.
+     * 
+     * @param code the code returned by <code>encode()</code>.
+     * 
+     * @return the quantized distance.
+     */
+    public static double decode(final char code) {
+        int sortable = code << 16;
+        int bits = sortable < 0 ? sortable ^ 0x80000000 : ~sortable;
+        return Float.intBitsToFloat(bits);
+    }
+
+}
@@ -41,6 +41,7 @@ public class RAMDistanceCache implements DistanceCache {
     /**
      * The maximum number of indices for a RAMDistanceCache. Any higher and
      * mDistances would require a greater length than an int can accommodate.
+     * <code>SegmentedRAMDistanceCache</code> has no such limit.
      */
     public static final int MAX_INDEX_COUNT = 0x10000;
 
@@ -68,7 +69,7 @@ public class RAMDistanceCache implements DistanceCache {
             throw new IllegalArgumentException("number of indices greater than " + MAX_INDEX_COUNT + ": " + indexCount);
         }
         this.indexCount = indexCount;
-        int numDistances = indexCount * (indexCount - 1) / 2;
+        int numDistances = (int) ((long) indexCount * (indexCount - 1) / 2L);
         this.distances = new double[numDistances];
     }
 
@@ -96,7 +97,7 @@ public class RAMDistanceCache implements DistanceCache {
             throw new IllegalArgumentException("number of indices greater than " + MAX_INDEX_COUNT + ": " + indexCount);
         }
         this.indexCount = indexCount;
-        int numDistances = indexCount * (indexCount - 1) / 2;
+        int numDistances = (int) ((long) indexCount * (indexCount - 1) / 2L);
         if (distances.length != numDistances) {
             throw new IllegalArgumentException("invalid number of distances: " + distances.length + " != " + numDistances);
         }
@@ -136,6 +137,14 @@ public class RAMDistanceCache implements DistanceCache {
         return distances[(int) n];
     }
 
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void getDistances(final long pos, final double[] distances, final int offset, final int count) {
+        System.arraycopy(this.distances, (int) pos, distances, offset, count);
+    }
+
 	// Returns the index into mDistances of the distance measure for 
     // index1 and index2.
     private int distanceIndex(int index1, int index2) {
@@ -147,8 +156,9 @@ public class RAMDistanceCache implements DistanceCache {
             index2 ^= index1;
             index1 ^= index2;
         }
-        int n = indexCount - index1;
-        return distances.length - n * (n - 1) / 2 + index2 - index1 - 1;
+        // n*(n-1) overflows an int for n near MAX_INDEX_COUNT.
+        long n = indexCount - index1;
+        return (int) (distances.length - n * (n - 1) / 2 + index2 - index1 - 1);
     }
 
     @Override
@@ -229,4 +239,16 @@ public class RAMDistanceCache implements DistanceCache {
         }
     }
 
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setRowDistances(final int index1, final int index2Start, final double[] distances,
+            final int offset, final int count) {
+        DistanceCache.checkRow(this, index1, index2Start, count);
+        if (count > 0) {
+            System.arraycopy(distances, offset, this.distances, distanceIndex(index1, index2Start), count);
+        }
+    }
+
 }
@@ -99,6 +99,24 @@ public interface ReadOnlyDistanceCache {
      */
     public double getDistance(long n) throws IOException;
 
+    /**
+     * Get a run of consecutive distances, starting with distance pos. Equivalent
+     * to calling <code>getDistance(long)</code> for each position, but
+     * implementations may do it in bulk.
+     *
+     * @param pos the position of the first distance.
+     * @param distances the array to receive the distances.
+     * @param offset the offset into distances for the first distance.
+     * @param count the number of distances.
+     * @throws IOException if an IO errors occurs.
+     */
+    public default void getDistances(long pos, double[] distances, int offset, int count) 
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            distances[offset + i] = getDistance(pos + i);
+        }
+    }
+
     /**
      * Get the sequential distance number for the distance identified by index1
      * and index2. Both parameters should be in the range [0 - (getNumIndices()
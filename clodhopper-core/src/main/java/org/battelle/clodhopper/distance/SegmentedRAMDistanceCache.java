@@ -0,0 +1,142 @@
+package org.battelle.clodhopper.distance;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * SegmentedRAMDistanceCache.java
+ *
+ *===================================================================*/
+/**
+ * An implementation of <code>DistanceCache</code> that stores the distances in
+ * memory as doubles, like <code>RAMDistanceCache</code>, but spreads them over
+ * a number of arrays. Positions are longs, so the number of indices is limited 
+ * only by the memory available rather than by the maximum length of an array.
+ *
+ * @since 2.0.1
+ */
+public class SegmentedRAMDistanceCache extends AbstractRAMDistanceCache {
+
+    // Each segment holds 2^24 distances, or 128MB.
+    static final int SEGMENT_SHIFT = 24;
+    static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1L;
+
+    private final double[][] segments;
+
+    /**
+     * Constructor
+     *
+     * @param indexCount the number of entities for which to maintain distances.
+     * The total number of distances is
+     * <code>indexCount*(indexCount-1)/2</code>, since Dij == Dji and Dii = 0,
+     * for i, j from 0 to (indexCount - 1).
+     *
+     * @throws IllegalArgumentException if indexCount is negative.
+     */
+    public SegmentedRAMDistanceCache(final int indexCount) {
+        super(indexCount);
+        int segmentCount = segmentCount(distanceCount);
+        segments = new double[segmentCount][];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new double[segmentLength(distanceCount, i)];
+        }
+    }
+
+    @Override
+    protected double get(final long pos) {
+        return segments[(int) (pos >>> SEGMENT_SHIFT)][(int) (pos & SEGMENT_MASK)];
+    }
+
+    @Override
+    protected void put(final long pos, final double distance) {
+        segments[(int) (pos >>> SEGMENT_SHIFT)][(int) (pos & SEGMENT_MASK)] = distance;
+    }
+
+    /**
+     * Copies distances from an array into the cache.
+     *
+     * @param pos the position of the first distance to set.
+     * @param source the array containing the distances.
+     * @param offset the offset into source of the first distance.
+     * @param count the number of distances to copy.
+     */
+    public void setDistances(long pos, final double[] source, int offset, int count) {
+        if (pos < 0 || count < 0 || pos + count > distanceCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (count > 0) {
+            double[] segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(count, segment.length - segmentOffset);
+            System.arraycopy(source, offset, segment, segmentOffset, n);
+            pos += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void getDistances(long pos, final double[] distances, int offset, int count) {
+        if (pos < 0 || count < 0 || pos + count > distanceCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (count > 0) {
+            double[] segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+            int segmentOffset = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(count, segment.length - segmentOffset);
+            System.arraycopy(segment, segmentOffset, distances, offset, n);
+            pos += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    /**
+     * {@inheritDoc}
+     */
+    public void setRowDistances(final int index1, final int index2Start, final double[] distances,
+            final int offset, final int count) {
+        DistanceCache.checkRow(this, index1, index2Start, count);
+        if (count > 0) {
+            setDistances(distancePos(index1, index2Start), distances, offset, count);
+        }
+    }
+
+    // The number of segments needed for the given number of distances.
+    static int segmentCount(long distanceCount) {
+        return (int) ((distanceCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+    }
+
+    // The length of the given segment, which is only less than the full 
+    // length for the last one.
+    static int segmentLength(long distanceCount, int segment) {
+        long start = ((long) segment) << SEGMENT_SHIFT;
+        return (int) Math.min(distanceCount - start, SEGMENT_MASK + 1L);
+    }
+
+}
@@ -55,6 +55,9 @@ public abstract class AbstractHierarchicalClusterer extends AbstractClusterer {
     protected Dendrogram dendrogram;
     protected List<Cluster> clusters;
 
+    // If non-null, the number of tuples each tuple stands for.
+    protected int[] leafWeights;
+
     /**
      * Constructor.
      *
@@ -96,6 +99,40 @@ public abstract class AbstractHierarchicalClusterer extends AbstractClusterer {
         return dendrogram;
     }
 
+    /**
+     * Sets weights for the tuples, as when each stands for a group of tuples
+     * such as a micro-cluster. The weights become those of the leaves of the
+     * dendrogram, so linkages that depend on the sizes of the nodes count each
+     * tuple as that many. Must be called before the task is run.
+     *
+     * @param leafWeights the positive weight of each tuple, or null if every
+     *   tuple counts once.
+     *
+     * @throws IllegalArgumentException if the number of weights is not the number
+     *   of tuples.
+     */
+    public void setLeafWeights(int[] leafWeights) {
+        if (leafWeights != null && leafWeights.length != tuples.getTupleCount()) {
+            throw new IllegalArgumentException("number of weights != tuple count: "
+                    + leafWeights.length + " != " + tuples.getTupleCount());
+        }
+        this.leafWeights = leafWeights;
+    }
+
+    /**
+     * Creates the dendrogram to be built by <tt>buildDendrogram()</tt>, with a leaf
+     * for every tuple carrying the weight set by <tt>setLeafWeights()</tt>.
+     *
+     * @return a new <code>Dendrogram</code>.
+     */
+    protected Dendrogram newDendrogram() {
+        Dendrogram d = new Dendrogram(tuples.getTupleCount());
+        if (leafWeights != null) {
+            d.setLeafWeights(leafWeights);
+        }
+        return d;
+    }
+
     /**
      * Perform the work of this task. Since this method is final, subclasses
      * must perform their work in <tt>buildDendrogram()</tt>.
@@ -109,11 +146,11 @@ public abstract class AbstractHierarchicalClusterer extends AbstractClusterer {
             finishWithError("zero tuples to cluster");
         }
 
-        // If reusing an existing dendrogram, it has to have the same number
-        // of leaves as coordinates.
-        if (dendrogram != null && dendrogram.getLeafCount() != tupleCount) {
-            finishWithError("invalid dendrogram: leaf count = "
-                    + dendrogram.getLeafCount() + ", tuple count = "
+        // If reusing an existing dendrogram, it has to have been built from
+        // the same number of tuples.
+        if (dendrogram != null && dendrogram.getTupleCount() != tupleCount) {
+            finishWithError("invalid dendrogram: dendrogram tuple count = "
+                    + dendrogram.getTupleCount() + ", tuple count = "
                     + tupleCount);
         }
 
@@ -130,11 +167,13 @@ public abstract class AbstractHierarchicalClusterer extends AbstractClusterer {
 
         if (criterion == HierarchicalParams.Criterion.CLUSTERS) {
 
+            // The leaves may stand for more than one tuple each.
+            int leafCount = dendrogram.getLeafCount();
             clusterCount = params.getClusterCount();
-            if (clusterCount > tupleCount) {
-                postMessage("reducing number of clusters to the number of tuples: "
-                        + tupleCount);
-                clusterCount = tupleCount;
+            if (clusterCount > leafCount) {
+                postMessage("reducing number of clusters to the number of leaves: "
+                        + leafCount);
+                clusterCount = leafCount;
             }
 
         } else if (criterion == HierarchicalParams.Criterion.COHERENCE) {
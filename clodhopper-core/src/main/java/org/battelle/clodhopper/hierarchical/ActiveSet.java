@@ -0,0 +1,166 @@
+package org.battelle.clodhopper.hierarchical;
+
+import java.util.Arrays;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * ActiveSet.java
+ *
+ *===================================================================*/
+/**
+ * The ids of the nodes which have not yet been merged into others, kept both as
+ * flags and as a dense array in ascending order. Loops over the active nodes go
+ * through the array, so they get shorter as merges proceed, and visit the nodes
+ * in the same order as a loop over all the ids would, so ties are resolved the
+ * same way.
+ * <p>
+ * A removal only clears a flag. The array is compacted the next time it is
+ * looked at, in one pass no longer than the loop that is about to go over it,
+ * and not at all when only the flags are consulted.
+ * </p>
+ * <p>
+ * The set is not thread-safe. Since looking at the array may compact it, threads
+ * may only share the set for reading after <code>compact()</code> has been
+ * called following the last removal.
+ * </p>
+ */
+final class ActiveSet {
+
+    private final boolean[] flags;
+    private final int[] ids;
+    private int size;
+    // Number of ids removed since the array was last compacted.
+    private int removed;
+
+    /**
+     * Constructor
+     *
+     * @param count the number of ids, all of which are initially active.
+     */
+    ActiveSet(int count) {
+        flags = new boolean[count];
+        Arrays.fill(flags, true);
+        ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i;
+        }
+        size = count;
+    }
+
+    /**
+     * Get the number of active ids.
+     *
+     * @return the number of active ids.
+     */
+    int size() {
+        compact();
+        return size;
+    }
+
+    /**
+     * Get an active id by position.
+     *
+     * @param k the position, in [0 - (size() - 1)].
+     *
+     * @return the kth smallest active id.
+     */
+    int get(int k) {
+        compact();
+        return ids[k];
+    }
+
+    /**
+     * Get the array holding the active ids in its first <code>size()</code>
+     * elements. It must not be modified, and is only current until the next
+     * removal.
+     *
+     * @return the array.
+     */
+    int[] ids() {
+        compact();
+        return ids;
+    }
+
+    /**
+     * Is an id active?
+     *
+     * @param id the id.
+     *
+     * @return true if active.
+     */
+    boolean contains(int id) {
+        return flags[id];
+    }
+
+    /**
+     * Get the total number of ids, active or not.
+     *
+     * @return the number of ids.
+     */
+    int capacity() {
+        return flags.length;
+    }
+
+    /**
+     * Get the position of an active id.
+     *
+     * @param id the id, which must be active.
+     *
+     * @return the position k, such that <code>get(k) == id</code>.
+     */
+    int position(int id) {
+        compact();
+        return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    /**
+     * Removes an id, as when its node is merged into another.
+     *
+     * @param id the id, which must be active.
+     */
+    void remove(int id) {
+        flags[id] = false;
+        removed++;
+    }
+
+    /**
+     * Compacts the array after removals, after which it may be read by any
+     * number of threads until the next removal.
+     */
+    void compact() {
+        if (removed > 0) {
+            int n = 0;
+            for (int k = 0; k < size; k++) {
+                int id = ids[k];
+                if (flags[id]) {
+                    ids[n++] = id;
+                }
+            }
+            size = n;
+            removed = 0;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package org.battelle.clodhopper.hierarchical;
+
+import java.util.Arrays;
+
+import org.battelle.clodhopper.distance.ChebyshevDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
+import org.battelle.clodhopper.tuple.TupleList;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * CentroidKDTree.java
+ *
+ *===================================================================*/
+/**
+ * A bucketed kd-tree over the centroids of the active nodes of a dendrogram being
+ * built by reverse nearest neighbor clustering. The distance between two nodes
+ * of sizes s1 and s2 is the distance between their centroids weighted by
+ * <code>s1*s2/(s1+s2)</code>, as in Ward's method.
+ * <p>
+ * Every node of the tree keeps the bounding box and the smallest size of the
+ * centroids beneath it. Since the weight grows with the size of either node, the
+ * distance from the box to a query, weighted using the smallest size, is a lower
+ * bound on the weighted distance to any centroid in the box, so whole subtrees
+ * are skipped when searching. The boxes are kept tight as centroids are removed
+ * and moved, rather than left as the splitting planes, so the bounds stay useful
+ * as the clustering proceeds.
+ * </p>
+ * <p>
+ * Searches may be made concurrently by separate <code>Searcher</code>s, as long
+ * as the tree is not modified at the same time.
+ * </p>
+ * <p>
+ * The bound holds only for metrics in which distances grow with the differences
+ * of the coordinates, as tested by <code>supports()</code>.
+ * </p>
+ */
+class CentroidKDTree {
+
+    // Leaves are split when their buckets grow to twice this size.
+    static final int BUCKET_SIZE = 16;
+
+    private final DistanceMetric distMetric;
+    private final int dim;
+
+    // Centroids and sizes of the entries, indexed by id.
+    private final double[][] points;
+    private final int[] sizes;
+    private final int[] leafOf;
+
+    // Tree nodes. lefts[n] < 0 for leaves.
+    private int nodeCount;
+    private int[] lefts;
+    private int[] rights;
+    private int[] parents;
+    private int[] splitDims;
+    private double[] splitValues;
+    private int[][] buckets;
+    private int[] bucketSizes;
+    // Leaves whose centroids all coincide, so they cannot be split. Inserting
+    // more of the same centroid only appends to them.
+    private boolean[] coincident;
+
+    // Summaries of the entries under each node: the bounding box, packed dim
+    // values per node, the smallest size, and the number of entries.
+    private double[] lows;
+    private double[] highs;
+    private int[] minSizes;
+    private int[] counts;
+
+    // Used by nearest().
+    private final Searcher searcher;
+
+    /**
+     * Builds a tree containing every tuple as a node of the weight of its leaf
+     * in the dendrogram, which is 1 unless the leaves have weights.
+     *
+     * @param tuples the tuples being clustered.
+     * @param distMetric a metric for which <code>supports()</code> is true.
+     * @param dendrogram the dendrogram being built, before any merges.
+     */
+    CentroidKDTree(TupleList tuples, DistanceMetric distMetric, Dendrogram dendrogram) {
+
+        this.distMetric = distMetric;
+        this.dim = tuples.getTupleLength();
+
+        final int tupleCount = tuples.getTupleCount();
+
+        points = new double[tupleCount][];
+        sizes = new int[tupleCount];
+        leafOf = new int[tupleCount];
+        int[] ids = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            points[i] = tuples.getTuple(i, null);
+            sizes[i] = dendrogram.nodeWeight(i);
+            ids[i] = i;
+        }
+
+        int capacity = Math.max(1, 4 * tupleCount / BUCKET_SIZE);
+        lefts = new int[capacity];
+        rights = new int[capacity];
+        parents = new int[capacity];
+        splitDims = new int[capacity];
+        splitValues = new double[capacity];
+        buckets = new int[capacity][];
+        bucketSizes = new int[capacity];
+        coincident = new boolean[capacity];
+        lows = new double[capacity * dim];
+        highs = new double[capacity * dim];
+        minSizes = new int[capacity];
+        counts = new int[capacity];
+
+        build(ids, 0, tupleCount, -1);
+
+        searcher = new Searcher();
+    }
+
+    /**
+     * Can the tree be used with a distance metric?
+     *
+     * @param distMetric the metric.
+     *
+     * @return true if the distance from a query to the closest point of a box
+     *   never exceeds the distance to any point in the box.
+     */
+    static boolean supports(DistanceMetric distMetric) {
+        return distMetric instanceof EuclideanDistanceMetric
+                || distMetric instanceof ManhattanDistanceMetric
+                || distMetric instanceof ChebyshevDistanceMetric;
+    }
+
+    /**
+     * Removes an entry, as when its node is merged into another.
+     *
+     * @param id the id of the entry.
+     */
+    void remove(int id) {
+        int leaf = leafOf[id];
+        int[] bucket = buckets[leaf];
+        int n = bucketSizes[leaf];
+        for (int i = 0; i < n; i++) {
+            if (bucket[i] == id) {
+                bucket[i] = bucket[n - 1];
+                bucketSizes[leaf] = n - 1;
+                break;
+            }
+        }
+        leafOf[id] = -1;
+        refit(leaf);
+    }
+
+    /**
+     * Moves an entry to a new centroid with a new size, as when the node it
+     * represents has absorbed another.
+     *
+     * @param id the id of the entry.
+     * @param centroid the new centroid, which is copied.
+     * @param size the new size.
+     */
+    void move(int id, double[] centroid, int size) {
+        remove(id);
+        System.arraycopy(centroid, 0, points[id], 0, dim);
+        sizes[id] = size;
+        insert(id);
+    }
+
+    /**
+     * Finds the entry nearest to another in the weighted distance. Ties are
+     * resolved in favor of the lowest id.
+     *
+     * @param id the id of the entry whose neighbor is wanted.
+     *
+     * @return the id of the nearest entry, or -1 if there are no others.
+     */
+    int nearest(int id) {
+        return searcher.nearest(id);
+    }
+
+    /**
+     * Get the weighted distance to the entry found by the last call to
+     * <code>nearest()</code>.
+     *
+     * @return the distance.
+     */
+    double getNearestDistance() {
+        return searcher.getNearestDistance();
+    }
+
+    /**
+     * Holds the state of searches made by one thread.
+     */
+    class Searcher {
+
+        private final DistanceMetric dm = distMetric.clone();
+        private final double[] closest = new double[dim];
+        private double[] query;
+        private int querySize;
+        private int queryID;
+        private int nearestID;
+        private double nearestDistance;
+
+        /**
+         * Finds the entry nearest to another in the weighted distance. Ties are
+         * resolved in favor of the lowest id.
+         *
+         * @param id the id of the entry whose neighbor is wanted.
+         *
+         * @return the id of the nearest entry, or -1 if there are no others.
+         */
+        int nearest(int id) {
+            query = points[id];
+            querySize = sizes[id];
+            queryID = id;
+            nearestID = -1;
+            nearestDistance = Double.MAX_VALUE;
+            search(0);
+            query = null;
+            return nearestID;
+        }
+
+        /**
+         * Get the weighted distance to the entry found by the last call to
+         * <code>nearest()</code>.
+         *
+         * @return the distance.
+         */
+        double getNearestDistance() {
+            return nearestDistance;
+        }
+
+        private void search(int node) {
+            if (lefts[node] < 0) {
+                int[] bucket = buckets[node];
+                int n = bucketSizes[node];
+                for (int i = 0; i < n; i++) {
+                    int id = bucket[i];
+                    if (id != queryID) {
+                        double d = weight(querySize, sizes[id]) * dm.distance(query, points[id]);
+                        if (d < nearestDistance || (d == nearestDistance && nearestID >= 0 && id < nearestID)) {
+                            nearestDistance = d;
+                            nearestID = id;
+                        }
+                    }
+                }
+            } else {
+                int near = lefts[node];
+                int far = rights[node];
+                double nearBound = bound(near);
+                double farBound = bound(far);
+                if (farBound < nearBound) {
+                    int t = near;
+                    near = far;
+                    far = t;
+                    double b = nearBound;
+                    nearBound = farBound;
+                    farBound = b;
+                }
+                // Equal bounds are searched, since they may hold a tie with a lower id.
+                if (nearBound <= nearestDistance) {
+                    search(near);
+                    if (farBound <= nearestDistance) {
+                        search(far);
+                    }
+                }
+            }
+        }
+
+        // Lower bound on the weighted distance from the query to any entry under a node.
+        private double bound(int node) {
+            if (counts[node] == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            final int offset = node * dim;
+            for (int k = 0; k < dim; k++) {
+                double c = query[k];
+                double lo = lows[offset + k];
+                double hi = highs[offset + k];
+                closest[k] = c < lo ? lo : (c > hi ? hi : c);
+            }
+            return weight(querySize, minSizes[node]) * dm.distance(query, closest);
+        }
+    }
+
+    // Computed exactly as ReverseNNHierarchicalClusterer does.
+    private static double weight(int size1, int size2) {
+        return ((double) size1 * size2) / (size1 + size2);
+    }
+
+    private void insert(int id) {
+        final double[] p = points[id];
+        int node = 0;
+        while (lefts[node] >= 0) {
+            node = p[splitDims[node]] < splitValues[node] ? lefts[node] : rights[node];
+        }
+        int n = bucketSizes[node];
+        if (n == buckets[node].length) {
+            buckets[node] = Arrays.copyOf(buckets[node], 2 * n + 1);
+        }
+        buckets[node][n] = id;
+        bucketSizes[node] = n + 1;
+        leafOf[id] = node;
+        if (coincident[node]) {
+            if (n > 0 && isAtBox(node, p)) {
+                // The box is unchanged, so the leaf need not be scanned again.
+                minSizes[node] = Math.min(minSizes[node], sizes[id]);
+                counts[node] = n + 1;
+                for (int a = parents[node]; a >= 0; a = parents[a]) {
+                    summarizeInternal(a);
+                }
+                return;
+            }
+            coincident[node] = false;
+        }
+        if (n + 1 >= 2 * BUCKET_SIZE) {
+            splitLeaf(node);
+        } else {
+            refit(node);
+        }
+    }
+
+    // Turns a full leaf into an internal node with two new leaves, unless its
+    // centroids all coincide.
+    private void splitLeaf(int node) {
+        int[] ids = Arrays.copyOf(buckets[node], bucketSizes[node]);
+        int s = widestDimension(ids, 0, ids.length);
+        if (s < 0) {
+            coincident[node] = true;
+            refit(node);
+            return;
+        }
+        int mid = ids.length / 2;
+        select(ids, 0, ids.length, mid, s);
+        buckets[node] = null;
+        bucketSizes[node] = 0;
+        splitDims[node] = s;
+        splitValues[node] = points[ids[mid]][s];
+        lefts[node] = build(ids, 0, mid, node);
+        rights[node] = build(ids, mid, ids.length, node);
+        refit(node);
+    }
+
+    // Builds the subtree for ids[from:to], returning its root.
+    private int build(int[] ids, int from, int to, int parent) {
+
+        int node = newNode(parent);
+
+        int s = to - from > BUCKET_SIZE ? widestDimension(ids, from, to) : -1;
+        if (s < 0) {
+            int[] bucket = new int[Math.max(BUCKET_SIZE, to - from)];
+            System.arraycopy(ids, from, bucket, 0, to - from);
+            buckets[node] = bucket;
+            bucketSizes[node] = to - from;
+            // Larger leaves are only made when their centroids coincide.
+            coincident[node] = to - from > BUCKET_SIZE;
+            for (int i = from; i < to; i++) {
+                leafOf[ids[i]] = node;
+            }
+            summarizeLeaf(node);
+            return node;
+        }
+
+        int mid = (from + to) >>> 1;
+        select(ids, from, to, mid, s);
+        splitDims[node] = s;
+        splitValues[node] = points[ids[mid]][s];
+        int left = build(ids, from, mid, node);
+        int right = build(ids, mid, to, node);
+        lefts[node] = left;
+        rights[node] = right;
+        summarizeInternal(node);
+
+        return node;
+    }
+
+    private int newNode(int parent) {
+        if (nodeCount == lefts.length) {
+            int capacity = 2 * nodeCount;
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            splitDims = Arrays.copyOf(splitDims, capacity);
+            splitValues = Arrays.copyOf(splitValues, capacity);
+            buckets = Arrays.copyOf(buckets, capacity);
+            bucketSizes = Arrays.copyOf(bucketSizes, capacity);
+            coincident = Arrays.copyOf(coincident, capacity);
+            lows = Arrays.copyOf(lows, capacity * dim);
+            highs = Arrays.copyOf(highs, capacity * dim);
+            minSizes = Arrays.copyOf(minSizes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        int node = nodeCount++;
+        lefts[node] = -1;
+        rights[node] = -1;
+        parents[node] = parent;
+        coincident[node] = false;
+        return node;
+    }
+
+    // Is a point the single point to which the box of a coincident leaf shrinks?
+    private boolean isAtBox(int node, double[] p) {
+        final int offset = node * dim;
+        for (int k = 0; k < dim; k++) {
+            if (p[k] != lows[offset + k] || p[k] != highs[offset + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Recomputes the summaries of a node and all its ancestors.
+    private void refit(int node) {
+        if (lefts[node] < 0) {
+            summarizeLeaf(node);
+            node = parents[node];
+        }
+        while (node >= 0) {
+            summarizeInternal(node);
+            node = parents[node];
+        }
+    }
+
+    private void summarizeLeaf(int node) {
+        final int offset = node * dim;
+        Arrays.fill(lows, offset, offset + dim, Double.POSITIVE_INFINITY);
+        Arrays.fill(highs, offset, offset + dim, Double.NEGATIVE_INFINITY);
+        int minSize = Integer.MAX_VALUE;
+        int[] bucket = buckets[node];
+        int n = bucketSizes[node];
+        for (int i = 0; i < n; i++) {
+            int id = bucket[i];
+            double[] p = points[id];
+            for (int k = 0; k < dim; k++) {
+                double c = p[k];
+                if (c < lows[offset + k]) {
+                    lows[offset + k] = c;
+                }
+                if (c > highs[offset + k]) {
+                    highs[offset + k] = c;
+                }
+            }
+            if (sizes[id] < minSize) {
+                minSize = sizes[id];
+            }
+        }
+        minSizes[node] = minSize;
+        counts[node] = n;
+    }
+
+    private void summarizeInternal(int node) {
+        final int offset = node * dim;
+        final int left = lefts[node] * dim;
+        final int right = rights[node] * dim;
+        for (int k = 0; k < dim; k++) {
+            lows[offset + k] = Math.min(lows[left + k], lows[right + k]);
+            highs[offset + k] = Math.max(highs[left + k], highs[right + k]);
+        }
+        minSizes[node] = Math.min(minSizes[lefts[node]], minSizes[rights[node]]);
+        counts[node] = counts[lefts[node]] + counts[rights[node]];
+    }
+
+    // Returns the dimension along which the points of ids[from:to] are most spread
+    // out, or -1 if they all coincide.
+    private int widestDimension(int[] ids, int from, int to) {
+        int widest = -1;
+        double maxSpread = 0.0;
+        for (int k = 0; k < dim; k++) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                double c = points[ids[i]][k];
+                if (c < lo) {
+                    lo = c;
+                }
+                if (c > hi) {
+                    hi = c;
+                }
+            }
+            if (hi - lo > maxSpread) {
+                maxSpread = hi - lo;
+                widest = k;
+            }
+        }
+        return widest;
+    }
+
+    // Partially orders ids[from:to] by coordinate s, so that the element at nth
+    // is in its sorted position, with none greater before it and none less after.
+    private void select(int[] ids, int from, int to, int nth, int s) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = points[ids[(lo + hi) >>> 1]][s];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (points[ids[i]][s] < pivot) {
+                    i++;
+                }
+                while (points[ids[j]][s] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                hi = j;
+            } else if (nth >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+    }
+}
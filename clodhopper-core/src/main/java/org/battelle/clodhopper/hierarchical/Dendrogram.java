@@ -3,16 +3,20 @@ package org.battelle.clodhopper.hierarchical;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.List;
 
 import org.battelle.clodhopper.Cluster;
 import org.battelle.clodhopper.ClusterStats;
 import org.battelle.clodhopper.tuple.TupleList;
 import org.battelle.clodhopper.tuple.TupleMath;
-import org.battelle.clodhopper.util.ArrayIntIterator;
+import org.battelle.clodhopper.util.ChannelIO;
 
 /*=====================================================================
  * 
@@ -52,6 +56,20 @@ import org.battelle.clodhopper.util.ArrayIntIterator;
  * recursive, so there is no danger of stack overflow exceptions from trying to
  * traverse large and highly imbalanced dendrograms.
  * </p>
+ * <p>
+ * A dendrogram may be written with <code>save()</code> to a compact binary file,
+ * which <code>open()</code> maps into memory rather than reading, so that
+ * dendrograms of millions of leaves can be browsed and cut without first being
+ * loaded onto the heap. A dendrogram opened this way is read-only.
+ * </p>
+ * <p>
+ * The leaves may stand for groups of tuples, such as micro-clusters, rather than
+ * single tuples. Leaves given weights with <code>setLeafWeights()</code> count as
+ * that many tuples in <code>nodeWeight()</code>, which linkages depending on the
+ * sizes of the nodes should use. Leaves given members with
+ * <code>setLeafMembers()</code> are expanded to their members when the
+ * dendrogram is cut, so the clusters contain the original tuples.
+ * </p>
  *
  * @author R.Scarberry
  * @since 1.0
@@ -59,31 +77,46 @@ import org.battelle.clodhopper.util.ArrayIntIterator;
  */
 public class Dendrogram implements Externalizable {
 
-    private static final int EXTERNALIZABLE_VERSION = 1;
+    private static final int EXTERNALIZABLE_VERSION = 2;
+
+    // Externalized arrays are moved through a byte array in chunks of this size,
+    // which gives the same bytes as writing the values one at a time.
+    private static final int EXTERNAL_CHUNK_SIZE = 8192;
+
+    // Identifies files written by save(), followed by the version of the format.
+    private static final int FILE_MAGIC = 0x44454e44;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 48;
+
+    // Bits of the flags in the file header.
+    private static final int FLAG_COHERENCES = 1;
+    private static final int FLAG_LEAF_RANGES = 2;
+    private static final int FLAG_LEAF_WEIGHTS = 4;
+    private static final int FLAG_LEAF_MEMBERS = 8;
 
     // Contains IDs of the nodes, both the non-leaf and leaf.
     // Length is equal to 2*mLeafCount - 1.  The IDs are generally
     // the indexes of the items being clustered.
-    private int[] nodeIDs;
+    private IntBuffer nodeIDs;
 
 	// Indices of the parent nodes - same length as mNodeIDs. Initialized to -1
     // which means "parent not set".  When the dendrogram is finished all elements
     // except 0 should have values >= 0.  Element 0 will remain -1 since the
     // root node does not have a parent.
-    private int[] parentIndices;
+    private IntBuffer parentIndices;
 	// Stores the indices into mNodeIDs of the left and right
     // children nodes of the non-leaf node at each level
     // 0 - (getLeafCount() - 2).
-    private int[] leftIndices, rightIndices;
+    private IntBuffer leftIndices, rightIndices;
 
     // Contains the size of the node at levels [0 - (getLeafCount() - 2)].
-    private int[] sizes;
+    private IntBuffer sizes;
 
 	// Given an ID, what index into the above arrays will give
     // the pertinent info for that ID?
-    private int[] indicesForIDs;
+    private IntBuffer indicesForIDs;
 
-    private double[] distances, coherences;
+    private DoubleBuffer distances, coherences;
 
     private boolean coherencesComputed;
 
@@ -101,6 +134,36 @@ public class Dendrogram implements Externalizable {
     // are [0 - (getLeafCount() - 2)].
     private int currentLevel;
 
+    // Computed on demand once the dendrogram is finished. The leaves of every
+    // node occupy a contiguous range of leafOrder, which holds the leaf ids in the 
+    // order of getOrderedLeafIDs(). rangeStarts holds the start of the range for
+    // every node index.
+    private int[] leafOrder;
+    private int[] rangeStarts;
+
+    // Per-dimension sums of the members of every non-leaf node, packed one node
+    // after another, for the tuples in sumsTuples. Computed on demand.
+    private TupleList sumsTuples;
+    private double[] nodeSums;
+
+    // Null unless the leaves have weights. leafWeights holds the weight of each
+    // leaf by id, and weights the weight of the node at levels 
+    // [0 - (getLeafCount() - 2)], which is the sum of the weights of its leaves.
+    private IntBuffer leafWeights;
+    private IntBuffer weights;
+
+    // Null unless the leaves have members. The members of the leaf with id n are
+    // at [memberStarts[n] - (memberStarts[n+1] - 1)] in memberIDs.
+    private IntBuffer memberStarts;
+    private IntBuffer memberIDs;
+
+    // Computed along with leafOrder if the leaves have members. memberOrder holds
+    // the members of the leaves in the order of leafOrder, and memberPositions
+    // the start of the members of the leaf at every position of leafOrder,
+    // followed by the number of members.
+    private int[] memberOrder;
+    private int[] memberPositions;
+
     /**
      * Constructor. Initially forms a dendrogram with only leaf nodes with IDs
      * <code>[0 - (leafCount - 1)]</code>. Completion of the dendrogram requires
@@ -123,35 +186,41 @@ public class Dendrogram implements Externalizable {
         int nonLeafCount = leafCount - 1;
 
         // The array containing the node IDs, both leaf and non-leaf.
-        nodeIDs = new int[nodeCount];
+        nodeIDs = IntBuffer.allocate(nodeCount);
 		// Initialize the leaf node IDs, which are at the bottom of the array
         // and are numbered sequentially
         int id = 0;
         for (int i = nonLeafCount; i < nodeCount; i++) {
-            nodeIDs[i] = id++;
+            nodeIDs.put(i, id++);
         }
 
         // Initialize the parent indices.
-        parentIndices = new int[nodeCount];
-        Arrays.fill(parentIndices, -1);
+        parentIndices = IntBuffer.allocate(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            parentIndices.put(i, -1);
+        }
 
         int index = nonLeafCount;
-        indicesForIDs = new int[leafCount];
+        indicesForIDs = IntBuffer.allocate(leafCount);
         for (int i = 0; i < leafCount; i++) {
-            indicesForIDs[i] = index++;
+            indicesForIDs.put(i, index++);
         }
 
-        leftIndices = new int[nonLeafCount];
-        rightIndices = new int[nonLeafCount];
-        sizes = new int[nonLeafCount];
+        leftIndices = IntBuffer.allocate(nonLeafCount);
+        rightIndices = IntBuffer.allocate(nonLeafCount);
+        sizes = IntBuffer.allocate(nonLeafCount);
 
-        distances = new double[nonLeafCount];
-        coherences = new double[nonLeafCount];
+        distances = DoubleBuffer.allocate(nonLeafCount);
+        coherences = DoubleBuffer.allocate(nonLeafCount);
 
         currentLevel = nonLeafCount; // == (ids.numIDs() - 1)
 
     }
 
+    // For open(), which sets all the fields.
+    private Dendrogram() {
+    }
+
     public double getMinCoherenceThreshold() {
         return minCoherenceThreshold;
     }
@@ -241,9 +310,10 @@ public class Dendrogram implements Externalizable {
      * 
      * @return an array containing the ordered leaf ids. 
      */
-    public int[] getOrderedLeafIDs() {
+    public synchronized int[] getOrderedLeafIDs() {
         checkFinished();
-        return getOrderedLeafIDs(0);
+        computeLeafRanges();
+        return leafOrder.clone();
     }
 
     /**
@@ -278,12 +348,12 @@ public class Dendrogram implements Externalizable {
 
             OUTER:
             while (true) {
-                int leftLevel = leftIndices[currentLevel];
-                int rightLevel = rightIndices[currentLevel];
+                int leftLevel = leftIndices.get(currentLevel);
+                int rightLevel = rightIndices.get(currentLevel);
                 if (leftLevel >= leafLevel) { // Encountered a leaf on the left
-                    rtnList.add(nodeIDs[leftLevel]);
+                    rtnList.add(nodeIDs.get(leftLevel));
                     if (rightLevel >= leafLevel) { // Encountered a leaf on the right.
-                        rtnList.add(nodeIDs[rightLevel]);
+                        rtnList.add(nodeIDs.get(rightLevel));
                         int sz = intList.size();
                         INNER:
                         while (true) {
@@ -294,7 +364,7 @@ public class Dendrogram implements Externalizable {
                             intList.removeAt(sz - 1);
                             sz--;
                             if (currentLevel >= leafLevel) {
-                                rtnList.add(nodeIDs[currentLevel]);
+                                rtnList.add(nodeIDs.get(currentLevel));
                             } else {
                                 break INNER;
                             }
@@ -315,7 +385,7 @@ public class Dendrogram implements Externalizable {
 
 	    // Must be only one leaf, so the dendrogram starts out
             // finished with one leaf node and no others.
-            rtnList.add(nodeIDs[0]);
+            rtnList.add(nodeIDs.get(0));
         }
 
         return rtnList.toArray();
@@ -350,8 +420,8 @@ public class Dendrogram implements Externalizable {
                 rtnList.add(currentLevel);
             }
 
-            int leftLevel = leftIndices[currentLevel];
-            int rightLevel = rightIndices[currentLevel];
+            int leftLevel = leftIndices.get(currentLevel);
+            int rightLevel = rightIndices.get(currentLevel);
 
             if (leftLevel < leafLevel) {
                 currentLevel = leftLevel;
@@ -382,7 +452,7 @@ public class Dendrogram implements Externalizable {
     public int getRootID() {
         checkFinished();
         // mCurrentLevel == 0
-        return nodeIDs[currentLevel];
+        return nodeIDs.get(currentLevel);
     }
 
     /**
@@ -395,8 +465,8 @@ public class Dendrogram implements Externalizable {
      * @return - the ID for the specified level.
      */
     public int getLevelID(final int level) {
-        if (level >= currentLevel && level < leftIndices.length) {
-            return nodeIDs[level];
+        if (level >= currentLevel && level < leftIndices.capacity()) {
+            return nodeIDs.get(level);
         }
         return -1;
     }
@@ -456,20 +526,20 @@ public class Dendrogram implements Externalizable {
 
     // Gets the left or right child id of the non-leaf node at the specified
     // level.
-    private int getChildID(final int parentLevel, final int[] childIndices) {
-        if (parentLevel >= currentLevel && parentLevel < childIndices.length) {
-            return nodeIDs[childIndices[parentLevel]];
+    private int getChildID(final int parentLevel, final IntBuffer childIndices) {
+        if (parentLevel >= currentLevel && parentLevel < childIndices.capacity()) {
+            return nodeIDs.get(childIndices.get(parentLevel));
         }
         return -1;
     }
 
     // Gets the level of the left or right child of the non-leaf node at the
     // specified level.
-    private int getChildLevel(final int parentLevel, final int[] childIndices) {
-        if (parentLevel >= currentLevel && parentLevel < childIndices.length) {
-            int childLevel = childIndices[parentLevel];
-            if (childLevel > childIndices.length) {
-                childLevel = childIndices.length;
+    private int getChildLevel(final int parentLevel, final IntBuffer childIndices) {
+        if (parentLevel >= currentLevel && parentLevel < childIndices.capacity()) {
+            int childLevel = childIndices.get(parentLevel);
+            if (childLevel > childIndices.capacity()) {
+                childLevel = childIndices.capacity();
             }
             return childLevel;
         }
@@ -485,7 +555,7 @@ public class Dendrogram implements Externalizable {
      */
     public Node getRoot() {
         checkFinished();
-        return new Node(0, nodeIDs[0]);
+        return new Node(0, nodeIDs.get(0));
     }
 
     /**
@@ -499,7 +569,7 @@ public class Dendrogram implements Externalizable {
     public Node getNode(final int level) {
         checkFinished();
         if (level >= currentLevel && level < getLeafLevel()) {
-            return new Node(level, nodeIDs[level]);
+            return new Node(level, nodeIDs.get(level));
         }
         throw new IndexOutOfBoundsException("level not in ["
                 + currentLevel + " - (" + getLeafLevel() + " - 1)]: "
@@ -525,10 +595,10 @@ public class Dendrogram implements Externalizable {
      */
     public int getRightMostLeafID(final int parentLevel) {
         int level = parentLevel;
-        while (level < rightIndices.length) {
-            level = rightIndices[level];
+        while (level < rightIndices.capacity()) {
+            level = rightIndices.get(level);
         }
-        return nodeIDs[level];
+        return nodeIDs.get(level);
     }
 
     /**
@@ -540,10 +610,10 @@ public class Dendrogram implements Externalizable {
      */
     public int getLeftMostLeafID(final int parentLevel) {
         int level = parentLevel;
-        while (level < leftIndices.length) {
-            level = leftIndices[level];
+        while (level < leftIndices.capacity()) {
+            level = leftIndices.get(level);
         }
-        return nodeIDs[level];
+        return nodeIDs.get(level);
     }
 
     /**
@@ -565,17 +635,20 @@ public class Dendrogram implements Externalizable {
         int mergeID = Math.min(id1, id2);
 
         currentLevel--;
-        nodeIDs[currentLevel] = mergeID;
-        int leftIndex = indicesForIDs[id1];
-        int rightIndex = indicesForIDs[id2];
-        leftIndices[currentLevel] = leftIndex;
-        rightIndices[currentLevel] = rightIndex;
-        parentIndices[leftIndex] = currentLevel;
-        parentIndices[rightIndex] = currentLevel;
-        distances[currentLevel] = distance;
-        sizes[currentLevel] = nodeSize(id1) + nodeSize(id2);
-
-        indicesForIDs[mergeID] = currentLevel;
+        nodeIDs.put(currentLevel, mergeID);
+        int leftIndex = indicesForIDs.get(id1);
+        int rightIndex = indicesForIDs.get(id2);
+        leftIndices.put(currentLevel, leftIndex);
+        rightIndices.put(currentLevel, rightIndex);
+        parentIndices.put(leftIndex, currentLevel);
+        parentIndices.put(rightIndex, currentLevel);
+        distances.put(currentLevel, distance);
+        sizes.put(currentLevel, nodeSize(id1) + nodeSize(id2));
+        if (weights != null) {
+            weights.put(currentLevel, nodeWeight(id1) + nodeWeight(id2));
+        }
+
+        indicesForIDs.put(mergeID, currentLevel);
 
         return mergeID;
     }
@@ -586,8 +659,8 @@ public class Dendrogram implements Externalizable {
      * @return the id of the left child or -1 if there is no left child.
      */
     public int leftChildID(final int parentID) {
-        int parentIndex = indicesForIDs[parentID];
-        return nodeIDs[leftIndices[parentIndex]];
+        int parentIndex = indicesForIDs.get(parentID);
+        return nodeIDs.get(leftIndices.get(parentIndex));
     }
 
     /**
@@ -596,8 +669,8 @@ public class Dendrogram implements Externalizable {
      * @return the id of the right child or -1 if there is no right child.
      */
     public int rightChildID(int parentID) {
-        int parentIndex = indicesForIDs[parentID];
-        return nodeIDs[rightIndices[parentIndex]];
+        int parentIndex = indicesForIDs.get(parentID);
+        return nodeIDs.get(rightIndices.get(parentIndex));
     }
 
     /**
@@ -624,31 +697,31 @@ public class Dendrogram implements Externalizable {
         return neighborID(id, leftIndices, rightIndices);
     }
 
-    private int neighborID(int id, int[] indices1, int[] indices2) {
+    private int neighborID(int id, IntBuffer indices1, IntBuffer indices2) {
         if (id >= 0 && id < leafCount) {
 			// Start off with lastIndex being the leaf index for id, and
             // index being the parent level of the leaf with id.
             int lastIndex = leafCount - 1 + id;
-            int index = parentIndices[lastIndex];
+            int index = parentIndices.get(lastIndex);
 			// If looking for the left neighbor id, we tranverse up the
             // parent hierarchy until we've gone one level to the left.
             // Then we go down one level to the left, then down to the right
             // until a leaf is encountered. (Draw a diagram of a dendrogram
             // and trace the path with a pen -- you'll understand.)
-            while (index >= 0 && indices1[index] == lastIndex) {
+            while (index >= 0 && indices1.get(index) == lastIndex) {
                 lastIndex = index;
-                index = parentIndices[index];
+                index = parentIndices.get(index);
             }
             // If there is no neighbor index will be -1 here.
             if (index >= currentLevel) {
                 // Go down one level to the left if looking for a left neighbor.
-                index = indices1[index];
+                index = indices1.get(index);
                 // Until a leaf is encounted, go down to the right.
-                while (index < indices2.length) {
-                    index = indices2[index];
+                while (index < indices2.capacity()) {
+                    index = indices2.get(index);
                 }
                 // Return the leaf id.
-                return nodeIDs[index];
+                return nodeIDs.get(index);
             }
         }
 		// Either the id was out of range or it had no neighbor on the
@@ -657,8 +730,180 @@ public class Dendrogram implements Externalizable {
     }
 
     public int nodeSize(int id) {
-        int index = indicesForIDs[id];
-        return index < sizes.length ? sizes[index] : 1;
+        int index = indicesForIDs.get(id);
+        return index < sizes.capacity() ? sizes.get(index) : 1;
+    }
+
+    /**
+     * Get the weight of a node, which is the sum of the weights of its leaves.
+     * This is the number of tuples the node stands for, and equals
+     * <code>nodeSize()</code> if the leaves have no weights.
+     *
+     * @param id the id of the node.
+     *
+     * @return the weight of the node.
+     */
+    public int nodeWeight(int id) {
+        return leafWeights != null ? weightAt(indicesForIDs.get(id)) : nodeSize(id);
+    }
+
+    // The weight of the node at an index, for leaves that have weights.
+    private int weightAt(int index) {
+        return index < leafCount - 1 ? weights.get(index) : leafWeights.get(nodeIDs.get(index));
+    }
+
+    // The number of members of the clusters of the node at an index when the
+    // dendrogram is cut -- tuples if the leaves have members, leaves otherwise.
+    private int memberCountAt(int index) {
+        if (memberIDs != null) {
+            return weightAt(index);
+        }
+        return index < leafCount - 1 ? sizes.get(index) : 1;
+    }
+
+    /**
+     * Sets the weights of the leaves, as when each leaf stands for a group of
+     * tuples. The weights of the nodes already merged are computed from them, and
+     * those of later merges are the sums of the weights of the merged nodes.
+     *
+     * @param leafWeights the weight of each leaf by id, all positive.
+     *
+     * @throws IllegalArgumentException if the number of weights is not the number
+     *   of leaves, if a weight is not positive, or if the sum of the weights
+     *   exceeds <code>Integer.MAX_VALUE</code>.
+     * @throws IllegalStateException if the leaves have members whose numbers
+     *   differ from the weights.
+     */
+    public synchronized void setLeafWeights(int[] leafWeights) {
+
+        if (leafWeights.length != leafCount) {
+            throw new IllegalArgumentException("number of weights != leaf count: "
+                    + leafWeights.length + " != " + leafCount);
+        }
+
+        long totalWeight = 0L;
+        for (int i = 0; i < leafCount; i++) {
+            int w = leafWeights[i];
+            if (w <= 0) {
+                throw new IllegalArgumentException("weight of leaf " + i + " not positive: " + w);
+            }
+            if (memberStarts != null && w != memberStarts.get(i + 1) - memberStarts.get(i)) {
+                throw new IllegalStateException("weight of leaf " + i
+                        + " differs from its number of members");
+            }
+            totalWeight += w;
+        }
+        if (totalWeight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("total weight exceeds " + Integer.MAX_VALUE);
+        }
+
+        this.leafWeights = IntBuffer.wrap(leafWeights.clone());
+
+        final int nonLeafCount = leafCount - 1;
+        this.weights = IntBuffer.allocate(nonLeafCount);
+        // Children are at greater indices than their parents.
+        for (int level = nonLeafCount - 1; level >= currentLevel; level--) {
+            weights.put(level, weightAt(leftIndices.get(level)) + weightAt(rightIndices.get(level)));
+        }
+    }
+
+    /**
+     * Sets the members of the leaves, as when each leaf stands for a micro-cluster
+     * of tuples. The weight of each leaf becomes its number of members. Once the
+     * leaves have members, cutting the dendrogram expands every leaf to its
+     * members, so the clusters contain tuple indexes and the tuples passed to
+     * <code>generateClusters()</code> and the like must be those the members
+     * index.
+     *
+     * @param memberStarts the start of the members of every leaf in members by
+     *   leaf id, followed by the length of members.
+     * @param members the members of the leaves, which must be every integer in
+     *   <code>[0 - (members.length - 1)]</code> exactly once.
+     *
+     * @throws IllegalArgumentException if the members are not valid.
+     */
+    public synchronized void setLeafMembers(int[] memberStarts, int[] members) {
+
+        if (memberStarts.length != leafCount + 1) {
+            throw new IllegalArgumentException("number of member starts != leaf count + 1: "
+                    + memberStarts.length + " != " + (leafCount + 1));
+        }
+        if (memberStarts[0] != 0 || memberStarts[leafCount] != members.length) {
+            throw new IllegalArgumentException("member starts do not span the members");
+        }
+
+        int[] counts = new int[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            counts[i] = memberStarts[i + 1] - memberStarts[i];
+            if (counts[i] <= 0) {
+                throw new IllegalArgumentException("leaf " + i + " has no members");
+            }
+            if (leafWeights != null && counts[i] != leafWeights.get(i)) {
+                throw new IllegalArgumentException("number of members of leaf " + i
+                        + " differs from its weight");
+            }
+        }
+
+        boolean[] seen = new boolean[members.length];
+        for (int m : members) {
+            if (m < 0 || m >= members.length || seen[m]) {
+                throw new IllegalArgumentException("members are not a permutation of [0 - "
+                        + (members.length - 1) + "]: " + m);
+            }
+            seen[m] = true;
+        }
+
+        this.memberStarts = null;
+        this.memberIDs = null;
+        setLeafWeights(counts);
+
+        this.memberStarts = IntBuffer.wrap(memberStarts.clone());
+        this.memberIDs = IntBuffer.wrap(members.clone());
+        this.memberOrder = null;
+        this.memberPositions = null;
+
+        clearCachedSums();
+    }
+
+    /**
+     * Do the leaves have members set by <code>setLeafMembers()</code>?
+     *
+     * @return true if they do.
+     */
+    public boolean hasLeafMembers() {
+        return memberIDs != null;
+    }
+
+    /**
+     * Get the members of a leaf.
+     *
+     * @param id the id of the leaf.
+     *
+     * @return the members, or an array containing only id if the leaves have no members.
+     */
+    public int[] getLeafMembers(int id) {
+        if (id < 0 || id >= leafCount) {
+            throw new IndexOutOfBoundsException("leaf id not in [0 - " + (leafCount - 1) + "]: " + id);
+        }
+        if (memberIDs == null) {
+            return new int[] { id };
+        }
+        int start = memberStarts.get(id);
+        int[] members = new int[memberStarts.get(id + 1) - start];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = memberIDs.get(start + i);
+        }
+        return members;
+    }
+
+    /**
+     * Get the number of tuples clustered into the dendrogram. This is the number
+     * of members of the leaves if they have members, otherwise the number of leaves.
+     *
+     * @return the number of tuples.
+     */
+    public int getTupleCount() {
+        return memberIDs != null ? memberIDs.capacity() : leafCount;
     }
 
     public void computeCoherences() {
@@ -670,9 +915,9 @@ public class Dendrogram implements Externalizable {
         if (!Double.isNaN(maxCoherenceThreshold)) {
             maxd = maxCoherenceThreshold;
         } else {
-            for (int i = 0; i < distances.length; i++) {
-                if (maxd < distances[i]) {
-                    maxd = distances[i];
+            for (int i = 0; i < distances.capacity(); i++) {
+                if (maxd < distances.get(i)) {
+                    maxd = distances.get(i);
                 }
             }
         }
@@ -687,21 +932,23 @@ public class Dendrogram implements Externalizable {
 
             double denom = maxd - mind;
 
-            for (int i = 0; i < distances.length; i++) {
+            for (int i = 0; i < distances.capacity(); i++) {
 				// Coherences will range from 0.0 to 1.0. 1.0 means
                 // the decision distance was 0.0, such as when merging
                 // 2 identical coordinates. The coherence is 0.0 for
                 // the node with the maximum decision distance.
                 // The usual case is for the root node to have a
                 // coherence of 0.0.
-                coherences[i] = 1.0 - (distances[i] - mind) / denom;
+                coherences.put(i, 1.0 - (distances.get(i) - mind) / denom);
             }
 
         } else {
 			// All decision distances are 0.0, meaning all coordinates
             // are the same. Just set all the coherences to their max
             // value 1.0
-            Arrays.fill(coherences, 1.0);
+            for (int i = 0; i < coherences.capacity(); i++) {
+                coherences.put(i, 1.0);
+            }
         }
 
         coherencesComputed = true;
@@ -749,7 +996,7 @@ public class Dendrogram implements Externalizable {
 
         int nonLeafCount = leafCount - 1;
 
-        int n = index < nonLeafCount ? sizes[index] : 1;
+        int n = index < nonLeafCount ? sizes.get(index) : 1;
 
         int[] rtn = new int[n];
         TIntArrayList intList = null;
@@ -761,10 +1008,10 @@ public class Dendrogram implements Externalizable {
         int currentIndex = index;
         while (count < n) {
             if (currentIndex < nonLeafCount) {
-                intList.add(rightIndices[currentIndex]);
-                currentIndex = leftIndices[currentIndex];
+                intList.add(rightIndices.get(currentIndex));
+                currentIndex = leftIndices.get(currentIndex);
             } else {
-                rtn[count++] = nodeIDs[currentIndex];
+                rtn[count++] = nodeIDs.get(currentIndex);
                 int lastIndex = intList != null ? intList.size() - 1 : -1;
                 if (lastIndex >= 0) {
                     currentIndex = intList.get(lastIndex);
@@ -778,107 +1025,490 @@ public class Dendrogram implements Externalizable {
 
     public synchronized List<int[]> generateClusterGroupings(int clustersDesired) {
 
+        DendrogramCut cut = generateCut(clustersDesired);
+        
+        int numClusters = cut.getClusterCount();
+        List<int[]> clusters = new ArrayList<int[]>(numClusters);
+        for (int i = 0; i < numClusters; i++) {
+            clusters.add(cut.getMembers(i));
+        }
+
+        return clusters;
+    }
+
+    /**
+     * Cuts the dendrogram into the specified number of clusters. The clusters 
+     * are views of ranges of the ordered leaf ids, which are computed only once, 
+     * so this costs O(clustersDesired) rather than O(getLeafCount()). The 
+     * clusters are in the same order as those of 
+     * <code>generateClusterGroupings()</code>.
+     *
+     * @param clustersDesired the number of clusters in <code>[1 - getLeafCount()]</code>.
+     *
+     * @return a <code>DendrogramCut</code> without cluster centers.
+     */
+    public synchronized DendrogramCut generateCut(int clustersDesired) {
+        return generateCut(clustersDesired, null);
+    }
+
+    /**
+     * Cuts the dendrogram into the specified number of clusters, including
+     * the cluster centers. The centers are computed from per-node sums of the 
+     * tuples, which are computed in one pass the first time and cached for as 
+     * long as the same <code>TupleList</code> is passed in. If the values of the 
+     * tuples are changed, <code>clearCachedSums()</code> must be called.
+     *
+     * @param clustersDesired the number of clusters in <code>[1 - getLeafCount()]</code>.
+     * @param tuples the tuples that were clustered, or null if centers are not needed.
+     *
+     * @return a <code>DendrogramCut</code>.
+     */
+    public synchronized DendrogramCut generateCut(int clustersDesired, TupleList tuples) {
+        return generateCuts(new int[] { clustersDesired }, tuples).get(0);
+    }
+
+    /**
+     * Cuts the dendrogram for each of a number of cluster counts. All the cuts
+     * share the same ordered leaf ids.
+     *
+     * @param clusterCounts the numbers of clusters desired.
+     *
+     * @return a list of cuts, one for each element of <code>clusterCounts</code>.
+     */
+    public synchronized List<DendrogramCut> generateCuts(int[] clusterCounts) {
+        return generateCuts(clusterCounts, null);
+    }
+
+    /**
+     * Cuts the dendrogram for each of a number of cluster counts, including the
+     * cluster centers if tuples are provided. All the cuts share the same
+     * ordered leaf ids.
+     *
+     * @param clusterCounts the numbers of clusters desired.
+     * @param tuples the tuples that were clustered, or null if centers are not needed.
+     *
+     * @return a list of cuts, one for each element of <code>clusterCounts</code>.
+     */
+    public synchronized List<DendrogramCut> generateCuts(int[] clusterCounts, TupleList tuples) {
+
         // Ensures current level == 0.
         checkFinished();
 
-        if (clustersDesired <= 0 || clustersDesired > leafCount) {
-            throw new IllegalArgumentException("clusters desired not in [0 - ("
-                    + leafCount + " - 1)]: " + clustersDesired);
+        for (int clustersDesired : clusterCounts) {
+            if (clustersDesired <= 0 || clustersDesired > leafCount) {
+                throw new IllegalArgumentException("clusters desired not in [1 - "
+                        + leafCount + "]: " + clustersDesired);
+            }
         }
 
-        int nodeCount = nodeIDs.length;
-        BitSet bits = new BitSet(nodeCount);
+        if (tuples != null) {
+            checkTupleCount(tuples);
+        }
 
-        List<int[]> clusters = new ArrayList<int[]>(clustersDesired);
+        computeLeafRanges();
 
-        int currentIndex = clustersDesired - 1;
+        double[] sums = tuples != null ? computeNodeSums(tuples) : null;
 
-        TIntArrayList intList = new TIntArrayList();
+        List<DendrogramCut> cuts = new ArrayList<DendrogramCut>(clusterCounts.length);
+        for (int clustersDesired : clusterCounts) {
+            cuts.add(cut(clustersDesired, sums, tuples));
+        }
 
-        for (int i = currentIndex; i < nodeCount; i++) {
-            if (!bits.get(i)) { // If an ancestor has not been turned into a
-                // cluster...
-                clusters.add(getNodeIDs(i));
-                            // While loop is to keep descendents of node just turned into a
-                // cluster
-                // from also being turned into clusters.
-                int ci = i;
-                while (true) {
-                    if (ci < leftIndices.length) {
-                        bits.set(leftIndices[ci]);
-                        bits.set(rightIndices[ci]);
-                        intList.add(rightIndices[ci]);
-                        ci = leftIndices[ci];
-                    } else {
-                        int lastIndex = intList.size() - 1;
-                        if (lastIndex >= 0) {
-                            ci = intList.get(lastIndex);
-                            intList.removeAt(lastIndex);
-                        } else {
-                            break;
-                        }
+        return cuts;
+    }
+
+    /**
+     * Discards the per-node sums cached for computing cluster centers.
+     */
+    public synchronized void clearCachedSums() {
+        sumsTuples = null;
+        nodeSums = null;
+    }
+
+    private DendrogramCut cut(int clustersDesired, double[] sums, TupleList tuples) {
+
+        final int nonLeafCount = leafCount - 1;
+        final int firstIndex = clustersDesired - 1;
+
+        // The nodes of the cut are those at indices >= firstIndex whose parents
+        // are at indices < firstIndex -- the root or children of the nodes above 
+        // the cut.
+        int[] nodeIndices = new int[clustersDesired];
+        int count = 0;
+        if (firstIndex == 0) {
+            nodeIndices[count++] = 0;
+        } else {
+            for (int level = 0; level < firstIndex; level++) {
+                if (leftIndices.get(level) >= firstIndex) {
+                    nodeIndices[count++] = leftIndices.get(level);
+                }
+                if (rightIndices.get(level) >= firstIndex) {
+                    nodeIndices[count++] = rightIndices.get(level);
+                }
+            }
+            Arrays.sort(nodeIndices);
+        }
+
+        int[] starts = new int[clustersDesired];
+        int[] clusterSizes = new int[clustersDesired];
+        for (int i = 0; i < clustersDesired; i++) {
+            int index = nodeIndices[i];
+            starts[i] = memberOrder != null ? memberPositions[rangeStarts[index]] : rangeStarts[index];
+            clusterSizes[i] = memberCountAt(index);
+        }
+
+        double[] centers = null;
+        int dim = 0;
+
+        if (tuples != null) {
+            dim = tuples.getTupleLength();
+            centers = new double[clustersDesired * dim];
+            double[] buffer = new double[dim];
+            for (int i = 0; i < clustersDesired; i++) {
+                int index = nodeIndices[i];
+                int offset = i * dim;
+                if (index < nonLeafCount) {
+                    int size = clusterSizes[i];
+                    int sumOffset = index * dim;
+                    for (int j = 0; j < dim; j++) {
+                        centers[offset + j] = sums[sumOffset + j] / size;
                     }
+                } else if (memberIDs != null) {
+                    addLeafToSums(tuples, nodeIDs.get(index), centers, null, null, offset, buffer);
+                    int size = clusterSizes[i];
+                    for (int j = 0; j < dim; j++) {
+                        centers[offset + j] /= size;
+                    }
+                } else {
+                    tuples.getTuple(nodeIDs.get(index), buffer);
+                    System.arraycopy(buffer, 0, centers, offset, dim);
                 }
             }
         }
 
-        return clusters;
+        return new DendrogramCut(memberOrder != null ? memberOrder : leafOrder, nodeIndices, 
+                starts, clusterSizes, centers, dim);
     }
 
-    public synchronized List<Cluster> generateClusters(int clustersDesired, TupleList tuples) {
+    // Computes the leaf order and the start of every node's range within it,
+    // along with the order of the members if the leaves have members.
+    private void computeLeafRanges() {
 
-        // Ensures current level == 0.
-        checkFinished();
+        if (leafOrder == null) {
+            computeLeafOrder();
+        }
 
-        if (leafCount != tuples.getTupleCount()) {
-            throw new IllegalArgumentException(
-                    "dendrogram does not match tuples: leaf node count = "
-                    + leafCount + ", tuple count = "
-                    + tuples.getTupleCount());
+        if (memberIDs != null && memberOrder == null) {
+            int[] order = new int[memberIDs.capacity()];
+            int[] positions = new int[leafCount + 1];
+            int pos = 0;
+            for (int i = 0; i < leafCount; i++) {
+                positions[i] = pos;
+                int id = leafOrder[i];
+                int end = memberStarts.get(id + 1);
+                for (int m = memberStarts.get(id); m < end; m++) {
+                    order[pos++] = memberIDs.get(m);
+                }
+            }
+            positions[leafCount] = pos;
+            memberPositions = positions;
+            memberOrder = order;
         }
+    }
 
-        List<int[]> clusterGroups = generateClusterGroupings(clustersDesired);
-        int numClusters = clusterGroups.size();
+    private void computeLeafOrder() {
 
-        List<Cluster> clusters = new ArrayList<Cluster>(numClusters);
-        for (int i = 0; i < numClusters; i++) {
-            int[] members = clusterGroups.get(i);
-            double[] center = TupleMath.average(tuples, new ArrayIntIterator(members));
-            clusters.add(new Cluster(members, center));
+        final int nonLeafCount = leafCount - 1;
+        final int nodeCount = nodeIDs.capacity();
+
+        int[] starts = new int[nodeCount];
+        // Parents are always at lower indices than their children, so the
+        // start of a node is known before its children are visited. The left 
+        // child begins where its parent begins.
+        for (int level = 0; level < nonLeafCount; level++) {
+            int left = leftIndices.get(level);
+            int leftSize = left < nonLeafCount ? sizes.get(left) : 1;
+            starts[left] = starts[level];
+            starts[rightIndices.get(level)] = starts[level] + leftSize;
         }
 
-        return clusters;
+        int[] order = new int[leafCount];
+        for (int i = nonLeafCount; i < nodeCount; i++) {
+            order[starts[i]] = nodeIDs.get(i);
+        }
+
+        rangeStarts = starts;
+        leafOrder = order;
     }
 
-    public synchronized List<Cluster> generateOptimalClusters(TupleList tuples) {
+    public synchronized List<Cluster> generateClusters(int clustersDesired, TupleList tuples) {
 
         // Ensures current level == 0.
         checkFinished();
 
-        if (leafCount != tuples.getTupleCount()) {
+        checkTupleCount(tuples);
+
+        return generateCut(clustersDesired, tuples).toClusters();
+    }
+
+    private void checkTupleCount(TupleList tuples) {
+        if (getTupleCount() != tuples.getTupleCount()) {
             throw new IllegalArgumentException(
-                    "dendrogram does not match tuples: leaf node count = "
-                    + leafCount + ", tuple count = "
+                    "dendrogram does not match tuples: dendrogram tuple count = "
+                    + getTupleCount() + ", tuple count = "
                     + tuples.getTupleCount());
         }
+    }
+
+    public synchronized List<Cluster> generateOptimalClusters(TupleList tuples) {
+
+        // Ensures current level == 0.
+        checkFinished();
+
+        checkTupleCount(tuples);
 
         final int tupleCount = tuples.getTupleCount();
+        final int tupleLength = tuples.getTupleLength();
+        final int nonLeafCount = leafCount - 1;
+
+        // Only the distortions of the non-leaf nodes are needed, since leaves 
+        // never have more members than the number of clusters -- unless they
+        // have members of their own.
+        final int contributorLimit = memberIDs != null ? nodeIDs.capacity() : nonLeafCount;
+        double[] distortions = computeDistortions(tuples);
+
+        // The non-leaf nodes of the current cut having more members than the
+        // number of clusters. Only these contribute to the log-likelihood. Since
+        // nodes only shrink as the cut moves down and the number of clusters only 
+        // grows, a node dropped from this list never returns to it. 
+        int[] contributors = new int[Math.max(contributorLimit, 1)];
+        int[] contributorPositions = new int[Math.max(contributorLimit, 1)];
+        Arrays.fill(contributorPositions, -1);
+        int contributorCount = 0;
 
         double maxBIC = -Double.MAX_VALUE;
-        List<Cluster> bestClusters = null;
+        int bestNumClusters = 1;
+
+        for (int numClusters = 1; numClusters <= leafCount; numClusters++) {
+
+            // The cut with numClusters clusters is the cut with one less cluster
+            // with the node at level numClusters - 2 replaced by its children.
+            if (numClusters == 1) {
+                if (contributorLimit > 0) {
+                    contributorPositions[0] = contributorCount;
+                    contributors[contributorCount++] = 0;
+                }
+            } else {
+                int splitLevel = numClusters - 2;
+                int pos = contributorPositions[splitLevel];
+                if (pos >= 0) {
+                    contributorCount = removeContributor(contributors, contributorPositions, 
+                            contributorCount, pos);
+                }
+                int left = leftIndices.get(splitLevel);
+                if (left < contributorLimit) {
+                    contributorPositions[left] = contributorCount;
+                    contributors[contributorCount++] = left;
+                }
+                int right = rightIndices.get(splitLevel);
+                if (right < contributorLimit) {
+                    contributorPositions[right] = contributorCount;
+                    contributors[contributorCount++] = right;
+                }
+            }
+
+            double logLikelihood = 0.0;
+            int i = 0;
+            while (i < contributorCount) {
+                int level = contributors[i];
+                int size = memberCountAt(level);
+                if (size > numClusters) {
+                    logLikelihood += ClusterStats.computeLogLikelihood(size, distortions[level], 
+                            numClusters, tupleLength, tupleCount);
+                    i++;
+                } else {
+                    // Swaps in the last contributor, so don't increment i.
+                    contributorCount = removeContributor(contributors, contributorPositions, 
+                            contributorCount, i);
+                }
+            }
 
-        for (int numClusters = 1; numClusters <= tupleCount; numClusters++) {
-            List<Cluster> clusters = generateClusters(numClusters, tuples);
-            double bic = ClusterStats.computeBIC(tuples, clusters);
+            double bic = ClusterStats.computeBIC(logLikelihood, numClusters, tupleLength, tupleCount);
             if (bic > maxBIC) {
                 maxBIC = bic;
-                bestClusters = clusters;
+                bestNumClusters = numClusters;
             } else if (bic < 0.0 || maxBIC / bic >= 2.0) {
                 break;
             }
         }
 
-        return bestClusters;
+        return generateCut(bestNumClusters, tuples).toClusters();
+    }
+
+    // Removes the contributor at the given position by moving the last one into its place. 
+    // Returns the new number of contributors.
+    private static int removeContributor(int[] contributors, int[] positions, int count, int pos) {
+        positions[contributors[pos]] = -1;
+        count--;
+        if (pos < count) {
+            int last = contributors[count];
+            contributors[pos] = last;
+            positions[last] = pos;
+        }
+        return count;
+    }
+
+    // Computes the distortion of every non-leaf node in one bottom-up pass by 
+    // accumulating the per-dimension sums and sums of squares of the members.
+    // The distortion of a node is its size times the sum of its per-dimension 
+    // variances, as in ClusterStats. As there, NaN values are skipped, and the
+    // variance in each dimension is over the members whose values in it are not
+    // NaN. If the leaves have members, the distortions of the leaves follow 
+    // those of the non-leaf nodes.
+    private double[] computeDistortions(TupleList tuples) {
+
+        final int nonLeafCount = leafCount - 1;
+        final int dim = tuples.getTupleLength();
+
+        double[] distortions = new double[memberIDs != null ? nodeIDs.capacity() : nonLeafCount];
+        double[] sums = new double[nonLeafCount * dim];
+        double[] sumSqs = new double[nonLeafCount * dim];
+        // The number of NaN values skipped in each dimension of each node.
+        int[] nanCounts = new int[nonLeafCount * dim];
+
+        double[] buffer = new double[dim];
+        double[] variance = new double[dim];
+
+        // The children of a node are always at greater indices than the node,
+        // so they are finished by the time they're needed.
+        for (int level = nonLeafCount - 1; level >= 0; level--) {
+
+            int offset = level * dim;
+            addToSums(tuples, leftIndices.get(level), sums, sumSqs, nanCounts, offset, buffer);
+            addToSums(tuples, rightIndices.get(level), sums, sumSqs, nanCounts, offset, buffer);
+
+            distortions[level] = distortion(sums, sumSqs, nanCounts, offset, memberCountAt(level), 
+                    variance);
+        }
+
+        // Without NaN values, the sums are those needed for computing the 
+        // cluster centers, so they're kept.
+        boolean sawNaN = false;
+        for (int i = 0; i < nanCounts.length && !sawNaN; i++) {
+            sawNaN = nanCounts[i] > 0;
+        }
+        if (!sawNaN) {
+            sumsTuples = tuples;
+            nodeSums = sums;
+        }
+
+        if (memberIDs != null) {
+            double[] leafSums = new double[dim];
+            double[] leafSumSqs = new double[dim];
+            int[] leafNaNCounts = new int[dim];
+            for (int index = nonLeafCount; index < distortions.length; index++) {
+                Arrays.fill(leafSums, 0.0);
+                Arrays.fill(leafSumSqs, 0.0);
+                Arrays.fill(leafNaNCounts, 0);
+                addLeafToSums(tuples, nodeIDs.get(index), leafSums, leafSumSqs, leafNaNCounts, 0, buffer);
+                distortions[index] = distortion(leafSums, leafSumSqs, leafNaNCounts, 0, weightAt(index), 
+                        variance);
+            }
+        }
+
+        return distortions;
+    }
+
+    private static double distortion(double[] sums, double[] sumSqs, int[] nanCounts, int offset, 
+            int size, double[] variance) {
+        final int dim = variance.length;
+        for (int j = 0; j < dim; j++) {
+            int count = size - nanCounts[offset + j];
+            if (count > 0) {
+                double sum = sums[offset + j];
+                double center = sum / count;
+                variance[j] = Math.max(0.0, (sumSqs[offset + j] - center * sum) / count);
+            } else {
+                variance[j] = 0.0;
+            }
+        }
+        return size * TupleMath.norm1(variance);
+    }
+
+    // Returns the per-node sums for the tuples, computing them if not cached.
+    private double[] computeNodeSums(TupleList tuples) {
+
+        if (tuples == sumsTuples) {
+            return nodeSums;
+        }
+
+        final int nonLeafCount = leafCount - 1;
+        final int dim = tuples.getTupleLength();
+
+        double[] sums = new double[nonLeafCount * dim];
+        double[] buffer = new double[dim];
+
+        for (int level = nonLeafCount - 1; level >= 0; level--) {
+            int offset = level * dim;
+            addToSums(tuples, leftIndices.get(level), sums, null, null, offset, buffer);
+            addToSums(tuples, rightIndices.get(level), sums, null, null, offset, buffer);
+        }
+
+        sumsTuples = tuples;
+        nodeSums = sums;
+
+        return sums;
+    }
+
+    // Adds the sums of a child node to those of its parent at offset. sumSqs
+    // and nanCounts may be null if sums of squares are not needed. Otherwise, 
+    // NaN values are left out of the sums and counted in nanCounts instead.
+    private void addToSums(TupleList tuples, int childIndex, double[] sums, double[] sumSqs,
+            int[] nanCounts, int offset, double[] buffer) {
+        final int dim = buffer.length;
+        if (childIndex < leafCount - 1) {
+            int childOffset = childIndex * dim;
+            for (int j = 0; j < dim; j++) {
+                sums[offset + j] += sums[childOffset + j];
+            }
+            if (sumSqs != null) {
+                for (int j = 0; j < dim; j++) {
+                    sumSqs[offset + j] += sumSqs[childOffset + j];
+                    nanCounts[offset + j] += nanCounts[childOffset + j];
+                }
+            }
+        } else {
+            addLeafToSums(tuples, nodeIDs.get(childIndex), sums, sumSqs, nanCounts, offset, buffer);
+        }
+    }
+
+    // Adds the tuple of a leaf, or its members if it has members, to the sums at offset.
+    private void addLeafToSums(TupleList tuples, int leafID, double[] sums, double[] sumSqs,
+            int[] nanCounts, int offset, double[] buffer) {
+        int m = leafID, end = leafID + 1;
+        if (memberIDs != null) {
+            m = memberStarts.get(leafID);
+            end = memberStarts.get(leafID + 1);
+        }
+        final int dim = buffer.length;
+        for (; m < end; m++) {
+            tuples.getTuple(memberIDs != null ? memberIDs.get(m) : m, buffer);
+            if (sumSqs != null) {
+                for (int j = 0; j < dim; j++) {
+                    double v = buffer[j];
+                    if (Double.isNaN(v)) {
+                        nanCounts[offset + j]++;
+                    } else {
+                        sums[offset + j] += v;
+                        sumSqs[offset + j] += v * v;
+                    }
+                }
+            } else {
+                for (int j = 0; j < dim; j++) {
+                    sums[offset + j] += buffer[j];
+                }
+            }
+        }
     }
 
     public int clustersWithCoherenceExceeding(double coherence) {
@@ -899,7 +1529,7 @@ public class Dendrogram implements Externalizable {
 
         int clusters = leafCount;
         for (int i = 0; i < nonLeafCount; i++) {
-            if (coherences[i] >= coherence) {
+            if (coherences.get(i) >= coherence) {
                 clusters = i + 1;
                 break;
             }
@@ -914,72 +1544,358 @@ public class Dendrogram implements Externalizable {
         }
     }
 
+    /**
+     * Writes the dendrogram to a file in a compact binary format, which may be
+     * mapped into memory by <code>open()</code>. If the dendrogram is finished, the
+     * coherences and the order of the leaves are computed first if necessary, and
+     * are saved along with the nodes.
+     * <p>
+     * The file begins with a header of 48 bytes: a magic number, the format version,
+     * the leaf count, the current level, flags, the coherence thresholds, and the
+     * number of members of the leaves if they have members. The
+     * arrays of the dendrogram follow it, each in one contiguous block. All values
+     * are big-endian.
+     * </p>
+     *
+     * @param f the file, which is replaced if it exists.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public synchronized void save(final File f) throws IOException {
+
+        int flags = 0;
+        if (isFinished()) {
+            if (!coherencesComputed) {
+                computeCoherences();
+            }
+            computeLeafRanges();
+            flags |= FLAG_LEAF_RANGES;
+        }
+        if (coherencesComputed) {
+            flags |= FLAG_COHERENCES;
+        }
+        if (leafWeights != null) {
+            flags |= FLAG_LEAF_WEIGHTS;
+        }
+        if (memberIDs != null) {
+            flags |= FLAG_LEAF_MEMBERS;
+        }
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+
+            buffer.putInt(FILE_MAGIC);
+            buffer.putInt(FILE_VERSION);
+            buffer.putInt(leafCount);
+            buffer.putInt(currentLevel);
+            buffer.putInt(flags);
+            buffer.putInt(0);
+            buffer.putDouble(minCoherenceThreshold);
+            buffer.putDouble(maxCoherenceThreshold);
+            buffer.putLong(memberIDs != null ? memberIDs.capacity() : 0L);
+            buffer.flip();
+            ChannelIO.writeFully(channel, buffer);
+
+            ChannelIO.writeDoubles(channel, buffer, distances);
+            ChannelIO.writeDoubles(channel, buffer, coherences);
+            ChannelIO.writeInts(channel, buffer, nodeIDs);
+            ChannelIO.writeInts(channel, buffer, parentIndices);
+            ChannelIO.writeInts(channel, buffer, leftIndices);
+            ChannelIO.writeInts(channel, buffer, rightIndices);
+            ChannelIO.writeInts(channel, buffer, sizes);
+            ChannelIO.writeInts(channel, buffer, indicesForIDs);
+
+            if ((flags & FLAG_LEAF_WEIGHTS) != 0) {
+                ChannelIO.writeInts(channel, buffer, leafWeights);
+                ChannelIO.writeInts(channel, buffer, weights);
+            }
+            if ((flags & FLAG_LEAF_MEMBERS) != 0) {
+                ChannelIO.writeInts(channel, buffer, memberStarts);
+                ChannelIO.writeInts(channel, buffer, memberIDs);
+            }
+
+            if ((flags & FLAG_LEAF_RANGES) != 0) {
+                ChannelIO.writeInts(channel, buffer, IntBuffer.wrap(leafOrder));
+                ChannelIO.writeInts(channel, buffer, IntBuffer.wrap(rangeStarts));
+                if ((flags & FLAG_LEAF_MEMBERS) != 0) {
+                    ChannelIO.writeInts(channel, buffer, IntBuffer.wrap(memberOrder));
+                    ChannelIO.writeInts(channel, buffer, IntBuffer.wrap(memberPositions));
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a dendrogram written by <code>save()</code>. Rather than being read,
+     * the nodes are mapped into memory, so the operating system pages them in as
+     * they are used. Only the order of the leaves and of their members, which
+     * <code>DendrogramCut</code> shares, is copied onto the heap.
+     * <p>
+     * The dendrogram returned is read-only. Calling <code>mergeNodes()</code>, or
+     * changing a coherence threshold and then using the coherences, throws a
+     * <code>ReadOnlyBufferException</code>.
+     * </p>
+     *
+     * @param f the file.
+     *
+     * @return the dendrogram.
+     *
+     * @throws IOException if an I/O error occurs or the file was not written by
+     *   <code>save()</code>.
+     */
+    public static Dendrogram open(final File f) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            ChannelIO.readFully(channel, header);
+            header.flip();
+
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException("not a dendrogram file: " + f);
+            }
+            int version = header.getInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("invalid version: " + version);
+            }
+
+            Dendrogram d = new Dendrogram();
+            d.leafCount = header.getInt();
+            d.currentLevel = header.getInt();
+            int flags = header.getInt();
+            header.getInt();
+            d.minCoherenceThreshold = header.getDouble();
+            d.maxCoherenceThreshold = header.getDouble();
+            final long m = header.getLong();
+            d.coherencesComputed = (flags & FLAG_COHERENCES) != 0;
+
+            if (d.leafCount <= 0 || d.currentLevel < 0 || d.currentLevel >= d.leafCount) {
+                throw new IOException("invalid dendrogram file: leafCount = " + d.leafCount
+                        + ", currentLevel = " + d.currentLevel);
+            }
+
+            final boolean leafWeights = (flags & FLAG_LEAF_WEIGHTS) != 0;
+            final boolean leafMembers = (flags & FLAG_LEAF_MEMBERS) != 0;
+            if ((leafMembers && (!leafWeights || m < d.leafCount || m > Integer.MAX_VALUE))
+                    || (!leafMembers && m != 0L)) {
+                throw new IOException("invalid dendrogram file: member count = " + m);
+            }
+
+            final long n = d.leafCount;
+            final boolean leafRanges = (flags & FLAG_LEAF_RANGES) != 0;
+            long expectedLength = FILE_HEADER_SIZE + 16L * (n - 1L)
+                    + 4L * (2L * (2L * n - 1L) + 3L * (n - 1L) + n);
+            if (leafWeights) {
+                expectedLength += 4L * (2L * n - 1L);
+            }
+            if (leafMembers) {
+                expectedLength += 4L * (n + 1L + m);
+            }
+            if (leafRanges) {
+                expectedLength += 4L * (n + 2L * n - 1L);
+                if (leafMembers) {
+                    expectedLength += 4L * (m + n + 1L);
+                }
+            }
+            long actualLength = channel.size();
+            if (expectedLength != actualLength) {
+                throw new IOException(String.format(
+                        "invalid dendrogram file: expected file length == %d, actual length == %d",
+                        expectedLength, actualLength));
+            }
+
+            long pos = FILE_HEADER_SIZE;
+            d.distances = mapDoubles(channel, pos, n - 1L);
+            pos += 8L * (n - 1L);
+            d.coherences = mapDoubles(channel, pos, n - 1L);
+            pos += 8L * (n - 1L);
+            d.nodeIDs = mapInts(channel, pos, 2L * n - 1L);
+            pos += 4L * (2L * n - 1L);
+            d.parentIndices = mapInts(channel, pos, 2L * n - 1L);
+            pos += 4L * (2L * n - 1L);
+            d.leftIndices = mapInts(channel, pos, n - 1L);
+            pos += 4L * (n - 1L);
+            d.rightIndices = mapInts(channel, pos, n - 1L);
+            pos += 4L * (n - 1L);
+            d.sizes = mapInts(channel, pos, n - 1L);
+            pos += 4L * (n - 1L);
+            d.indicesForIDs = mapInts(channel, pos, n);
+            pos += 4L * n;
+
+            if (leafWeights) {
+                d.leafWeights = mapInts(channel, pos, n);
+                pos += 4L * n;
+                d.weights = mapInts(channel, pos, n - 1L);
+                pos += 4L * (n - 1L);
+            }
+            if (leafMembers) {
+                d.memberStarts = mapInts(channel, pos, n + 1L);
+                pos += 4L * (n + 1L);
+                d.memberIDs = mapInts(channel, pos, m);
+                pos += 4L * m;
+            }
+
+            if (leafRanges) {
+                int[] order = new int[(int) n];
+                mapInts(channel, pos, n).get(order);
+                pos += 4L * n;
+                int[] starts = new int[(int) (2L * n - 1L)];
+                mapInts(channel, pos, 2L * n - 1L).get(starts);
+                pos += 4L * (2L * n - 1L);
+                d.leafOrder = order;
+                d.rangeStarts = starts;
+                if (leafMembers) {
+                    int[] members = new int[(int) m];
+                    mapInts(channel, pos, m).get(members);
+                    pos += 4L * m;
+                    int[] positions = new int[(int) (n + 1L)];
+                    mapInts(channel, pos, n + 1L).get(positions);
+                    d.memberOrder = members;
+                    d.memberPositions = positions;
+                }
+            }
+
+            return d;
+        }
+    }
+
+    // A mapping remains valid after the channel that created it is closed.
+    private static IntBuffer mapInts(FileChannel channel, long pos, long count) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * count).asIntBuffer();
+    }
+
+    private static DoubleBuffer mapDoubles(FileChannel channel, long pos, long count) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * count).asDoubleBuffer();
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeInt(EXTERNALIZABLE_VERSION);
-        writeIntArray(out, this.nodeIDs);
-        writeIntArray(out, this.parentIndices);
-        writeIntArray(out, this.leftIndices);
-        writeIntArray(out, this.rightIndices);
-        writeIntArray(out, this.sizes);
-        writeIntArray(out, this.indicesForIDs);
-        writeDoubleArray(out, this.distances);
-        writeDoubleArray(out, this.coherences);
+        writeInts(out, this.nodeIDs);
+        writeInts(out, this.parentIndices);
+        writeInts(out, this.leftIndices);
+        writeInts(out, this.rightIndices);
+        writeInts(out, this.sizes);
+        writeInts(out, this.indicesForIDs);
+        writeDoubles(out, this.distances);
+        writeDoubles(out, this.coherences);
         out.writeInt(leafCount);
         out.writeInt(currentLevel);
+        writeInts(out, this.leafWeights);
+        writeInts(out, this.weights);
+        writeInts(out, this.memberStarts);
+        writeInts(out, this.memberIDs);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException,
             ClassNotFoundException {
         int version = in.readInt();
-        if (version != EXTERNALIZABLE_VERSION) {
+        // Version 1 is the same up to the weights and members of the leaves.
+        if (version != EXTERNALIZABLE_VERSION && version != 1) {
             throw new IOException("invalid version: " + version);
         }
-        this.nodeIDs = readIntArray(in);
-        this.parentIndices = readIntArray(in);
-        this.leftIndices = readIntArray(in);
-        this.rightIndices = readIntArray(in);
-        this.sizes = readIntArray(in);
-        this.indicesForIDs = readIntArray(in);
-        this.distances = readDoubleArray(in);
-        this.coherences = readDoubleArray(in);
+        this.nodeIDs = readInts(in);
+        this.parentIndices = readInts(in);
+        this.leftIndices = readInts(in);
+        this.rightIndices = readInts(in);
+        this.sizes = readInts(in);
+        this.indicesForIDs = readInts(in);
+        this.distances = readDoubles(in);
+        this.coherences = readDoubles(in);
         this.leafCount = in.readInt();
         this.currentLevel = in.readInt();
+        if (version >= 2) {
+            this.leafWeights = readInts(in);
+            this.weights = readInts(in);
+            this.memberStarts = readInts(in);
+            this.memberIDs = readInts(in);
+        } else {
+            this.leafWeights = this.weights = this.memberStarts = this.memberIDs = null;
+        }
+        this.leafOrder = null;
+        this.rangeStarts = null;
+        this.memberOrder = null;
+        this.memberPositions = null;
+        clearCachedSums();
     }
 
-    private static void writeIntArray(ObjectOutput out, int[] arr) throws IOException {
-        final int n = arr != null ? arr.length : -1;
+    private static void writeInts(ObjectOutput out, IntBuffer values) throws IOException {
+        final int n = values != null ? values.capacity() : -1;
         out.writeInt(n);
-        for (int i = 0; i < n; i++) {
-            out.writeInt(arr[i]);
+        if (n > 0) {
+            byte[] bytes = new byte[Math.min(4 * n, EXTERNAL_CHUNK_SIZE)];
+            ByteBuffer chunk = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < n;) {
+                int count = Math.min(n - i, bytes.length / 4);
+                chunk.clear();
+                for (int j = 0; j < count; j++) {
+                    chunk.putInt(values.get(i + j));
+                }
+                out.write(bytes, 0, 4 * count);
+                i += count;
+            }
         }
     }
 
-    private static int[] readIntArray(ObjectInput in) throws IOException {
+    private static IntBuffer readInts(ObjectInput in) throws IOException {
         final int n = in.readInt();
-        final int[] result = n >= 0 ? new int[n] : null;
-        for (int i = 0; i < n; i++) {
-            result[i] = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        int[] result = new int[n];
+        if (n > 0) {
+            byte[] bytes = new byte[Math.min(4 * n, EXTERNAL_CHUNK_SIZE)];
+            ByteBuffer chunk = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < n;) {
+                int count = Math.min(n - i, bytes.length / 4);
+                in.readFully(bytes, 0, 4 * count);
+                chunk.clear();
+                chunk.asIntBuffer().get(result, i, count);
+                i += count;
+            }
         }
-        return result;
+        return IntBuffer.wrap(result);
     }
 
-    private static void writeDoubleArray(ObjectOutput out, double[] arr) throws IOException {
-        final int n = arr != null ? arr.length : -1;
+    private static void writeDoubles(ObjectOutput out, DoubleBuffer values) throws IOException {
+        final int n = values != null ? values.capacity() : -1;
         out.writeInt(n);
-        for (int i = 0; i < n; i++) {
-            out.writeDouble(arr[i]);
+        if (n > 0) {
+            byte[] bytes = new byte[Math.min(8 * n, EXTERNAL_CHUNK_SIZE)];
+            ByteBuffer chunk = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < n;) {
+                int count = Math.min(n - i, bytes.length / 8);
+                chunk.clear();
+                for (int j = 0; j < count; j++) {
+                    chunk.putDouble(values.get(i + j));
+                }
+                out.write(bytes, 0, 8 * count);
+                i += count;
+            }
         }
     }
 
-    private static double[] readDoubleArray(ObjectInput in) throws IOException {
+    private static DoubleBuffer readDoubles(ObjectInput in) throws IOException {
         final int n = in.readInt();
-        final double[] result = n >= 0 ? new double[n] : null;
-        for (int i = 0; i < n; i++) {
-            result[i] = in.readDouble();
+        if (n < 0) {
+            return null;
+        }
+        double[] result = new double[n];
+        if (n > 0) {
+            byte[] bytes = new byte[Math.min(8 * n, EXTERNAL_CHUNK_SIZE)];
+            ByteBuffer chunk = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < n;) {
+                int count = Math.min(n - i, bytes.length / 8);
+                in.readFully(bytes, 0, 8 * count);
+                chunk.clear();
+                chunk.asDoubleBuffer().get(result, i, count);
+                i += count;
+            }
         }
-        return result;
+        return DoubleBuffer.wrap(result);
     }
 
     public class Node {
@@ -1023,11 +1939,11 @@ public class Dendrogram implements Externalizable {
         }
 
         public double distance() {
-            return isLeaf() ? Double.NaN : distances[mLevel];
+            return isLeaf() ? Double.NaN : distances.get(mLevel);
         }
 
         public double coherence() {
-            return isLeaf() ? Double.NaN : coherences[mLevel];
+            return isLeaf() ? Double.NaN : coherences.get(mLevel);
         }
 
     }
@@ -0,0 +1,221 @@
+package org.battelle.clodhopper.hierarchical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.util.ArrayIntIterator;
+import org.battelle.clodhopper.util.IntIterator;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * DendrogramCut.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A <tt>DendrogramCut</tt> is a lightweight view of the clusters formed by cutting
+ * a finished <tt>Dendrogram</tt> into a given number of clusters. Since the leaves
+ * of every dendrogram node occupy a contiguous range of the ordered leaf ids, each
+ * cluster is represented by nothing more than a range of an array shared by all
+ * cuts of the same dendrogram. No member arrays are allocated unless explicitly
+ * requested. If the leaves of the dendrogram have members, the array holds the
+ * members of the leaves in the same order, so the clusters contain tuples.
+ * </p>
+ * <p>
+ * Instances are obtained from <code>Dendrogram.generateCut()</code> and
+ * <code>Dendrogram.generateCuts()</code>.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class DendrogramCut {
+
+    // The leaf ids in the order of Dendrogram.getOrderedLeafIDs(), or the members
+    // of the leaves in that order if they have members. Shared, so never modified.
+    private final int[] leafOrder;
+
+    // The dendrogram indices of the cluster nodes, in increasing order.
+    private final int[] nodeIndices;
+
+    // The start of each cluster's range in leafOrder and its length.
+    private final int[] starts;
+    private final int[] sizes;
+
+    // Cluster centers, packed one after another, or null if the cut was
+    // generated without tuples.
+    private final double[] centers;
+    private final int centerLength;
+
+    DendrogramCut(int[] leafOrder, int[] nodeIndices, int[] starts, int[] sizes,
+            double[] centers, int centerLength) {
+        this.leafOrder = leafOrder;
+        this.nodeIndices = nodeIndices;
+        this.starts = starts;
+        this.sizes = sizes;
+        this.centers = centers;
+        this.centerLength = centerLength;
+    }
+
+    /**
+     * Get the number of clusters in the cut.
+     *
+     * @return the number of clusters.
+     */
+    public int getClusterCount() {
+        return nodeIndices.length;
+    }
+
+    /**
+     * Get the index of the dendrogram node corresponding to a cluster. This is
+     * the level for non-leaf nodes.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return the node index.
+     */
+    public int getNodeIndex(int cluster) {
+        return nodeIndices[cluster];
+    }
+
+    /**
+     * Get the number of members in a cluster.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return the number of members.
+     */
+    public int getMemberCount(int cluster) {
+        return sizes[cluster];
+    }
+
+    /**
+     * Get the position of the first member of a cluster in the array returned
+     * by <code>getLeafOrder()</code>.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return the start of the cluster's range.
+     */
+    public int getStart(int cluster) {
+        return starts[cluster];
+    }
+
+    /**
+     * Get a member of a cluster.
+     *
+     * @param cluster the index of the cluster.
+     * @param n the index of the member in <code>[0 - (getMemberCount(cluster) - 1)]</code>.
+     *
+     * @return the member id.
+     */
+    public int getMember(int cluster, int n) {
+        if (n < 0 || n >= sizes[cluster]) {
+            throw new IndexOutOfBoundsException(String.valueOf(n));
+        }
+        return leafOrder[starts[cluster] + n];
+    }
+
+    /**
+     * Get an iterator over the members of a cluster which reads directly from
+     * the shared leaf order.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return an <code>IntIterator</code>.
+     */
+    public IntIterator getMemberIterator(int cluster) {
+        return new ArrayIntIterator(leafOrder, starts[cluster], sizes[cluster]);
+    }
+
+    /**
+     * Get a copy of the members of a cluster.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return an array containing the member ids.
+     */
+    public int[] getMembers(int cluster) {
+        int start = starts[cluster];
+        return Arrays.copyOfRange(leafOrder, start, start + sizes[cluster]);
+    }
+
+    /**
+     * Get the ordered leaf ids shared by all cuts of the dendrogram. This is the
+     * array into which <code>getStart()</code> indexes. It must not be modified.
+     *
+     * @return the leaf ids in the order of <code>Dendrogram.getOrderedLeafIDs()</code>,
+     *   or the members of the leaves in that order if the leaves have members.
+     */
+    public int[] getLeafOrder() {
+        return leafOrder;
+    }
+
+    /**
+     * Does the cut have cluster centers? It does only if it was generated with
+     * tuples.
+     *
+     * @return true if centers are available.
+     */
+    public boolean hasCenters() {
+        return centers != null;
+    }
+
+    /**
+     * Get the center of a cluster.
+     *
+     * @param cluster the index of the cluster.
+     *
+     * @return a copy of the center.
+     *
+     * @throws IllegalStateException if the cut has no centers.
+     */
+    public double[] getCenter(int cluster) {
+        if (centers == null) {
+            throw new IllegalStateException("cut was generated without tuples");
+        }
+        int offset = cluster * centerLength;
+        return Arrays.copyOfRange(centers, offset, offset + centerLength);
+    }
+
+    /**
+     * Converts the cut into a list of <code>Cluster</code>s, which requires
+     * copying the members.
+     *
+     * @return a list of clusters in the same order as the clusters of the cut.
+     *
+     * @throws IllegalStateException if the cut has no centers.
+     */
+    public List<Cluster> toClusters() {
+        final int clusterCount = nodeIndices.length;
+        List<Cluster> clusters = new ArrayList<Cluster>(clusterCount);
+        for (int i = 0; i < clusterCount; i++) {
+            clusters.add(new Cluster(getMembers(i), getCenter(i)));
+        }
+        return clusters;
+    }
+}
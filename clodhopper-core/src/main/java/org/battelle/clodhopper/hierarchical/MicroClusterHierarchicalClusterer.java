@@ -0,0 +1,268 @@
+package org.battelle.clodhopper.hierarchical;
+
+import java.util.List;
+import java.util.Random;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.kmeans.KMeansClusterer;
+import org.battelle.clodhopper.kmeans.KMeansParams;
+import org.battelle.clodhopper.seeding.KMeansPlusPlusSeeder;
+import org.battelle.clodhopper.task.AbstractTask;
+import org.battelle.clodhopper.task.ProgressHandler;
+import org.battelle.clodhopper.task.TaskAdapter;
+import org.battelle.clodhopper.task.TaskEvent;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.TupleList;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * MicroClusterHierarchicalClusterer.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A two-stage hierarchical clusterer for more tuples than can be clustered
+ * hierarchically in reasonable time. The tuples are first partitioned by
+ * <code>KMeansClusterer</code> into micro-clusters, a few thousand by default.
+ * The dendrogram is then built over the centroids of the micro-clusters by
+ * <code>StandardHierarchicalClusterer</code> or, if chosen, by
+ * <code>ReverseNNHierarchicalClusterer</code>, with each leaf weighted by the
+ * number of tuples in its micro-cluster, so that <code>MEAN</code> linkage and
+ * Ward's method count every tuple.
+ * </p>
+ * <p>
+ * The leaves of the resulting dendrogram have the members of their micro-clusters,
+ * so cutting it gives clusters of the original tuples. Cuts only cost the number of
+ * clusters once the order of the members has been computed, so the hierarchy
+ * can be browsed interactively however many tuples there are.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class MicroClusterHierarchicalClusterer extends AbstractHierarchicalClusterer {
+
+    public static final int DEFAULT_MICRO_CLUSTER_COUNT = 2000;
+
+    private int microClusterCount = DEFAULT_MICRO_CLUSTER_COUNT;
+    private boolean reverseNearestNeighbors;
+
+    /**
+     * Constructor.
+     *
+     * @param tuples contains the tuples to be clustered.
+     * @param params the parameters of the hierarchical stage. The distance
+     *   metric, worker thread count, and random seed are also used by k-means.
+     * @param dendrogram if non-null, a dendrogram with leaf members produced by an
+     *   earlier run on the same tuples, which is reused.
+     */
+    public MicroClusterHierarchicalClusterer(TupleList tuples,
+            HierarchicalParams params, Dendrogram dendrogram) {
+        super(tuples, params, dendrogram);
+    }
+
+    public MicroClusterHierarchicalClusterer(TupleList tuples,
+            HierarchicalParams params) {
+        this(tuples, params, null);
+    }
+
+    /**
+     * Get the number of micro-clusters requested of k-means.
+     *
+     * @return the number of micro-clusters.
+     */
+    public int getMicroClusterCount() {
+        return microClusterCount;
+    }
+
+    /**
+     * Set the number of micro-clusters requested of k-means. The hierarchical
+     * stage takes time and memory quadratic in this number. If there are no more
+     * tuples than this, every tuple is its own micro-cluster.
+     *
+     * @param n the number of micro-clusters.
+     *
+     * @throws IllegalArgumentException if less than 1.
+     */
+    public void setMicroClusterCount(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("micro-cluster count must be greater than 0");
+        }
+        this.microClusterCount = n;
+    }
+
+    /**
+     * Returns whether the micro-clusters are clustered by
+     * <code>ReverseNNHierarchicalClusterer</code>.
+     *
+     * @return true if they are, false if by <code>StandardHierarchicalClusterer</code>.
+     */
+    public boolean getReverseNearestNeighbors() {
+        return reverseNearestNeighbors;
+    }
+
+    /**
+     * Sets whether the micro-clusters are clustered by
+     * <code>ReverseNNHierarchicalClusterer</code>, which merges by Ward's method
+     * for Euclidean distances and ignores the linkage, rather than by
+     * <code>StandardHierarchicalClusterer</code>. The default is false.
+     *
+     * @param b true to use <code>ReverseNNHierarchicalClusterer</code>.
+     */
+    public void setReverseNearestNeighbors(boolean b) {
+        this.reverseNearestNeighbors = b;
+    }
+
+    @Override
+    public String taskName() {
+        return "micro-cluster hierarchical clustering";
+    }
+
+    @Override
+    protected void buildDendrogram() throws Exception {
+
+        final int tupleCount = tuples.getTupleCount();
+        final int tupleLength = tuples.getTupleLength();
+
+        ProgressHandler ph = new ProgressHandler(this);
+        ph.postBegin();
+
+        // The centroids of the micro-clusters and their members by micro-cluster.
+        TupleList centroids = null;
+        int[] memberStarts = null;
+        int[] members = new int[tupleCount];
+
+        if (tupleCount <= microClusterCount) {
+
+            postMessage(String.format("only %d tuples, each of which is a micro-cluster", tupleCount));
+            centroids = tuples;
+            memberStarts = new int[tupleCount + 1];
+            for (int i = 0; i < tupleCount; i++) {
+                memberStarts[i + 1] = i + 1;
+                members[i] = i;
+            }
+
+        } else {
+
+            ph.subsection(0.5);
+
+            KMeansParams kparams = new KMeansParams.Builder()
+                .clusterCount(microClusterCount)
+                .workerThreadCount(params.getWorkerThreadCount())
+                .distanceMetric(params.getDistanceMetric())
+                .clusterSeeder(new KMeansPlusPlusSeeder(params.getRandomSeed(), new Random(),
+                        params.getDistanceMetric()))
+                .build();
+
+            List<Cluster> microClusters = runStage(new KMeansClusterer(tuples, kparams), "  (k-means): ");
+
+            // K-means may leave some micro-clusters empty.
+            int count = 0;
+            for (Cluster c : microClusters) {
+                if (c.getMemberCount() > 0) {
+                    count++;
+                }
+            }
+
+            ArrayTupleList centers = new ArrayTupleList(tupleLength, count);
+            memberStarts = new int[count + 1];
+            int m = 0;
+            count = 0;
+            for (Cluster c : microClusters) {
+                final int memberCount = c.getMemberCount();
+                if (memberCount > 0) {
+                    centers.setTuple(count, c.getCenter());
+                    for (int i = 0; i < memberCount; i++) {
+                        members[m++] = c.getMember(i);
+                    }
+                    memberStarts[++count] = m;
+                }
+            }
+            centroids = centers;
+
+            ph.postMessage(String.format("%d tuples partitioned into %d micro-clusters", tupleCount, count));
+            ph.postEnd();
+        }
+
+        ph.subsection(tupleCount <= microClusterCount ? 1.0 : 0.5);
+
+        final int leafCount = centroids.getTupleCount();
+        int[] weights = new int[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            weights[i] = memberStarts[i + 1] - memberStarts[i];
+        }
+
+        // The clusters of the hierarchical stage are of no interest, so only one
+        // is requested.
+        HierarchicalParams hparams = new HierarchicalParams.Builder()
+            .linkage(params.getLinkage())
+            .distanceMetric(params.getDistanceMetric())
+            .workerThreadCount(params.getWorkerThreadCount())
+            .randomSeed(params.getRandomSeed())
+            .clusterCount(1)
+            .build();
+
+        AbstractHierarchicalClusterer clusterer = null;
+        String label = null;
+        if (reverseNearestNeighbors) {
+            clusterer = new ReverseNNHierarchicalClusterer(centroids, hparams);
+            label = "  (reverse nearest neighbor): ";
+        } else {
+            clusterer = new StandardHierarchicalClusterer(centroids, hparams);
+            label = "  (hierarchical): ";
+        }
+        clusterer.setLeafWeights(weights);
+
+        runStage(clusterer, label);
+
+        Dendrogram d = clusterer.getDendrogram();
+        d.setLeafMembers(memberStarts, members);
+        dendrogram = d;
+
+        ph.postEnd();
+        ph.postEnd();
+    }
+
+    // Runs a stage, forwarding its messages, and returns its clusters.
+    private List<Cluster> runStage(AbstractTask<List<Cluster>> stage, final String label) throws Exception {
+
+        stage.addTaskListener(new TaskAdapter() {
+            @Override
+            public void taskMessage(TaskEvent e) {
+                postMessage(label + e.getMessage());
+            }
+        });
+
+        stage.run();
+
+        if (stage.getTaskOutcome() != TaskOutcome.SUCCESS) {
+            checkForCancel();
+            finishWithError(stage.taskName() + " failed: " + stage.getErrorMessage());
+        }
+
+        return stage.get();
+    }
+}
@@ -0,0 +1,279 @@
+package org.battelle.clodhopper.hierarchical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.tuple.TupleList;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ * *
+ * OnTheFlyNodeDistances.java
+ *
+ *===================================================================*/
+/**
+ * Node distances for the nearest-neighbor chain that are computed from the tuples
+ * as they are needed, for use when there are too many tuples to cache all the
+ * pairwise distances.
+ * <p>
+ * The most recently used rows of node-to-node distances are kept in an LRU cache
+ * whose size is bounded by a memory budget. A row in the cache is kept current as
+ * nodes merge, since the distance from any node to a merged node is known from
+ * the merged node's row. A row that is not in the cache is recomputed from the
+ * distances between the members of the nodes, which is exact for complete, single,
+ * and mean linkage. The members of a node are loaded in blocks small enough to
+ * stay in the processor cache, while the workers divide up the other nodes.
+ * </p>
+ */
+class OnTheFlyNodeDistances implements StandardHierarchicalClusterer.NodeDistances {
+
+    // Upper limit on the size of a block of member tuples.
+    static final long BLOCK_BYTES = 128L * 1024L;
+
+    private final TupleList tuples;
+    private final HierarchicalParams.Linkage linkage;
+    private final int tupleCount;
+    private final int tupleLength;
+
+    // Members of each node as linked lists through next, headed by the node id.
+    private final int[] next;
+    private final int[] last;
+    private final int[] sizes;
+
+    // The weight of every tuple, by which its distances count in MEAN linkage.
+    private final int[] tupleWeights;
+
+    // LRU cache of rows, in access order.
+    private final LinkedHashMap<Integer, double[]> rows;
+
+    // The row being computed and its inputs, shared with the workers.
+    private double[] row;
+    private int[] activeIDs;
+    private int activeCount;
+    private final double[][] block;
+    private final int[] blockWeights;
+    private int blockSize;
+
+    private final List<RowWorker> workers;
+    private ExecutorService threadPool;
+
+    OnTheFlyNodeDistances(TupleList tuples, DistanceMetric distanceMetric,
+            HierarchicalParams.Linkage linkage, int[] leafWeights, long memoryBudget, 
+            int workerCount) {
+
+        this.tuples = tuples;
+        this.linkage = linkage;
+        this.tupleCount = tuples.getTupleCount();
+        this.tupleLength = tuples.getTupleLength();
+
+        next = new int[tupleCount];
+        Arrays.fill(next, -1);
+        last = new int[tupleCount];
+        sizes = new int[tupleCount];
+        tupleWeights = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            last[i] = i;
+            tupleWeights[i] = leafWeights != null ? leafWeights[i] : 1;
+            sizes[i] = tupleWeights[i];
+        }
+
+        final int maxRows = (int) Math.max(1L,
+                Math.min(tupleCount, memoryBudget / (8L * Math.max(1, tupleCount))));
+        rows = new LinkedHashMap<Integer, double[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+                return size() > maxRows;
+            }
+        };
+
+        final int maxBlockSize = (int) Math.max(1L, BLOCK_BYTES / (8L * Math.max(1, tupleLength)));
+        block = new double[maxBlockSize][tupleLength];
+        blockWeights = new int[maxBlockSize];
+
+        workerCount = Math.max(1, Math.min(workerCount, tupleCount));
+        workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(new RowWorker(i, workerCount, distanceMetric.clone()));
+        }
+        if (workerCount > 1) {
+            threadPool = Executors.newFixedThreadPool(workerCount);
+        }
+    }
+
+    void shutdown() {
+        if (threadPool != null) {
+            threadPool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void readRow(int index, ActiveSet active, double[] distances) {
+        double[] r = rows.get(index);
+        if (r == null) {
+            r = computeRow(index, active);
+            rows.put(index, r);
+        }
+        System.arraycopy(r, 0, distances, 0, tupleCount);
+    }
+
+    @Override
+    public void merge(int mergeID, int otherID, ActiveSet active, double[] distances) {
+
+        next[last[mergeID]] = otherID;
+        last[mergeID] = last[otherID];
+        sizes[mergeID] += sizes[otherID];
+
+        rows.remove(otherID);
+        rows.remove(mergeID);
+
+        // The distance from every cached node to the merged node is known.
+        for (Map.Entry<Integer, double[]> entry : rows.entrySet()) {
+            entry.getValue()[mergeID] = distances[entry.getKey()];
+        }
+
+        rows.put(mergeID, distances.clone());
+    }
+
+    // Computes the distances from a node to all active nodes from the distances
+    // between their members.
+    private double[] computeRow(int index, ActiveSet active) {
+
+        this.row = new double[tupleCount];
+        // Compacted here, so the workers only read the array.
+        this.activeCount = active.size();
+        this.activeIDs = active.ids();
+
+        final double initial = linkage == HierarchicalParams.Linkage.SINGLE ?
+                Double.MAX_VALUE : 0.0;
+        Arrays.fill(row, initial);
+
+        int member = index;
+        while (member >= 0) {
+            blockSize = 0;
+            while (member >= 0 && blockSize < block.length) {
+                blockWeights[blockSize] = tupleWeights[member];
+                tuples.getTuple(member, block[blockSize++]);
+                member = next[member];
+            }
+            callWorkers(index);
+        }
+
+        if (linkage == HierarchicalParams.Linkage.MEAN) {
+            final double size = sizes[index];
+            for (int k = 0; k < activeCount; k++) {
+                final int i = activeIDs[k];
+                row[i] /= size * sizes[i];
+            }
+        }
+
+        double[] result = row;
+        this.row = null;
+        this.activeIDs = null;
+
+        return result;
+    }
+
+    private void callWorkers(int index) {
+        for (RowWorker worker : workers) {
+            worker.index = index;
+        }
+        if (threadPool != null) {
+            try {
+                for (Future<Void> future : threadPool.invokeAll(workers)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        } else {
+            workers.get(0).call();
+        }
+    }
+
+    // Each worker combines the distances from the current block to the members of
+    // every workerCount-th active node, so no two workers write the same entry.
+    private class RowWorker implements Callable<Void> {
+
+        private final int workerIndex;
+        private final int workerCount;
+        private final DistanceMetric distMetric;
+        private final double[] buf;
+        private int index;
+
+        RowWorker(int workerIndex, int workerCount, DistanceMetric distMetric) {
+            this.workerIndex = workerIndex;
+            this.workerCount = workerCount;
+            this.distMetric = distMetric;
+            this.buf = new double[tupleLength];
+        }
+
+        @Override
+        public Void call() {
+            for (int k = workerIndex; k < activeCount; k += workerCount) {
+                final int i = activeIDs[k];
+                if (i == index) {
+                    continue;
+                }
+                double d = row[i];
+                for (int member = i; member >= 0; member = next[member]) {
+                    tuples.getTuple(member, buf);
+                    final int memberWeight = tupleWeights[member];
+                    for (int b = 0; b < blockSize; b++) {
+                        double distance = distMetric.distance(block[b], buf);
+                        switch (linkage) {
+                            case COMPLETE:
+                                if (distance > d) {
+                                    d = distance;
+                                }
+                                break;
+                            case SINGLE:
+                                if (distance < d) {
+                                    d = distance;
+                                }
+                                break;
+                            default:
+                                d += blockWeights[b] * memberWeight * distance;
+                        }
+                    }
+                }
+                row[i] = d;
+            }
+            return null;
+        }
+    }
+}
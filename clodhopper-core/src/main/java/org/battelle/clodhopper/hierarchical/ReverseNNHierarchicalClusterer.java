@@ -18,23 +18,23 @@
  */
 package org.battelle.clodhopper.hierarchical;
 
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
-
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.battelle.clodhopper.distance.CosineDistanceMetric;
 import org.battelle.clodhopper.distance.DistanceMetric;
 import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
 import org.battelle.clodhopper.task.ProgressHandler;
+import org.battelle.clodhopper.tuple.NearestNeighborGraph;
 import org.battelle.clodhopper.tuple.TupleList;
+import org.battelle.clodhopper.util.Sorting;
 
 /*=====================================================================
  * 
@@ -82,6 +82,20 @@ import org.battelle.clodhopper.tuple.TupleList;
  * Average clustering.
  * </p>
  * 
+ * <p>
+ * With Euclidean, Manhattan, or Chebyshev distances on tuples of modest length,
+ * nearest neighbors are found with a kd-tree over the centroids of the active
+ * nodes, rather than by computing the distances to all of them. Since the tree
+ * is kept current as nodes merge, nearest neighbors no longer have to be
+ * revised for every node after each merge.
+ * </p>
+ * 
+ * <p>
+ * Optionally, merges may be made in rounds. In each round, the nearest
+ * neighbors of all active nodes are found in parallel, then every pair of
+ * reciprocal nearest neighbors is merged. See <code>setBatchedMerging()</code>.
+ * </p>
+ * 
  * @author R.Scarberry
  * @since 1.0
  * 
@@ -99,6 +113,89 @@ public class ReverseNNHierarchicalClusterer extends
 		this(tuples, params, null);
 	}
 
+	/**
+	 * Returns whether nearest neighbors are found using a kd-tree when the
+	 * distance metric and tuple length allow it.
+	 * 
+	 * @return true if a kd-tree is used when possible.
+	 */
+	public boolean getSpatialIndex() {
+		return spatialIndex;
+	}
+
+	/**
+	 * Sets whether to find nearest neighbors using a kd-tree over the centroids
+	 * of the nodes. The tree is only used with Euclidean, Manhattan, or Chebyshev
+	 * distances, and for tuples no longer than
+	 * <code>SPATIAL_INDEX_MAX_DIMENSIONS</code>, beyond which searching it is
+	 * no faster than computing all the distances in parallel. Either way the
+	 * dendrogram is the same, apart from the resolution of tied distances. The
+	 * default is true.
+	 * 
+	 * @param b true to use a kd-tree when possible.
+	 */
+	public void setSpatialIndex(boolean b) {
+		spatialIndex = b;
+	}
+
+	/**
+	 * Returns whether merges are made in rounds of reciprocal nearest neighbor
+	 * pairs.
+	 * 
+	 * @return true if merges are made in rounds.
+	 */
+	public boolean getBatchedMerging() {
+		return batchedMerging;
+	}
+
+	/**
+	 * Sets whether to make merges in rounds. In each round, the nearest
+	 * neighbors of all the active nodes are found by the workers together, with a
+	 * single fork/join barrier for the round, and then every pair of nodes which
+	 * are each other's nearest neighbors is merged, in order of distance. When
+	 * false, one pair is merged at a time by following a chain of nearest
+	 * neighbors, and every nearest neighbor search is handed to the workers
+	 * separately, which costs more in coordination than in distances when there
+	 * are few tuples or many workers. With a kd-tree, the chain searches on a
+	 * single thread.
+	 * <p>
+	 * Rounds do more searching in all than the chain does, so they pay off when
+	 * several workers are available. Reciprocal pairs remain reciprocal when
+	 * other pairs merge as long as merging never brings a node closer to the
+	 * others, which the reverse nearest neighbor approach assumes anyway. So the
+	 * dendrogram is the same either way, apart from the resolution of tied
+	 * distances and the order of the levels. The default is false.
+	 * </p>
+	 * 
+	 * @param b true to merge in rounds.
+	 */
+	public void setBatchedMerging(boolean b) {
+		batchedMerging = b;
+	}
+
+	/**
+	 * Returns the graph of nearest neighbors used to start the clustering.
+	 * 
+	 * @return the graph, or null if none was set.
+	 */
+	public NearestNeighborGraph getNearestNeighborGraph() {
+		return nearestNeighborGraph;
+	}
+
+	/**
+	 * Sets a graph of the nearest neighbors of the tuples, computed with the same
+	 * distance metric, from which the nearest neighbor of every leaf is taken
+	 * instead of being searched for at the start. Only the first neighbor of
+	 * each tuple is used, so a graph built for other purposes, such as
+	 * Jarvis-Patrick clustering, serves as well. It is ignored if leaf weights
+	 * have been set, since the nearest neighbors then depend on the weights.
+	 * 
+	 * @param graph the graph, or null to search for all the nearest neighbors.
+	 */
+	public void setNearestNeighborGraph(NearestNeighborGraph graph) {
+		nearestNeighborGraph = graph;
+	}
+
 	@Override
 	public String taskName() {
 		DistanceMetric distanceMetric = params.getDistanceMetric();
@@ -111,6 +208,22 @@ public class ReverseNNHierarchicalClusterer extends
 				+ distanceMetric.getClass().getSimpleName();
 	}
 
+	/**
+	 * The greatest tuple length for which a kd-tree is used.
+	 */
+	public static final int SPATIAL_INDEX_MAX_DIMENSIONS = 32;
+
+	private boolean spatialIndex = true;
+
+	private boolean batchedMerging;
+
+	private NearestNeighborGraph nearestNeighborGraph;
+
+	// When merging in rounds with a kd-tree, the nearest neighbors are found
+	// again with the tree after rounds of more merges than this, rather than
+	// compared with every merged node.
+	private static final int MAX_REVISED_MERGES = 32;
+
 	// Each element n holds the index of the nearest
 	// neighbor to coordinate n, or -1 if not set.
 	private int[] nearestNeighbors;
@@ -122,10 +235,20 @@ public class ReverseNNHierarchicalClusterer extends
 	// Distance function used.
 	private DistanceMetric distMetric;
 
-	// For clusters of size > 1, holds the cluster centroids.
-	private TIntObjectMap<double[]> centerMap;
+	// The centroids of the nodes, tupleLength values per id, which for
+	// nodes that are still leaves are their tuples.
+	private double[] centroids;
+
+	// The ids of the nodes not yet merged into others. Scans only visit
+	// these, so they get shorter as the merges proceed.
+	private ActiveSet activeNodes;
 
-	private BitSet unavailabilityBits;
+	// The centroids of the active nodes when searching with a kd-tree. Then
+	// a nearest neighbor is only current if its element of nearestNeighborStamps
+	// equals mergeCount, since there is no revision after each merge.
+	private CentroidKDTree kdTree;
+	private int[] nearestNeighborStamps;
+	private int mergeCount;
 	
 	private ExecutorService threadPool;
 	private List<DistanceCalculator> calculators;
@@ -134,6 +257,8 @@ public class ReverseNNHierarchicalClusterer extends
 	// nearestNeighbor() each time before invoking the calculators.
 	private int currentDistIndex;
 	private int currentDistSize;
+	private int[] currentActiveIDs;
+	private int currentActiveCount;
 	private double[] currentDistTupleValues;
 	private double[] currentDistances;
 
@@ -143,24 +268,27 @@ public class ReverseNNHierarchicalClusterer extends
 
 		int nn = this.nearestNeighbors[index];
 
+		if (this.kdTree != null) {
+			if (nn == -1 || this.nearestNeighborStamps[index] != this.mergeCount) {
+				nn = this.kdTree.nearest(index);
+				this.nearestNeighbors[index] = nn;
+				this.nearestNeighborDistances[index] = this.kdTree.getNearestDistance();
+				this.nearestNeighborStamps[index] = this.mergeCount;
+			}
+			return nn;
+		}
+
 		if (nn == -1) {
 
-			final int tupleCount = this.tuples.getTupleCount();
+			final int sz = this.dendrogram.nodeWeight(index);
 
-			final int sz = this.dendrogram.nodeSize(index);
-
-			if (sz > 1) {
-				// Use the center from the center map. One HAS to be
-				// in the map, otherwise there's a programming error.
-				double[] center = this.centerMap.get(index);
-				System.arraycopy(center, 0, this.currentDistTupleValues, 0, center.length);
-			} else {
-				// It's still a leaf node. Have to get the tuple.
-				tuples.getTuple(index, this.currentDistTupleValues);
-			}
+			centroid(index, this.currentDistTupleValues);
 
 			this.currentDistIndex = index;
 			this.currentDistSize = sz;
+			// Compacted here, so the calculators only read the array.
+			this.currentActiveCount = this.activeNodes.size();
+			this.currentActiveIDs = this.activeNodes.ids();
 
 			if (this.threadPool != null) {
 				this.threadPool.invokeAll(this.calculators);
@@ -170,8 +298,9 @@ public class ReverseNNHierarchicalClusterer extends
 
 			double minDist = Double.MAX_VALUE;
 			
-			for (int ni = 0; ni < tupleCount; ni++) {
-				if (ni != index && !this.unavailabilityBits.get(ni)) {
+			for (int k = 0; k < this.currentActiveCount; k++) {
+				int ni = this.currentActiveIDs[k];
+				if (ni != index) {
 					double d = this.currentDistances[ni];
 					if (d < minDist) {
 						minDist = d;
@@ -187,6 +316,39 @@ public class ReverseNNHierarchicalClusterer extends
 		return nn;
 	}
 
+	// Takes the nearest neighbor of every leaf from the graph. The distances are
+	// weighted as those of the searches are, by w1*w2/(w1 + w2), which for two
+	// leaves of the same weight is half of it.
+	//
+	private void seedNearestNeighbors(int tupleLength) throws Exception {
+
+		final int tupleCount = this.tuples.getTupleCount();
+		final NearestNeighborGraph graph = this.nearestNeighborGraph;
+
+		if (graph.getTupleCount() != tupleCount) {
+			finishWithError(String.format(
+					"nearest neighbor graph has %d tuples, but there are %d tuples",
+					graph.getTupleCount(), tupleCount));
+		}
+		if (graph.getNeighborCount() == 0) {
+			finishWithError("nearest neighbor graph has no neighbors");
+		}
+
+		final double[] buf1 = new double[tupleLength];
+		final double[] buf2 = new double[tupleLength];
+
+		for (int i = 0; i < tupleCount; i++) {
+			int nn = graph.getNeighbor(i, 0);
+			double m = 0.5 * this.dendrogram.nodeWeight(i);
+			this.nearestNeighbors[i] = nn;
+			this.nearestNeighborDistances[i] = m * this.distMetric.distance(
+					this.tuples.getTuple(i, buf1), this.tuples.getTuple(nn, buf2));
+			if (this.kdTree != null) {
+				this.nearestNeighborStamps[i] = this.mergeCount;
+			}
+		}
+	}
+
 	@Override
 	protected void buildDendrogram() throws Exception {
 
@@ -212,7 +374,14 @@ public class ReverseNNHierarchicalClusterer extends
 			this.currentDistTupleValues = new double[tupleLength];
 			this.currentDistances = new double[tupleCount];
 
-			this.unavailabilityBits = new BitSet(tupleCount);
+			this.activeNodes = new ActiveSet(tupleCount);
+
+			// Every node starts out as a leaf, with its tuple as its centroid.
+			this.centroids = new double[tupleCount * tupleLength];
+			for (int i = 0; i < tupleCount; i++) {
+				this.tuples.getTuple(i, this.currentDistTupleValues);
+				System.arraycopy(this.currentDistTupleValues, 0, this.centroids, i * tupleLength, tupleLength);
+			}
 
 			// Put the tuple indexes into an array and shuffle them.
 			int[] shuffledCoordIndices = new int[tupleCount];
@@ -230,15 +399,13 @@ public class ReverseNNHierarchicalClusterer extends
 					shuffledCoordIndices[i] ^= shuffledCoordIndices[j];
 				}
 			}
-			
-			this.centerMap = new TIntObjectHashMap<double[]>();
 
 			int threadCount = params.getWorkerThreadCount();
 			if (threadCount <= 0) {
 				threadCount = Runtime.getRuntime().availableProcessors();
 			}
 
-			int tuplesSoFar = 0;
+			final int workerCount = threadCount;
 
 			// Element at n holds the index m of the nearest
 			// neighbor of coordinate n. -1 indicates not
@@ -248,29 +415,38 @@ public class ReverseNNHierarchicalClusterer extends
 			this.nearestNeighborDistances = new double[tupleCount];
 
 			this.distMetric = this.params.getDistanceMetric();
-			this.dendrogram = new Dendrogram(tupleCount);
+			this.dendrogram = newDendrogram();
+
+			if (this.spatialIndex && CentroidKDTree.supports(this.distMetric)
+					&& tupleLength <= SPATIAL_INDEX_MAX_DIMENSIONS) {
+				this.kdTree = new CentroidKDTree(this.tuples, this.distMetric, this.dendrogram);
+				this.nearestNeighborStamps = new int[tupleCount];
+				this.mergeCount = 0;
+				// The searches are serial, so no thread pool is needed.
+				threadCount = 1;
+			}
 
-			// Create the DistanceCalculators.
-			this.calculators = new ArrayList<DistanceCalculator>(threadCount);
+			if (this.nearestNeighborGraph != null && this.leafWeights == null) {
+				seedNearestNeighbors(tupleLength);
+			}
 
-			// Need to apportion the work among the workers.
+			// Create the DistanceCalculators. They take turns with the active
+			// nodes, so the shares stay even as the nodes dwindle.
+			this.calculators = new ArrayList<DistanceCalculator>(threadCount);
 			for (int i = 0; i < threadCount; i++) {
-				int tuplesForThisWorker = (int) Math
-						.round(((double) tupleCount) * (i + 1) / threadCount)
-						- tuplesSoFar;
-				this.calculators.add(new DistanceCalculator(tuplesSoFar, tuplesSoFar
-						+ tuplesForThisWorker));
-				tuplesSoFar += tuplesForThisWorker;
+				this.calculators.add(new DistanceCalculator(i, threadCount));
 			}
 
-			assert tuplesSoFar == tupleCount;
-
-			if (threadCount > 1) {
+			if (threadCount > 1 && !this.batchedMerging) {
 				this.threadPool = Executors.newFixedThreadPool(threadCount);
 			}
 
-			final double[] tupleBuf1 = new double[tupleLength];
-			final double[] tupleBuf2 = new double[tupleLength];
+			final double[] tupleBuf = new double[tupleLength];
+			final double[] center = new double[tupleLength];
+
+			if (this.batchedMerging) {
+				mergeInRounds(ph, workerCount, center);
+			}
 
 			int currentIndexPos = 0;
 			// Arbitrarily pick the starting point for the first search.
@@ -284,80 +460,34 @@ public class ReverseNNHierarchicalClusterer extends
 
 				if (nearestNeighbor(nn) == currentIndex) {
 				
-					int sz1 = this.dendrogram.nodeSize(currentIndex);
-					int sz2 = this.dendrogram.nodeSize(nn);
-
-					double[] buf1 = null, buf2 = null;
-					if (sz1 > 1) {
-						buf1 = this.centerMap.get(currentIndex);
-					} else {
-						buf1 = tupleBuf1;
-						tuples.getTuple(currentIndex, buf1);
-					}
-					if (sz2 > 1) {
-						buf2 = this.centerMap.get(nn);
-					} else {
-						buf2 = tupleBuf2;
-						this.tuples.getTuple(nn, buf2);
-					}
+					int sz1 = this.dendrogram.nodeWeight(currentIndex);
+					int sz2 = this.dendrogram.nodeWeight(nn);
 
-					int mergeIndex = this.dendrogram.mergeNodes(currentIndex, nn,
-							this.nearestNeighborDistances[currentIndex]);
+					int mergeIndex = mergePair(currentIndex, nn,
+							this.nearestNeighborDistances[currentIndex], center);
 
 					int invalidatedIndex = mergeIndex == currentIndex ? nn : currentIndex;
-					
-					// Drop this id out of contention.
-					this.unavailabilityBits.set(invalidatedIndex);
-
-					if (this.centerMap.containsKey(invalidatedIndex)) {
-						// Save some memory by not storing centers we no
-						// longer need.
-						this.centerMap.remove(invalidatedIndex);
-					}
 
 					double totalSz = sz1 + sz2;
 
-					double[] center = null;
-					if (sz1 > 1) {
-						// Reuse the array.
-						center = buf1;
-					} else if (sz2 > 1) {
-						// Reuse the array.
-						center = buf2;
-					} else {
-						// Have to allocate a new centroid.
-						center = new double[tupleLength];
-					}
-
-					for (int i = 0; i < tupleLength; i++) {
-						center[i] = (sz1 * buf1[i] + sz2 * buf2[i]) / totalSz;
-					}
-
-					this.centerMap.put(mergeIndex, center);
-
 					this.nearestNeighbors[mergeIndex] = -1;
 					this.nearestNeighbors[invalidatedIndex] = -1;
 
-					for (int i = 0; i < tupleCount; i++) {
+					final int activeCount = this.kdTree == null ? this.activeNodes.size() : 0;
+					final int[] activeIDs = this.activeNodes.ids();
 
+					for (int k = 0; k < activeCount; k++) {
+
+						final int i = activeIDs[k];
 						final int nni = this.nearestNeighbors[i];
 
 						if (nni >= 0) {
 
-							final int nsz = this.dendrogram.nodeSize(i);
-
-							double[] buf = null;
-							if (nsz > 1) {
-								buf = this.centerMap.get(i);
-								assert buf != null;
-							} else {
-								this.tuples.getTuple(i, tupleBuf1);
-								buf = tupleBuf1;
-							}
+							final int nsz = this.dendrogram.nodeWeight(i);
 
 							double m = ((double) nsz * totalSz)
 									/ (nsz + totalSz);
-							double d = m * this.distMetric.distance(center, buf);
+							double d = m * this.distMetric.distance(center, centroid(i, tupleBuf));
 
 							// The old nearest neighbor was one of the nodes
 							// that
@@ -398,7 +528,7 @@ public class ReverseNNHierarchicalClusterer extends
 						if (currentIndex < 0) {
 							currentIndex = tupleCount - 1;
 						}
-						while (this.unavailabilityBits.get(currentIndex)) {
+						while (!this.activeNodes.contains(currentIndex)) {
 							currentIndexPos++;
 							if (currentIndexPos >= tupleCount) {
 								currentIndexPos = 0;
@@ -427,25 +557,290 @@ public class ReverseNNHierarchicalClusterer extends
 				threadPool = null;
 			}
 
-			calculators.clear();
-			calculators = null;
+			if (calculators != null) {
+				calculators.clear();
+				calculators = null;
+			}
+
+			kdTree = null;
+			nearestNeighborStamps = null;
+			centroids = null;
+			activeNodes = null;
 
 		}
 	}
 
-	// Used for parallel calculation of distances.
+	// Merges every pair of reciprocal nearest neighbors among the active nodes,
+	// round after round, until the dendrogram is finished.
+	//
+	private void mergeInRounds(ProgressHandler ph, int workerCount,
+			double[] center) throws Exception {
+
+		final int tupleCount = this.tuples.getTupleCount();
+
+		int[] pairs = new int[tupleCount / 2];
+
+		// The merged nodes of the last round. A nearest neighbor which was not
+		// absorbed by another node only has to be compared with these.
+		int[] mergedIDs = new int[tupleCount / 2];
+		int mergedCount = 0;
+		boolean[] merged = new boolean[tupleCount];
+
+		ForkJoinPool pool = workerCount > 1 ? new ForkJoinPool(workerCount) : null;
+
+		try {
+
+			while (!this.dendrogram.isFinished()) {
+
+				checkForCancel();
+
+				// Ids of the active nodes in ascending order, so the scans resolve
+				// ties in favor of the lowest id, as the kd-tree does.
+				final int[] active = this.activeNodes.ids();
+				final int activeCount = this.activeNodes.size();
+
+				int grain = Math.max(1, activeCount / (8 * workerCount));
+				NeighborTask task = new NeighborTask(active, activeCount, merged, mergedIDs, mergedCount,
+						0, activeCount, grain);
+				if (pool != null) {
+					pool.invoke(task);
+				} else {
+					task.compute();
+				}
+
+				// The first of each reciprocal pair is its lower id.
+				int pairCount = 0;
+				int closest = -1;
+				for (int k = 0; k < activeCount; k++) {
+					int i = active[k];
+					int nn = this.nearestNeighbors[i];
+					if (nn > i && this.nearestNeighbors[nn] == i) {
+						pairs[pairCount++] = i;
+					}
+					if (nn >= 0 && (closest < 0 || this.nearestNeighborDistances[i] < 
+							this.nearestNeighborDistances[closest])) {
+						closest = i;
+					}
+				}
+
+				// The closest pair is always reciprocal, unless distances
+				// aren't symmetric. Merge it anyway so the rounds end.
+				if (pairCount == 0) {
+					// No node has a nearest neighbor when every distance is NaN.
+					if (closest < 0) {
+						finishWithError("problem finding nearest neighbors");
+					}
+					pairs[pairCount++] = closest;
+				}
+
+				Sorting.quickSort(pairs, 0, pairCount, (n1, n2) -> {
+					int c = Double.compare(this.nearestNeighborDistances[n1],
+							this.nearestNeighborDistances[n2]);
+					return c != 0 ? c : Integer.compare(n1, n2);
+				});
+
+				for (int p = 0; p < mergedCount; p++) {
+					merged[mergedIDs[p]] = false;
+				}
+				mergedCount = 0;
+
+				for (int p = 0; p < pairCount; p++) {
+					int i = pairs[p];
+					int mergeIndex = mergePair(i, this.nearestNeighbors[i],
+							this.nearestNeighborDistances[i], center);
+					mergedIDs[mergedCount++] = mergeIndex;
+					merged[mergeIndex] = true;
+					ph.postStep();
+				}
+
+				// Keep the nearest neighbors that are still candidates.
+				final int remaining = this.activeNodes.size();
+				for (int k = 0; k < remaining; k++) {
+					int i = active[k];
+					int nn = this.nearestNeighbors[i];
+					if (merged[i] || nn < 0 || !this.activeNodes.contains(nn)
+							|| (this.kdTree != null && mergedCount > MAX_REVISED_MERGES)) {
+						this.nearestNeighbors[i] = -1;
+					}
+				}
+			}
+
+		} finally {
+
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+
+		}
+	}
+
+	// Finds the nearest neighbors of the active nodes in a range, splitting the
+	// range between the workers of the fork/join pool.
+	//
+	class NeighborTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] active;
+		private final int activeCount;
+		private final boolean[] merged;
+		private final int[] mergedIDs;
+		private final int mergedCount;
+		private final int from, to, grain;
+
+		NeighborTask(int[] active, int activeCount, boolean[] merged, int[] mergedIDs,
+				int mergedCount, int from, int to, int grain) {
+			this.active = active;
+			this.activeCount = activeCount;
+			this.merged = merged;
+			this.mergedIDs = mergedIDs;
+			this.mergedCount = mergedCount;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new NeighborTask(active, activeCount, merged, mergedIDs, mergedCount,
+								from, mid, grain),
+						new NeighborTask(active, activeCount, merged, mergedIDs, mergedCount,
+								mid, to, grain));
+				return;
+			}
+
+			final DistanceMetric dm = distMetric.clone();
+			final int dim = tuples.getTupleLength();
+			final double[] queryBuf = new double[dim];
+			final double[] buf = new double[dim];
+			final CentroidKDTree.Searcher searcher = kdTree != null ? kdTree.new Searcher() : null;
+
+			for (int k = from; k < to; k++) {
+
+				final int i = active[k];
+				final int sz = dendrogram.nodeWeight(i);
+				final double[] query = centroid(i, queryBuf);
+
+				int nn = nearestNeighbors[i];
+				double minDist = Double.MAX_VALUE;
+				
+				if (nn >= 0) {
+					// The neighbor is still a candidate, so it only has to
+					// be compared with the nodes merged since it was found. 
+					// But if it was one of them and has moved away, some 
+					// other node may now be nearer.
+					minDist = nearestNeighborDistances[i];
+					if (merged[nn]) {
+						double d = weightedDistance(dm, query, sz, nn, buf);
+						if (d > minDist) {
+							nn = -1;
+						} else {
+							minDist = d;
+						}
+					}
+				}
+
+				if (nn >= 0) {
+					for (int a = 0; a < mergedCount; a++) {
+						int j = mergedIDs[a];
+						if (j != i && j != nn) {
+							double d = weightedDistance(dm, query, sz, j, buf);
+							if (d < minDist || (d == minDist && j < nn)) {
+								minDist = d;
+								nn = j;
+							}
+						}
+					}
+				} else if (searcher != null) {
+					nn = searcher.nearest(i);
+					minDist = searcher.getNearestDistance();
+				} else {
+					minDist = Double.MAX_VALUE;
+					for (int a = 0; a < activeCount; a++) {
+						int j = active[a];
+						if (j != i) {
+							double d = weightedDistance(dm, query, sz, j, buf);
+							if (d < minDist) {
+								minDist = d;
+								nn = j;
+							}
+						}
+					}
+				}
+
+				nearestNeighbors[i] = nn;
+				nearestNeighborDistances[i] = minDist;
+			}
+		}
+
+		private double weightedDistance(DistanceMetric dm, double[] query, int sz,
+				int index, double[] buf) {
+			int sz2 = dendrogram.nodeWeight(index);
+			double m = ((double) sz * sz2) / (sz + sz2);
+			return m * dm.distance(query, centroid(index, buf));
+		}
+	}
+
+	// Copies the centroid of a node into buf, which is returned.
+	//
+	private double[] centroid(int index, double[] buf) {
+		final int tupleLength = buf.length;
+		System.arraycopy(this.centroids, index * tupleLength, buf, 0, tupleLength);
+		return buf;
+	}
+
+	// Merges two nodes, replacing their centroids by the centroid of the merged
+	// node, which is also copied into center. Returns the id of the merged node.
+	//
+	private int mergePair(int index1, int index2, double distance,
+			double[] center) {
+
+		final int tupleLength = this.tuples.getTupleLength();
+
+		int sz1 = this.dendrogram.nodeWeight(index1);
+		int sz2 = this.dendrogram.nodeWeight(index2);
+
+		int mergeIndex = this.dendrogram.mergeNodes(index1, index2, distance);
+
+		int invalidatedIndex = mergeIndex == index1 ? index2 : index1;
+		
+		// Drop this id out of contention.
+		this.activeNodes.remove(invalidatedIndex);
+
+		double totalSz = sz1 + sz2;
+
+		final int offset1 = index1 * tupleLength;
+		final int offset2 = index2 * tupleLength;
+		for (int i = 0; i < tupleLength; i++) {
+			center[i] = (sz1 * this.centroids[offset1 + i] + sz2 * this.centroids[offset2 + i]) / totalSz;
+		}
+
+		System.arraycopy(center, 0, this.centroids, mergeIndex * tupleLength, tupleLength);
+
+		if (this.kdTree != null) {
+			this.kdTree.remove(invalidatedIndex);
+			this.kdTree.move(mergeIndex, center, sz1 + sz2);
+			this.mergeCount++;
+		}
+
+		return mergeIndex;
+	}
+
+	// Used for parallel calculation of distances. Each calculator takes every
+	// calculatorCount-th active node, starting with the one at calculatorIndex.
 	//
 	class DistanceCalculator implements Callable<Void> {
 
-		private int startIndex, endIndex;
-		private TupleList theTuples;
+		private int calculatorIndex, calculatorCount;
 		private double[] buf;
 		private DistanceMetric dm;
 
-		DistanceCalculator(int startIndex, int endIndex) {
-			this.startIndex = startIndex;
-			this.endIndex = endIndex;
-			this.theTuples = tuples;
+		DistanceCalculator(int calculatorIndex, int calculatorCount) {
+			this.calculatorIndex = calculatorIndex;
+			this.calculatorCount = calculatorCount;
 			int dim = tuples.getTupleLength();
 			buf = new double[dim];
 			dm = params.getDistanceMetric().clone();
@@ -454,22 +849,13 @@ public class ReverseNNHierarchicalClusterer extends
 		@Override
 		public Void call() throws Exception {
 
-			for (int i = startIndex; i < endIndex; i++) {
+			for (int k = calculatorIndex; k < currentActiveCount; k += calculatorCount) {
 				
-				if (i != currentDistIndex && !unavailabilityBits.get(i)) {
+				int i = currentActiveIDs[k];
 				
-					double[] buffer = null;
-					int sz = dendrogram.nodeSize(i);
-					
-					if (sz > 1) {
-						buffer = centerMap.get(i);
-						assert buffer != null;
-					} else {
-						buffer = this.buf;
-						theTuples.getTuple(i, this.buf);
-					}
-					
-					double d1 = dm.distance(currentDistTupleValues, buffer);					
+				if (i != currentDistIndex) {
+					int sz = dendrogram.nodeWeight(i);
+					double d1 = dm.distance(currentDistTupleValues, centroid(i, buf));					
 					double m = ((double) currentDistSize * sz) / (currentDistSize + sz);
 					currentDistances[i] = m * d1;
 				}
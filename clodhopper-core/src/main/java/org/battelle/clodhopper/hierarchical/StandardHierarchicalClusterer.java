@@ -30,10 +30,13 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.battelle.clodhopper.distance.DistanceCache;
 import org.battelle.clodhopper.distance.DistanceCacheFactory;
+import org.battelle.clodhopper.distance.DistanceCacheStore;
 import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.DistancePrecision;
 import org.battelle.clodhopper.task.ProgressHandler;
 import org.battelle.clodhopper.tuple.TupleList;
 
@@ -74,6 +77,7 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
     public static final long DEFAULT_MEM_THRESHOLD = 128L * 1024L * 1024L;
     public static final long DEFAULT_FILE_THRESHOLD = 2L * 1024L * 1024L * 1024L;
+    public static final long DEFAULT_CACHE_DIRECTORY_LIMIT = 8L * 1024L * 1024L * 1024L;
 
 	// Threshold that determines the number of coordinates whose
     // pairwise distances can be cached in RAM.  Defaulting to 128MB,
@@ -90,6 +94,21 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
     // construction of a new dendrogram.
     private File cacheFileLocation;
 
+    // Whether to perform the merges using the nearest-neighbor chain algorithm
+    // rather than by repeatedly searching for the globally closest pair.
+    private boolean nearestNeighborChain = true;
+
+    // Whether to build single linkage dendrograms from a minimum spanning tree,
+    // which does not require a distance cache.
+    private boolean minimumSpanningTree = true;
+
+    // The lowest precision acceptable for distances cached in RAM.
+    private DistancePrecision distancePrecision = DistancePrecision.DOUBLE;
+
+    // Where to keep distances for reuse by later runs, if anywhere.
+    private File distanceCacheDirectory;
+    private long distanceCacheDirectoryLimit = DEFAULT_CACHE_DIRECTORY_LIMIT;
+
     public StandardHierarchicalClusterer(TupleList tuples,
             HierarchicalParams params,
             Dendrogram dendrogram) {
@@ -106,7 +125,8 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
      * coordinates in RAM. If the memory required is greater than this
      * threshold, but less than the file cache threshold, the distances will be
      * cached in a file. If the memory required is even greater than the
-     * distance cache file threshold, hierarchical clustering will fail.
+     * distance cache file threshold, the distances are computed as needed, and
+     * this threshold bounds the memory used for the rows of distances kept.
      *
      * @return - the threshold as a number of bytes.
      */
@@ -119,8 +139,10 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
      * coordinates in RAM. If the memory required is greater than this
      * threshold, the distances must be cached in a file, as long as the memory
      * required is less than the file threshold. If the memory required is even
-     * greater than the distance cache file threshold, hierarchical clustering
-     * will fail.
+     * greater than the distance cache file threshold, the distances are computed
+     * from the tuples as needed, and this threshold bounds the memory used for
+     * an LRU cache of rows of distances between the nodes being merged. Merging is
+     * then always done with the nearest-neighbor chain.
      * 
      * @param threshold the maximum byte threshold for storing distances in memory.
      */
@@ -131,7 +153,7 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
     /**
      * Returns the file threshold for storing pairwise distances between
      * coordinates. If the memory required is greater than this threshold,
-     * hierarchical clustering will fail.
+     * the distances are computed as needed instead of cached.
      *
      * @return - the threshold as a number of bytes.
      */
@@ -182,6 +204,140 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
         cacheFileLocation = location;
     }
 
+    /**
+     * Returns whether the merges are performed using the nearest-neighbor chain
+     * algorithm.
+     *
+     * @return true if the nearest-neighbor chain algorithm is used.
+     */
+    public boolean getNearestNeighborChain() {
+        return nearestNeighborChain;
+    }
+
+    /**
+     * Sets whether to perform the merges using the nearest-neighbor chain
+     * algorithm. Since all supported linkages are reducible, the nearest-neighbor
+     * chain produces the same dendrogram as repeatedly merging the closest pair
+     * of nodes (apart from the order in which tied distances are resolved), but it
+     * requires only O(n<sup>2</sup>) distance lookups in all. If false, the closest
+     * pair is found by scanning the nearest neighbors of every node after each
+     * merge. The default is true.
+     *
+     * @param b true to use the nearest-neighbor chain algorithm.
+     */
+    public void setNearestNeighborChain(final boolean b) {
+        nearestNeighborChain = b;
+    }
+
+    /**
+     * Returns whether single linkage dendrograms are built from a minimum
+     * spanning tree.
+     *
+     * @return true if a minimum spanning tree is used for single linkage.
+     */
+    public boolean getMinimumSpanningTree() {
+        return minimumSpanningTree;
+    }
+
+    /**
+     * Sets whether single linkage dendrograms are built from a minimum spanning
+     * tree. The single linkage dendrogram is exactly the minimum spanning tree of
+     * the tuples with its edges taken in order of increasing length. The tree is
+     * computed with Prim's algorithm, computing distances as they are needed, so
+     * neither a distance cache nor the cache thresholds come into play and memory
+     * use is linear in the number of tuples. This setting has no effect for other
+     * linkages. The default is true.
+     *
+     * @param b true to use a minimum spanning tree for single linkage.
+     */
+    public void setMinimumSpanningTree(final boolean b) {
+        minimumSpanningTree = b;
+    }
+
+    /**
+     * Returns the lowest precision acceptable for pairwise distances cached in
+     * RAM.
+     *
+     * @return the precision.
+     */
+    public DistancePrecision getDistancePrecision() {
+        return distancePrecision;
+    }
+
+    /**
+     * Sets the lowest precision acceptable for pairwise distances cached in RAM.
+     * If the distances will not fit within the memory threshold as doubles, they 
+     * are cached in RAM as floats or as 16-bit codes, if this precision allows it,
+     * before resorting to a file cache. Floats fit about 1.4 times as many tuples 
+     * within a threshold as doubles, and 16-bit codes about twice as many. The
+     * default is <code>DistancePrecision.DOUBLE</code>.
+     *
+     * @param precision the lowest acceptable precision.
+     */
+    public void setDistancePrecision(final DistancePrecision precision) {
+        if (precision == null) {
+            throw new NullPointerException();
+        }
+        distancePrecision = precision;
+    }
+
+    /**
+     * Gets the directory in which pairwise distances are kept for reuse by
+     * later runs.
+     *
+     * @return the directory or null if not set.
+     */
+    public File getDistanceCacheDirectory() {
+        return distanceCacheDirectory;
+    }
+
+    /**
+     * Sets a directory in which pairwise distances are kept for reuse by later
+     * runs. The distances are stored under a key derived from a hash of the content
+     * of the tuples, the class of the distance metric, and the precision of the
+     * cache, so later runs on the same data reuse them no matter what the linkage
+     * is, skipping the computation of the distances. Since only the class of the
+     * metric is part of the key, a metric with settings of its own that affect the
+     * distances must not be used with a directory. Stored distances that cannot be
+     * read are deleted and computed again. The least recently used distances are
+     * deleted when the directory grows beyond its limit. If null, which is the
+     * default, distances are not kept.
+     *
+     * @param directory the directory, which is created if it doesn't exist.
+     *
+     * @throws IllegalArgumentException - if the directory exists but is not a
+     * directory.
+     */
+    public void setDistanceCacheDirectory(final File directory) {
+        if (directory != null && directory.exists() && !directory.isDirectory()) {
+            throw new IllegalArgumentException("not a directory: " + directory);
+        }
+        distanceCacheDirectory = directory;
+    }
+
+    /**
+     * Returns the limit on the total size of the distances kept in the
+     * distance cache directory.
+     *
+     * @return the limit in bytes.
+     */
+    public long getDistanceCacheDirectoryLimit() {
+        return distanceCacheDirectoryLimit;
+    }
+
+    /**
+     * Sets the limit on the total size of the distances kept in the distance
+     * cache directory. The default is 8GB.
+     *
+     * @param limit the limit in bytes.
+     */
+    public void setDistanceCacheDirectoryLimit(final long limit) {
+        if (limit < 0L) {
+            throw new IllegalArgumentException("limit < 0: " + limit);
+        }
+        distanceCacheDirectoryLimit = limit;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -192,6 +348,11 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
     protected void buildDendrogram() throws Exception {
 
+        if (minimumSpanningTree && params.getLinkage() == HierarchicalParams.Linkage.SINGLE) {
+            buildSpanningTreeDendrogram();
+            return;
+        }
+
         ProgressHandler ph = new ProgressHandler(this);
 
         double beginP = this.getBeginProgress();
@@ -217,6 +378,7 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
         Optional<DistanceCache> cache = Optional.empty();
         SubtaskManager mgr = null;
+        OnTheFlyNodeDistances onTheFly = null;
 
         try {
 
@@ -226,21 +388,28 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             cacheFile = File.createTempFile("dcache", null, cacheFileLocation);
             cacheFile.deleteOnExit();
 
-            dendrogram = new Dendrogram(tupleCount);
+            dendrogram = newDendrogram();
 
             ph.postMessage("creating new distance cache");
 
             if (tupleCount > 1) {
                 cache = DistanceCacheFactory.newDistanceCache(tupleCount,
-                        distanceCacheMemThreshold, distanceCacheFileThreshold, cacheFile);
+                        distanceCacheMemThreshold, distanceCacheFileThreshold, cacheFile,
+                        distancePrecision);
             } 
 
             ph.postEnd();
 
             if (tupleCount > 1) {
                 int numProcessors = params.getWorkerThreadCount();
-                mgr = new SubtaskManager(numProcessors,
-                        params, tuples, cache);
+                if (cache.isPresent()) {
+                    mgr = new SubtaskManager(numProcessors,
+                            params, tuples, cache);
+                } else {
+                    // Too many tuples to cache the distances, so compute them as needed.
+                    onTheFly = new OnTheFlyNodeDistances(tuples, params.getDistanceMetric(),
+                            params.getLinkage(), leafWeights, distanceCacheMemThreshold, numProcessors);
+                }
             }
 
             ph.subsection(fracForInitDistances);
@@ -248,7 +417,39 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             ph.postMessage("initializing distances in the cache");
 
             if (mgr != null) {
-                mgr.initializeDistances();
+                DistanceCacheStore store = null;
+                String key = null;
+                if (distanceCacheDirectory != null) {
+                    store = new DistanceCacheStore(distanceCacheDirectory, distanceCacheDirectoryLimit);
+                    key = DistanceCacheStore.computeKey(tuples, params.getDistanceMetric(),
+                            DistanceCacheFactory.precisionOf(cache.get()));
+                }
+                boolean loaded = false;
+                if (store != null) {
+                    try {
+                        loaded = store.load(key, cache.get());
+                    } catch (IOException e) {
+                        // Treated like a failure to store: the distances are
+                        // computed again, replacing the bad entry.
+                        ph.postMessage("unable to reuse stored distances: " + e);
+                        store.remove(key);
+                    }
+                }
+                if (loaded) {
+                    ph.postMessage("reusing stored distances");
+                    mgr.initializeNearestNeighbors();
+                } else {
+                    mgr.initializeDistances();
+                    if (store != null) {
+                        checkForCancel();
+                        try {
+                            store.store(key, cache.get());
+                        } catch (IOException e) {
+                            // Not worth failing over, since the distances are in the cache.
+                            ph.postMessage("unable to store distances for reuse: " + e);
+                        }
+                    }
+                }
             }
 
             ph.postEnd();
@@ -262,6 +463,14 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
             ph.postMessage("merging nodes");
 
+            if (!done && onTheFly != null) {
+                mergeWithNearestNeighborChain(onTheFly, ph);
+                done = true;
+            } else if (!done && nearestNeighborChain) {
+                mergeWithNearestNeighborChain(new CachedNodeDistances(cache.get()), ph);
+                done = true;
+            }
+
             while (!done) {
 
                 if (!mgr.lookupNearestNeighbors(nnPair, nnDistance)) {
@@ -289,6 +498,9 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             if (mgr != null) {
                 mgr.shutdown();
             }
+            if (onTheFly != null) {
+                onTheFly.shutdown();
+            }
 
             // Clean up temporary files.
             if (cacheFile != null && cacheFile.exists()) {
@@ -301,8 +513,453 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
     }
 
+    // Builds a single linkage dendrogram from the minimum spanning tree of the tuples.
+    //
+    private void buildSpanningTreeDendrogram() throws Exception {
+
+        final int tupleCount = tuples.getTupleCount();
+
+        dendrogram = newDendrogram();
+
+        if (tupleCount > 1) {
+
+            ProgressHandler ph = new ProgressHandler(this, getBeginProgress(), getEndProgress(), tupleCount - 1);
+            ph.setMinTimeIncrement(500L);
+            ph.postBegin();
+            ph.postMessage("computing minimum spanning tree");
+
+            SpanningTreeBuilder builder = new SpanningTreeBuilder(params.getWorkerThreadCount());
+            try {
+                builder.build(ph);
+            } finally {
+                builder.shutdown();
+            }
+
+            ph.postEnd();
+        }
+    }
+
+    // Builds the dendrogram using the nearest-neighbor chain algorithm. A chain of
+    // nodes is grown, each node being the nearest neighbor of its predecessor, until
+    // the last two nodes are reciprocal nearest neighbors. Those two are merged, the
+    // distances to the merged node are updated with the Lance-Williams formula, and
+    // the chain is resumed from the remainder. For reducible linkages, the remainder 
+    // of the chain stays valid after a merge, so the whole process needs O(n^2) time.
+    //
+    // Since merges are not found in the order of increasing distance, they are 
+    // recorded first, then sorted and replayed into the dendrogram.
+    //
+    private void mergeWithNearestNeighborChain(final NodeDistances nodeDistances, 
+            final ProgressHandler ph) throws IOException {
+
+        final int tupleCount = tuples.getTupleCount();
+        final HierarchicalParams.Linkage linkage = params.getLinkage();
+
+        // Nodes are identified by the smallest tuple index they contain, which 
+        // is the same convention used by Dendrogram.mergeNodes().
+        final ActiveSet active = new ActiveSet(tupleCount);
+        final int[] activeIDs = active.ids();
+        // Weighted, in case the tuples stand for groups of tuples.
+        final int[] sizes = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            sizes[i] = dendrogram.nodeWeight(i);
+        }
+
+        final int mergeCount = tupleCount - 1;
+        final int[] mergeIDs1 = new int[mergeCount];
+        final int[] mergeIDs2 = new int[mergeCount];
+        final double[] mergeDistances = new double[mergeCount];
+
+        final int[] chain = new int[tupleCount];
+        int chainLength = 0;
+
+        // Buffers for rows of distances.
+        final double[] rowDistances = new double[tupleCount];
+        final double[] otherRowDistances = new double[tupleCount];
+        final double[] updatedDistances = new double[tupleCount];
+
+        for (int merge = 0; merge < mergeCount; merge++) {
+
+            while (true) {
+
+                checkForCancel();
+
+                if (chainLength == 0) {
+                    chain[chainLength++] = active.get(0);
+                }
+
+                final int current = chain[chainLength - 1];
+                final int previous = chainLength > 1 ? chain[chainLength - 2] : -1;
+
+                nodeDistances.readRow(current, active, rowDistances);
+
+                // Ties are resolved in favor of the previous node in the chain,
+                // otherwise the chain could cycle.
+                int nearest = previous;
+                double nearestDistance = previous >= 0 ? rowDistances[previous] : Double.MAX_VALUE;
+                final int activeCount = active.size();
+                for (int k = 0; k < activeCount; k++) {
+                    final int i = activeIDs[k];
+                    if (i != current && rowDistances[i] < nearestDistance) {
+                        nearest = i;
+                        nearestDistance = rowDistances[i];
+                    }
+                }
+
+                // Only possible for a lone node whose distances are all NaN or huge.
+                if (nearest < 0) {
+                    finishWithError("problem finding nearest neighbors");
+                }
+
+                if (nearest == previous) {
+                    chainLength -= 2;
+                    mergeIDs1[merge] = Math.min(current, previous);
+                    mergeIDs2[merge] = Math.max(current, previous);
+                    mergeDistances[merge] = nearestDistance;
+                    break;
+                }
+
+                chain[chainLength++] = nearest;
+            }
+
+            final int mergeID = mergeIDs1[merge];
+            final int otherID = mergeIDs2[merge];
+            final int mergeSize = sizes[mergeID];
+            final int otherSize = sizes[otherID];
+
+            nodeDistances.readRow(mergeID, active, rowDistances);
+            nodeDistances.readRow(otherID, active, otherRowDistances);
+
+            active.remove(otherID);
+            sizes[mergeID] = mergeSize + otherSize;
+
+            // Lance-Williams update of the distances to the merged node.
+            final int activeCount = active.size();
+            for (int k = 0; k < activeCount; k++) {
+                final int i = activeIDs[k];
+                if (i != mergeID) {
+                    double d1 = rowDistances[i];
+                    double d2 = otherRowDistances[i];
+                    double d;
+                    switch (linkage) {
+                        case COMPLETE:
+                            d = Math.max(d1, d2);
+                            break;
+                        case SINGLE:
+                            d = Math.min(d1, d2);
+                            break;
+                        case MEAN:
+                            d = (mergeSize * d1 + otherSize * d2) / (mergeSize + otherSize);
+                            break;
+                        default:
+                            finishWithError("unsupported linkage type: " + linkage);
+                            return;
+                    }
+                    updatedDistances[i] = d;
+                }
+            }
+
+            nodeDistances.merge(mergeID, otherID, active, updatedDistances);
+
+            ph.postStep();
+        }
+
+        replayMerges(mergeIDs1, mergeIDs2, mergeDistances);
+    }
+
+    // The distances between the nodes being merged by the nearest-neighbor chain.
+    // Nodes are identified by their smallest tuple index.
+    //
+    interface NodeDistances {
+
+        // Reads the distances from the node identified by index to all active nodes into
+        // distances, so that the distance to node i is found in distances[i]. Entries for
+        // inactive nodes are undefined.
+        void readRow(int index, ActiveSet active, double[] distances) throws IOException;
+
+        // Called after otherID has been merged into mergeID, and marked inactive. The 
+        // distance from the merged node to active node i is in distances[i].
+        void merge(int mergeID, int otherID, ActiveSet active, double[] distances) throws IOException;
+    }
+
+    // NodeDistances backed by a distance cache initialized with the pairwise distances.
+    //
+    private static class CachedNodeDistances implements NodeDistances {
+
+        private final DistanceCache cache;
+        private final int[] rowIndices1;
+        private final int[] rowIndices2;
+        private final double[] rowDistances;
+
+        CachedNodeDistances(DistanceCache cache) {
+            this.cache = cache;
+            final int tupleCount = cache.getNumIndices();
+            rowIndices1 = new int[tupleCount];
+            rowIndices2 = new int[tupleCount];
+            rowDistances = new double[tupleCount];
+        }
+
+        @Override
+        public void readRow(int index, ActiveSet active, double[] distances) throws IOException {
+            StandardHierarchicalClusterer.readRow(cache, index, active, rowIndices1, rowIndices2, distances);
+        }
+
+        @Override
+        public void merge(int mergeID, int otherID, ActiveSet active, double[] distances) 
+                throws IOException {
+            int count = 0;
+            for (int k = 0; k < active.size(); k++) {
+                final int i = active.get(k);
+                if (i != mergeID) {
+                    rowIndices1[count] = mergeID;
+                    rowIndices2[count] = i;
+                    rowDistances[count] = distances[i];
+                    count++;
+                }
+            }
+            if (count > 0) {
+                cache.setDistances(Arrays.copyOf(rowIndices1, count),
+                        Arrays.copyOf(rowIndices2, count),
+                        Arrays.copyOf(rowDistances, count));
+            }
+        }
+    }
+
+    // Reads the distances from the node identified by index to all active nodes into
+    // distances, so that the distance to node i is found in distances[i]. The distances
+    // to nodes with higher indexes are contiguous in the cache, so they are read in one
+    // call even though some of them may no longer be active.
+    //
+    private static void readRow(final DistanceCache cache, final int index, final ActiveSet active,
+            final int[] indices1, final int[] indices2, final double[] distances) throws IOException {
+
+        final int tupleCount = active.capacity();
+
+        int count = 0;
+        for (int k = 0; k < active.size(); k++) {
+            final int i = active.get(k);
+            if (i >= index) {
+                break;
+            }
+            indices1[count] = i;
+            indices2[count] = index;
+            count++;
+        }
+
+        if (count > 0) {
+            double[] lower = cache.getDistances(Arrays.copyOf(indices1, count),
+                    Arrays.copyOf(indices2, count), null);
+            for (int i = 0; i < count; i++) {
+                distances[indices1[i]] = lower[i]; 
+            }
+        }
+
+        final int upperCount = tupleCount - index - 1;
+        if (upperCount > 0) {
+            cache.getDistances(cache.distancePos(index, index + 1), distances, index + 1, upperCount);
+        }
+    }
+
+    // Sorts merges recorded out of order by their distances and applies them to
+    // the dendrogram. The ids recorded for a merge are those of the nodes at the time
+    // the merge was found. Those ids are still members of the nodes when the merges 
+    // are replayed, so a union-find structure maps them onto the current node ids.
+    //
+    private void replayMerges(final int[] mergeIDs1, final int[] mergeIDs2, 
+            final double[] mergeDistances) {
+
+        final int mergeCount = mergeDistances.length;
+
+        Integer[] order = new Integer[mergeCount];
+        for (int i = 0; i < mergeCount; i++) {
+            order[i] = i;
+        }
+        // Arrays.sort() on objects is stable, so a merge is never replayed ahead of
+        // an earlier merge of equal distance that formed one of its nodes.
+        Arrays.sort(order, (i1, i2) -> Double.compare(mergeDistances[i1], mergeDistances[i2]));
+
+        final int leafCount = mergeCount + 1;
+        final int[] parents = new int[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            parents[i] = i;
+        }
+
+        for (int i = 0; i < mergeCount; i++) {
+            final int m = order[i];
+            // The root of each set is always its smallest member, which is the
+            // node id used by the dendrogram.
+            int id1 = findRoot(parents, mergeIDs1[m]);
+            int id2 = findRoot(parents, mergeIDs2[m]);
+            int mergeID = dendrogram.mergeNodes(Math.min(id1, id2), Math.max(id1, id2), mergeDistances[m]);
+            parents[Math.max(id1, id2)] = mergeID;
+        }
+    }
+
+    private static int findRoot(final int[] parents, int id) {
+        int root = id;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        // Compress the path.
+        while (parents[id] != root) {
+            int next = parents[id];
+            parents[id] = root;
+            id = next;
+        }
+        return root;
+    }
+
+    // Computes the minimum spanning tree of the tuples with Prim's algorithm, then 
+    // replays its edges as dendrogram merges. Every tuple not yet in the tree keeps 
+    // the distance to, and the identity of, its closest tuple in the tree. Those tuples
+    // are kept compacted at the front of an array, which is divided among the workers.
+    // In each step, the workers update these values for the tuple last added to the 
+    // tree, and report their closest candidates for the next one.
+    //
+    private class SpanningTreeBuilder {
+
+        private final int tupleCount;
+
+        // Tuples not yet added to the tree, in positions [0 - (remaining - 1)].
+        private final int[] outside;
+        private int remaining;
+
+        // Indexed by position in outside.
+        private final int[] closestInTree;
+        private final double[] closestDistances;
+
+        // The tuple most recently added to the tree and its values.
+        private int lastAdded;
+        private final double[] lastAddedValues;
+
+        private final List<SpanningTreeWorker> workers;
+        private ExecutorService threadPool;
+
+        SpanningTreeBuilder(int numWorkers) {
+            tupleCount = tuples.getTupleCount();
+            outside = new int[tupleCount];
+            closestInTree = new int[tupleCount];
+            closestDistances = new double[tupleCount];
+            lastAddedValues = new double[tuples.getTupleLength()];
+            numWorkers = Math.max(1, Math.min(numWorkers, tupleCount));
+            workers = new ArrayList<>(numWorkers);
+            for (int i = 0; i < numWorkers; i++) {
+                workers.add(new SpanningTreeWorker(i, numWorkers));
+            }
+            if (numWorkers > 1) {
+                threadPool = Executors.newFixedThreadPool(numWorkers);
+            }
+        }
+
+        void shutdown() {
+            if (threadPool != null) {
+                threadPool.shutdownNow();
+            }
+        }
+
+        void build(ProgressHandler ph) throws Exception {
+
+            final int edgeCount = tupleCount - 1;
+            final int[] edgeIDs1 = new int[edgeCount];
+            final int[] edgeIDs2 = new int[edgeCount];
+            final double[] edgeDistances = new double[edgeCount];
+
+            // Start the tree with tuple 0.
+            remaining = tupleCount - 1;
+            for (int i = 0; i < remaining; i++) {
+                outside[i] = i + 1;
+                closestInTree[i] = -1;
+            }
+            Arrays.fill(closestDistances, Double.MAX_VALUE);
+            lastAdded = 0;
+
+            for (int edge = 0; edge < edgeCount; edge++) {
+
+                checkForCancel();
+
+                tuples.getTuple(lastAdded, lastAddedValues);
+
+                if (threadPool != null) {
+                    threadPool.invokeAll(workers);
+                } else {
+                    workers.get(0).call();
+                }
+
+                int nextPos = -1;
+                double nextDistance = Double.MAX_VALUE;
+                for (SpanningTreeWorker worker : workers) {
+                    if (worker.minPos >= 0 && (nextPos < 0 || worker.minDistance < nextDistance)) {
+                        nextPos = worker.minPos;
+                        nextDistance = worker.minDistance;
+                    }
+                }
+
+                lastAdded = outside[nextPos];
+                edgeIDs1[edge] = closestInTree[nextPos];
+                edgeIDs2[edge] = lastAdded;
+                edgeDistances[edge] = nextDistance;
+
+                // Compact by moving the last outside tuple into the vacated position.
+                remaining--;
+                outside[nextPos] = outside[remaining];
+                closestInTree[nextPos] = closestInTree[remaining];
+                closestDistances[nextPos] = closestDistances[remaining];
+
+                ph.postStep();
+            }
+
+            replayMerges(edgeIDs1, edgeIDs2, edgeDistances);
+        }
+
+        private class SpanningTreeWorker implements Callable<Void> {
+
+            private final int workerIndex;
+            private final int workerCount;
+            private final double[] buf;
+            private final DistanceMetric distMetric;
+
+            // Results of the last call.
+            private int minPos;
+            private double minDistance;
+
+            SpanningTreeWorker(int workerIndex, int workerCount) {
+                this.workerIndex = workerIndex;
+                this.workerCount = workerCount;
+                this.buf = new double[tuples.getTupleLength()];
+                this.distMetric = params.getDistanceMetric().clone();
+            }
+
+            @Override
+            public Void call() throws Exception {
+                // The portion handled by this worker shrinks along with the number
+                // of tuples remaining outside the tree.
+                final int start = (int) ((long) remaining * workerIndex / workerCount);
+                final int end = (int) ((long) remaining * (workerIndex + 1) / workerCount);
+                minPos = -1;
+                minDistance = Double.MAX_VALUE;
+                for (int pos = start; pos < end; pos++) {
+                    tuples.getTuple(outside[pos], buf);
+                    double d = distMetric.distance(lastAddedValues, buf);
+                    if (closestInTree[pos] < 0 || d < closestDistances[pos]) {
+                        closestInTree[pos] = lastAdded;
+                        closestDistances[pos] = d;
+                    }
+                    if (minPos < 0 || closestDistances[pos] < minDistance) {
+                        minPos = pos;
+                        minDistance = closestDistances[pos];
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
     private class SubtaskManager {
 
+        // Approximate number of bytes of tuple data in the two row blocks of a
+        // distance tile.
+        static final long TILE_BYTES = 128L * 1024L;
+
 	// Codes for what the workers are currently doing.
         //
         // Nothing currently.
@@ -331,6 +988,29 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
         // Nearest neighbor distances corresponding 1:1 with mNNIndices.
         private double[] nnDistances;
 
+        // The nodes still in contention, the same ones whose nnIndices are >= 0,
+        // so the scans after each merge only visit those.
+        private ActiveSet activeNodes;
+
+        // Min-heap of the nodes in contention keyed on their nearest neighbor
+        // distances, so the closest pair is always on top.
+        private NearestNeighborHeap nnHeap;
+
+        // The nodes whose nearest neighbors must be recomputed after a merge.
+        private int[] rowsToUpdate;
+        private int rowsToUpdateCount;
+
+        // The pairwise distances are initialized in square tiles of rows.
+        // Tile t covers the rows of row block tileRows[t] against those of 
+        // tileColumns[t], which is never less. The workers take the tiles in 
+        // order from nextTile, so the triangular workload balances itself.
+        private int tileSize;
+        private int[] tileRows, tileColumns;
+        private AtomicInteger nextTile;
+
+        // Whether the tiles are read from the cache instead of computed.
+        private boolean distancesPresent;
+
         private int mergeIndex, leftIndex, rightIndex;
         private int leftCount, rightCount;
 
@@ -356,6 +1036,10 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             Arrays.fill(nnIndices, -1); // -1 indicates "not assigned"
             nnDistances = new double[coordCount];
             Arrays.fill(nnDistances, Double.MAX_VALUE);
+            activeNodes = new ActiveSet(coordCount);
+
+            nnHeap = new NearestNeighborHeap(coordCount);
+            rowsToUpdate = new int[coordCount];
 
             this.linkage = params.getLinkage();
 
@@ -368,25 +1052,11 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
                 numWorkers = (int) distanceCount;
             }
 
-            long distancesSoFar = 0L;
-            int coordsSoFar = 0;
-
-            // Create the Updaters.
+            // Create the Updaters. They divide the work by taking turns, so
+            // no ranges have to be apportioned.
             this.workers = new ArrayList<Worker>(numWorkers);
-
-            // Need to apportion the work among the workers.
             for (int i = 0; i < numWorkers; i++) {
-
-                long distancesForThisWorker = Math.round(((double) (distanceCount * (i + 1))) / numWorkers)
-                        - distancesSoFar;
-
-                int coordsForThisWorker = (int) Math.round(((double) coordCount) * (i + 1) / numWorkers) - coordsSoFar;
-
-                this.workers.add(new Worker(distancesSoFar, distancesForThisWorker,
-                        coordsSoFar, coordsForThisWorker));
-
-                distancesSoFar += distancesForThisWorker;
-                coordsSoFar += coordsForThisWorker;
+                this.workers.add(new Worker(i));
             }
 
             if (numWorkers > 1) {
@@ -418,33 +1088,89 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
          * @return - true if a pair is found.
          */
         boolean lookupNearestNeighbors(int[] indices, double[] distance) {
-            boolean found = false;
-            double dmin = Double.MAX_VALUE;
-            int index1 = -1, index2 = -1;
-            int len = nnIndices.length;
-            for (int i = 0; i < len; i++) {
-                int nindex = nnIndices[i];
-                if (nindex >= 0) {
-                    double d = nnDistances[i];
-                    if (d < dmin) {
-                        index1 = i;
-                        index2 = nindex;
-                        dmin = d;
-                        found = true;
-                    }
-                }
-            }
-            if (found) {
+            int index1 = nnHeap.peek();
+            if (index1 >= 0 && nnDistances[index1] < Double.MAX_VALUE) {
+                int index2 = nnIndices[index1];
                 indices[0] = Math.min(index1, index2);
                 indices[1] = Math.max(index1, index2);
-                distance[0] = dmin;
+                distance[0] = nnDistances[index1];
+                return true;
             }
-            return found;
+            return false;
         }
 
         boolean initializeDistances() throws Exception {
+            return initialize(false);
+        }
+
+        // Finds the nearest neighbors of all nodes from distances already
+        // present in the cache.
+        boolean initializeNearestNeighbors() throws Exception {
+            return initialize(true);
+        }
+
+        private boolean initialize(boolean readDistances) throws Exception {
+
+            distancesPresent = readDistances;
+
+            // Size the tiles so that the rows of two row blocks fit comfortably 
+            // in a typical L2 cache.
+            int tupleLength = Math.max(1, tuples.getTupleLength());
+            tileSize = Math.max(16, Math.min(1024, (int) (TILE_BYTES / (16L * tupleLength))));
+
+            int blockCount = (coordCount + tileSize - 1) / tileSize;
+            int tileCount = blockCount * (blockCount + 1) / 2;
+            tileRows = new int[tileCount];
+            tileColumns = new int[tileCount];
+            int t = 0;
+            for (int row = 0; row < blockCount; row++) {
+                for (int column = row; column < blockCount; column++) {
+                    tileRows[t] = row;
+                    tileColumns[t] = column;
+                    t++;
+                }
+            }
+            nextTile = new AtomicInteger();
+
             doing = INITIALIZING_DISTANCES;
-            return work();
+            boolean ok = work();
+
+            // Each worker found the nearest neighbors for the tiles it computed.
+            // Combine them, breaking ties in favor of the lesser index.
+            for (Worker worker : workers) {
+                int[] indices = worker.nnIndicesFound;
+                double[] distances = worker.nnDistancesFound;
+                if (indices != null) {
+                    for (int i = 0; i < coordCount; i++) {
+                        int nnIndex = indices[i];
+                        if (nnIndex >= 0 && (distances[i] < nnDistances[i]
+                                || (distances[i] == nnDistances[i] && nnIndex < nnIndices[i]))) {
+                            nnDistances[i] = distances[i];
+                            nnIndices[i] = nnIndex;
+                        }
+                    }
+                    worker.nnIndicesFound = null;
+                    worker.nnDistancesFound = null;
+                }
+            }
+
+            tileRows = tileColumns = null;
+
+            for (int i = 0; i < coordCount; i++) {
+                updateHeap(i);
+            }
+            return ok;
+        }
+
+        // Places a node into the heap, repositions it, or removes it, depending on
+        // its current nearest neighbor.
+        private void updateHeap(int index) {
+            int nnIndex = nnIndices[index];
+            if (nnIndex >= 0 && nnIndex != index) {
+                nnHeap.update(index, nnDistances[index]);
+            } else {
+                nnHeap.remove(index);
+            }
         }
 
         boolean updateDistances(int mergeID) throws Exception {
@@ -455,8 +1181,8 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             leftIndex = dendrogram.leftChildID(mergeIndex);
             rightIndex = dendrogram.rightChildID(mergeIndex);
 
-            leftCount = dendrogram.nodeSize(leftIndex);
-            rightCount = dendrogram.nodeSize(rightIndex);
+            leftCount = dendrogram.nodeWeight(leftIndex);
+            rightCount = dendrogram.nodeWeight(rightIndex);
 
 			// The usual convention is for the merge index to be the lesser of
             // the left child index and the right child index.  Since the merge index
@@ -468,19 +1194,44 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
                 leftCount -= rightCount;
                 // The other index is no longer in contention.
                 nnIndices[rightIndex] = -1;
+                nnHeap.remove(rightIndex);
+                activeNodes.remove(rightIndex);
             } else {
                 rightCount -= leftCount;
                 // The other index is no longer in contention.
                 nnIndices[leftIndex] = -1;
+                nnHeap.remove(leftIndex);
+                activeNodes.remove(leftIndex);
             }
 
+            // The workers may only iterate over the active nodes once they
+            // are compacted.
+            activeNodes.compact();
+
             doing = UPDATING_DISTANCES;
             return work();
         }
 
         boolean updateNearestNeighbors() throws Exception {
+            // Only the merged node and the nodes whose nearest neighbor was one of 
+            // the merged nodes have to be rescanned. For all the supported linkages, 
+            // the distance to a merged node is never less than the distance to the 
+            // nearer of the two nodes merged, so no other nearest neighbor can change.
+            rowsToUpdateCount = 0;
+            final int activeCount = activeNodes.size();
+            for (int k = 0; k < activeCount; k++) {
+                int i = activeNodes.get(k);
+                int nnIndex = nnIndices[i];
+                if (i == mergeIndex || nnIndex == leftIndex || nnIndex == rightIndex) {
+                    rowsToUpdate[rowsToUpdateCount++] = i;
+                }
+            }
             doing = UPDATING_NEAREST_NEIGHBORS;
-            return work();
+            boolean ok = work();
+            for (int i = 0; i < rowsToUpdateCount; i++) {
+                updateHeap(rowsToUpdate[i]);
+            }
+            return ok;
         }
 
         // Perform the current task -- mDoing should be set to the proper value.
@@ -501,14 +1252,12 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
         //
         private class Worker implements Callable<Void> {
 
-            private int index1Min, index1Max;
-            private int index2Min, index2Max;
+            private int workerIndex;
 
-            private int startTuple;
-            private int tupleCount;
-
-            // Working buffers
-            private double[] buf1, buf2;
+            // The nearest neighbors found by this worker while initializing
+            // the distances.
+            private int[] nnIndicesFound;
+            private double[] nnDistancesFound;
 
 			// The coordinate set -- ref. to same object used by everything
             // else.
@@ -523,27 +1272,11 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             private DistanceMetric distMetric;
 
             // Constructor
-            Worker(long startDistance, long distanceCount,
-                    int startTuple, int tupleCount) {
-
-				// Set the endpoints for the indices. These are the indices
-                // into the distance cache.
-                int[] indices = DistanceCacheFactory.getIndicesForDistance(startDistance, cache);
-                index1Min = indices[0];
-                index2Min = indices[1];
-
-                indices = DistanceCacheFactory.getIndicesForDistance(startDistance
-                        + distanceCount - 1, cache);
+            Worker(int workerIndex) {
 
-                index1Max = indices[0];
-                index2Max = indices[1];
-
-                this.startTuple = startTuple;
-                this.tupleCount = tupleCount;
+                this.workerIndex = workerIndex;
 
                 this.theTuples = tuples;
-                buf1 = new double[theTuples.getTupleCount()];
-                buf2 = new double[buf1.length];
 
                 this.distMetric = params.getDistanceMetric().clone();
             }
@@ -570,65 +1303,82 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
                 if (cache != null) {
 
-                    final int setAtATime = 1024;
-                    int[] indices1 = new int[setAtATime];
-                    int[] indices2 = new int[setAtATime];
-                    double[] distances = new double[setAtATime];
-                    int count = 0;
+                    final int dim = theTuples.getTupleLength();
 
-                    int numIndices = cache.getNumIndices();
+                    nnIndicesFound = new int[coordCount];
+                    Arrays.fill(nnIndicesFound, -1);
+                    nnDistancesFound = new double[coordCount];
+                    Arrays.fill(nnDistancesFound, Double.MAX_VALUE);
 
-                    try {
+                    // The rows of the two row blocks of the current tile. Tiles are
+                    // taken in row-major order, so the row block often stays the same
+                    // and doesn't have to be reloaded.
+                    double[][] rowBlock = new double[tileSize][dim];
+                    double[][] columnBlock = new double[tileSize][dim];
+                    int loadedRow = -1, loadedColumn = -1;
 
-                        for (int i = index1Min; i <= index1Max; i++) {
+                    // One row of a tile, written to the cache as a contiguous run.
+                    double[] distances = new double[tileSize];
 
-                            int jmin = i == index1Min ? index2Min : i + 1;
-                            int jmax = i == index1Max ? index2Max : numIndices - 1;
-
-                            for (int j = jmin; j <= jmax; j++) {
+                    try {
 
-                                indices1[count] = i;
-                                indices2[count] = j;
+                        int t;
+                        while ((t = nextTile.getAndIncrement()) < tileRows.length) {
 
-                                theTuples.getTuple(i, buf1);
-                                theTuples.getTuple(j, buf2);
+                            int rowStart = tileRows[t] * tileSize;
+                            int rowEnd = Math.min(rowStart + tileSize, coordCount);
+                            int columnStart = tileColumns[t] * tileSize;
+                            int columnEnd = Math.min(columnStart + tileSize, coordCount);
 
-                                double distance = distMetric.distance(buf1, buf2);
+                            if (loadedRow != tileRows[t] && !distancesPresent) {
+                                loadBlock(rowStart, rowEnd, rowBlock);
+                                loadedRow = tileRows[t];
+                            }
 
-		            			// These 2 if-blocks initialize the mNNDistances and
-                                // mNNIndices.
-                                if (distance < nnDistances[i]) {
-                                    nnDistances[i] = distance;
-                                    nnIndices[i] = j;
-                                }
-                                if (distance < nnDistances[j]) {
-                                    nnDistances[j] = distance;
-                                    nnIndices[j] = i;
-                                }
+                            double[][] columns = columnBlock;
+                            if (tileColumns[t] == tileRows[t]) {
+                                columns = rowBlock;
+                            } else if (loadedColumn != tileColumns[t] && !distancesPresent) {
+                                loadBlock(columnStart, columnEnd, columnBlock);
+                                loadedColumn = tileColumns[t];
+                            }
 
-                                distances[count++] = distance;
+                            for (int i = rowStart; i < rowEnd; i++) {
 
-                                if (count == setAtATime) {
-                                    cache.setDistances(indices1, indices2, distances);
-                                    count = 0;
-                                }
+                                double[] tuple = rowBlock[i - rowStart];
+                                int jmin = Math.max(columnStart, i + 1);
+                                long pos = jmin < columnEnd && distancesPresent ? cache.distancePos(i, jmin) : 0L;
 
-                                checkForCancel();
+                                for (int j = jmin; j < columnEnd; j++) {
 
-                            } // for (int j...
+                                    double distance = distancesPresent ? cache.getDistance(pos + j - jmin)
+                                            : distMetric.distance(tuple, columns[j - columnStart]);
 
-                        } // for (int i...
+                                    // These 2 if-blocks track the nearest neighbors. Ties 
+                                    // go to the lesser index, since that's what a scan 
+                                    // over all pairs in order would find.
+                                    if (distance < nnDistancesFound[i]
+                                            || (distance == nnDistancesFound[i] && j < nnIndicesFound[i])) {
+                                        nnDistancesFound[i] = distance;
+                                        nnIndicesFound[i] = j;
+                                    }
+                                    if (distance < nnDistancesFound[j]
+                                            || (distance == nnDistancesFound[j] && i < nnIndicesFound[j])) {
+                                        nnDistancesFound[j] = distance;
+                                        nnIndicesFound[j] = i;
+                                    }
 
-                        if (count > 0) {
+                                    distances[j - jmin] = distance;
+                                }
 
-                            if (count < setAtATime) {
-                                indices1 = Arrays.copyOfRange(indices1, 0, count);
-                                indices2 = Arrays.copyOfRange(indices2, 0, count);
-                                distances = Arrays.copyOfRange(distances, 0, count);
+                                if (columnEnd > jmin && !distancesPresent) {
+                                    cache.setRowDistances(i, jmin, distances, 0, columnEnd - jmin);
+                                }
                             }
 
-                            cache.setDistances(indices1, indices2, distances);
-                        }
+                            checkForCancel();
+
+                        } // while ((t = ...
 
                     } catch (IOException ioe) {
 
@@ -647,48 +1397,48 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
                 }
             }
 
+            // Fetches the tuples in [start, end) into the rows of block.
+            private void loadBlock(int start, int end, double[][] block) {
+                for (int i = start; i < end; i++) {
+                    theTuples.getTuple(i, block[i - start]);
+                }
+            }
+
 			// Update nearest neighbors.
             //
             private void workerUpdateNearestNeighbors() {
                 try {
 
-                    int lim = startTuple + tupleCount;
-
-                    for (int i = startTuple; i < lim; i++) {
+                    // The rows to update are dealt out to the workers in turn, since
+                    // they are usually few and may be bunched together.
+                    final int numWorkers = workers.size();
 
-                        int nnIndex = nnIndices[i];
+                    for (int r = workerIndex; r < rowsToUpdateCount; r += numWorkers) {
 
-                        if (nnIndex >= 0) {
-
-                            if (i == mergeIndex || nnIndex == leftIndex || nnIndex == rightIndex) {
-
-                                int newNNIndex = i;
-                                double newNNDistance = Double.MAX_VALUE;
-
-                                int n = nnIndices.length;
-                                for (int j = i + 1; j < n; j++) {
-                                    if (nnIndices[j] >= 0) {
-                                        double d = cache.getDistance(i, j);
-                                        if (d < newNNDistance) {
-                                            newNNIndex = j;
-                                            newNNDistance = d;
-                                        }
-                                    }
-                                }
+                        int i = rowsToUpdate[r];
 
-                                checkForCancel();
+                        int newNNIndex = i;
+                        double newNNDistance = Double.MAX_VALUE;
 
-			                  // The "bug" discussed above will sometimes set a node's
-                                // nearest neighbor id to itself with a nn distance of
-                                // Double.MAX_VALUE.  But it won't cause any harm.
-                                nnIndices[i] = newNNIndex;
-                                nnDistances[i] = newNNDistance;
+                        final int activeCount = activeNodes.size();
+                        for (int k = activeNodes.position(i) + 1; k < activeCount; k++) {
+                            int j = activeNodes.get(k);
+                            double d = cache.getDistance(i, j);
+                            if (d < newNNDistance) {
+                                newNNIndex = j;
+                                newNNDistance = d;
+                            }
+                        }
 
-                            } // if (i == mMergeNodeID ...
+                        checkForCancel();
 
-                        } // if (mNodes[i] != null
+                        // The "bug" discussed above will sometimes set a node's
+                        // nearest neighbor id to itself with a nn distance of
+                        // Double.MAX_VALUE.  But it won't cause any harm.
+                        nnIndices[i] = newNNIndex;
+                        nnDistances[i] = newNNDistance;
 
-                    } // for (int i=mStartNode...
+                    } // for (int r=workerIndex...
 
                 } catch (IOException ioe) {
 
@@ -709,13 +1459,17 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
 
                 try {
 
-                    int lim = startTuple + tupleCount;
+                    // Every numWorkers-th active node, so the shares stay even as
+                    // the nodes in contention dwindle.
+                    final int numWorkers = workers.size();
+                    final int activeCount = activeNodes.size();
 
                     TIntArrayList getList1 = new TIntArrayList();
                     TIntArrayList getList2 = new TIntArrayList();
 
-                    for (int i = startTuple; i < lim; i++) {
-                        if (nnIndices[i] >= 0 && i != mergeIndex) {
+                    for (int k = workerIndex; k < activeCount; k += numWorkers) {
+                        int i = activeNodes.get(k);
+                        if (i != mergeIndex) {
                             getList1.add(i);
                             getList1.add(i);
                             getList2.add(leftIndex);
@@ -791,4 +1545,101 @@ public class StandardHierarchicalClusterer extends AbstractHierarchicalClusterer
             }
         }
     }
+
+    // Indexed binary min-heap of node indexes ordered by their nearest neighbor
+    // distances, with ties going to the lower index. The heap keeps its own copy
+    // of the keys, since several nearest neighbor distances change at once while
+    // the workers rescan and they are only repositioned afterwards.
+    //
+    private static class NearestNeighborHeap {
+
+        private final double[] keys;
+        private final int[] heap;
+        // Position of each index in heap, or -1 if not present.
+        private final int[] positions;
+        private int size;
+
+        NearestNeighborHeap(int capacity) {
+            this.keys = new double[capacity];
+            this.heap = new int[capacity];
+            this.positions = new int[capacity];
+            Arrays.fill(positions, -1);
+        }
+
+        // Returns the index with the smallest key, or -1 if empty.
+        int peek() {
+            return size > 0 ? heap[0] : -1;
+        }
+
+        // Adds the index if absent, otherwise repositions it for its new key.
+        void update(int index, double key) {
+            keys[index] = key;
+            int pos = positions[index];
+            if (pos < 0) {
+                pos = size++;
+                heap[pos] = index;
+                positions[index] = pos;
+            }
+            siftDown(siftUp(pos));
+        }
+
+        void remove(int index) {
+            int pos = positions[index];
+            if (pos >= 0) {
+                positions[index] = -1;
+                size--;
+                if (pos < size) {
+                    int last = heap[size];
+                    heap[pos] = last;
+                    positions[last] = pos;
+                    siftDown(siftUp(pos));
+                }
+            }
+        }
+
+        private boolean less(int index1, int index2) {
+            double k1 = keys[index1];
+            double k2 = keys[index2];
+            return k1 < k2 || (k1 == k2 && index1 < index2);
+        }
+
+        private int siftUp(int pos) {
+            int index = heap[pos];
+            while (pos > 0) {
+                int parentPos = (pos - 1) >>> 1;
+                int parent = heap[parentPos];
+                if (!less(index, parent)) {
+                    break;
+                }
+                heap[pos] = parent;
+                positions[parent] = pos;
+                pos = parentPos;
+            }
+            heap[pos] = index;
+            positions[index] = pos;
+            return pos;
+        }
+
+        private void siftDown(int pos) {
+            int index = heap[pos];
+            while (true) {
+                int childPos = 2 * pos + 1;
+                if (childPos >= size) {
+                    break;
+                }
+                if (childPos + 1 < size && less(heap[childPos + 1], heap[childPos])) {
+                    childPos++;
+                }
+                int child = heap[childPos];
+                if (!less(child, index)) {
+                    break;
+                }
+                heap[pos] = child;
+                positions[child] = pos;
+                pos = childPos;
+            }
+            heap[pos] = index;
+            positions[index] = pos;
+        }
+    }
 }
@@ -1,21 +1,21 @@
 package org.battelle.clodhopper.jarvispatrick;
 
-import gnu.trove.list.array.TIntArrayList;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.battelle.clodhopper.AbstractClusterer;
 import org.battelle.clodhopper.Cluster;
 import org.battelle.clodhopper.task.ProgressHandler;
-import org.battelle.clodhopper.tuple.TupleKDTree;
+import org.battelle.clodhopper.tuple.NearestNeighborGraph;
 import org.battelle.clodhopper.tuple.TupleList;
 import org.battelle.clodhopper.tuple.TupleMath;
 import org.battelle.clodhopper.util.ArrayIntIterator;
+import org.battelle.clodhopper.util.ConcurrentDisjointSet;
 
 /*=====================================================================
  * 
@@ -64,19 +64,48 @@ public class JarvisPatrickClusterer extends AbstractClusterer {
 
   private TupleList tuples;
   private JarvisPatrickParams params;
+  private NearestNeighborGraph nearestNeighborGraph;
 
   /**
    * Constructor.
    * 
    * @param tuples contains the data to cluster.
    * @param params contains the clustering parameters.
+   * @param nearestNeighborGraph if non-null, a graph of the nearest neighbors of 
+   *   the tuples, computed with the same distance metric, having at least as many 
+   *   neighbors per tuple as are to be examined. It is used instead of computing
+   *   the nearest neighbors.
    */
-  public JarvisPatrickClusterer(final TupleList tuples, final JarvisPatrickParams params) {
+  public JarvisPatrickClusterer(final TupleList tuples, final JarvisPatrickParams params,
+      final NearestNeighborGraph nearestNeighborGraph) {
     if (tuples == null || params == null) {
       throw new NullPointerException();
     }
     this.tuples = tuples;
     this.params = params;
+    this.nearestNeighborGraph = nearestNeighborGraph;
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param tuples contains the data to cluster.
+   * @param params contains the clustering parameters.
+   */
+  public JarvisPatrickClusterer(final TupleList tuples, final JarvisPatrickParams params) {
+    this(tuples, params, null);
+  }
+
+  /**
+   * Get the graph of nearest neighbors, either the one supplied to the constructor
+   * or the one computed by a successful run. The latter may be passed to later 
+   * clusterers of the same tuples examining no more nearest neighbors, so that 
+   * they skip the most expensive part of the clustering.
+   * 
+   * @return the graph, or null if none has been computed.
+   */
+  public NearestNeighborGraph getNearestNeighborGraph() {
+    return nearestNeighborGraph;
   }
 
   /**
@@ -118,211 +147,172 @@ public class JarvisPatrickClusterer extends AbstractClusterer {
       nearestNeighborOverlap = nearestNeighborsToExamine;
     }
 
-    boolean mutualNN = params.getMutualNearestNeighbors();
+    if (nearestNeighborGraph != null) {
+      if (nearestNeighborGraph.getTupleCount() != tupleCount) {
+        finishWithError(String.format(
+            "nearest neighbor graph has %d tuples, but there are %d tuples", 
+            nearestNeighborGraph.getTupleCount(), tupleCount));
+      }
+      if (nearestNeighborGraph.getNeighborCount() < nearestNeighborsToExamine) {
+        finishWithError(String.format(
+            "nearest neighbor graph has %d neighbors per tuple, but %d are to be examined", 
+            nearestNeighborGraph.getNeighborCount(), nearestNeighborsToExamine));
+      }
+    }
 
-    // Use this array to keep track of the cluster assignments. -1 means
-    // not assigned yet.
-    int[] clusterAssignments = new int[tupleCount];
-    Arrays.fill(clusterAssignments, -1);
+    boolean mutualNN = params.getMutualNearestNeighbors();
 
     // Most of the time is taken to compute the nearest neighbors. Give this
     // portion 95% of the time with tupleCount steps.
     //
     ph.subsection(0.95, tupleCount);
 
-    // For now, assume we can compute the nearest neighbors of every
-    // tuple once up front. (Might have to revisit this issue for large
-    // numbers of tuples and large numbers for nearestNeighborsToExamine)
-    int[][] nearestNeighbors = computeNearestNeighbors(ph, nearestNeighborsToExamine);
+    // The nearest neighbors of every tuple are computed once up front, unless
+    // a graph of them was supplied.
+    if (nearestNeighborGraph == null) {
+      nearestNeighborGraph = NearestNeighborGraph.build(tuples, params.getDistanceMetric(),
+          nearestNeighborsToExamine, params.getNearestNeighborEpsilon(), false,
+          params.getWorkerThreadCount(), ph);
+    } else {
+      ph.postMessage("using the supplied nearest neighbor graph");
+    }
+    
+    int[][] nearestNeighbors = nearestNeighbors(nearestNeighborGraph, nearestNeighborsToExamine);
 
     // This ends the subsection of progress.
     ph.postEnd();
     
-    List<TIntArrayList> clusterMemberships = new ArrayList<>();
+    // Give the linking of the tuples the remaining 5% of the progress.
+    ph.subsection(0.05, tupleCount);
 
-    // The number of executions of the inner loop.
-    final int remainingSteps = tupleCount * (tupleCount - 1)/2;
+    ConcurrentDisjointSet links = linkTuples(ph, nearestNeighbors, nearestNeighborOverlap, mutualNN);
     
-    // Give this main assignment loop the remaining 5% of the progress.
-    ph.subsection(0.05, remainingSteps);
+    // Finish the linking subsection.
+    ph.postEnd();
     
+    // Number the sets of linked tuples in the order of their smallest members, 
+    // which are their roots. Tuples that didn't have a large enough nn overlap 
+    // with any of the other tuples follow in clusters of their own.
+    int[] roots = new int[tupleCount];
+    int[] setSizes = new int[tupleCount];
     for (int i = 0; i < tupleCount; i++) {
+      roots[i] = links.find(i);
+      setSizes[roots[i]]++;
+    }
 
-      int icluster = clusterAssignments[i];
-
-      int[] inearestNeighbors = nearestNeighbors[i];
-
-      for (int j = i + 1; j < tupleCount; j++) {
-
-        int jcluster = clusterAssignments[j];
-
-        // If they're already both in the same cluster, there's no
-        // reason to test further.
-        //
-        if (icluster < 0 || jcluster < 0 || icluster != jcluster) {
-
-          // j must be one of i's nearest neighbors
-          if (!mutualNN || Arrays.binarySearch(inearestNeighbors, j) >= 0) {
-
-            int[] jnearestNeighbors = nearestNeighbors[j];
-
-            // And i must be one of j's nearest neighbors.
-            if (!mutualNN || Arrays.binarySearch(jnearestNeighbors, i) >= 0) {
-              // If the overlap is large enough, place them in the same cluster.
-              if (overlapAtLeast(inearestNeighbors, jnearestNeighbors,
-                  nearestNeighborOverlap)) {
-                // If they're already assigned to different clusters, merge
-                // them.
-                if (icluster >= 0 && jcluster >= 0) {
-                  icluster = mergeClusters(icluster, jcluster,
-                      clusterMemberships, clusterAssignments);
-                  // Assign to i's cluster
-                } else if (icluster >= 0) {
-                  assignToCluster(j, icluster, clusterMemberships);
-                  clusterAssignments[j] = icluster;
-                  // Assign to j's cluster
-                } else if (jcluster >= 0) {
-                  assignToCluster(i, jcluster, clusterMemberships);
-                  clusterAssignments[i] = jcluster;
-                  icluster = jcluster;
-                  // Assign them both to a new cluster, since neither are in a
-                  // cluster already.
-                } else {
-                  icluster = assignToNextCluster(i, clusterMemberships);
-                  assignToCluster(j, icluster, clusterMemberships);
-                  clusterAssignments[i] = clusterAssignments[j] = icluster;
-                }
-              }
-            }
-          }
-        }
-
-        ph.postStep();
+    int[] clusterAssignments = new int[tupleCount];
+    int clusterCount = 0;
+    for (int i = 0; i < tupleCount; i++) {
+      if (roots[i] == i && setSizes[i] > 1) {
+        clusterAssignments[i] = clusterCount++;
       }
-
     }
-    
-    // Finish the main assignment loop subsection.
-    ph.postEnd();
-    
-    // There still may be unassigned tuples, because they didn't have a large
-    // enough nn overlap
-    // with any of the other tuples. Assign them to their own clusters.
     for (int i = 0; i < tupleCount; i++) {
-      if (clusterAssignments[i] < 0) {
-        clusterAssignments[i] = assignToNextCluster(i, clusterMemberships);
+      if (setSizes[roots[i]] == 1) {
+        clusterAssignments[i] = clusterCount++;
+      } else {
+        clusterAssignments[i] = clusterAssignments[roots[i]];
       }
     }
 
-    List<Cluster> clusters = new ArrayList<>();
-
-    for (TIntArrayList memberList : clusterMemberships) {
-      memberList.trimToSize();
-      if (memberList.size() > 0) {
-        int[] members = memberList.toArray();
-        Arrays.sort(members);
-        double[] center = TupleMath.average(tuples, new ArrayIntIterator(
-            members));
-        clusters.add(new Cluster(members, center));
+    int[][] memberArrays = new int[clusterCount][];
+    for (int i = 0; i < tupleCount; i++) {
+      if (roots[i] == i) {
+        memberArrays[clusterAssignments[i]] = new int[setSizes[i]];
+        setSizes[i] = 0;
       }
     }
+    // Members are added in ascending order.
+    for (int i = 0; i < tupleCount; i++) {
+      memberArrays[clusterAssignments[i]][setSizes[roots[i]]++] = i;
+    }
+
+    List<Cluster> clusters = new ArrayList<>(clusterCount);
+
+    for (int[] members : memberArrays) {
+      double[] center = TupleMath.average(tuples, new ArrayIntIterator(
+          members));
+      clusters.add(new Cluster(members, center));
+    }
 
     ph.postEnd();
 
     return clusters;
   }
 
-  // Assigns index to a new cluster.
+  // Links every pair of tuples whose nearest neighbor lists overlap enough, testing
+  // the pairs concurrently. Only pairs that could overlap are tested: with mutualNN, 
+  // pairs in each other's lists, and otherwise pairs with a neighbor in common, 
+  // found through the lists of the tuples having each tuple as a neighbor. Either
+  // way, the cost is about tupleCount*K^2 rather than tupleCount^2.
   //
-  private int assignToNextCluster(int index, List<TIntArrayList> clusterMemberships) {
-    int nextCluster = clusterMemberships.size();
-    TIntArrayList memberList = new TIntArrayList();
-    memberList.add(index);
-    clusterMemberships.add(memberList);
-    return nextCluster;
-  }
-
-  // Assigns index to an existing cluster.
-  //
-  private void assignToCluster(int index, int cluster,
-      List<TIntArrayList> clusterMemberships) {
-    clusterMemberships.get(cluster).add(index);
-  }
+  private ConcurrentDisjointSet linkTuples(ProgressHandler ph, int[][] nearestNeighbors,
+      int nearestNeighborOverlap, boolean mutualNN) throws Exception {
 
-  // Merge the clusters identified by index1 and index2. The merge cluster
-  // is the one with the smaller index.
-  //
-  private int mergeClusters(int index1, int index2,
-      List<TIntArrayList> clusterMemberships, int[] clusterAssignments) {
-    int newIndex = Math.min(index1, index2);
-    int oldIndex = Math.max(index1, index2);
-    if (newIndex != oldIndex) {
-      TIntArrayList list1 = clusterMemberships.get(newIndex);
-      TIntArrayList list2 = clusterMemberships.get(oldIndex);
-      list1.addAll(list2);
-      int sz = list2.size();
-      for (int i = 0; i < sz; i++) {
-        clusterAssignments[list2.get(i)] = newIndex;
+    final int tupleCount = nearestNeighbors.length;
+    
+    int[] referrerStarts = null;
+    int[] referrers = null;
+    
+    if (!mutualNN) {
+      // The tuples having each tuple as a neighbor, in ascending order.
+      referrerStarts = new int[tupleCount + 1];
+      for (int i = 0; i < tupleCount; i++) {
+        for (int nn : nearestNeighbors[i]) {
+          referrerStarts[nn + 1]++;
+        }
+      }
+      for (int i = 0; i < tupleCount; i++) {
+        referrerStarts[i + 1] += referrerStarts[i];
+      }
+      referrers = new int[referrerStarts[tupleCount]];
+      int[] positions = Arrays.copyOf(referrerStarts, tupleCount);
+      for (int i = 0; i < tupleCount; i++) {
+        for (int nn : nearestNeighbors[i]) {
+          referrers[positions[nn]++] = i;
+        }
       }
-      list2.clear();
     }
-    return newIndex;
-  }
-
-  // Computes the nearest neighbors. This method comprises the bulk of
-  // the work.
-  //
-  private int[][] computeNearestNeighbors(ProgressHandler ph,
-      int nearestNeighborsToExamine) throws Exception {
-
-    final int tupleCount = tuples.getTupleCount();
-    int[][] nearestNeighbors = new int[tupleCount][];
-
-    // A KD-Tree provides an efficient way of quickly looking up nearest
-    // neighbors. Even for tuple lists with millions of members, this call
-    // typically takes under a second.
-    TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, params.getDistanceMetric());
-    
-    // Compute the nearest neighbors concurrently.
-    final int workerCount = params.getWorkerThreadCount();
-    List<NearestNeighborWorker> workers = new ArrayList<> (workerCount);
     
-    int perWorker = tupleCount/workerCount;
-    // If workerCount isn't evenly divisible into tupleCount, some of the workers
-    // will have 1 more than the rest.
-    int leftOver = tupleCount - (workerCount * perWorker);
+    ConcurrentDisjointSet links = new ConcurrentDisjointSet(tupleCount);
     
-    // Instantiate the workers.
-    int startTuple = 0;
-    for (int i=0; i<workerCount; i++) {
-      int endTuple = startTuple + perWorker;
-      if (i < leftOver) {
-        endTuple++;
-      }
-      workers.add(new NearestNeighborWorker(startTuple, endTuple, 
-          nearestNeighborsToExamine, kdTree, nearestNeighbors, ph));
-      startTuple = endTuple;
+    final int workerCount = Math.max(1, Math.min(params.getWorkerThreadCount(), tupleCount));
+    List<LinkWorker> workers = new ArrayList<>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(new LinkWorker(i, workerCount, nearestNeighbors, nearestNeighborOverlap, 
+          referrerStarts, referrers, links, ph));
     }
     
-    // If more than one worker, execute with a thread pool.
     if (workerCount > 1) {
-        ExecutorService threadPool = null;
-        try {
-          threadPool = Executors.newFixedThreadPool(workerCount);
-          // This will block. However, canceling will cause execution
-          // to stop when the workers post progress.
-          threadPool.invokeAll(workers);
-        } finally {
-          // Be sure to gracefully shutdown the thread pool.
-          if (threadPool != null) {
-            threadPool.shutdown();
-          }
+      ExecutorService threadPool = null;
+      try {
+        threadPool = Executors.newFixedThreadPool(workerCount);
+        for (Future<Void> future : threadPool.invokeAll(workers)) {
+          future.get();
+        }
+      } finally {
+        if (threadPool != null) {
+          threadPool.shutdown();
         }
-    } else {      
-      // Only 1 worker, just call directly.
-        workers.get(0).call();
+      }
+    } else {
+      workers.get(0).call();
     }
     
+    return links;
+  }
+
+  // Gets the nearest neighbors of every tuple from the graph, sorted by tuple
+  // index rather than by distance for the overlap tests.
+  //
+  private int[][] nearestNeighbors(NearestNeighborGraph graph, int nearestNeighborsToExamine) {
+    final int tupleCount = graph.getTupleCount();
+    int[][] nearestNeighbors = new int[tupleCount][];
+    for (int i = 0; i < tupleCount; i++) {
+      int[] nn = graph.getNeighbors(i, nearestNeighborsToExamine, null);
+      Arrays.sort(nn);
+      nearestNeighbors[i] = nn;
+    }
     return nearestNeighbors;
   }
 
@@ -357,36 +347,66 @@ public class JarvisPatrickClusterer extends AbstractClusterer {
     return false;
   }
   
-  // Simple worker class to compute nearest neighbors by calling 
-  // a method of the KD-Tree.
+  // Tests the pairs of tuples for every workerCount-th tuple, starting with the one at 
+  // workerIndex. Only pairs with the other tuple greater are tested, so each pair is 
+  // tested once.
   //
-  private class NearestNeighborWorker implements Callable<Void> {
+  private class LinkWorker implements Callable<Void> {
 
-    private final int startTuple;
-    private final int endTuple;
-    private final int nnCount;
-    private final TupleKDTree tupleKDTree;
+    private final int workerIndex;
+    private final int workerCount;
     private final int[][] nnArray;
+    private final int minOverlap;
+    private final int[] referrerStarts;
+    private final int[] referrers;
+    private final ConcurrentDisjointSet links;
     private final ProgressHandler ph;
     
-    private NearestNeighborWorker(int startTuple, int endTuple, int nnCount, 
-        TupleKDTree tupleKDTree, int[][] nnArray, ProgressHandler ph) {
-      this.startTuple = startTuple;
-      this.endTuple = endTuple;
-      this.nnCount = nnCount;
-      this.tupleKDTree = tupleKDTree;
+    private LinkWorker(int workerIndex, int workerCount, int[][] nnArray, int minOverlap,
+        int[] referrerStarts, int[] referrers, ConcurrentDisjointSet links, ProgressHandler ph) {
+      this.workerIndex = workerIndex;
+      this.workerCount = workerCount;
       this.nnArray = nnArray;
+      this.minOverlap = minOverlap;
+      this.referrerStarts = referrerStarts;
+      this.referrers = referrers;
+      this.links = links;
       this.ph = ph;
     }
     
     @Override
     public Void call() throws Exception {
-      for (int i=startTuple; i<endTuple; i++) {
-        int[] nn = tupleKDTree.nearest(i, nnCount);
-        // Must remember of sort them. They come back from the kd-tree sorted by distance, 
-        // not by tuple index.
-        Arrays.sort(nn);
-        nnArray[i] = nn;
+      final int tupleCount = nnArray.length;
+      // Marks the tuples already tested against i, if not testing mutual neighbors.
+      int[] testedWith = null;
+      if (referrers != null) {
+        testedWith = new int[tupleCount];
+        Arrays.fill(testedWith, -1);
+      }
+      for (int i = workerIndex; i < tupleCount; i += workerCount) {
+        int[] inearestNeighbors = nnArray[i];
+        if (referrers == null) {
+          for (int j : inearestNeighbors) {
+            // And i must be one of j's nearest neighbors.
+            if (j > i && Arrays.binarySearch(nnArray[j], i) >= 0) {
+              link(i, j);
+            }
+          }
+        } else {
+          for (int nn : inearestNeighbors) {
+            for (int r = referrerStarts[nn + 1] - 1; r >= referrerStarts[nn]; r--) {
+              int j = referrers[r];
+              // The referrers are in ascending order.
+              if (j <= i) {
+                break;
+              }
+              if (testedWith[j] != i) {
+                testedWith[j] = i;
+                link(i, j);
+              }
+            }
+          }
+        }
         synchronized (ph) {
           ph.postStep();
         }
@@ -394,5 +414,12 @@ public class JarvisPatrickClusterer extends AbstractClusterer {
       return null;
     }
     
+    private void link(int i, int j) {
+      // If they're already both in the same cluster, there's no
+      // reason to test further.
+      if (!links.sameSet(i, j) && overlapAtLeast(nnArray[i], nnArray[j], minOverlap)) {
+        links.union(i, j);
+      }
+    }
   }
 }
@@ -51,6 +51,8 @@ public class JarvisPatrickParams {
   // Whether or not tuples must be in each other's nn list
     // in order to be assigned to the same cluster.
     private boolean mutualNearestNeighbors;
+    // The allowed relative error of the distances to the nearest neighbors.
+    private double nearestNeighborEpsilon;
     // The distance metric to use for finding nearest neighbors.
     private DistanceMetric distanceMetric;
     // The number of threads to use for the concurrent parts.
@@ -131,6 +133,33 @@ public class JarvisPatrickParams {
         mutualNearestNeighbors = b;
     }
 
+    /**
+     * Get the allowed relative error of the distances to the nearest neighbors.
+     *
+     * @return the allowed error, 0 if the neighbors are exact.
+     */
+    public double getNearestNeighborEpsilon() {
+        return nearestNeighborEpsilon;
+    }
+
+    /**
+     * Set the allowed relative error of the distances to the nearest neighbors.
+     * If greater than 0, the nearest neighbors of a tuple are found approximately,
+     * each being at most <code>1 + epsilon</code> times as far as the true one.
+     * Tuples with many dimensions defeat exact searches of a kd-tree, and since
+     * the clusters only depend on the overlap of the neighbor lists, an epsilon
+     * of 1 or so usually changes little while speeding the searches up many
+     * times. The default is 0.
+     *
+     * @param epsilon the allowed error.
+     */
+    public void setNearestNeighborEpsilon(final double epsilon) {
+        if (!(epsilon >= 0.0)) {
+            throw new IllegalArgumentException("must be >= 0: " + epsilon);
+        }
+        this.nearestNeighborEpsilon = epsilon;
+    }
+
     /**
      * Get the distance metric.
      *
@@ -204,6 +233,11 @@ public class JarvisPatrickParams {
             return this;
         }
 
+        public Builder nearestNeighborEpsilon(double epsilon) {
+            params.setNearestNeighborEpsilon(epsilon);
+            return this;
+        }
+
         public Builder workerThreadCount(int n) {
             params.setWorkerThreadCount(n);
             return this;
@@ -1,7 +1,12 @@
 package org.battelle.clodhopper.tuple;
 
-import java.io.*;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.battelle.clodhopper.util.ChannelIO;
 
 /*=====================================================================
  * 
@@ -138,29 +143,17 @@ public class ArrayTupleList extends AbstractTupleList {
      * @throws IOException if an I/O error occurs.
      */
     public static ArrayTupleList loadFromFile(final File f) throws IOException {
-        ArrayTupleList tuples = null;
-        DataInputStream in = null;
-        try {
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
-            int tupleLength = in.readInt();
-            int tupleCount = in.readInt();
-            tuples = new ArrayTupleList(tupleLength, tupleCount);
-            double[] buffer = new double[tupleLength];
-            for (int i = 0; i < tupleCount; i++) {
-                for (int j = 0; j < tupleLength; j++) {
-                    buffer[j] = in.readDouble();
-                }
-                tuples.setTuple(i, buffer);
-            }
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ioe) {
-                }
-            }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+            buffer.limit(8);
+            ChannelIO.readFully(channel, buffer);
+            buffer.flip();
+            int tupleLength = buffer.getInt();
+            int tupleCount = buffer.getInt();
+            double[] values = new double[tupleLength * tupleCount];
+            ChannelIO.readDoubles(channel, buffer, values, 0, values.length);
+            return new ArrayTupleList(tupleLength, tupleCount, values);
         }
-        return tuples;
     }
 
     /**
@@ -175,23 +168,28 @@ public class ArrayTupleList extends AbstractTupleList {
     public static void saveToFile(final TupleList tuples, final File f) throws IOException {
         final int tupleLength = tuples.getTupleLength();
         final int tupleCount = tuples.getTupleCount();
-        DataOutputStream out = null;
-        try {
-            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-            double[] buffer = new double[tupleLength];
-            out.writeInt(tupleLength);
-            out.writeInt(tupleCount);
-            for (int i = 0; i < tupleCount; i++) {
-                tuples.getTuple(i, buffer);
-                for (int j = 0; j < tupleLength; j++) {
-                    out.writeDouble(buffer[j]);
-                }
-            }
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ioe) {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+            buffer.putInt(tupleLength);
+            buffer.putInt(tupleCount);
+            buffer.flip();
+            ChannelIO.writeFully(channel, buffer);
+            if (tuples instanceof ArrayTupleList) {
+                ChannelIO.writeDoubles(channel, buffer, ((ArrayTupleList) tuples).values,
+                        0, tupleLength * tupleCount);
+            } else if (tupleLength > 0) {
+                // Gather as many whole tuples as fit in the buffer before each write.
+                final int tuplesPerBlock = Math.max(1, ChannelIO.BUFFER_SIZE / (8 * tupleLength));
+                double[] block = new double[tuplesPerBlock * tupleLength];
+                double[] tuple = new double[tupleLength];
+                for (int i = 0; i < tupleCount; i += tuplesPerBlock) {
+                    int n = Math.min(tuplesPerBlock, tupleCount - i);
+                    for (int j = 0; j < n; j++) {
+                        tuples.getTuple(i + j, tuple);
+                        System.arraycopy(tuple, 0, block, j * tupleLength, tupleLength);
+                    }
+                    ChannelIO.writeDoubles(channel, buffer, block, 0, n * tupleLength);
                 }
             }
         }
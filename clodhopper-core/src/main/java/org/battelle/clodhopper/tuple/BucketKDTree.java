@@ -0,0 +1,1146 @@
+package org.battelle.clodhopper.tuple;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.task.ProgressHandler;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * BucketKDTree.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A kd-tree whose leaves hold buckets of tuples rather than one tuple per node,
+ * built for searching large numbers of tuples quickly. The coordinates of the
+ * tuples are copied into a single array, permuted so that the tuples of every
+ * leaf are contiguous, so a search scans memory in order instead of fetching
+ * every tuple from the <code>TupleList</code>. Every node keeps the bounding box
+ * of its tuples, which bounds the distance to them more tightly than the 
+ * splitting planes do.
+ * </p>
+ * <p>
+ * The tree is built by recursively splitting the tuples at the median of the
+ * dimension in which their bounding box is widest, found by selection in
+ * expected linear time. The two halves of a split are built concurrently in 
+ * a <code>ForkJoinPool</code>. Unlike <code>TupleKDTree</code>, tuples cannot
+ * be added once the tree is built.
+ * </p>
+ * <p>
+ * Searches may be made concurrently by any number of threads. Like those of
+ * <code>TupleKDTree</code>, they are exact for metrics whose distances grow with
+ * the differences of the coordinates, such as the Euclidean, Manhattan and
+ * Chebyshev metrics, and return neighbors in order of distance, resolving ties 
+ * in favor of the lower index. <code>VantagePointTree</code> serves other metrics.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class BucketKDTree implements NeighborSearchTree {
+
+    /**
+     * The default greatest number of tuples in a leaf.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 32;
+
+    // Subtrees of fewer tuples than this are built by a single thread.
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    private final TupleList tuples;
+    private final DistanceMetric distanceMetric;
+    private final int metricKind;
+    private final int dim;
+    private final int tupleCount;
+    private final int leafSize;
+
+    // The coordinates of the tuples, dim values per tuple, permuted so that the 
+    // tuples of every leaf are contiguous. ids[p] is the index of the tuple at
+    // position p.
+    private final double[] coords;
+    private final int[] ids;
+
+    // The nodes in preorder, so the left child of node n is n + 1. The tuples of
+    // node n are at positions [starts[n] - ends[n]), rights[n] is its right
+    // child or -1 for a leaf, and its bounding box is the dim minimums and then
+    // the dim maximums starting at boxes[2*dim*n].
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] rights;
+    private final double[] boxes;
+
+    // Buffers for the searches, one set per thread.
+    private final ThreadLocal<QueryScratch> scratch = ThreadLocal.withInitial(QueryScratch::new);
+
+    /**
+     * Constructor which builds the tree with leaves of at most 
+     * <code>DEFAULT_LEAF_SIZE</code> tuples, using a thread for every available 
+     * processor.
+     * 
+     * @param tuples the <code>TupleList</code> which contains the data source for the kd-tree.
+     * @param distanceMetric the <code>DistanceMetric</code> to use.
+     */
+    public BucketKDTree(final TupleList tuples, final DistanceMetric distanceMetric) {
+        this(tuples, distanceMetric, DEFAULT_LEAF_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor which builds the tree.
+     * 
+     * @param tuples the <code>TupleList</code> which contains the data source for the kd-tree.
+     * @param distanceMetric the <code>DistanceMetric</code> to use.
+     * @param leafSize the greatest number of tuples in a leaf.
+     * @param workerThreadCount the number of threads building the tree.
+     * 
+     * @throws IllegalArgumentException if leafSize or workerThreadCount is less than 1,
+     *   or there are too many coordinates to hold in an array.
+     */
+    public BucketKDTree(final TupleList tuples, final DistanceMetric distanceMetric,
+            final int leafSize, final int workerThreadCount) {
+        if (tuples == null || distanceMetric == null) {
+            throw new NullPointerException();
+        }
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("leaf size must be greater than 0");
+        }
+        if (workerThreadCount < 1) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+
+        this.tuples = tuples;
+        this.distanceMetric = distanceMetric;
+        this.metricKind = TupleKDTree.metricKind(distanceMetric);
+        this.dim = tuples.getTupleLength();
+        this.tupleCount = tuples.getTupleCount();
+        this.leafSize = leafSize;
+
+        final int nodeCount = tupleCount > 0 ? (int) (2L * leafCount(tupleCount, leafSize) - 1L) : 0;
+        final long coordCount = (long) tupleCount * dim;
+        final long boxCount = 2L * nodeCount * dim;
+        if (Math.max(coordCount, boxCount) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many coordinates for an array: " 
+                    + Math.max(coordCount, boxCount));
+        }
+
+        coords = new double[(int) coordCount];
+        ids = new int[tupleCount];
+        starts = new int[nodeCount];
+        ends = new int[nodeCount];
+        rights = new int[nodeCount];
+        boxes = new double[(int) boxCount];
+
+        if (nodeCount > 0) {
+            ForkJoinPool pool = workerThreadCount > 1 ? new ForkJoinPool(workerThreadCount) : null;
+            try {
+                CopyTask copyTask = new CopyTask(0, tupleCount);
+                BuildTask buildTask = new BuildTask(0, 0, tupleCount);
+                if (pool != null) {
+                    pool.invoke(copyTask);
+                    pool.invoke(buildTask);
+                } else {
+                    copyTask.compute();
+                    buildTask.compute();
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of leaves of a tree over count tuples, which is split at
+     * the middle until no more than leafSize tuples remain. The pieces at any depth 
+     * of the splitting differ in size by at most 1, so this is found without 
+     * visiting the nodes.
+     */
+    static long leafCount(final int count, final int leafSize) {
+        if (count <= leafSize) {
+            return 1L;
+        }
+        // Find the deepest level with a piece that is split.
+        int depth = 0;
+        while (true) {
+            final int d = depth + 1;
+            final int q = count >> d;
+            final int largest = count - (q << d) > 0 ? q + 1 : q;
+            if (largest <= leafSize) {
+                break;
+            }
+            depth++;
+        }
+        // At that level, the pieces have q or q + 1 tuples, r of them q + 1.
+        final int q = count >> depth;
+        final int r = count - (q << depth);
+        // Either all are split, or only those of q + 1 tuples.
+        return q > leafSize ? (2L << depth) : (1L << depth) + r;
+    }
+
+    /**
+     * Get the tuple list for the kd-tree.
+     * 
+     * @return an instance of <code>TupleList</code>. 
+     */
+    public TupleList getTupleList() {
+        return tuples;
+    }
+
+    /**
+     * Get the distance metric.
+     * 
+     * @return an instance of <code>DistanceMetric</code>. 
+     */
+    public DistanceMetric getDistanceMetric() {
+        return distanceMetric;
+    }
+
+    /**
+     * Get the number of dimensions.
+     * @return the number of dimensions.
+     */
+    public int getDimensions() {
+        return dim;
+    }
+
+    /**
+     * Get the number of tuples in the kd-tree, which is all of those in the tuple list.
+     * 
+     * @return the number of tuples.
+     */
+    public int getTupleCount() {
+        return tupleCount;
+    }
+
+    /**
+     * Get the greatest number of tuples in a leaf.
+     * 
+     * @return the leaf size.
+     */
+    public int getLeafSize() {
+        return leafSize;
+    }
+
+    /**
+     * Finds the nearest neighbor of the tuple with the specified index, other than
+     * the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * 
+     * @return the index of the nearest neighbor or -1 if there is no other tuple.
+     */
+    public int nearestNeighbor(final int ndx) {
+        if (tupleCount < 2) {
+            checkNdx(ndx);
+            return -1;
+        }
+        return nearest(ndx, 1)[0];
+    }
+
+    /**
+     * Finds the tuple that is closest to the specified coordinate.
+     * 
+     * @param coords array containing the coordinate value. Its length should be equal
+     *   to the dimensionality of the tuples.
+     * 
+     * @return the index of the nearest tuple or -1 if the tree is empty. 
+     */
+    public int nearest(final double[] coords) {
+        if (tupleCount == 0) {
+            return -1;
+        }
+        return nearest(coords, 1)[0];
+    }
+
+    /**
+     * Finds the nearest neighbors of the tuple with the specified index, not 
+     * including the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples.
+     */
+    public int[] nearest(final int ndx, final int num) {
+        return nearest(ndx, num, 0.0);
+    }
+
+    /**
+     * Finds approximate nearest neighbors of the tuple with the specified index, 
+     * not including the tuple itself. A box is skipped if the tuples in it could 
+     * not be nearer by a factor of <code>1 + epsilon</code> than the 
+     * <code>num</code>-th neighbor found so far, so the i-th neighbor returned is at
+     * most <code>1 + epsilon</code> times as far as the true i-th nearest neighbor.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors found in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final int ndx, final int num, final double epsilon) {
+        checkNdx(ndx);
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount - 1) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, tuples.getTuple(ndx, q.query), num, ndx, 1.0 + epsilon);
+    }
+
+    /**
+     * Search for nearest neighbors of a specified coordinate.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples.
+     */
+    public int[] nearest(final double[] coords, final int num) {
+        return nearest(coords, num, 0.0);
+    }
+
+    /**
+     * Search for approximate nearest neighbors of a specified coordinate, as
+     * <code>nearest(int, int, double)</code> does for a tuple.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     found in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final double[] coords, final int num, final double epsilon) {
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, coords, num, -1, 1.0 + epsilon);
+    }
+
+    private int[] nearest(final QueryScratch q, final double[] target, final int num,
+            final int ndxToExclude, final double errorFactor) {
+        int[] result = new int[num];
+        if (num > 0) {
+            q.heap.clear();
+            searchNearest(0, target, num, ndxToExclude, errorFactor, q);
+            q.heap.drain(result, null, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Search for tuples close to another tuple.
+     * 
+     * @param ndx the index of the search tuple.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of other tuples within the 
+     *     specified distance of the search tuple, in order of distance.
+     */
+    public int[] closeTo(final int ndx, final double maxDistance) {
+        checkNdx(ndx);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, tuples.getTuple(ndx, q.query), maxDistance, ndx);
+    }
+
+    /**
+     * Search for tuples close to a coordinate.
+     * 
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of tuples within the 
+     *     specified distance of the coordinate, in order of distance.
+     */
+    public int[] closeTo(final double[] coords, final double maxDistance) {
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, coords, maxDistance, -1);
+    }
+
+    private int[] closeTo(final QueryScratch q, final double[] target, final double maxDistance,
+            final int ndxToExclude) {
+        q.heap.clear();
+        if (tupleCount > 0) {
+            searchCloseTo(0, target, maxDistance, ndxToExclude, q);
+        }
+        int[] result = new int[q.heap.size()];
+        q.heap.drain(result, null, 0);
+        return result;
+    }
+
+    /**
+     * Finds the nearest neighbors of every tuple, as a matrix of
+     * <code>getTupleCount()</code> rows of <code>num</code> tuple indexes. Row i
+     * holds the nearest neighbors of tuple i, other than itself, in order of
+     * distance, as <code>nearest(i, num)</code> would return them.
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param workerThreadCount the number of threads searching.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, or the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements.
+     */
+    public int[] allNearest(final int num, final int workerThreadCount) {
+        return allNearest(num, null, workerThreadCount, null);
+    }
+
+    /**
+     * Finds the nearest neighbors of every tuple, as a matrix of
+     * <code>getTupleCount()</code> rows of <code>num</code> tuple indexes. Row i
+     * holds the nearest neighbors of tuple i, other than itself, in order of
+     * distance, as <code>nearest(i, num)</code> would return them.
+     * <p>
+     * For the Euclidean, Manhattan and Chebyshev metrics, the tree is searched
+     * for whole leaves of tuples at once, by a dual-tree traversal pairing the
+     * nodes of the tree as a tree of queries with the nodes of the tree as a
+     * tree of references. A pair is pruned when the distance between the
+     * bounding boxes of its nodes is no less than the greatest distance to the
+     * <code>num</code>-th neighbor found so far for any of the queries. Once the
+     * queries are down to a leaf, each searches the references left to it on its
+     * own, with the same bound the leaf would have had to its first neighbors.
+     * Separate subtrees of queries are searched concurrently. Other metrics bound no
+     * distances between boxes, so every tuple is searched for separately.
+     * </p>
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param distances if non-null, an array of at least <code>getTupleCount()*num</code>
+     *   elements which receives the distances to the neighbors in the same order.
+     * @param workerThreadCount the number of threads searching.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, or the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements.
+     * @throws java.util.concurrent.CancellationException if the task of ph is canceled.
+     */
+    public int[] allNearest(final int num, final double[] distances, final int workerThreadCount,
+            final ProgressHandler ph) {
+        return allNearest(num, 0.0, distances, workerThreadCount, ph);
+    }
+
+    /**
+     * Finds approximate nearest neighbors of every tuple, as 
+     * <code>allNearest(int, double[], int, ProgressHandler)</code> does exact ones. 
+     * A pair of nodes is pruned if the tuples of the references could not be nearer 
+     * by a factor of <code>1 + epsilon</code> than the bound of the queries, so the 
+     * i-th neighbor of a tuple is at most <code>1 + epsilon</code> times as far as 
+     * its true i-th nearest neighbor, as <code>nearest(i, num, epsilon)</code> 
+     * would guarantee.
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @param distances if non-null, an array of at least <code>getTupleCount()*num</code>
+     *   elements which receives the distances to the neighbors in the same order.
+     * @param workerThreadCount the number of threads searching.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements, or <code>epsilon</code> is negative.
+     * @throws java.util.concurrent.CancellationException if the task of ph is canceled.
+     */
+    public int[] allNearest(final int num, final double epsilon, final double[] distances, 
+            final int workerThreadCount, final ProgressHandler ph) {
+
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > Math.max(0, tupleCount - 1)) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        if (workerThreadCount < 1) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+        final long length = (long) tupleCount * num;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many neighbors for an array: " + length);
+        }
+        if (distances != null && distances.length < length) {
+            throw new IllegalArgumentException("distances array too short: " + distances.length);
+        }
+
+        final int[] neighbors = new int[(int) length];
+        if (length == 0) {
+            return neighbors;
+        }
+
+        AllNearestSearch search = new AllNearestSearch(num, 1.0 + epsilon, neighbors,
+                distances != null ? distances : new double[(int) length], ph);
+
+        ForkJoinPool pool = workerThreadCount > 1 ? new ForkJoinPool(workerThreadCount) : null;
+        try {
+            AllNearestSearch.AllNearestTask task = search.new AllNearestTask(0);
+            if (pool != null) {
+                pool.invoke(task);
+            } else {
+                task.compute();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return neighbors;
+    }
+
+    private void checkNdx(final int ndx) {
+        if (ndx < 0 || ndx >= tupleCount) {
+            throw new IndexOutOfBoundsException("tuple index not in [0 - "
+                    + (tupleCount - 1) + "]: " + ndx);
+        }
+    }
+
+    // Searches the subtree of node for the num nearest neighbors of target, keeping
+    // them in the heap of q. The child with the nearer box is searched first.
+    //
+    private void searchNearest(final int node, final double[] target, final int num, 
+            final int ndxToExclude, final double errorFactor, final QueryScratch q) {
+        final int right = rights[node];
+        if (right < 0) {
+            for (int p = starts[node]; p < ends[node]; p++) {
+                final int id = ids[p];
+                if (id != ndxToExclude) {
+                    q.heap.offer(id, rowDistance(p, target, q), num);
+                }
+            }
+        } else {
+            final int left = node + 1;
+            final double leftDistance = boxDistance(left, target, q);
+            final double rightDistance = boxDistance(right, target, q);
+            final boolean leftNearer = leftDistance <= rightDistance;
+            final int near = leftNearer ? left : right;
+            final int far = leftNearer ? right : left;
+            final double nearDistance = leftNearer ? leftDistance : rightDistance;
+            final double farDistance = leftNearer ? rightDistance : leftDistance;
+            if (q.heap.size() < num || errorFactor * nearDistance < q.heap.topDistance()) {
+                searchNearest(near, target, num, ndxToExclude, errorFactor, q);
+            }
+            if (q.heap.size() < num || errorFactor * farDistance < q.heap.topDistance()) {
+                searchNearest(far, target, num, ndxToExclude, errorFactor, q);
+            }
+        }
+    }
+
+    // Searches the subtree of node for the tuples within maxDistance of target, 
+    // keeping them in the heap of q.
+    //
+    private void searchCloseTo(final int node, final double[] target, final double maxDistance,
+            final int ndxToExclude, final QueryScratch q) {
+        final int right = rights[node];
+        if (right < 0) {
+            for (int p = starts[node]; p < ends[node]; p++) {
+                final int id = ids[p];
+                if (id != ndxToExclude) {
+                    final double d = rowDistance(p, target, q);
+                    if (d <= maxDistance) {
+                        q.heap.push(id, d);
+                    }
+                }
+            }
+        } else {
+            if (boxDistance(node + 1, target, q) <= maxDistance) {
+                searchCloseTo(node + 1, target, maxDistance, ndxToExclude, q);
+            }
+            if (boxDistance(right, target, q) <= maxDistance) {
+                searchCloseTo(right, target, maxDistance, ndxToExclude, q);
+            }
+        }
+    }
+
+    // The distance from the tuple at position p to target. The known metrics are
+    // computed in place, in the same order as the metrics compute them.
+    //
+    private double rowDistance(final int p, final double[] target, final QueryScratch q) {
+        final int base = p * dim;
+        switch (metricKind) {
+        case TupleKDTree.EUCLIDEAN: {
+            double d2 = 0;
+            for (int i = 0; i < dim; i++) {
+                double d = coords[base + i] - target[i];
+                d2 += d * d;
+            }
+            return Math.sqrt(d2);
+        }
+        case TupleKDTree.MANHATTAN: {
+            double d = 0;
+            for (int i = 0; i < dim; i++) {
+                d += Math.abs(coords[base + i] - target[i]);
+            }
+            return d;
+        }
+        case TupleKDTree.CHEBYSHEV: {
+            double dist = 0.0;
+            for (int i = 0; i < dim; i++) {
+                double diff = Math.abs(coords[base + i] - target[i]);
+                if (diff > dist) {
+                    dist = diff;
+                }
+            }
+            return dist;
+        }
+        default:
+            System.arraycopy(coords, base, q.row, 0, dim);
+            return distanceMetric.distance(q.row, target);
+        }
+    }
+
+    // A lower bound on the distance from target to the tuples of a node, the 
+    // distance to its bounding box.
+    //
+    private double boxDistance(final int node, final double[] target, final QueryScratch q) {
+        final int base = 2 * dim * node;
+        double d = 0.0;
+        for (int i = 0; i < dim; i++) {
+            final double x = target[i];
+            final double min = boxes[base + i];
+            final double max = boxes[base + dim + i];
+            final double diff = x < min ? min - x : (x > max ? x - max : 0.0);
+            switch (metricKind) {
+            case TupleKDTree.EUCLIDEAN:
+                d += diff * diff;
+                break;
+            case TupleKDTree.MANHATTAN:
+                d += diff;
+                break;
+            case TupleKDTree.CHEBYSHEV:
+                if (diff > d) {
+                    d = diff;
+                }
+                break;
+            default:
+                q.row[i] = x < min ? min : (x > max ? max : x);
+            }
+        }
+        switch (metricKind) {
+        case TupleKDTree.EUCLIDEAN:
+            return Math.sqrt(d);
+        case TupleKDTree.MANHATTAN:
+        case TupleKDTree.CHEBYSHEV:
+            return d;
+        default:
+            return distanceMetric.distance(q.row, target);
+        }
+    }
+
+    // The distance between the tuples at positions p1 and p2, for the metrics
+    // computed in place.
+    //
+    private double positionDistance(final int p1, final int p2) {
+        final int base1 = p1 * dim;
+        final int base2 = p2 * dim;
+        switch (metricKind) {
+        case TupleKDTree.EUCLIDEAN: {
+            double d2 = 0;
+            for (int i = 0; i < dim; i++) {
+                double d = coords[base1 + i] - coords[base2 + i];
+                d2 += d * d;
+            }
+            return Math.sqrt(d2);
+        }
+        case TupleKDTree.MANHATTAN: {
+            double d = 0;
+            for (int i = 0; i < dim; i++) {
+                d += Math.abs(coords[base1 + i] - coords[base2 + i]);
+            }
+            return d;
+        }
+        default: {
+            double dist = 0.0;
+            for (int i = 0; i < dim; i++) {
+                double diff = Math.abs(coords[base1 + i] - coords[base2 + i]);
+                if (diff > dist) {
+                    dist = diff;
+                }
+            }
+            return dist;
+        }
+        }
+    }
+
+    // The distance between the bounding boxes of two nodes, a lower bound on the
+    // distance between their tuples for the metrics computed in place. The distance
+    // from the tuple at position p to the box of a node if p >= 0 and node1 < 0.
+    //
+    private double gapDistance(final int node1, final int p, final int node2) {
+        final int base2 = 2 * dim * node2;
+        final int base1 = node1 >= 0 ? 2 * dim * node1 : -1;
+        final int row = p * dim;
+        double d = 0.0;
+        for (int i = 0; i < dim; i++) {
+            final double min1 = base1 >= 0 ? boxes[base1 + i] : coords[row + i];
+            final double max1 = base1 >= 0 ? boxes[base1 + dim + i] : min1;
+            final double min2 = boxes[base2 + i];
+            final double max2 = boxes[base2 + dim + i];
+            final double gap = max1 < min2 ? min2 - max1 : (max2 < min1 ? min1 - max2 : 0.0);
+            switch (metricKind) {
+            case TupleKDTree.EUCLIDEAN:
+                d += gap * gap;
+                break;
+            case TupleKDTree.MANHATTAN:
+                d += gap;
+                break;
+            default:
+                if (gap > d) {
+                    d = gap;
+                }
+            }
+        }
+        return metricKind == TupleKDTree.EUCLIDEAN ? Math.sqrt(d) : d;
+    }
+
+    // The distance between opposite corners of the bounding box of a node, for the
+    // metrics computed in place.
+    //
+    private double boxWidth(final int node) {
+        final int base = 2 * dim * node;
+        double d = 0.0;
+        for (int i = 0; i < dim; i++) {
+            final double width = boxes[base + dim + i] - boxes[base + i];
+            switch (metricKind) {
+            case TupleKDTree.EUCLIDEAN:
+                d += width * width;
+                break;
+            case TupleKDTree.MANHATTAN:
+                d += width;
+                break;
+            default:
+                if (width > d) {
+                    d = width;
+                }
+            }
+        }
+        return metricKind == TupleKDTree.EUCLIDEAN ? Math.sqrt(d) : d;
+    }
+
+    // Sets the bounding box of a node from its tuples and returns the dimension
+    // in which it is widest.
+    //
+    private int computeBox(final int node, final int start, final int end) {
+        final int base = 2 * dim * node;
+        Arrays.fill(boxes, base, base + dim, Double.POSITIVE_INFINITY);
+        Arrays.fill(boxes, base + dim, base + 2 * dim, Double.NEGATIVE_INFINITY);
+        for (int p = start; p < end; p++) {
+            final int row = p * dim;
+            for (int i = 0; i < dim; i++) {
+                final double v = coords[row + i];
+                if (v < boxes[base + i]) {
+                    boxes[base + i] = v;
+                }
+                if (v > boxes[base + dim + i]) {
+                    boxes[base + dim + i] = v;
+                }
+            }
+        }
+        int widest = 0;
+        double maxWidth = -1.0;
+        for (int i = 0; i < dim; i++) {
+            final double width = boxes[base + dim + i] - boxes[base + i];
+            if (width > maxWidth) {
+                maxWidth = width;
+                widest = i;
+            }
+        }
+        return widest;
+    }
+
+    // Rearranges the tuples at positions [start - end) so that the one at k has
+    // the value in dimension s it would have if they were sorted by that value,
+    // with none greater before it and none less after it. This is Hoare's
+    // selection, taking expected linear time.
+    //
+    private void select(final int start, final int end, final int k, final int s) {
+        int lo = start;
+        int hi = end - 1;
+        while (hi > lo) {
+            final double pivot = medianOf3(coords[lo * dim + s], 
+                    coords[((lo + hi) >>> 1) * dim + s], coords[hi * dim + s]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coords[i * dim + s] < pivot) {
+                    i++;
+                }
+                while (coords[j * dim + s] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // Now those at [lo - j] are no greater than the pivot, those at 
+            // [i - hi] no less, and any between equal to it.
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double medianOf3(final double a, final double b, final double c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private void swap(final int p1, final int p2) {
+        if (p1 != p2) {
+            final int row1 = p1 * dim;
+            final int row2 = p2 * dim;
+            for (int i = 0; i < dim; i++) {
+                final double v = coords[row1 + i];
+                coords[row1 + i] = coords[row2 + i];
+                coords[row2 + i] = v;
+            }
+            final int id = ids[p1];
+            ids[p1] = ids[p2];
+            ids[p2] = id;
+        }
+    }
+
+    /**
+     * Copies the coordinates of the tuples in [start - end) into the array, 
+     * splitting the range between threads.
+     */
+    private class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        private CopyTask(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > PARALLEL_THRESHOLD) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new CopyTask(start, mid), new CopyTask(mid, end));
+            } else {
+                double[] buf = new double[dim];
+                for (int i = start; i < end; i++) {
+                    tuples.getTuple(i, buf);
+                    System.arraycopy(buf, 0, coords, i * dim, dim);
+                    ids[i] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree of a node over the tuples at positions [start - end),
+     * building the subtrees of large nodes concurrently.
+     */
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final int start;
+        private final int end;
+
+        private BuildTask(final int node, final int start, final int end) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            starts[node] = start;
+            ends[node] = end;
+            final int s = computeBox(node, start, end);
+            if (end - start <= leafSize) {
+                rights[node] = -1;
+                return;
+            }
+            final int mid = (start + end) >>> 1;
+            select(start, end, mid, s);
+            // The left subtree has 2*leafCount - 1 nodes, which precede the right child.
+            final int right = node + (int) (2L * leafCount(mid - start, leafSize));
+            rights[node] = right;
+            BuildTask leftTask = new BuildTask(node + 1, start, mid);
+            BuildTask rightTask = new BuildTask(right, mid, end);
+            if (end - start > PARALLEL_THRESHOLD && getPool() != null) {
+                invokeAll(leftTask, rightTask);
+            } else {
+                leftTask.compute();
+                rightTask.compute();
+            }
+        }
+    }
+
+    /**
+     * The state of a search for the nearest neighbors of every tuple. The rows of
+     * the neighbor and distance matrices are heaps while the search is in progress,
+     * of rowSizes[i] entries for tuple i. bounds[n] bounds the distance to the num-th
+     * neighbor of every tuple of node n, and leastBounds[n] is the least such distance
+     * for any of them, both infinity until the tuples have num neighbors. A task for a
+     * subtree of queries only touches the rows and bounds of that subtree, so subtrees
+     * are searched concurrently.
+     */
+    private class AllNearestSearch {
+
+        // The references are only split when they outnumber the queries by this
+        // ratio. The queries of a leaf then search the remaining references one at
+        // a time, since box-to-box gaps grow too loose to prune with in more than a
+        // few dimensions.
+        private static final int REFERENCE_SPLIT_RATIO = 64;
+
+        private final int num;
+        // The pruning distances are multiplied by this, 1 for an exact search.
+        private final double errorFactor;
+        private final int[] neighbors;
+        private final double[] distances;
+        private final int[] rowSizes;
+        private final double[] bounds;
+        private final double[] leastBounds;
+        private final ProgressHandler ph;
+
+        private AllNearestSearch(final int num, final double errorFactor, final int[] neighbors, 
+                final double[] distances, final ProgressHandler ph) {
+            this.num = num;
+            this.errorFactor = errorFactor;
+            this.neighbors = neighbors;
+            this.distances = distances;
+            this.rowSizes = new int[tupleCount];
+            this.bounds = new double[starts.length];
+            this.leastBounds = new double[starts.length];
+            Arrays.fill(bounds, Double.POSITIVE_INFINITY);
+            Arrays.fill(leastBounds, Double.POSITIVE_INFINITY);
+            this.ph = ph;
+        }
+
+        // Searches the references of rNode for neighbors of the queries of qNode.
+        private void search(final int qNode, final int rNode) {
+
+            if (bounds[qNode] <= errorFactor * gapDistance(qNode, -1, rNode)) {
+                return;
+            }
+
+            final boolean qLeaf = rights[qNode] < 0;
+            final boolean rLeaf = rights[rNode] < 0;
+
+            if (qLeaf) {
+                searchLeaf(qNode, rNode);
+            } else if (rLeaf || REFERENCE_SPLIT_RATIO * (ends[qNode] - starts[qNode])
+                    >= ends[rNode] - starts[rNode]) {
+                final int qLeft = qNode + 1;
+                final int qRight = rights[qNode];
+                search(qLeft, rNode);
+                search(qRight, rNode);
+                updateBounds(qNode);
+            } else {
+                // The nearer child of the references first, to tighten the bounds sooner.
+                int near = rNode + 1;
+                int far = rights[rNode];
+                if (gapDistance(qNode, -1, far) < gapDistance(qNode, -1, near)) {
+                    near = far;
+                    far = rNode + 1;
+                }
+                search(qNode, near);
+                search(qNode, far);
+            }
+        }
+
+        // Sets the bounds of a node from those of its children. By the triangle
+        // inequality, no tuple of the node is farther from its num-th neighbor than
+        // the least bound plus the width of the node's box.
+        //
+        private void updateBounds(final int qNode) {
+            final int qLeft = qNode + 1;
+            final int qRight = rights[qNode];
+            leastBounds[qNode] = Math.min(leastBounds[qLeft], leastBounds[qRight]);
+            bounds[qNode] = Math.min(Math.max(bounds[qLeft], bounds[qRight]),
+                    leastBounds[qNode] + boxWidth(qNode));
+        }
+
+        // Searches the references of rNode for neighbors of the queries of a leaf.
+        // The pair has passed the bound of the leaf, so the queries continue down the
+        // references separately, each pruning with its own bound.
+        //
+        private void searchLeaf(final int qNode, final int rNode) {
+            double bound = 0.0;
+            double leastBound = Double.POSITIVE_INFINITY;
+            for (int p = starts[qNode]; p < ends[qNode]; p++) {
+                final int id = ids[p];
+                final int offset = id * num;
+                final int size = searchFrom(p, id, offset, rowSizes[id], rNode,
+                        gapDistance(-1, p, rNode));
+                rowSizes[id] = size;
+                final double b = size < num ? Double.POSITIVE_INFINITY : distances[offset];
+                if (b > bound) {
+                    bound = b;
+                }
+                if (b < leastBound) {
+                    leastBound = b;
+                }
+            }
+            leastBounds[qNode] = leastBound;
+            bounds[qNode] = Math.min(bound, leastBound + boxWidth(qNode));
+        }
+
+        // Searches the references of rNode, which are at least gap from the tuple at
+        // position p, for neighbors of the tuple, whose heap at offset has size entries,
+        // and returns the new size.
+        //
+        private int searchFrom(final int p, final int id, final int offset, int size,
+                final int rNode, final double gap) {
+            if (size == num && errorFactor * gap >= distances[offset]) {
+                return size;
+            }
+            final int right = rights[rNode];
+            if (right < 0) {
+                for (int r = starts[rNode]; r < ends[rNode]; r++) {
+                    final int rid = ids[r];
+                    if (rid != id) {
+                        size = NeighborHeap.offer(neighbors, distances, offset, size, num,
+                                rid, positionDistance(p, r));
+                    }
+                }
+                return size;
+            }
+            final double leftGap = gapDistance(-1, p, rNode + 1);
+            final double rightGap = gapDistance(-1, p, right);
+            if (rightGap < leftGap) {
+                size = searchFrom(p, id, offset, size, right, rightGap);
+                return searchFrom(p, id, offset, size, rNode + 1, leftGap);
+            }
+            size = searchFrom(p, id, offset, size, rNode + 1, leftGap);
+            return searchFrom(p, id, offset, size, right, rightGap);
+        }
+
+        /**
+         * Searches for the neighbors of the queries of a subtree, splitting large
+         * subtrees between threads.
+         */
+        private class AllNearestTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int qNode;
+
+            private AllNearestTask(final int qNode) {
+                this.qNode = qNode;
+            }
+
+            @Override
+            protected void compute() {
+                final int qRight = rights[qNode];
+                if (qRight >= 0 && ends[qNode] - starts[qNode] > PARALLEL_THRESHOLD && getPool() != null) {
+                    invokeAll(new AllNearestTask(qNode + 1), new AllNearestTask(qRight));
+                    updateBounds(qNode);
+                    return;
+                }
+                if (metricKind == TupleKDTree.GENERIC) {
+                    QueryScratch q = scratch.get();
+                    q.ensureDimensions(dim);
+                    for (int p = starts[qNode]; p < ends[qNode]; p++) {
+                        final int id = ids[p];
+                        q.heap.clear();
+                        System.arraycopy(coords, p * dim, q.query, 0, dim);
+                        searchNearest(0, q.query, num, id, errorFactor, q);
+                        q.heap.drain(neighbors, distances, id * num);
+                    }
+                } else {
+                    search(qNode, 0);
+                    for (int p = starts[qNode]; p < ends[qNode]; p++) {
+                        NeighborHeap.sort(neighbors, distances, ids[p] * num, num);
+                    }
+                }
+                if (ph != null) {
+                    synchronized (ph) {
+                        ph.postSteps(ends[qNode] - starts[qNode]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers reused by the searches of one thread, so that a search allocates
+     * nothing but its result.
+     */
+    private static class QueryScratch {
+
+        // The coordinates of a search tuple.
+        private double[] query;
+        // The coordinates of a tuple, or the closest point of a box.
+        private double[] row;
+
+        private final NeighborHeap heap = new NeighborHeap();
+
+        private void ensureDimensions(int dim) {
+            if (query == null || query.length != dim) {
+                query = new double[dim];
+                row = new double[dim];
+            }
+        }
+    }
+}
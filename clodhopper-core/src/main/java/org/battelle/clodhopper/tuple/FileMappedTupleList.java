@@ -1,16 +1,16 @@
 package org.battelle.clodhopper.tuple;
 
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import org.apache.log4j.Logger;
+import org.battelle.clodhopper.util.ChannelIO;
 
 /*=====================================================================
  * 
@@ -66,12 +66,29 @@ public class FileMappedTupleList extends AbstractTupleList {
      * @throws IOException if an IO error occurs.
      */
     protected FileMappedTupleList(final File file, final int tupleLength, final int tupleCount) throws IOException {
+        this(file, tupleLength, tupleCount, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the file in which to store distances.
+     * @param tupleLength the tuple length.
+     * @param tupleCount the tuple count.
+     * @param sparse if true, the file is extended to its full length without
+     *   writing the zeros, so that on file systems supporting sparse files, no
+     *   space is allocated until the tuples are set.
+     *
+     * @throws IOException if an IO error occurs.
+     */
+    protected FileMappedTupleList(final File file, final int tupleLength, final int tupleCount,
+            final boolean sparse) throws IOException {
         super(tupleLength, tupleCount);
         if (file == null) {
             throw new NullPointerException();
         }
         this.file = file;
-        initEmptyFile();
+        initEmptyFile(sparse);
         open();
     }
 
@@ -105,6 +122,23 @@ public class FileMappedTupleList extends AbstractTupleList {
         return new FileMappedTupleList(file, tupleLength, tupleCount);
     }
 
+    /**
+     * Factory method that creates a new <code>TupleList</code> backed by the
+     * specified file, optionally as a sparse file. The contents of the file are
+     * the same either way, since unwritten regions of a sparse file read as zeros.
+     *
+     * @param file the file for storing the data.
+     * @param tupleLength the tuple length.
+     * @param tupleCount the tuple count.
+     * @param sparse if true, zeros are not written to the file.
+     * @return an instance of <code>FileMappedTupleList</code>.
+     * @throws IOException if an IO problem occurs.
+     */
+    public static FileMappedTupleList createNew(final File file, final int tupleLength, final int tupleCount,
+            final boolean sparse) throws IOException {
+        return new FileMappedTupleList(file, tupleLength, tupleCount, sparse);
+    }
+
     /**
      * Factory method that opens a <code>TupleList</code> backed by an existing
      * data file.
@@ -154,24 +188,25 @@ public class FileMappedTupleList extends AbstractTupleList {
         return false;
     }
 
-    private void initEmptyFile() throws IOException {
-        DataOutputStream out = null;
-        try {
-            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
-            out.writeInt(this.tupleLength);
-            out.writeInt(this.tupleCount);
-            for (int i = 0; i < this.tupleCount; i++) {
-                for (int j = 0; j < this.tupleLength; j++) {
-                    out.writeDouble(0.0);
-                }
-            }
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    logger.error("error closing output stream", e);
+    private void initEmptyFile(final boolean sparse) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+            buffer.putInt(this.tupleLength);
+            buffer.putInt(this.tupleCount);
+            buffer.flip();
+            ChannelIO.writeFully(channel, buffer);
+            long dataLength = 8L * this.tupleLength * this.tupleCount;
+            if (sparse) {
+                // Writing the last byte extends the file, leaving a hole before it.
+                if (dataLength > 0L) {
+                    buffer.clear();
+                    buffer.put((byte) 0);
+                    buffer.flip();
+                    channel.write(buffer, 8L + dataLength - 1L);
                 }
+            } else {
+                ChannelIO.writeZeros(channel, buffer, dataLength);
             }
         }
     }
@@ -0,0 +1,433 @@
+package org.battelle.clodhopper.tuple;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.task.ProgressHandler;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * LinearNeighborSearch.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A <code>NeighborSearchTree</code> which compares every search with every 
+ * tuple. It takes time proportional to the number of tuples for every search,
+ * but is exact for any distance measure, including those which satisfy 
+ * neither the bounds of <code>BucketKDTree</code> nor the triangle inequality
+ * <code>VantagePointTree</code> relies on, such as the Tanimoto distance of 
+ * real-valued tuples.
+ * </p>
+ * <p>
+ * Searches may be made concurrently by any number of threads, and return 
+ * neighbors in order of distance, resolving ties in favor of the lower index.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class LinearNeighborSearch implements NeighborSearchTree {
+
+    // The tuples searched for by allNearest() are split between threads in ranges
+    // of this many.
+    private static final int SEARCH_CHUNK = 1 << 8;
+
+    private final TupleList tuples;
+    private final DistanceMetric distanceMetric;
+    private final int dim;
+    private final int tupleCount;
+
+    // Buffers for the searches, one set per thread.
+    private final ThreadLocal<QueryScratch> scratch = ThreadLocal.withInitial(QueryScratch::new);
+
+    /**
+     * Constructor.
+     * 
+     * @param tuples the <code>TupleList</code> to search.
+     * @param distanceMetric the <code>DistanceMetric</code> to use.
+     */
+    public LinearNeighborSearch(final TupleList tuples, final DistanceMetric distanceMetric) {
+        if (tuples == null || distanceMetric == null) {
+            throw new NullPointerException();
+        }
+        this.tuples = tuples;
+        this.distanceMetric = distanceMetric;
+        this.dim = tuples.getTupleLength();
+        this.tupleCount = tuples.getTupleCount();
+    }
+
+    /**
+     * Get the tuple list searched.
+     * 
+     * @return an instance of <code>TupleList</code>. 
+     */
+    public TupleList getTupleList() {
+        return tuples;
+    }
+
+    /**
+     * Get the distance metric.
+     * 
+     * @return an instance of <code>DistanceMetric</code>. 
+     */
+    public DistanceMetric getDistanceMetric() {
+        return distanceMetric;
+    }
+
+    /**
+     * Get the number of tuples searched, which is all of those in the tuple list.
+     * 
+     * @return the number of tuples.
+     */
+    public int getTupleCount() {
+        return tupleCount;
+    }
+
+    /**
+     * Finds the nearest neighbor of the tuple with the specified index, other than
+     * the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * 
+     * @return the index of the nearest neighbor or -1 if there is no other tuple.
+     */
+    public int nearestNeighbor(final int ndx) {
+        if (tupleCount < 2) {
+            checkNdx(ndx);
+            return -1;
+        }
+        return nearest(ndx, 1)[0];
+    }
+
+    /**
+     * Finds the tuple that is closest to the specified coordinate.
+     * 
+     * @param coords array containing the coordinate value.
+     * 
+     * @return the index of the nearest tuple or -1 if there are no tuples. 
+     */
+    public int nearest(final double[] coords) {
+        if (tupleCount == 0) {
+            return -1;
+        }
+        return nearest(coords, 1)[0];
+    }
+
+    /**
+     * Finds the nearest neighbors of the tuple with the specified index, not 
+     * including the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples.
+     */
+    public int[] nearest(final int ndx, final int num) {
+        return nearest(ndx, num, 0.0);
+    }
+
+    /**
+     * Finds the nearest neighbors of the tuple with the specified index, as
+     * <code>nearest(int, int)</code> does. Every tuple is compared anyway, so 
+     * the search is exact whatever the allowed error.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * @param epsilon the allowed relative error, which is checked but not needed.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final int ndx, final int num, final double epsilon) {
+        checkNdx(ndx);
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount - 1) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, tuples.getTuple(ndx, q.query), num, ndx);
+    }
+
+    /**
+     * Search for nearest neighbors of a specified coordinate.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples.
+     */
+    public int[] nearest(final double[] coords, final int num) {
+        return nearest(coords, num, 0.0);
+    }
+
+    /**
+     * Search for nearest neighbors of a specified coordinate, as 
+     * <code>nearest(double[], int)</code> does, the search being exact whatever
+     * the allowed error.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @param epsilon the allowed relative error, which is checked but not needed.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final double[] coords, final int num, final double epsilon) {
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, coords, num, -1);
+    }
+
+    private int[] nearest(final QueryScratch q, final double[] target, final int num,
+            final int ndxToExclude) {
+        int[] result = new int[num];
+        if (num > 0) {
+            q.heap.clear();
+            searchNearest(target, num, ndxToExclude, q);
+            q.heap.drain(result, null, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Search for tuples close to another tuple.
+     * 
+     * @param ndx the index of the search tuple.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of other tuples within the 
+     *     specified distance of the search tuple, in order of distance.
+     */
+    public int[] closeTo(final int ndx, final double maxDistance) {
+        checkNdx(ndx);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, tuples.getTuple(ndx, q.query), maxDistance, ndx);
+    }
+
+    /**
+     * Search for tuples close to a coordinate.
+     * 
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of tuples within the 
+     *     specified distance of the coordinate, in order of distance.
+     */
+    public int[] closeTo(final double[] coords, final double maxDistance) {
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, coords, maxDistance, -1);
+    }
+
+    private int[] closeTo(final QueryScratch q, final double[] target, final double maxDistance,
+            final int ndxToExclude) {
+        q.heap.clear();
+        for (int i = 0; i < tupleCount; i++) {
+            if (i != ndxToExclude) {
+                final double d = distanceMetric.distance(tuples.getTuple(i, q.row), target);
+                if (d <= maxDistance) {
+                    q.heap.push(i, d);
+                }
+            }
+        }
+        int[] result = new int[q.heap.size()];
+        q.heap.drain(result, null, 0);
+        return result;
+    }
+
+    /**
+     * Finds the nearest neighbors of every tuple, as a matrix of
+     * <code>getTupleCount()</code> rows of <code>num</code> tuple indexes. Row i
+     * holds the nearest neighbors of tuple i, other than itself, in order of 
+     * distance, as <code>nearest(i, num)</code> would return them. Ranges of the 
+     * tuples are searched for by separate threads.
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param epsilon the allowed relative error, which is checked but not needed.
+     * @param distances if non-null, an array of at least <code>getTupleCount()*num</code>
+     *   elements which receives the distances to the neighbors in the same order.
+     * @param workerThreadCount the number of threads searching.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements, or <code>epsilon</code> is negative.
+     * @throws java.util.concurrent.CancellationException if the task of ph is canceled.
+     */
+    public int[] allNearest(final int num, final double epsilon, final double[] distances, 
+            final int workerThreadCount, final ProgressHandler ph) {
+
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > Math.max(0, tupleCount - 1)) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        if (workerThreadCount < 1) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+        final long length = (long) tupleCount * num;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many neighbors for an array: " + length);
+        }
+        if (distances != null && distances.length < length) {
+            throw new IllegalArgumentException("distances array too short: " + distances.length);
+        }
+
+        final int[] neighbors = new int[(int) length];
+        if (length == 0) {
+            return neighbors;
+        }
+
+        ForkJoinPool pool = workerThreadCount > 1 ? new ForkJoinPool(workerThreadCount) : null;
+        try {
+            AllNearestTask task = new AllNearestTask(0, tupleCount, num, neighbors, distances, ph);
+            if (pool != null) {
+                pool.invoke(task);
+            } else {
+                task.compute();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return neighbors;
+    }
+
+    private void checkNdx(final int ndx) {
+        if (ndx < 0 || ndx >= tupleCount) {
+            throw new IndexOutOfBoundsException("tuple index not in [0 - "
+                    + (tupleCount - 1) + "]: " + ndx);
+        }
+    }
+
+    // Compares target with every tuple, keeping the num nearest in the heap of q.
+    private void searchNearest(final double[] target, final int num, final int ndxToExclude,
+            final QueryScratch q) {
+        for (int i = 0; i < tupleCount; i++) {
+            if (i != ndxToExclude) {
+                q.heap.offer(i, distanceMetric.distance(tuples.getTuple(i, q.row), target), num);
+            }
+        }
+    }
+
+    /**
+     * Searches for the neighbors of the tuples [start - end), splitting large 
+     * ranges between threads.
+     */
+    private class AllNearestTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final int num;
+        private final int[] neighbors;
+        private final double[] distances;
+        private final ProgressHandler ph;
+
+        private AllNearestTask(final int start, final int end, final int num, 
+                final int[] neighbors, final double[] distances, final ProgressHandler ph) {
+            this.start = start;
+            this.end = end;
+            this.num = num;
+            this.neighbors = neighbors;
+            this.distances = distances;
+            this.ph = ph;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > SEARCH_CHUNK && getPool() != null) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new AllNearestTask(start, mid, num, neighbors, distances, ph),
+                        new AllNearestTask(mid, end, num, neighbors, distances, ph));
+                return;
+            }
+            QueryScratch q = scratch.get();
+            q.ensureDimensions(dim);
+            for (int i = start; i < end; i++) {
+                tuples.getTuple(i, q.query);
+                q.heap.clear();
+                searchNearest(q.query, num, i, q);
+                q.heap.drain(neighbors, distances, i * num);
+            }
+            if (ph != null) {
+                synchronized (ph) {
+                    ph.postSteps(end - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers reused by the searches of one thread, so that a search allocates
+     * nothing but its result.
+     */
+    private static class QueryScratch {
+
+        // The coordinates of a search tuple.
+        private double[] query;
+        // The coordinates of a tuple compared with it.
+        private double[] row;
+
+        private final NeighborHeap heap = new NeighborHeap();
+
+        private void ensureDimensions(int dim) {
+            if (query == null || query.length != dim) {
+                query = new double[dim];
+                row = new double[dim];
+            }
+        }
+    }
+}
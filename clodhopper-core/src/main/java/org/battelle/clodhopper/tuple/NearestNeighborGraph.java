@@ -0,0 +1,564 @@
+package org.battelle.clodhopper.tuple;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.task.ProgressHandler;
+import org.battelle.clodhopper.util.ChannelIO;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * NearestNeighborGraph.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A <tt>NearestNeighborGraph</tt> holds the k nearest neighbors of every tuple
+ * of a <code>TupleList</code>, and optionally the distances to them, in flat
+ * matrices of <code>getTupleCount()</code> rows of <code>getNeighborCount()</code>
+ * values. The neighbors in every row are in order of increasing distance, so
+ * the first k' of them are the k' nearest neighbors for any k' &lt;= k. A graph
+ * built once may therefore serve every clustering that needs no more neighbors
+ * than it has, such as a sweep over the parameters of Jarvis-Patrick clustering.
+ * </p>
+ * <p>
+ * A graph may be written with <code>save()</code> to a binary file, which
+ * <code>open()</code> maps into memory rather than reading, so that reloading
+ * a graph takes no time however large it is. A graph opened this way is
+ * read-only, which it is anyway, since it has no methods for modification.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class NearestNeighborGraph {
+
+    // Identifies files written by save(), followed by the version of the format.
+    private static final int FILE_MAGIC = 0x4b4e4e47;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 32;
+
+    // Bits of the flags in the file header.
+    private static final int FLAG_DISTANCES = 1;
+
+    // No buffer, in memory or mapped, spans more bytes than this.
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    // The longest matrix held in an array while the graph is built.
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int tupleCount;
+    private final int neighborCount;
+
+    // The rows of the matrices are split into chunks of rowsPerChunk rows, since a
+    // single buffer cannot hold more than Integer.MAX_VALUE values, or be mapped
+    // from more than Integer.MAX_VALUE bytes. distanceChunks is null if the
+    // distances were not kept.
+    private final int rowsPerChunk;
+    private final IntBuffer[] neighborChunks;
+    private final DoubleBuffer[] distanceChunks;
+
+    private NearestNeighborGraph(int tupleCount, int neighborCount, IntBuffer[] neighborChunks,
+            DoubleBuffer[] distanceChunks) {
+        this.tupleCount = tupleCount;
+        this.neighborCount = neighborCount;
+        this.rowsPerChunk = rowsPerChunk(neighborCount);
+        this.neighborChunks = neighborChunks;
+        this.distanceChunks = distanceChunks;
+    }
+
+    private static int rowsPerChunk(int neighborCount) {
+        return (int) Math.max(1L, MAX_CHUNK_BYTES / (8L * Math.max(1, neighborCount)));
+    }
+
+    private static int chunkCount(int tupleCount, int rowsPerChunk) {
+        return (int) ((tupleCount + (long) rowsPerChunk - 1L) / rowsPerChunk);
+    }
+
+    /**
+     * Builds the graph of the k nearest neighbors of every tuple, searching the
+     * tree <code>NeighborSearchTree.forMetric()</code> chooses for the metric
+     * concurrently with <code>allNearest()</code>.
+     *
+     * @param tuples the tuples.
+     * @param distanceMetric the distance metric.
+     * @param neighborCount the number of neighbors of each tuple, k.
+     * @param keepDistances whether to keep the distances to the neighbors.
+     * @param workerThreadCount the number of threads searching the tree.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the graph.
+     *
+     * @throws IllegalArgumentException if neighborCount is negative or not less
+     *   than the number of tuples.
+     * @throws Exception if a search fails or the task of ph is canceled.
+     */
+    public static NearestNeighborGraph build(final TupleList tuples, final DistanceMetric distanceMetric,
+            final int neighborCount, final boolean keepDistances, final int workerThreadCount,
+            final ProgressHandler ph) throws Exception {
+        return build(tuples, distanceMetric, neighborCount, 0.0, keepDistances, workerThreadCount, ph);
+    }
+
+    /**
+     * Builds a graph of approximate k nearest neighbors of every tuple. The i-th
+     * neighbor of a tuple is at most <code>1 + epsilon</code> times as far from
+     * it as its true i-th nearest neighbor, which lets the searches skip much of
+     * the tree when the tuples have many dimensions.
+     *
+     * @param tuples the tuples.
+     * @param distanceMetric the distance metric.
+     * @param neighborCount the number of neighbors of each tuple, k.
+     * @param epsilon the allowed relative error of the distances to the neighbors,
+     *   0 for the exact neighbors.
+     * @param keepDistances whether to keep the distances to the neighbors.
+     * @param workerThreadCount the number of threads searching the tree.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the graph.
+     *
+     * @throws IllegalArgumentException if neighborCount is negative or not less
+     *   than the number of tuples, or if epsilon is negative.
+     * @throws Exception if a search fails or the task of ph is canceled.
+     */
+    public static NearestNeighborGraph build(final TupleList tuples, final DistanceMetric distanceMetric,
+            final int neighborCount, final double epsilon, final boolean keepDistances, 
+            final int workerThreadCount, final ProgressHandler ph) throws Exception {
+
+        TupleKDTree.checkEpsilon(epsilon);
+
+        final int tupleCount = tuples.getTupleCount();
+        if (neighborCount < 0 || neighborCount >= Math.max(1, tupleCount)) {
+            throw new IllegalArgumentException("neighbor count not in [0 - "
+                    + (Math.max(1, tupleCount) - 1) + "]: " + neighborCount);
+        }
+
+        final int rowsPerChunk = rowsPerChunk(neighborCount);
+        final int chunkCount = chunkCount(tupleCount, rowsPerChunk);
+        IntBuffer[] neighborChunks = new IntBuffer[chunkCount];
+        DoubleBuffer[] distanceChunks = keepDistances ? new DoubleBuffer[chunkCount] : null;
+
+        NearestNeighborGraph graph = new NearestNeighborGraph(tupleCount, neighborCount,
+                neighborChunks, distanceChunks);
+
+        final int workerCount = Math.max(1, Math.min(workerThreadCount, tupleCount));
+
+        // A KD-Tree provides an efficient way of quickly looking up nearest
+        // neighbors, or a vantage-point tree for metrics that do not follow the
+        // coordinates, with a linear scan for metrics that neither can search
+        // exactly. It is built by the same number of threads.
+        NeighborSearchTree searchTree = neighborCount > 0 
+                ? NeighborSearchTree.forMetric(tuples, distanceMetric, workerCount) : null;
+
+        // If the matrices fit in arrays, the tree finds all the neighbors at once,
+        // and the chunks are views of the arrays. Otherwise, the neighbors of
+        // every tuple are looked up separately.
+        if ((long) tupleCount * neighborCount <= MAX_ARRAY_LENGTH) {
+            final int length = tupleCount * neighborCount;
+            double[] distances = keepDistances ? new double[length] : null;
+            int[] neighbors = searchTree != null 
+                    ? searchTree.allNearest(neighborCount, epsilon, distances, workerCount, ph)
+                    : new int[0];
+            for (int c = 0; c < chunkCount; c++) {
+                int offset = c * rowsPerChunk * neighborCount;
+                int chunkLength = Math.min(rowsPerChunk * neighborCount, length - offset);
+                neighborChunks[c] = IntBuffer.wrap(neighbors, offset, chunkLength).slice();
+                if (keepDistances) {
+                    distanceChunks[c] = DoubleBuffer.wrap(distances, offset, chunkLength).slice();
+                }
+            }
+            return graph;
+        }
+
+        for (int c = 0; c < chunkCount; c++) {
+            int rows = Math.min(rowsPerChunk, tupleCount - c * rowsPerChunk);
+            neighborChunks[c] = IntBuffer.allocate(rows * neighborCount);
+            if (keepDistances) {
+                distanceChunks[c] = DoubleBuffer.allocate(rows * neighborCount);
+            }
+        }
+
+        List<Callable<Void>> workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(graph.new BuildWorker(i, workerCount, searchTree, epsilon,
+                    keepDistances ? distanceMetric.clone() : null, ph));
+        }
+
+        if (workerCount > 1) {
+            ExecutorService threadPool = null;
+            try {
+                threadPool = Executors.newFixedThreadPool(workerCount);
+                for (Future<Void> future : threadPool.invokeAll(workers)) {
+                    future.get();
+                }
+            } finally {
+                if (threadPool != null) {
+                    threadPool.shutdown();
+                }
+            }
+        } else {
+            workers.get(0).call();
+        }
+
+        return graph;
+    }
+
+    /**
+     * Get the number of tuples, which is the number of rows.
+     *
+     * @return the number of tuples.
+     */
+    public int getTupleCount() {
+        return tupleCount;
+    }
+
+    /**
+     * Get the number of neighbors of every tuple, k.
+     *
+     * @return the number of neighbors.
+     */
+    public int getNeighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * Were the distances to the neighbors kept?
+     *
+     * @return true if they were.
+     */
+    public boolean hasDistances() {
+        return distanceChunks != null;
+    }
+
+    /**
+     * Get a neighbor of a tuple.
+     *
+     * @param tuple the index of the tuple.
+     * @param n the rank of the neighbor in <code>[0 - (getNeighborCount() - 1)]</code>,
+     *   0 being the nearest.
+     *
+     * @return the index of the neighbor.
+     */
+    public int getNeighbor(int tuple, int n) {
+        checkRank(n);
+        return neighborChunks[tuple / rowsPerChunk].get(offset(tuple) + n);
+    }
+
+    /**
+     * Get the distance from a tuple to a neighbor. The distance to the k-th 
+     * neighbor is the basis of k-nearest-neighbor density estimates.
+     *
+     * @param tuple the index of the tuple.
+     * @param n the rank of the neighbor in <code>[0 - (getNeighborCount() - 1)]</code>,
+     *   0 being the nearest.
+     *
+     * @return the distance.
+     *
+     * @throws IllegalStateException if the distances were not kept.
+     */
+    public double getDistance(int tuple, int n) {
+        checkDistances();
+        checkRank(n);
+        return distanceChunks[tuple / rowsPerChunk].get(offset(tuple) + n);
+    }
+
+    /**
+     * Get the nearest neighbors of a tuple.
+     *
+     * @param tuple the index of the tuple.
+     * @param count the number of neighbors, k', which may be no more than 
+     *   <code>getNeighborCount()</code>.
+     * @param neighbors an array of length at least count to receive them, or null.
+     *
+     * @return the array containing the neighbors, in order of increasing distance.
+     */
+    public int[] getNeighbors(int tuple, int count, int[] neighbors) {
+        checkCount(count);
+        if (neighbors == null) {
+            neighbors = new int[count];
+        }
+        IntBuffer chunk = neighborChunks[tuple / rowsPerChunk];
+        final int offset = offset(tuple);
+        for (int n = 0; n < count; n++) {
+            neighbors[n] = chunk.get(offset + n);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Get the distances to the nearest neighbors of a tuple.
+     *
+     * @param tuple the index of the tuple.
+     * @param count the number of neighbors, k', which may be no more than 
+     *   <code>getNeighborCount()</code>.
+     * @param distances an array of length at least count to receive them, or null.
+     *
+     * @return the array containing the distances, in increasing order.
+     *
+     * @throws IllegalStateException if the distances were not kept.
+     */
+    public double[] getDistances(int tuple, int count, double[] distances) {
+        checkDistances();
+        checkCount(count);
+        if (distances == null) {
+            distances = new double[count];
+        }
+        DoubleBuffer chunk = distanceChunks[tuple / rowsPerChunk];
+        final int offset = offset(tuple);
+        for (int n = 0; n < count; n++) {
+            distances[n] = chunk.get(offset + n);
+        }
+        return distances;
+    }
+
+    /**
+     * Copies the k' nearest neighbors of every tuple into a flat matrix, one
+     * row after another.
+     *
+     * @param count the number of neighbors, k', which may be no more than 
+     *   <code>getNeighborCount()</code>.
+     *
+     * @return an array of length <code>getTupleCount()*count</code>.
+     *
+     * @throws IllegalArgumentException if the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements.
+     */
+    public int[] copyNeighbors(int count) {
+        checkCount(count);
+        long length = (long) tupleCount * count;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many neighbors for an array: " + length);
+        }
+        int[] matrix = new int[(int) length];
+        int[] row = new int[count];
+        for (int i = 0; i < tupleCount; i++) {
+            System.arraycopy(getNeighbors(i, count, row), 0, matrix, i * count, count);
+        }
+        return matrix;
+    }
+
+    private int offset(int tuple) {
+        return (tuple % rowsPerChunk) * neighborCount;
+    }
+
+    private void checkRank(int n) {
+        if (n < 0 || n >= neighborCount) {
+            throw new IndexOutOfBoundsException("neighbor rank not in [0 - "
+                    + (neighborCount - 1) + "]: " + n);
+        }
+    }
+
+    private void checkCount(int count) {
+        if (count < 0 || count > neighborCount) {
+            throw new IllegalArgumentException("neighbor count not in [0 - "
+                    + neighborCount + "]: " + count);
+        }
+    }
+
+    private void checkDistances() {
+        if (distanceChunks == null) {
+            throw new IllegalStateException("distances were not kept");
+        }
+    }
+
+    /**
+     * Writes the graph to a file in a binary format, which may be mapped into
+     * memory by <code>open()</code>.
+     * <p>
+     * The file begins with a header of 32 bytes: a magic number, the format
+     * version, the number of tuples, the number of neighbors, and flags. The
+     * matrix of neighbors follows it, then the matrix of distances if they
+     * were kept. All values are big-endian.
+     * </p>
+     *
+     * @param f the file, which is replaced if it exists.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void save(final File f) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ChannelIO.allocateBuffer();
+
+            buffer.putInt(FILE_MAGIC);
+            buffer.putInt(FILE_VERSION);
+            buffer.putInt(tupleCount);
+            buffer.putInt(neighborCount);
+            buffer.putInt(distanceChunks != null ? FLAG_DISTANCES : 0);
+            buffer.putInt(0);
+            buffer.putLong(0L);
+            buffer.flip();
+            ChannelIO.writeFully(channel, buffer);
+
+            for (IntBuffer chunk : neighborChunks) {
+                ChannelIO.writeInts(channel, buffer, chunk);
+            }
+            if (distanceChunks != null) {
+                for (DoubleBuffer chunk : distanceChunks) {
+                    ChannelIO.writeDoubles(channel, buffer, chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a graph written by <code>save()</code>. Rather than being read, the
+     * matrices are mapped into memory, so the operating system pages them in as
+     * they are used.
+     *
+     * @param f the file.
+     *
+     * @return the graph.
+     *
+     * @throws IOException if an I/O error occurs or the file was not written by
+     *   <code>save()</code>.
+     */
+    public static NearestNeighborGraph open(final File f) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            ChannelIO.readFully(channel, header);
+            header.flip();
+
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException("not a nearest neighbor graph file: " + f);
+            }
+            int version = header.getInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("invalid version: " + version);
+            }
+
+            final int tupleCount = header.getInt();
+            final int neighborCount = header.getInt();
+            final boolean distances = (header.getInt() & FLAG_DISTANCES) != 0;
+
+            if (tupleCount < 0 || neighborCount < 0) {
+                throw new IOException("invalid nearest neighbor graph file: tupleCount = "
+                        + tupleCount + ", neighborCount = " + neighborCount);
+            }
+
+            final long values = (long) tupleCount * neighborCount;
+            long expectedLength = FILE_HEADER_SIZE + (distances ? 12L : 4L) * values;
+            long actualLength = channel.size();
+            if (expectedLength != actualLength) {
+                throw new IOException(String.format(
+                        "invalid nearest neighbor graph file: expected file length == %d, actual length == %d",
+                        expectedLength, actualLength));
+            }
+
+            final int rowsPerChunk = rowsPerChunk(neighborCount);
+            final int chunkCount = chunkCount(tupleCount, rowsPerChunk);
+            IntBuffer[] neighborChunks = new IntBuffer[chunkCount];
+            DoubleBuffer[] distanceChunks = distances ? new DoubleBuffer[chunkCount] : null;
+
+            long pos = FILE_HEADER_SIZE;
+            for (int c = 0; c < chunkCount; c++) {
+                long count = (long) Math.min(rowsPerChunk, tupleCount - c * rowsPerChunk) * neighborCount;
+                // A mapping remains valid after the channel that created it is closed.
+                neighborChunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * count)
+                        .asIntBuffer();
+                pos += 4L * count;
+            }
+            if (distances) {
+                for (int c = 0; c < chunkCount; c++) {
+                    long count = (long) Math.min(rowsPerChunk, tupleCount - c * rowsPerChunk) * neighborCount;
+                    distanceChunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * count)
+                            .asDoubleBuffer();
+                    pos += 8L * count;
+                }
+            }
+
+            return new NearestNeighborGraph(tupleCount, neighborCount, neighborChunks, distanceChunks);
+        }
+    }
+
+    // Finds the neighbors of every workerCount-th tuple, starting with the one at
+    // workerIndex. No two workers write the same row.
+    //
+    private class BuildWorker implements Callable<Void> {
+
+        private final int workerIndex;
+        private final int workerCount;
+        private final NeighborSearchTree searchTree;
+        private final double epsilon;
+        private final DistanceMetric distanceMetric;
+        private final ProgressHandler ph;
+
+        private BuildWorker(int workerIndex, int workerCount, NeighborSearchTree searchTree, double epsilon,
+                DistanceMetric distanceMetric, ProgressHandler ph) {
+            this.workerIndex = workerIndex;
+            this.workerCount = workerCount;
+            this.searchTree = searchTree;
+            this.epsilon = epsilon;
+            this.distanceMetric = distanceMetric;
+            this.ph = ph;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            TupleList tuples = searchTree.getTupleList();
+            double[] buf1 = new double[tuples.getTupleLength()];
+            double[] buf2 = new double[tuples.getTupleLength()];
+            for (int i = workerIndex; i < tupleCount; i += workerCount) {
+                // The neighbors come back from the tree sorted by distance.
+                int[] nn = searchTree.nearest(i, neighborCount, epsilon);
+                final int chunk = i / rowsPerChunk;
+                final int offset = offset(i);
+                for (int n = 0; n < neighborCount; n++) {
+                    neighborChunks[chunk].put(offset + n, nn[n]);
+                }
+                if (distanceMetric != null) {
+                    tuples.getTuple(i, buf1);
+                    for (int n = 0; n < neighborCount; n++) {
+                        distanceChunks[chunk].put(offset + n, 
+                                distanceMetric.distance(buf1, tuples.getTuple(nn[n], buf2)));
+                    }
+                }
+                if (ph != null) {
+                    synchronized (ph) {
+                        ph.postStep();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
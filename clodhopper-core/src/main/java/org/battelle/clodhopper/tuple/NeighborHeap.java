@@ -0,0 +1,181 @@
+package org.battelle.clodhopper.tuple;
+
+import java.util.Arrays;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * NeighborHeap.java
+ *
+ *===================================================================*/
+/**
+ * A max-heap of primitive tuple indexes and distances, used by the searches
+ * for nearest neighbors to keep the best matches found so far. Entries are
+ * ordered by distance and then by index, so the worst match is on top and 
+ * ties are resolved in favor of the lower index. The static methods keep
+ * heaps of fixed capacity in segments of larger arrays, such as the rows of
+ * a neighbor matrix.
+ *
+ * @since 2.0.1
+ */
+class NeighborHeap {
+
+    private int[] ids;
+    private double[] distances;
+    private int size;
+
+    NeighborHeap() {
+        this(16);
+    }
+
+    NeighborHeap(int initialCapacity) {
+        ids = new int[Math.max(1, initialCapacity)];
+        distances = new double[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Get the distance of the worst entry, which the heap must have.
+     */
+    double topDistance() {
+        return distances[0];
+    }
+
+    /**
+     * Adds an entry if the heap has fewer than capacity entries, or else 
+     * replaces the worst entry if the new one is nearer. An entry at the same
+     * distance as the worst is not added.
+     */
+    void offer(int id, double distance, int capacity) {
+        if (size < capacity) {
+            push(id, distance);
+        } else if (distance < distances[0]) {
+            siftDown(ids, distances, 0, size, id, distance);
+        }
+    }
+
+    void push(int id, double distance) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+            distances = Arrays.copyOf(distances, 2 * size);
+        }
+        siftUp(ids, distances, 0, size++, id, distance);
+    }
+
+    /**
+     * Empties the heap into outIDs, and outDistances if not null, in ascending 
+     * order starting at offset.
+     */
+    void drain(int[] outIDs, double[] outDistances, int offset) {
+        while (size > 0) {
+            final int last = --size;
+            outIDs[offset + last] = ids[0];
+            if (outDistances != null) {
+                outDistances[offset + last] = distances[0];
+            }
+            siftDown(ids, distances, 0, last, ids[last], distances[last]);
+        }
+    }
+
+    /**
+     * Offers an entry to the heap of size entries at offset in the arrays, as
+     * <code>offer()</code> does, and returns the new size.
+     */
+    static int offer(int[] ids, double[] distances, int offset, int size, int capacity,
+            int id, double distance) {
+        if (size < capacity) {
+            siftUp(ids, distances, offset, size, id, distance);
+            return size + 1;
+        }
+        if (distance < distances[offset]) {
+            siftDown(ids, distances, offset, size, id, distance);
+        }
+        return size;
+    }
+
+    /**
+     * Sorts the heap of size entries at offset in the arrays into ascending order
+     * in place.
+     */
+    static void sort(int[] ids, double[] distances, int offset, int size) {
+        for (int last = size - 1; last > 0; last--) {
+            final int topID = ids[offset];
+            final double topDistance = distances[offset];
+            siftDown(ids, distances, offset, last, ids[offset + last], distances[offset + last]);
+            ids[offset + last] = topID;
+            distances[offset + last] = topDistance;
+        }
+    }
+
+    // Puts an entry at position i of a heap, moving it up to its place.
+    private static void siftUp(int[] ids, double[] distances, int offset, int i,
+            int id, double distance) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!greater(id, distance, ids[offset + parent], distances[offset + parent])) {
+                break;
+            }
+            ids[offset + i] = ids[offset + parent];
+            distances[offset + i] = distances[offset + parent];
+            i = parent;
+        }
+        ids[offset + i] = id;
+        distances[offset + i] = distance;
+    }
+
+    // Puts an entry in place of the top, in a heap of n entries.
+    private static void siftDown(int[] ids, double[] distances, int offset, int n,
+            int id, double distance) {
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < n) {
+            if (child + 1 < n && greater(ids[offset + child + 1], distances[offset + child + 1],
+                    ids[offset + child], distances[offset + child])) {
+                child++;
+            }
+            if (!greater(ids[offset + child], distances[offset + child], id, distance)) {
+                break;
+            }
+            ids[offset + i] = ids[offset + child];
+            distances[offset + i] = distances[offset + child];
+            i = child;
+        }
+        if (n > 0) {
+            ids[offset + i] = id;
+            distances[offset + i] = distance;
+        }
+    }
+
+    private static boolean greater(int id1, double distance1, int id2, double distance2) {
+        return distance1 > distance2 || (distance1 == distance2 && id1 > id2);
+    }
+}
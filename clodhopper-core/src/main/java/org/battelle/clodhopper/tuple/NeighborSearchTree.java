@@ -0,0 +1,234 @@
+package org.battelle.clodhopper.tuple;
+
+import org.battelle.clodhopper.distance.CanberraDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.task.ProgressHandler;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * NeighborSearchTree.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * An index over the tuples of a <code>TupleList</code> which finds the nearest
+ * neighbors of tuples and of arbitrary coordinates, and the tuples within a
+ * distance of them. Searches may be made concurrently by any number of threads,
+ * and return tuples in order of distance.
+ * </p>
+ * <p>
+ * Which implementation suits a distance metric depends on the bounds it allows.
+ * <code>BucketKDTree</code> bounds distances by those to the bounding boxes of
+ * its nodes, which only holds for metrics that grow with the differences of the
+ * coordinates. <code>VantagePointTree</code> only relies on the triangle
+ * inequality, so it serves metrics such as the Canberra metric.
+ * <code>LinearNeighborSearch</code> compares every tuple, so it serves any
+ * distance measure, including the cosine metric, which places tuples with a
+ * dot product of 0 at distance 0. <code>forMetric()</code> chooses between them.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public interface NeighborSearchTree {
+
+    /**
+     * Get the tuple list searched.
+     *
+     * @return an instance of <code>TupleList</code>.
+     */
+    TupleList getTupleList();
+
+    /**
+     * Get the distance metric.
+     *
+     * @return an instance of <code>DistanceMetric</code>.
+     */
+    DistanceMetric getDistanceMetric();
+
+    /**
+     * Get the number of tuples searched, which is all of those in the tuple list.
+     *
+     * @return the number of tuples.
+     */
+    int getTupleCount();
+
+    /**
+     * Finds the nearest neighbor of the tuple with the specified index, other than
+     * the tuple itself.
+     *
+     * @param ndx the index of the tuple.
+     *
+     * @return the index of the nearest neighbor or -1 if there is no other tuple.
+     */
+    int nearestNeighbor(int ndx);
+
+    /**
+     * Finds the tuple that is closest to the specified coordinate.
+     *
+     * @param coords array containing the coordinate value.
+     *
+     * @return the index of the nearest tuple or -1 if there are no tuples.
+     */
+    int nearest(double[] coords);
+
+    /**
+     * Finds the nearest neighbors of the tuple with the specified index, not
+     * including the tuple itself.
+     *
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     *
+     * @return array of length <code>num</code> containing the tuple indexes of the
+     *     nearest neighbors in order of distance.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than
+     *     the number of other tuples.
+     */
+    int[] nearest(int ndx, int num);
+
+    /**
+     * Finds approximate nearest neighbors of the tuple with the specified index,
+     * not including the tuple itself. The i-th neighbor returned is at most
+     * <code>1 + epsilon</code> times as far as the true i-th nearest neighbor.
+     *
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     *
+     * @return array of length <code>num</code> containing the tuple indexes of the
+     *     nearest neighbors found in order of distance.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than
+     *     the number of other tuples, or if <code>epsilon</code> is negative.
+     */
+    int[] nearest(int ndx, int num, double epsilon);
+
+    /**
+     * Search for nearest neighbors of a specified coordinate.
+     *
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     *
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     in order of distance.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than
+     *     the number of tuples.
+     */
+    int[] nearest(double[] coords, int num);
+
+    /**
+     * Search for approximate nearest neighbors of a specified coordinate, as
+     * <code>nearest(int, int, double)</code> does for a tuple.
+     *
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     *
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     found in order of distance.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than
+     *     the number of tuples, or if <code>epsilon</code> is negative.
+     */
+    int[] nearest(double[] coords, int num, double epsilon);
+
+    /**
+     * Search for tuples close to another tuple.
+     *
+     * @param ndx the index of the search tuple.
+     * @param maxDistance the maximum distance threshold for the result.
+     *
+     * @return an array, possibly of length 0, of the indexes of other tuples within the
+     *     specified distance of the search tuple, in order of distance.
+     */
+    int[] closeTo(int ndx, double maxDistance);
+
+    /**
+     * Search for tuples close to a coordinate.
+     *
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param maxDistance the maximum distance threshold for the result.
+     *
+     * @return an array, possibly of length 0, of the indexes of tuples within the
+     *     specified distance of the coordinate, in order of distance.
+     */
+    int[] closeTo(double[] coords, double maxDistance);
+
+    /**
+     * Finds approximate nearest neighbors of every tuple, as a matrix of
+     * <code>getTupleCount()</code> rows of <code>num</code> tuple indexes. Row i
+     * holds the neighbors of tuple i, other than itself, in order of distance, as
+     * <code>nearest(i, num, epsilon)</code> would bound them.
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @param distances if non-null, an array of at least <code>getTupleCount()*num</code>
+     *   elements which receives the distances to the neighbors in the same order.
+     * @param workerThreadCount the number of threads searching.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements, or <code>epsilon</code> is negative.
+     * @throws java.util.concurrent.CancellationException if the task of ph is canceled.
+     */
+    int[] allNearest(int num, double epsilon, double[] distances, int workerThreadCount,
+            ProgressHandler ph);
+
+    /**
+     * Builds the exact search tree suited to a distance metric: a 
+     * <code>BucketKDTree</code> for the Euclidean, Manhattan and Chebyshev metrics,
+     * a <code>VantagePointTree</code> for the Canberra metric, and a
+     * <code>LinearNeighborSearch</code> for any other, since it is not known to
+     * satisfy the triangle inequality. That includes the cosine metric, for which
+     * no bound accounts for tuples with a dot product of 0 being at distance 0.
+     *
+     * @param tuples the tuples to search.
+     * @param distanceMetric the distance metric.
+     * @param workerThreadCount the number of threads building the tree.
+     *
+     * @return the tree.
+     */
+    static NeighborSearchTree forMetric(final TupleList tuples, final DistanceMetric distanceMetric,
+            final int workerThreadCount) {
+        if (TupleKDTree.metricKind(distanceMetric) != TupleKDTree.GENERIC) {
+            return new BucketKDTree(tuples, distanceMetric, BucketKDTree.DEFAULT_LEAF_SIZE,
+                    workerThreadCount);
+        }
+        if (distanceMetric instanceof CanberraDistanceMetric) {
+            return new VantagePointTree(tuples, distanceMetric,
+                    VantagePointTree.DEFAULT_LEAF_SIZE, workerThreadCount);
+        }
+        return new LinearNeighborSearch(tuples, distanceMetric);
+    }
+}
@@ -3,10 +3,11 @@ package org.battelle.clodhopper.tuple;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 
+import org.battelle.clodhopper.distance.ChebyshevDistanceMetric;
 import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
 import org.battelle.clodhopper.util.IntComparator;
 import org.battelle.clodhopper.util.Sorting;
 
@@ -68,6 +69,18 @@ public class TupleKDTree {
     // Number of tuples that have been added.
     private int count;
 
+    // How distances to the regions of the nodes are computed during the searches.
+    static final int GENERIC = 0;
+    static final int EUCLIDEAN = 1;
+    static final int MANHATTAN = 2;
+    static final int CHEBYSHEV = 3;
+
+    private final int metricKind;
+
+    // Buffers for the searches, one set per thread, since searches may be
+    // made concurrently.
+    private final ThreadLocal<QueryScratch> scratch = ThreadLocal.withInitial(QueryScratch::new);
+
     /**
      * Constructor
      * 
@@ -80,10 +93,25 @@ public class TupleKDTree {
         }
         this.tuples = tuples;
         this.distanceMetric = distanceMetric;
+        metricKind = metricKind(distanceMetric);
         maxNdx = tuples.getTupleCount() - 1;
         ensureCapacity(100);
     }
 
+    // Distances to regions are computed per dimension for the metrics that sum or
+    // take the maximum of terms for each dimension, and otherwise with the metric
+    // from the closest point of the region.
+    static int metricKind(final DistanceMetric distanceMetric) {
+        if (distanceMetric instanceof EuclideanDistanceMetric) {
+            return EUCLIDEAN;
+        } else if (distanceMetric instanceof ManhattanDistanceMetric) {
+            return MANHATTAN;
+        } else if (distanceMetric instanceof ChebyshevDistanceMetric) {
+            return CHEBYSHEV;
+        }
+        return GENERIC;
+    }
+
     /**
      * Returns the root node for object-oriented traversal.
      * 
@@ -246,6 +274,12 @@ public class TupleKDTree {
         rights[parentIndex] = m;
     }
 
+    static void checkEpsilon(final double epsilon) {
+        if (!(epsilon >= 0.0)) {
+            throw new IllegalArgumentException("epsilon must be >= 0: " + epsilon);
+        }
+    }
+
     private void checkNdx(final int ndx) {
         if (ndx < 0 || ndx > maxNdx) {
             throw new IndexOutOfBoundsException("out of bounds: " + ndx);
@@ -428,11 +462,10 @@ public class TupleKDTree {
 
         checkNdx(ndx);
 
-        double[] coords = new double[tuples.getTupleLength()];
-
-        tuples.getTuple(ndx, coords);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(tuples.getTupleLength());
 
-        int[] nn = nearest(coords, 2);
+        int[] nn = nearest(tuples.getTuple(ndx, q.query), 2);
 
         return nn[0] == ndx ? nn[1] : nn[0];
     }
@@ -463,6 +496,32 @@ public class TupleKDTree {
      *     of tuples added to the kd-tree exclusive of the search tuple.
      */
     public int[] nearest(final int ndx, final int num) {
+        return nearest(ndx, num, 0.0);
+    }
+
+    /**
+     * Finds approximate nearest neighbors of the tuple with the specified index. 
+     * A subtree is skipped if the nearest tuple it could hold is not nearer by a 
+     * factor of <code>1 + epsilon</code> than the <code>num</code>-th neighbor 
+     * found so far, so the i-th neighbor returned is at most <code>1 + epsilon</code> 
+     * times as far as the true i-th nearest neighbor. In many dimensions, an exact 
+     * search visits most of the tree, while a search with an epsilon of 1 or 2 
+     * visits a small part of it and still finds most of the true neighbors.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors found.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is greater than the number
+     *     of tuples added to the kd-tree exclusive of the search tuple, or if
+     *     <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final int ndx, final int num, final double epsilon) {
+
+        checkEpsilon(epsilon);
 
         final int maxNum = num == count ? (contains(ndx) ? count - 1 : count) : count;
         
@@ -472,22 +531,10 @@ public class TupleKDTree {
                     + num);
         }
 
-        int dim = tuples.getTupleLength();
-        double[] coords = new double[dim];
-        tuples.getTuple(ndx, coords);
-
-        LinkedList<DistanceEntry> distanceList = new LinkedList<>();
-
-        rnearest(0, coords, num, HyperRect.infiniteHyperRect(dim),
-                Double.MAX_VALUE, 0, dim, distanceList, ndx);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(tuples.getTupleLength());
 
-        int[] ids = new int[num];
-        for (int i = 0; i < num; i++) {
-            DistanceEntry entry = distanceList.removeFirst();
-            ids[i] = entry.getIndex();
-        }
-
-        return ids;
+        return nearest(q, tuples.getTuple(ndx, q.query), num, ndx, 1.0 + epsilon);
     }
 
     /**
@@ -501,6 +548,25 @@ public class TupleKDTree {
      *     of tuples added to the kd-tree.
      */
     public int[] nearest(final double[] coords, final int num) {
+        return nearest(coords, num, 0.0);
+    }
+
+    /**
+     * Search for approximate nearest neighbors of a specified coordinate, as 
+     * <code>nearest(int, int, double)</code> does for a tuple.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples added to this kd-tree.
+     * @param num the number of nearest neighbors desired.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     found.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is greater than the number
+     *     of tuples added to the kd-tree, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final double[] coords, final int num, final double epsilon) {
+
+        checkEpsilon(epsilon);
 
         if (num < 0 || num > count) {
             throw new IllegalArgumentException(
@@ -508,17 +574,25 @@ public class TupleKDTree {
                     + num);
         }
 
-        int dim = coords.length;
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(coords.length);
 
-        LinkedList<DistanceEntry> distanceList = new LinkedList<DistanceEntry>();
+        return nearest(q, coords, num, -1, 1.0 + epsilon);
+    }
 
-        rnearest(0, coords, num, HyperRect.infiniteHyperRect(dim),
-                Double.MAX_VALUE, 0, dim, distanceList, -1);
+    private int[] nearest(final QueryScratch q, final double[] coords, final int num, 
+            final int ndxToExclude, final double errorFactor) {
 
         int[] ids = new int[num];
-        for (int i = 0; i < num; i++) {
-            DistanceEntry entry = distanceList.removeFirst();
-            ids[i] = entry.getIndex();
+
+        if (num > 0) {
+            q.begin(coords);
+            try {
+                rnearest(0, 0, 0.0, num, ndxToExclude, errorFactor, q);
+                q.heap.drain(ids, null, 0);
+            } finally {
+                q.end();
+            }
         }
 
         return ids;
@@ -534,23 +608,10 @@ public class TupleKDTree {
      */
     public int[] closeTo(final int ndx, final double maxDistance) {
 
-        int dim = tuples.getTupleLength();
-        double[] coords = new double[dim];
-        tuples.getTuple(ndx, coords);
-
-        LinkedList<DistanceEntry> distanceList = new LinkedList<DistanceEntry>();
-
-        rcloseTo(0, coords, HyperRect.infiniteHyperRect(dim), maxDistance, 0,
-                dim, distanceList, ndx);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(tuples.getTupleLength());
 
-        int sz = distanceList.size();
-        int[] ids = new int[sz];
-        for (int i = 0; i < sz; i++) {
-            DistanceEntry entry = distanceList.removeFirst();
-            ids[i] = entry.getIndex();
-        }
-
-        return ids;
+        return closeTo(q, tuples.getTuple(ndx, q.query), maxDistance, ndx);
     }
 
     /**
@@ -564,21 +625,24 @@ public class TupleKDTree {
      */
     public int[] closeTo(final double[] coords, final double maxDistance) {
 
-        int dim = coords.length;
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(coords.length);
 
-        LinkedList<DistanceEntry> distanceList = new LinkedList<>();
-
-        rcloseTo(0, coords, HyperRect.infiniteHyperRect(dim), maxDistance, 0,
-                dim, distanceList, -1);
+        return closeTo(q, coords, maxDistance, -1);
+    }
 
-        int sz = distanceList.size();
-        int[] ids = new int[sz];
-        for (int i = 0; i < sz; i++) {
-            DistanceEntry entry = distanceList.removeFirst();
-            ids[i] = entry.getIndex();
+    private int[] closeTo(final QueryScratch q, final double[] coords, final double maxDistance,
+            final int ndxToExclude) {
+
+        q.begin(coords);
+        try {
+            rcloseTo(0, 0, 0.0, maxDistance, ndxToExclude, q);
+            int[] ids = new int[q.heap.size()];
+            q.heap.drain(ids, null, 0);
+            return ids;
+        } finally {
+            q.end();
         }
-
-        return ids;
     }
 
     /**
@@ -602,38 +666,46 @@ public class TupleKDTree {
             midPoint[i] = min + maxDiff;
             maxDiffs[i] = maxDiff;
         }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
         TIntArrayList intList = new TIntArrayList();
-        rcloseTo(0, midPoint, HyperRect.infiniteHyperRect(dim), maxDiffs, 0, dim,
-                intList, -1);
+        q.begin(midPoint);
+        try {
+            rcloseTo(0, 0, maxDiffs, intList, -1, q);
+        } finally {
+            q.end();
+        }
 
         intList.trimToSize();
         return intList.toArray();
     }
 
+    // Searches the subtree at curNodeNdx for the num nearest neighbors of q.target,
+    // keeping them in the heap of q. regionDistance is the distance from the target to
+    // the region of the subtree in the reduced form of regionDistance(). A region is 
+    // skipped unless errorFactor times its distance is less than the num-th distance.
+    //
     private void rnearest(final int curNodeNdx, 
-        final double[] targetCoords, 
-        final int num,
-        final HyperRect hr, 
-        double maxDistance, 
         final int level, 
-        final int dim,
-        final LinkedList<DistanceEntry> distanceList, 
-        final int ndxToExclude) {
+        final double regionDistance,
+        final int num,
+        final int ndxToExclude,
+        final double errorFactor,
+        final QueryScratch q) {
 
         int curNode = nodes[curNodeNdx];
         if (curNode < 0) {
             return;
         }
 
-        // Component of coords to use for splitting.
-        int s = level % dim;
+        final double[] targetCoords = q.target;
 
-        double[] curCoords = tuples.getTuple(curNode, null);
+        // Component of coords to use for splitting.
+        int s = level % targetCoords.length;
 
-        double targetCoord = targetCoords[s];
-        double curCoord = curCoords[s];
+        double curCoord = tuples.getTupleValue(curNode, s);
 
-        boolean targetInLeft = targetCoord < curCoord;
+        boolean targetInLeft = targetCoords[s] < curCoord;
 
         int nearerNodeNdx = -1, furtherNodeNdx = -1;
         if (targetInLeft) {
@@ -644,101 +716,54 @@ public class TupleKDTree {
             furtherNodeNdx = lefts[curNodeNdx];
         }
 
+        // The nearer region has the same closest point as the region of this node.
         if (nearerNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            }
-            rnearest(nearerNodeNdx, targetCoords, num, hr, maxDistance, level + 1,
-                    dim, distanceList, ndxToExclude);
-            if (targetInLeft) {
-                hr.setMaxCornerCoord(s, oldCoord);
-            } else {
-                hr.setMinCornerCoord(s, oldCoord);
-            }
-            if (distanceList.size() == num) {
-                maxDistance = distanceList.getLast().getDistance();
-            }
+            rnearest(nearerNodeNdx, level + 1, regionDistance, num, ndxToExclude, errorFactor, q);
         }
 
         if (furtherNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            }
-
-            double distance = distanceMetric.distance(hr.closestPoint(targetCoords), targetCoords);
-
-            if (distance < maxDistance) {
-                rnearest(furtherNodeNdx, targetCoords, num, hr, maxDistance,
-                        level + 1, dim, distanceList, ndxToExclude);
-            }
-
-            if (targetInLeft) {
-                hr.setMinCornerCoord(s, oldCoord);
-            } else {
-                hr.setMaxCornerCoord(s, oldCoord);
-            }
-            if (distanceList.size() == num) {
-                maxDistance = distanceList.getLast().getDistance();
+            final double oldClosest = q.closest[s];
+            final double oldOffset = q.offsets[s];
+            double furtherDistance = moveToSplit(q, s, curCoord, regionDistance);
+            if (q.heap.size() < num 
+                    || errorFactor * distance(furtherDistance) < q.heap.topDistance()) {
+                rnearest(furtherNodeNdx, level + 1, furtherDistance, num, ndxToExclude, 
+                        errorFactor, q);
             }
+            q.closest[s] = oldClosest;
+            q.offsets[s] = oldOffset;
         }
 
         if (curNode != ndxToExclude) {
-            double curToTarget = distanceMetric.distance(curCoords, targetCoords);
-            if (curToTarget < maxDistance) {
-                addToDistanceList(distanceList, new DistanceEntry(curNode, curToTarget), num);
-            }
-        }
-    }
-
-    private static void addToDistanceList(final LinkedList<DistanceEntry> distanceList, 
-        final DistanceEntry entry, 
-        final int maxSize) {
-        
-        int n = Collections.binarySearch(distanceList, entry);
-        if (n < 0) {
-            // The usual case, since this method is never called if an entry is already in the 
-            // list.
-            n = -n - 1;
-            distanceList.add(n, entry);
-            while (distanceList.size() > maxSize) {
-                distanceList.removeLast();
-            }
+            double curToTarget = distanceMetric.distance(tuples.getTuple(curNode, q.coords), 
+                    targetCoords);
+            q.heap.offer(curNode, curToTarget, num);
         }
     }
 
+    // Searches the subtree at curNodeNdx for the tuples within maxDistance of q.target,
+    // keeping them in the heap of q.
+    //
     private void rcloseTo(final int curNodeNdx, 
-        final double[] targetCoords, 
-        final HyperRect hr,
-        final double maxDistance, 
         final int level, 
-        final int dim, 
-        final LinkedList<DistanceEntry> distanceList,
-        final int ndxToExclude) {
+        final double regionDistance,
+        final double maxDistance, 
+        final int ndxToExclude,
+        final QueryScratch q) {
 
         int curNode = nodes[curNodeNdx];
         if (curNode < 0) {
             return;
         }
 
-        // Component of coords to use for splitting.
-        int s = level % dim;
+        final double[] targetCoords = q.target;
 
-        double[] curCoords = tuples.getTuple(curNode, null);
+        // Component of coords to use for splitting.
+        int s = level % targetCoords.length;
 
-        double targetCoord = targetCoords[s];
-        double curCoord = curCoords[s];
+        double curCoord = tuples.getTupleValue(curNode, s);
 
-        boolean targetInLeft = targetCoord <= curCoord;
+        boolean targetInLeft = targetCoords[s] <= curCoord;
 
         int nearerNodeNdx = -1, furtherNodeNdx = -1;
         if (targetInLeft) {
@@ -750,75 +775,49 @@ public class TupleKDTree {
         }
 
         if (nearerNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            }
-            rcloseTo(nearerNodeNdx, targetCoords, hr, maxDistance, level + 1, dim,
-                    distanceList, ndxToExclude);
-            if (targetInLeft) {
-                hr.setMaxCornerCoord(s, oldCoord);
-            } else {
-                hr.setMinCornerCoord(s, oldCoord);
-            }
+            rcloseTo(nearerNodeNdx, level + 1, regionDistance, maxDistance, ndxToExclude, q);
         }
 
         if (furtherNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            }
-            double distance = distanceMetric.distance(hr.closestPoint(targetCoords), targetCoords);
-            if (distance <= maxDistance) {
-                rcloseTo(furtherNodeNdx, targetCoords, hr, maxDistance, level + 1,
-                        dim, distanceList, ndxToExclude);
-            }
-            if (targetInLeft) {
-                hr.setMinCornerCoord(s, oldCoord);
-            } else {
-                hr.setMaxCornerCoord(s, oldCoord);
+            final double oldClosest = q.closest[s];
+            final double oldOffset = q.offsets[s];
+            double furtherDistance = moveToSplit(q, s, curCoord, regionDistance);
+            if (distance(furtherDistance) <= maxDistance) {
+                rcloseTo(furtherNodeNdx, level + 1, furtherDistance, maxDistance, ndxToExclude, q);
             }
+            q.closest[s] = oldClosest;
+            q.offsets[s] = oldOffset;
         }
 
         if (curNode != ndxToExclude) {
-            double curToTarget = distanceMetric.distance(curCoords, targetCoords);
+            double curToTarget = distanceMetric.distance(tuples.getTuple(curNode, q.coords), 
+                    targetCoords);
             if (curToTarget <= maxDistance) {
-                addToDistanceList(distanceList, new DistanceEntry(curNode, curToTarget), Integer.MAX_VALUE);
+                q.heap.push(curNode, curToTarget);
             }
         }
     }
 
     private void rcloseTo(final int curNodeNdx, 
-        final double[] targetCoords, 
-        final HyperRect hr,
-        final double[] maxDiffs, 
         final int level, 
-        final int dim, 
+        final double[] maxDiffs, 
         final TIntArrayList intList,
-        final int ndxToExclude) {
+        final int ndxToExclude,
+        final QueryScratch q) {
 
         int curNode = nodes[curNodeNdx];
         if (curNode < 0) {
             return;
         }
 
-        // Component of coords to use for splitting.
-        int s = level % dim;
+        final double[] targetCoords = q.target;
 
-        double[] curCoords = tuples.getTuple(curNode, null);
+        // Component of coords to use for splitting.
+        int s = level % targetCoords.length;
 
-        double targetCoord = targetCoords[s];
-        double curCoord = curCoords[s];
+        double curCoord = tuples.getTupleValue(curNode, s);
 
-        boolean targetInLeft = targetCoord <= curCoord;
+        boolean targetInLeft = targetCoords[s] <= curCoord;
 
         int nearerNodeNdx = -1, furtherNodeNdx = -1;
         if (targetInLeft) {
@@ -830,48 +829,18 @@ public class TupleKDTree {
         }
 
         if (nearerNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            }
-            rcloseTo(nearerNodeNdx, targetCoords, hr, maxDiffs, level + 1, dim,
-                    intList, ndxToExclude);
-            if (targetInLeft) {
-                hr.setMaxCornerCoord(s, oldCoord);
-            } else {
-                hr.setMinCornerCoord(s, oldCoord);
-            }
+            rcloseTo(nearerNodeNdx, level + 1, maxDiffs, intList, ndxToExclude, q);
         }
 
-        if (furtherNodeNdx >= 0) {
-            double oldCoord = 0.0;
-            if (targetInLeft) {
-                oldCoord = hr.getMinCornerCoord(s);
-                hr.setMinCornerCoord(s, curCoords[s]);
-            } else {
-                oldCoord = hr.getMaxCornerCoord(s);
-                hr.setMaxCornerCoord(s, curCoords[s]);
-            }
-
-            if (diffsWithinBoundaries(hr.closestPoint(targetCoords), targetCoords,
-                    maxDiffs)) {
-                rcloseTo(furtherNodeNdx, targetCoords, hr, maxDiffs, level + 1, dim,
-                        intList, ndxToExclude);
-            }
-
-            if (targetInLeft) {
-                hr.setMinCornerCoord(s, oldCoord);
-            } else {
-                hr.setMaxCornerCoord(s, oldCoord);
-            }
+        // The closest point of the further region only differs from the target in 
+        // the dimensions of the splits crossed to reach it, all of which were tested
+        // on the way down, so only this split needs testing.
+        if (furtherNodeNdx >= 0 && Math.abs(curCoord - targetCoords[s]) <= maxDiffs[s]) {
+            rcloseTo(furtherNodeNdx, level + 1, maxDiffs, intList, ndxToExclude, q);
         }
 
-        if (curNodeNdx != ndxToExclude) {
-            if (diffsWithinBoundaries(curCoords, targetCoords, maxDiffs)) {
+        if (curNode != ndxToExclude) {
+            if (diffsWithinBoundaries(tuples.getTuple(curNode, q.coords), targetCoords, maxDiffs)) {
                 intList.add(curNode);
             }
         }
@@ -888,6 +857,44 @@ public class TupleKDTree {
         return true;
     }
 
+    // Moves the closest point of the query region onto the splitting plane at value in
+    // dimension s, as happens on crossing to the further side of a split, and returns
+    // the new distance from the target to the region in reduced form. Only dimension s
+    // changes, so for the metrics that sum or take the maximum of per-dimension terms the
+    // distance is updated without visiting the other dimensions. Since the target is on
+    // the other side of the split, the term for s can only grow.
+    //
+    private double moveToSplit(final QueryScratch q, final int s, final double value, 
+            final double regionDistance) {
+        q.closest[s] = value;
+        final double diff = value - q.target[s];
+        switch (metricKind) {
+        case EUCLIDEAN: {
+            final double offset = diff * diff;
+            final double d = regionDistance - q.offsets[s] + offset;
+            q.offsets[s] = offset;
+            return d;
+        }
+        case MANHATTAN: {
+            final double offset = Math.abs(diff);
+            final double d = regionDistance - q.offsets[s] + offset;
+            q.offsets[s] = offset;
+            return d;
+        }
+        case CHEBYSHEV:
+            return Math.max(regionDistance, Math.abs(diff));
+        default:
+            return distanceMetric.distance(q.closest, q.target);
+        }
+    }
+
+    // Converts a distance to a region from the reduced form kept during the searches,
+    // which for Euclidean distances is the squared distance.
+    //
+    private double distance(final double regionDistance) {
+        return metricKind == EUCLIDEAN ? Math.sqrt(regionDistance) : regionDistance;
+    }
+
     /**
      * Represents a node in the kd-tree for object-oriented traversal.
      */
@@ -1016,6 +1023,47 @@ public class TupleKDTree {
 
     }
 
+    /**
+     * Buffers reused by the searches of one thread, so that a search allocates
+     * nothing but its result.
+     */
+    private static class QueryScratch {
+
+        // The coordinates of a search tuple.
+        private double[] query;
+        // The coordinates of the tuple at a node.
+        private double[] coords;
+        // The point of the current region closest to the target, and the terms
+        // for each dimension of the distance to it.
+        private double[] closest;
+        private double[] offsets;
+        // The search coordinates, while a search is in progress.
+        private double[] target;
+
+        private final NeighborHeap heap = new NeighborHeap();
+
+        private void ensureDimensions(int dim) {
+            if (query == null || query.length != dim) {
+                query = new double[dim];
+                coords = new double[dim];
+                closest = new double[dim];
+                offsets = new double[dim];
+            }
+        }
+
+        private void begin(double[] target) {
+            this.target = target;
+            // The region of the root is all of space, which contains the target.
+            System.arraycopy(target, 0, closest, 0, target.length);
+            Arrays.fill(offsets, 0.0);
+            heap.clear();
+        }
+
+        private void end() {
+            target = null;
+        }
+    }
+
     /**
      * Used for sorting tuple indices based on the values of those tuples for a
      * specified dimension.
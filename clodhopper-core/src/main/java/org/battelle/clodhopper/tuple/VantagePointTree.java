@@ -0,0 +1,855 @@
+package org.battelle.clodhopper.tuple;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.battelle.clodhopper.distance.CosineDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.task.ProgressHandler;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * VantagePointTree.java
+ *
+ *===================================================================*/
+/**
+ * <p>
+ * A vantage-point tree, which searches for neighbors with any distance metric
+ * that satisfies the triangle inequality. Every interior node picks one of its
+ * tuples as a vantage point and divides the rest at the median of their distances
+ * to it, keeping the range of those distances for either half. The distance from
+ * a search coordinate to the vantage point then bounds its distance to every 
+ * tuple of either half, without reference to the coordinates themselves.
+ * </p>
+ * <p>
+ * <code>TupleKDTree</code> and <code>BucketKDTree</code> bound distances by those
+ * to splitting planes or bounding boxes, which only holds for metrics that grow
+ * with the differences of the coordinates. This tree serves metrics for which it
+ * does not, such as the Canberra metric. The cosine distance does not satisfy
+ * the triangle inequality, but its square root does, and orders neighbors the
+ * same way, so the tree is built and pruned with the square roots of cosine 
+ * distances, while the searches still return and compare the distances 
+ * themselves. The one exception is the convention of 
+ * <code>CosineDistanceMetric</code> that tuples with a dot product of exactly
+ * 0 are at distance 0, which no bound can account for, so the tree may miss
+ * such neighbors, and <code>NeighborSearchTree.forMetric()</code> searches
+ * cosine distances linearly instead. Other metrics which do not satisfy the
+ * triangle inequality, such as the Tanimoto distance of real-valued tuples,
+ * should not be searched with this tree.
+ * </p>
+ * <p>
+ * Like <code>BucketKDTree</code>, the tree copies the coordinates of the tuples 
+ * into a single array, its leaves hold buckets of tuples, and the subtrees of 
+ * large nodes are built concurrently in a <code>ForkJoinPool</code>. The vantage
+ * point of a node is the tuple farthest from its first tuple, which tends to be
+ * near the edge of the tuples, where vantage points divide them best. Searches 
+ * may be made concurrently by any number of threads, and return neighbors in 
+ * order of distance.
+ * </p>
+ *
+ * @since 2.0.1
+ */
+public class VantagePointTree implements NeighborSearchTree {
+
+    /**
+     * The default greatest number of tuples in a leaf.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 16;
+
+    // Subtrees of fewer tuples than this are built by a single thread, and the
+    // tuples searched for by allNearest() are split between threads in ranges of
+    // this many.
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int SEARCH_CHUNK = 1 << 10;
+
+    // Relative to the distances, the most by which the bounds may be too high.
+    private static final double ROUNDING_SLACK = 1.0e-12;
+
+    private final TupleList tuples;
+    private final DistanceMetric distanceMetric;
+    private final int dim;
+    private final int tupleCount;
+    private final int leafSize;
+    // Whether the tree is built with the square roots of the distances, which
+    // satisfy the triangle inequality when the distances do not.
+    private final boolean rootDistances;
+
+    // The coordinates of the tuples, dim values per tuple, permuted so that the 
+    // tuples of every node are contiguous. ids[p] is the index of the tuple at
+    // position p.
+    private final double[] coords;
+    private final int[] ids;
+
+    // The nodes in preorder, so the left child of node n is n + 1. The tuples of
+    // node n are at positions [starts[n] - ends[n]), and rights[n] is its right
+    // child or -1 for a leaf. The vantage point of an interior node is at 
+    // starts[n], and the least and greatest bounding distances from it to the 
+    // tuples of the left child and then the right child are the four values 
+    // starting at radii[4*n].
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] rights;
+    private final double[] radii;
+
+    // Buffers for the searches, one set per thread.
+    private final ThreadLocal<QueryScratch> scratch = ThreadLocal.withInitial(QueryScratch::new);
+
+    /**
+     * Constructor which builds the tree with leaves of at most 
+     * <code>DEFAULT_LEAF_SIZE</code> tuples, using a thread for every available 
+     * processor.
+     * 
+     * @param tuples the <code>TupleList</code> which contains the data source for the tree.
+     * @param distanceMetric the <code>DistanceMetric</code> to use.
+     */
+    public VantagePointTree(final TupleList tuples, final DistanceMetric distanceMetric) {
+        this(tuples, distanceMetric, DEFAULT_LEAF_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor which builds the tree.
+     * 
+     * @param tuples the <code>TupleList</code> which contains the data source for the tree.
+     * @param distanceMetric the <code>DistanceMetric</code> to use.
+     * @param leafSize the greatest number of tuples in a leaf.
+     * @param workerThreadCount the number of threads building the tree.
+     * 
+     * @throws IllegalArgumentException if leafSize or workerThreadCount is less than 1,
+     *   or there are too many coordinates to hold in an array.
+     */
+    public VantagePointTree(final TupleList tuples, final DistanceMetric distanceMetric,
+            final int leafSize, final int workerThreadCount) {
+        if (tuples == null || distanceMetric == null) {
+            throw new NullPointerException();
+        }
+        if (leafSize < 1) {
+            throw new IllegalArgumentException("leaf size must be greater than 0");
+        }
+        if (workerThreadCount < 1) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+
+        this.tuples = tuples;
+        this.distanceMetric = distanceMetric;
+        this.dim = tuples.getTupleLength();
+        this.tupleCount = tuples.getTupleCount();
+        this.leafSize = leafSize;
+        this.rootDistances = distanceMetric instanceof CosineDistanceMetric;
+
+        final int nodeCount = tupleCount > 0 ? nodeCount(tupleCount, leafSize) : 0;
+        final long coordCount = (long) tupleCount * dim;
+        if (Math.max(coordCount, 4L * nodeCount) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many coordinates for an array: " 
+                    + coordCount);
+        }
+
+        coords = new double[(int) coordCount];
+        ids = new int[tupleCount];
+        starts = new int[nodeCount];
+        ends = new int[nodeCount];
+        rights = new int[nodeCount];
+        radii = new double[4 * nodeCount];
+
+        if (nodeCount > 0) {
+            // The distances to the vantage points, by position, while building.
+            final double[] distances = new double[tupleCount];
+            ForkJoinPool pool = workerThreadCount > 1 ? new ForkJoinPool(workerThreadCount) : null;
+            try {
+                CopyTask copyTask = new CopyTask(0, tupleCount);
+                BuildTask buildTask = new BuildTask(0, 0, tupleCount, distances);
+                if (pool != null) {
+                    pool.invoke(copyTask);
+                    pool.invoke(buildTask);
+                } else {
+                    copyTask.compute();
+                    buildTask.compute();
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a node of count tuples is a leaf. An interior node needs at 
+     * least one tuple for either child besides its vantage point.
+     */
+    private static boolean isLeaf(final int count, final int leafSize) {
+        return count <= leafSize || count < 3;
+    }
+
+    /**
+     * Returns the number of tuples in the left child of an interior node of count
+     * tuples, those nearest to its vantage point.
+     */
+    private static int leftCount(final int count) {
+        return (count - 1) / 2;
+    }
+
+    /**
+     * Returns the number of nodes of a tree over count tuples. The children of 
+     * a node differ in size by at most 1, so the sizes are the same for nodes that
+     * are.
+     */
+    static int nodeCount(final int count, final int leafSize) {
+        if (isLeaf(count, leafSize)) {
+            return 1;
+        }
+        final int left = leftCount(count);
+        final int right = count - 1 - left;
+        final int leftNodes = nodeCount(left, leafSize);
+        return 1 + leftNodes + (right == left ? leftNodes : nodeCount(right, leafSize));
+    }
+
+    /**
+     * Get the tuple list for the tree.
+     * 
+     * @return an instance of <code>TupleList</code>. 
+     */
+    public TupleList getTupleList() {
+        return tuples;
+    }
+
+    /**
+     * Get the distance metric.
+     * 
+     * @return an instance of <code>DistanceMetric</code>. 
+     */
+    public DistanceMetric getDistanceMetric() {
+        return distanceMetric;
+    }
+
+    /**
+     * Get the number of tuples in the tree, which is all of those in the tuple list.
+     * 
+     * @return the number of tuples.
+     */
+    public int getTupleCount() {
+        return tupleCount;
+    }
+
+    /**
+     * Get the greatest number of tuples in a leaf.
+     * 
+     * @return the leaf size.
+     */
+    public int getLeafSize() {
+        return leafSize;
+    }
+
+    /**
+     * Finds the nearest neighbor of the tuple with the specified index, other than
+     * the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * 
+     * @return the index of the nearest neighbor or -1 if there is no other tuple.
+     */
+    public int nearestNeighbor(final int ndx) {
+        if (tupleCount < 2) {
+            checkNdx(ndx);
+            return -1;
+        }
+        return nearest(ndx, 1)[0];
+    }
+
+    /**
+     * Finds the tuple that is closest to the specified coordinate.
+     * 
+     * @param coords array containing the coordinate value. Its length should be equal
+     *   to the dimensionality of the tuples.
+     * 
+     * @return the index of the nearest tuple or -1 if the tree is empty. 
+     */
+    public int nearest(final double[] coords) {
+        if (tupleCount == 0) {
+            return -1;
+        }
+        return nearest(coords, 1)[0];
+    }
+
+    /**
+     * Finds the nearest neighbors of the tuple with the specified index, not 
+     * including the tuple itself.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples.
+     */
+    public int[] nearest(final int ndx, final int num) {
+        return nearest(ndx, num, 0.0);
+    }
+
+    /**
+     * Finds approximate nearest neighbors of the tuple with the specified index, 
+     * not including the tuple itself. A subtree is skipped if its tuples could 
+     * not be nearer by a factor of <code>1 + epsilon</code> than the 
+     * <code>num</code>-th neighbor found so far.
+     * 
+     * @param ndx the index of the tuple.
+     * @param num the number of nearest neighbors to return.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * 
+     * @return array of length <code>num</code> containing the tuple indexes of the 
+     *     nearest neighbors found in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of other tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final int ndx, final int num, final double epsilon) {
+        checkNdx(ndx);
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount - 1) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, tuples.getTuple(ndx, q.query), num, ndx, 1.0 + epsilon);
+    }
+
+    /**
+     * Search for nearest neighbors of a specified coordinate.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples.
+     */
+    public int[] nearest(final double[] coords, final int num) {
+        return nearest(coords, num, 0.0);
+    }
+
+    /**
+     * Search for approximate nearest neighbors of a specified coordinate, as
+     * <code>nearest(int, int, double)</code> does for a tuple.
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param num the number of nearest neighbors desired.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @return an array of length <code>num</code> containing the nearest neighbor indexes
+     *     found in order of distance.
+     * 
+     * @throws IllegalArgumentException if <code>num</code> is negative or greater than 
+     *     the number of tuples, or if <code>epsilon</code> is negative.
+     */
+    public int[] nearest(final double[] coords, final int num, final double epsilon) {
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > tupleCount) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of tuples: "
+                    + num);
+        }
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return nearest(q, coords, num, -1, 1.0 + epsilon);
+    }
+
+    private int[] nearest(final QueryScratch q, final double[] target, final int num,
+            final int ndxToExclude, final double errorFactor) {
+        int[] result = new int[num];
+        if (num > 0) {
+            q.heap.clear();
+            searchNearest(0, target, num, ndxToExclude, errorFactor, q);
+            q.heap.drain(result, null, 0);
+        }
+        return result;
+    }
+
+    /**
+     * Search for tuples close to another tuple.
+     * 
+     * @param ndx the index of the search tuple.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of other tuples within the 
+     *     specified distance of the search tuple, in order of distance.
+     */
+    public int[] closeTo(final int ndx, final double maxDistance) {
+        checkNdx(ndx);
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, tuples.getTuple(ndx, q.query), maxDistance, ndx);
+    }
+
+    /**
+     * Search for tuples close to a coordinate.
+     * 
+     * @param coords the search coordinate, which should have the same number of dimensions
+     *     as the tuples.
+     * @param maxDistance the maximum distance threshold for the result.
+     * @return an array, possibly of length 0, of the indexes of tuples within the 
+     *     specified distance of the coordinate, in order of distance.
+     */
+    public int[] closeTo(final double[] coords, final double maxDistance) {
+        QueryScratch q = scratch.get();
+        q.ensureDimensions(dim);
+        return closeTo(q, coords, maxDistance, -1);
+    }
+
+    private int[] closeTo(final QueryScratch q, final double[] target, final double maxDistance,
+            final int ndxToExclude) {
+        q.heap.clear();
+        if (tupleCount > 0) {
+            searchCloseTo(0, target, maxDistance, ndxToExclude, q);
+        }
+        int[] result = new int[q.heap.size()];
+        q.heap.drain(result, null, 0);
+        return result;
+    }
+
+    /**
+     * Finds approximate nearest neighbors of every tuple, as a matrix of
+     * <code>getTupleCount()</code> rows of <code>num</code> tuple indexes. Row i
+     * holds the neighbors of tuple i, other than itself, in order of distance, as
+     * <code>nearest(i, num, epsilon)</code> would return them. The tuples are 
+     * searched for in the order of their positions in the tree, so consecutive 
+     * searches follow much the same paths, in ranges split between threads.
+     *
+     * @param num the number of nearest neighbors of each tuple.
+     * @param epsilon the allowed relative error, 0 for an exact search.
+     * @param distances if non-null, an array of at least <code>getTupleCount()*num</code>
+     *   elements which receives the distances to the neighbors in the same order.
+     * @param workerThreadCount the number of threads searching.
+     * @param ph if non-null, a progress handler to which a step is posted for
+     *   every tuple.
+     *
+     * @return the matrix in row-major order.
+     *
+     * @throws IllegalArgumentException if <code>num</code> is negative or not less
+     *   than the number of tuples, the matrix would have more than
+     *   <code>Integer.MAX_VALUE</code> elements, or <code>epsilon</code> is negative.
+     * @throws java.util.concurrent.CancellationException if the task of ph is canceled.
+     */
+    public int[] allNearest(final int num, final double epsilon, final double[] distances, 
+            final int workerThreadCount, final ProgressHandler ph) {
+
+        TupleKDTree.checkEpsilon(epsilon);
+        if (num < 0 || num > Math.max(0, tupleCount - 1)) {
+            throw new IllegalArgumentException(
+                    "number of neighbors negative or greater than number of other tuples: "
+                    + num);
+        }
+        if (workerThreadCount < 1) {
+            throw new IllegalArgumentException("worker thread count must be greater than 0");
+        }
+        final long length = (long) tupleCount * num;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many neighbors for an array: " + length);
+        }
+        if (distances != null && distances.length < length) {
+            throw new IllegalArgumentException("distances array too short: " + distances.length);
+        }
+
+        final int[] neighbors = new int[(int) length];
+        if (length == 0) {
+            return neighbors;
+        }
+
+        ForkJoinPool pool = workerThreadCount > 1 ? new ForkJoinPool(workerThreadCount) : null;
+        try {
+            AllNearestTask task = new AllNearestTask(0, tupleCount, num, 1.0 + epsilon, 
+                    neighbors, distances, ph);
+            if (pool != null) {
+                pool.invoke(task);
+            } else {
+                task.compute();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return neighbors;
+    }
+
+    private void checkNdx(final int ndx) {
+        if (ndx < 0 || ndx >= tupleCount) {
+            throw new IndexOutOfBoundsException("tuple index not in [0 - "
+                    + (tupleCount - 1) + "]: " + ndx);
+        }
+    }
+
+    // Searches the subtree of node for the num nearest neighbors of target, keeping
+    // them in the heap of q. The child that may hold nearer tuples is searched first.
+    //
+    private void searchNearest(final int node, final double[] target, final int num, 
+            final int ndxToExclude, final double errorFactor, final QueryScratch q) {
+        final int right = rights[node];
+        if (right < 0) {
+            for (int p = starts[node]; p < ends[node]; p++) {
+                final int id = ids[p];
+                if (id != ndxToExclude) {
+                    q.heap.offer(id, rowDistance(p, target, q), num);
+                }
+            }
+            return;
+        }
+        final int vantage = starts[node];
+        final double d = rowDistance(vantage, target, q);
+        if (ids[vantage] != ndxToExclude) {
+            q.heap.offer(ids[vantage], d, num);
+        }
+        final int left = node + 1;
+        final double b = boundingDistance(d);
+        final double leftDistance = lowerBound(node, 0, b);
+        final double rightDistance = lowerBound(node, 2, b);
+        final boolean leftNearer = leftDistance <= rightDistance;
+        final int near = leftNearer ? left : right;
+        final int far = leftNearer ? right : left;
+        final double nearDistance = leftNearer ? leftDistance : rightDistance;
+        final double farDistance = leftNearer ? rightDistance : leftDistance;
+        if (q.heap.size() < num || errorFactor * nearDistance < q.heap.topDistance()) {
+            searchNearest(near, target, num, ndxToExclude, errorFactor, q);
+        }
+        if (q.heap.size() < num || errorFactor * farDistance < q.heap.topDistance()) {
+            searchNearest(far, target, num, ndxToExclude, errorFactor, q);
+        }
+    }
+
+    // Searches the subtree of node for the tuples within maxDistance of target, 
+    // keeping them in the heap of q.
+    //
+    private void searchCloseTo(final int node, final double[] target, final double maxDistance,
+            final int ndxToExclude, final QueryScratch q) {
+        final int right = rights[node];
+        if (right < 0) {
+            for (int p = starts[node]; p < ends[node]; p++) {
+                final int id = ids[p];
+                if (id != ndxToExclude) {
+                    final double d = rowDistance(p, target, q);
+                    if (d <= maxDistance) {
+                        q.heap.push(id, d);
+                    }
+                }
+            }
+            return;
+        }
+        final int vantage = starts[node];
+        final double d = rowDistance(vantage, target, q);
+        if (ids[vantage] != ndxToExclude && d <= maxDistance) {
+            q.heap.push(ids[vantage], d);
+        }
+        final double b = boundingDistance(d);
+        if (lowerBound(node, 0, b) <= maxDistance) {
+            searchCloseTo(node + 1, target, maxDistance, ndxToExclude, q);
+        }
+        if (lowerBound(node, 2, b) <= maxDistance) {
+            searchCloseTo(right, target, maxDistance, ndxToExclude, q);
+        }
+    }
+
+    // The least distance, by the triangle inequality, from a point at bounding 
+    // distance b from the vantage point of node to the tuples of its left child, for 
+    // child 0, or its right child, for child 2, as a distance of the metric. The 
+    // difference of the distances may round to more than a distance it bounds, so 
+    // the bound is lowered by a little more than the rounding error, lest a tuple 
+    // at exactly the distance sought be missed.
+    //
+    private double lowerBound(final int node, final int child, final double b) {
+        final int i = 4 * node + child;
+        final double bound = Math.max(radii[i] - b, b - radii[i + 1]) 
+                - ROUNDING_SLACK * (b + radii[i + 1]);
+        if (rootDistances) {
+            return bound > 0.0 ? bound * bound : 0.0;
+        }
+        return bound;
+    }
+
+    // The distance in which the radii of the nodes are kept, for a distance of the
+    // metric.
+    private double boundingDistance(final double d) {
+        return rootDistances ? Math.sqrt(d) : d;
+    }
+
+    // The distance from the tuple at position p to target.
+    private double rowDistance(final int p, final double[] target, final QueryScratch q) {
+        System.arraycopy(coords, p * dim, q.row, 0, dim);
+        return distanceMetric.distance(q.row, target);
+    }
+
+    // Rearranges the tuples at positions [start - end) so that the one at k has
+    // the distance it would have if they were sorted by distance, with none greater
+    // before it and none less after it. This is Hoare's selection, taking expected
+    // linear time.
+    //
+    private void select(final double[] distances, final int start, final int end, final int k) {
+        int lo = start;
+        int hi = end - 1;
+        while (hi > lo) {
+            final double pivot = medianOf3(distances[lo], distances[(lo + hi) >>> 1], 
+                    distances[hi]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (distances[i] < pivot) {
+                    i++;
+                }
+                while (distances[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(distances, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // Now those at [lo - j] are no greater than the pivot, those at 
+            // [i - hi] no less, and any between equal to it.
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double medianOf3(final double a, final double b, final double c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+
+    private void swap(final double[] distances, final int p1, final int p2) {
+        if (p1 != p2) {
+            final int row1 = p1 * dim;
+            final int row2 = p2 * dim;
+            for (int i = 0; i < dim; i++) {
+                final double v = coords[row1 + i];
+                coords[row1 + i] = coords[row2 + i];
+                coords[row2 + i] = v;
+            }
+            final int id = ids[p1];
+            ids[p1] = ids[p2];
+            ids[p2] = id;
+            final double d = distances[p1];
+            distances[p1] = distances[p2];
+            distances[p2] = d;
+        }
+    }
+
+    /**
+     * Copies the coordinates of the tuples in [start - end) into the array, 
+     * splitting the range between threads.
+     */
+    private class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        private CopyTask(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > PARALLEL_THRESHOLD) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new CopyTask(start, mid), new CopyTask(mid, end));
+            } else {
+                double[] buf = new double[dim];
+                for (int i = start; i < end; i++) {
+                    tuples.getTuple(i, buf);
+                    System.arraycopy(buf, 0, coords, i * dim, dim);
+                    ids[i] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree of a node over the tuples at positions [start - end),
+     * building the subtrees of large nodes concurrently.
+     */
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final int start;
+        private final int end;
+        private final double[] distances;
+
+        private BuildTask(final int node, final int start, final int end, final double[] distances) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+            this.distances = distances;
+        }
+
+        @Override
+        protected void compute() {
+            starts[node] = start;
+            ends[node] = end;
+            if (isLeaf(end - start, leafSize)) {
+                rights[node] = -1;
+                return;
+            }
+
+            // The vantage point is the tuple farthest from the first.
+            final double[] point = new double[dim];
+            final double[] row = new double[dim];
+            System.arraycopy(coords, start * dim, point, 0, dim);
+            int vantage = start;
+            double farthest = -1.0;
+            for (int p = start + 1; p < end; p++) {
+                System.arraycopy(coords, p * dim, row, 0, dim);
+                final double d = distanceMetric.distance(row, point);
+                if (d > farthest) {
+                    farthest = d;
+                    vantage = p;
+                }
+            }
+            swap(distances, start, vantage);
+
+            System.arraycopy(coords, start * dim, point, 0, dim);
+            for (int p = start + 1; p < end; p++) {
+                System.arraycopy(coords, p * dim, row, 0, dim);
+                distances[p] = boundingDistance(distanceMetric.distance(row, point));
+            }
+
+            // The left child gets the tuples nearest to the vantage point.
+            final int left = leftCount(end - start);
+            final int mid = start + 1 + left;
+            select(distances, start + 1, end, mid);
+            setRadii(4 * node, start + 1, mid);
+            setRadii(4 * node + 2, mid, end);
+
+            final int right = node + 1 + nodeCount(left, leafSize);
+            rights[node] = right;
+            BuildTask leftTask = new BuildTask(node + 1, start + 1, mid, distances);
+            BuildTask rightTask = new BuildTask(right, mid, end, distances);
+            if (end - start > PARALLEL_THRESHOLD && getPool() != null) {
+                invokeAll(leftTask, rightTask);
+            } else {
+                leftTask.compute();
+                rightTask.compute();
+            }
+        }
+
+        private void setRadii(final int i, final int from, final int to) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = 0.0;
+            for (int p = from; p < to; p++) {
+                min = Math.min(min, distances[p]);
+                max = Math.max(max, distances[p]);
+            }
+            radii[i] = min;
+            radii[i + 1] = max;
+        }
+    }
+
+    /**
+     * Searches for the neighbors of the tuples at positions [start - end), 
+     * splitting large ranges between threads.
+     */
+    private class AllNearestTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final int num;
+        private final double errorFactor;
+        private final int[] neighbors;
+        private final double[] distances;
+        private final ProgressHandler ph;
+
+        private AllNearestTask(final int start, final int end, final int num, 
+                final double errorFactor, final int[] neighbors, final double[] distances,
+                final ProgressHandler ph) {
+            this.start = start;
+            this.end = end;
+            this.num = num;
+            this.errorFactor = errorFactor;
+            this.neighbors = neighbors;
+            this.distances = distances;
+            this.ph = ph;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > SEARCH_CHUNK && getPool() != null) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new AllNearestTask(start, mid, num, errorFactor, neighbors, distances, ph),
+                        new AllNearestTask(mid, end, num, errorFactor, neighbors, distances, ph));
+                return;
+            }
+            QueryScratch q = scratch.get();
+            q.ensureDimensions(dim);
+            for (int p = start; p < end; p++) {
+                final int id = ids[p];
+                System.arraycopy(coords, p * dim, q.query, 0, dim);
+                q.heap.clear();
+                searchNearest(0, q.query, num, id, errorFactor, q);
+                q.heap.drain(neighbors, distances, id * num);
+            }
+            if (ph != null) {
+                synchronized (ph) {
+                    ph.postSteps(end - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers reused by the searches of one thread, so that a search allocates
+     * nothing but its result.
+     */
+    private static class QueryScratch {
+
+        // The coordinates of a search tuple.
+        private double[] query;
+        // The coordinates of a tuple of the tree.
+        private double[] row;
+
+        private final NeighborHeap heap = new NeighborHeap();
+
+        private void ensureDimensions(int dim) {
+            if (query == null || query.length != dim) {
+                query = new double[dim];
+                row = new double[dim];
+            }
+        }
+    }
+}
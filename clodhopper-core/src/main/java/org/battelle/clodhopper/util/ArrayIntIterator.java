@@ -1,5 +1,6 @@
 package org.battelle.clodhopper.util;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /*=====================================================================
@@ -34,22 +35,41 @@ import java.util.NoSuchElementException;
 public class ArrayIntIterator implements IntIterator {
 
 	private int[] values;
+	private int start, end;
 	private int cursor;
 	
 	public ArrayIntIterator(int[] values) {
+		this(values, 0, values.length);
+	}
+	
+	/**
+	 * Constructor for an iterator over a range of an array. The array is not
+	 * copied, so it should not be modified while the iterator is in use.
+	 * 
+	 * @param values the array.
+	 * @param offset the index of the first value in the range.
+	 * @param length the number of values in the range.
+	 */
+	public ArrayIntIterator(int[] values, int offset, int length) {
 		if (values == null) {
 			throw new NullPointerException();
 		}
+		if (offset < 0 || length < 0 || offset + length > values.length) {
+			throw new IndexOutOfBoundsException();
+		}
 		this.values = values;
+		this.start = offset;
+		this.end = offset + length;
+		this.cursor = offset;
 	}
 	
 	
 	public void gotoFirst() {
-		cursor = 0;
+		cursor = start;
 	}
 	
 	public void gotoLast() {
-		cursor = values.length;
+		cursor = end;
 	}
 	
 	public int getFirst() {
@@ -63,11 +83,11 @@ public class ArrayIntIterator implements IntIterator {
 	}
 	
 	public boolean hasNext() {
-		return cursor < values.length;
+		return cursor < end;
 	}
 	
 	public boolean hasPrev() {
-		return cursor > 0;
+		return cursor > start;
 	}
 
 	public int getNext() {
@@ -85,17 +105,20 @@ public class ArrayIntIterator implements IntIterator {
 	}
 
 	public int getSize() {
-		return values.length;
+		return end - start;
 	}
 	
 	public int[] toArray() {
-		return (int[]) values.clone();
+		return Arrays.copyOfRange(values, start, end);
 	}
 	
 	public IntIterator clone() {
 		try {
 			ArrayIntIterator clone = (ArrayIntIterator) super.clone();
 			clone.values = this.toArray();
+			clone.start = 0;
+			clone.end = clone.values.length;
+			clone.cursor = this.cursor - this.start;
 			return clone;
 		} catch (CloneNotSupportedException e) {
 			throw new InternalError();
@@ -0,0 +1,265 @@
+package org.battelle.clodhopper.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * ChannelIO.java
+ *
+ *===================================================================*/
+/**
+ * Contains static utility methods for bulk transfers of data through channels.
+ * Values are transferred in big-endian order, the same as
+ * <code>DataOutputStream</code> and <code>DataInputStream</code>, so files written
+ * by either may be read by the other.
+ *
+ * @since 2.0.1
+ */
+public final class ChannelIO {
+
+    /**
+     * The size of the buffers returned by <code>allocateBuffer()</code>.
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private ChannelIO() {
+    }
+
+    /**
+     * Allocates a direct, big-endian buffer of <code>BUFFER_SIZE</code> bytes.
+     *
+     * @return the buffer.
+     */
+    public static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Writes all the remaining bytes of a buffer to a channel.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads from a channel until a buffer is full.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws EOFException if the end of the channel is reached first.
+     */
+    public static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Writes doubles to a channel, using a buffer to hold as many as it can at a
+     * time.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer, whose contents are overwritten.
+     * @param values the array containing the doubles.
+     * @param offset the offset of the first double.
+     * @param count the number of doubles to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeDoubles(final WritableByteChannel channel, final ByteBuffer buffer,
+            final double[] values, int offset, int count) throws IOException {
+        final int capacity = buffer.capacity() / 8;
+        while (count > 0) {
+            int n = Math.min(count, capacity);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(values, offset, n);
+            buffer.limit(8 * n);
+            writeFully(channel, buffer);
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Writes all the doubles of a <code>DoubleBuffer</code> to a channel, from
+     * index 0 to its limit, using a buffer to hold as many as it can at a time. The
+     * position of values is not changed.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer, whose contents are overwritten.
+     * @param values the doubles to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeDoubles(final WritableByteChannel channel, final ByteBuffer buffer,
+            final DoubleBuffer values) throws IOException {
+        final DoubleBuffer source = values.duplicate();
+        source.position(0);
+        final int capacity = buffer.capacity() / 8;
+        while (source.hasRemaining()) {
+            int n = Math.min(source.remaining(), capacity);
+            DoubleBuffer run = source.slice();
+            run.limit(n);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(run);
+            buffer.limit(8 * n);
+            writeFully(channel, buffer);
+            source.position(source.position() + n);
+        }
+    }
+
+    /**
+     * Writes all the ints of an <code>IntBuffer</code> to a channel, from
+     * index 0 to its limit, using a buffer to hold as many as it can at a time. The
+     * position of values is not changed.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer, whose contents are overwritten.
+     * @param values the ints to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeInts(final WritableByteChannel channel, final ByteBuffer buffer,
+            final IntBuffer values) throws IOException {
+        final IntBuffer source = values.duplicate();
+        source.position(0);
+        final int capacity = buffer.capacity() / 4;
+        while (source.hasRemaining()) {
+            int n = Math.min(source.remaining(), capacity);
+            IntBuffer run = source.slice();
+            run.limit(n);
+            buffer.clear();
+            buffer.asIntBuffer().put(run);
+            buffer.limit(4 * n);
+            writeFully(channel, buffer);
+            source.position(source.position() + n);
+        }
+    }
+
+    /**
+     * Reads doubles from a channel, using a buffer to hold as many as it can at
+     * a time.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer, whose contents are overwritten.
+     * @param values the array to receive the doubles.
+     * @param offset the offset at which to put the first double.
+     * @param count the number of doubles to read.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @throws EOFException if the end of the channel is reached first.
+     */
+    public static void readDoubles(final ReadableByteChannel channel, final ByteBuffer buffer,
+            final double[] values, int offset, int count) throws IOException {
+        final int capacity = buffer.capacity() / 8;
+        while (count > 0) {
+            int n = Math.min(count, capacity);
+            buffer.clear();
+            buffer.limit(8 * n);
+            readFully(channel, buffer);
+            buffer.flip();
+            buffer.asDoubleBuffer().get(values, offset, n);
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Writes zeros to a channel.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer, whose contents are overwritten.
+     * @param count the number of zero bytes to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void writeZeros(final WritableByteChannel channel, final ByteBuffer buffer,
+            long count) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(count, buffer.capacity()));
+            count -= buffer.limit();
+            writeFully(channel, buffer);
+        }
+    }
+
+    /**
+     * Copies a file, replacing the content of the destination if it exists.
+     * The destination is overwritten in place and only then truncated to the
+     * length of the source, so a memory mapping of a destination of the same
+     * length stays valid and sees the new content.
+     *
+     * @param src the file to copy.
+     * @param dst the destination.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public static void copyFile(final File src, final File dst) throws IOException {
+        try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dst.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)) {
+            // A single transferTo() may move fewer bytes than requested,
+            // which is the case for files over 2GB on some platforms.
+            final long length = in.size();
+            long position = 0L;
+            while (position < length) {
+                long n = in.transferTo(position, length - position, out);
+                if (n <= 0) {
+                    throw new EOFException("unable to copy " + src + " to " + dst);
+                }
+                position += n;
+            }
+            out.truncate(length);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.battelle.clodhopper.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * ConcurrentDisjointSet.java
+ *
+ *===================================================================*/
+/**
+ * A disjoint-set (union-find) structure over the integers 
+ * <code>[0 - (size() - 1)]</code> which may be used by any number of threads 
+ * at once without locking. Sets are linked by compare-and-set, always making 
+ * the root with the greater index a child of the other, so the root of every 
+ * set is its smallest member. Paths are shortened by halving as they are
+ * traversed.
+ *
+ * @since 2.0.1
+ */
+public class ConcurrentDisjointSet {
+
+    private final AtomicIntegerArray parents;
+
+    /**
+     * Constructor which puts every element in a set of its own.
+     *
+     * @param size the number of elements.
+     */
+    public ConcurrentDisjointSet(final int size) {
+        parents = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            parents.set(i, i);
+        }
+    }
+
+    /**
+     * Get the number of elements.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        return parents.length();
+    }
+
+    /**
+     * Find the root of the set containing an element, which is its smallest
+     * member once no unions are in progress.
+     *
+     * @param x the element.
+     *
+     * @return the root.
+     */
+    public int find(int x) {
+        int parent = parents.get(x);
+        while (parent != x) {
+            int grandparent = parents.get(parent);
+            // Skip a level. If another thread got there first, the path is still valid.
+            if (grandparent != parent) {
+                parents.compareAndSet(x, parent, grandparent);
+            }
+            x = grandparent;
+            parent = parents.get(x);
+        }
+        return x;
+    }
+
+    /**
+     * Merge the sets containing two elements.
+     *
+     * @param x an element.
+     * @param y another element.
+     *
+     * @return true if the elements were in different sets, false if they were
+     *   already in the same set.
+     */
+    public boolean union(int x, int y) {
+        while (true) {
+            x = find(x);
+            y = find(y);
+            if (x == y) {
+                return false;
+            }
+            if (x < y) {
+                int t = x;
+                x = y;
+                y = t;
+            }
+            // Fails if x stopped being a root after it was found.
+            if (parents.compareAndSet(x, x, y)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Are two elements in the same set?
+     *
+     * @param x an element.
+     * @param y another element.
+     *
+     * @return true if they are.
+     */
+    public boolean sameSet(int x, int y) {
+        while (true) {
+            x = find(x);
+            y = find(y);
+            if (x == y) {
+                return true;
+            }
+            // If x is still a root, the sets were different when y was found.
+            if (parents.get(x) == x) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.battelle.clodhopper;
+
+import java.util.Random;
+
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.TupleList;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * TestTuples.java
+ *
+ *===================================================================*/
+/**
+ * Factories for the tuples the clustering tests run on.
+ */
+public final class TestTuples {
+
+    private TestTuples() {
+    }
+
+    /**
+     * Generates tuples uniformly distributed in the unit hypercube.
+     *
+     * @param tupleCount the number of tuples.
+     * @param tupleLength the length of each tuple.
+     * @param seed the seed for the random number generator.
+     *
+     * @return the tuples.
+     */
+    public static TupleList uniform(int tupleCount, int tupleLength, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[tupleCount * tupleLength];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble();
+        }
+        return new ArrayTupleList(tupleLength, tupleCount, values);
+    }
+
+    /**
+     * Generates blobs of tuples so far apart that any reasonable clustering
+     * separates them. The tuples of blob <code>b</code> are normally distributed
+     * with unit variance about a center 50 out along axis <code>b</code>, and
+     * occupy indices <code>b * tuplesPerBlob</code> through
+     * <code>(b + 1) * tuplesPerBlob - 1</code>.
+     *
+     * @param blobCount the number of blobs.
+     * @param tuplesPerBlob the number of tuples in each blob.
+     * @param tupleLength the length of each tuple, at least the number of blobs.
+     * @param seed the seed for the random number generator.
+     *
+     * @return the tuples.
+     */
+    public static TupleList separatedBlobs(int blobCount, int tuplesPerBlob, int tupleLength, long seed) {
+        Random random = new Random(seed);
+        final int tupleCount = blobCount * tuplesPerBlob;
+        double[] values = new double[tupleCount * tupleLength];
+        int n = 0;
+        for (int b = 0; b < blobCount; b++) {
+            for (int i = 0; i < tuplesPerBlob; i++) {
+                for (int j = 0; j < tupleLength; j++) {
+                    values[n++] = (j == b ? 50.0 : 0.0) + random.nextGaussian();
+                }
+            }
+        }
+        return new ArrayTupleList(tupleLength, tupleCount, values);
+    }
+}
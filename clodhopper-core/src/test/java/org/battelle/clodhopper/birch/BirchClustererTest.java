@@ -0,0 +1,135 @@
+package org.battelle.clodhopper.birch;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * BirchClustererTest.java
+ *
+ *===================================================================*/
+public class BirchClustererTest {
+
+    private static final int BLOB_COUNT = 5;
+    private static final int TUPLES_PER_BLOB = 400;
+
+    @Test
+    public void testRecoversSeparatedBlobs() {
+        TupleList tuples = TestTuples.separatedBlobs(BLOB_COUNT, TUPLES_PER_BLOB, 5, 135L);
+        BirchParams params = new BirchParams.Builder()
+                .clusterCount(BLOB_COUNT)
+                .globalClustering(BirchParams.GlobalClustering.REVERSE_NN)
+                .branchingFactor(8)
+                .leafEntryCount(8)
+                // Small enough to force the tree to be rebuilt.
+                .memoryLimit(16 * 1024)
+                .randomSeed(246L)
+                .build();
+        BirchClusterer birch = runBirch(tuples, params);
+
+        assertTrue(birch.getSummaries().getTupleCount() < tuples.getTupleCount());
+
+        List<Cluster> clusters = birch.getClusters();
+        assertEquals(BLOB_COUNT, clusters.size());
+        for (Cluster cluster : clusters) {
+            assertEquals(TUPLES_PER_BLOB, cluster.getMemberCount());
+            int blob = cluster.getMember(0) / TUPLES_PER_BLOB;
+            for (int m = 1; m < cluster.getMemberCount(); m++) {
+                assertEquals(blob, cluster.getMember(m) / TUPLES_PER_BLOB);
+            }
+        }
+    }
+
+    @Test
+    public void testKMeansAssignsEveryTuple() {
+        TupleList tuples = TestTuples.separatedBlobs(BLOB_COUNT, TUPLES_PER_BLOB, 5, 357L);
+        BirchParams params = new BirchParams.Builder()
+                .clusterCount(BLOB_COUNT)
+                .globalClustering(BirchParams.GlobalClustering.KMEANS)
+                .memoryLimit(32 * 1024)
+                .randomSeed(802L)
+                .build();
+        BirchClusterer birch = runBirch(tuples, params);
+
+        List<Cluster> clusters = birch.getClusters();
+        assertTrue(clusters.size() <= BLOB_COUNT);
+        boolean[] assigned = new boolean[tuples.getTupleCount()];
+        for (Cluster cluster : clusters) {
+            for (int m = 0; m < cluster.getMemberCount(); m++) {
+                assertFalse(assigned[cluster.getMember(m)]);
+                assigned[cluster.getMember(m)] = true;
+            }
+        }
+        for (boolean b : assigned) {
+            assertTrue(b);
+        }
+    }
+
+    @Test
+    public void testClustersOfSummariesWithoutAssignment() {
+        TupleList tuples = TestTuples.separatedBlobs(BLOB_COUNT, TUPLES_PER_BLOB, 6, 468L);
+        BirchParams params = new BirchParams.Builder()
+                .clusterCount(BLOB_COUNT)
+                .assignTuples(false)
+                .memoryLimit(32 * 1024)
+                .globalClustering(BirchParams.GlobalClustering.REVERSE_NN)
+                .randomSeed(579L)
+                .build();
+        BirchClusterer birch = runBirch(tuples, params);
+
+        TupleList summaries = birch.getSummaries();
+        long[] counts = birch.getSummaryCounts();
+        assertEquals(summaries.getTupleCount(), counts.length);
+
+        long total = 0;
+        int summaryTotal = 0;
+        for (Cluster cluster : birch.getClusters()) {
+            long clusterTotal = 0;
+            for (int m = 0; m < cluster.getMemberCount(); m++) {
+                clusterTotal += counts[cluster.getMember(m)];
+            }
+            assertEquals(TUPLES_PER_BLOB, clusterTotal);
+            total += clusterTotal;
+            summaryTotal += cluster.getMemberCount();
+        }
+        assertEquals(tuples.getTupleCount(), total);
+        assertEquals(summaries.getTupleCount(), summaryTotal);
+    }
+
+    private static BirchClusterer runBirch(TupleList tuples, BirchParams params) {
+        BirchClusterer birch = new BirchClusterer(tuples, params);
+        birch.run();
+        assertEquals(TaskOutcome.SUCCESS, birch.getTaskOutcome());
+        return birch;
+    }
+}
@@ -0,0 +1,295 @@
+package org.battelle.clodhopper.distance;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * DistanceCacheFactoryTest.java
+ *
+ *===================================================================*/
+public class DistanceCacheFactoryTest {
+
+    private File cacheFile;
+    private File savedFile;
+
+    @Before
+    public void setup() throws Exception {
+        cacheFile = File.createTempFile("dcache", null);
+        cacheFile.deleteOnExit();
+        savedFile = File.createTempFile("dcacheSaved", null);
+        savedFile.deleteOnExit();
+    }
+
+    @After
+    public void teardown() {
+        cacheFile.delete();
+        savedFile.delete();
+    }
+
+    @Test
+    public void testMappedFileCacheIsCompatibleWithFileCache() throws Exception {
+        final int indexCount = 200;
+        DistanceCache mappedCache = new MappedFileDistanceCache(indexCount, cacheFile);
+        fillRandomly(mappedCache, 17L);
+
+        DistanceCacheFactory.save(mappedCache, savedFile);
+
+        FileDistanceCache fileCache = new FileDistanceCache(savedFile);
+        try {
+            assertSameDistances(mappedCache, fileCache);
+        } finally {
+            fileCache.closeFile();
+        }
+    }
+
+    @Test
+    public void testSaveAndReadRoundTrip() throws Exception {
+        final int indexCount = 150;
+        DistanceCache ramCache = DistanceCacheFactory.newDistanceCache(indexCount,
+                Long.MAX_VALUE, Long.MAX_VALUE, cacheFile).get();
+        fillRandomly(ramCache, 29L);
+
+        DistanceCacheFactory.save(ramCache, savedFile);
+
+        // The format is the same as writing the distances one by one.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(indexCount);
+        for (long pos = 0L; pos < ramCache.getNumDistances(); pos++) {
+            out.writeDouble(ramCache.getDistance(pos));
+        }
+        out.close();
+        assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(savedFile.toPath()));
+
+        // A zero memory threshold forces the file to be used in place.
+        Optional<DistanceCache> fileCache = DistanceCacheFactory.read(savedFile, 0L, Long.MAX_VALUE);
+        assertTrue(fileCache.isPresent());
+        assertSameDistances(ramCache, fileCache.get());
+
+        Optional<DistanceCache> memoryCache = DistanceCacheFactory.read(savedFile, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertTrue(memoryCache.isPresent());
+        assertSameDistances(ramCache, memoryCache.get());
+    }
+
+    @Test
+    public void testPrecisionPolicy() throws Exception {
+        final int indexCount = 100;
+        long floatSize = DistanceCacheFactory.distanceCacheSize(indexCount, DistancePrecision.FLOAT);
+
+        // Doubles don't fit, but floats do.
+        Optional<DistanceCache> cache = DistanceCacheFactory.newDistanceCache(indexCount,
+                floatSize, 0L, cacheFile, DistancePrecision.QUANTIZED_16);
+        assertTrue(cache.get() instanceof FloatRAMDistanceCache);
+
+        // Floats are not acceptable, so the file is used.
+        cache = DistanceCacheFactory.newDistanceCache(indexCount,
+                floatSize, Long.MAX_VALUE, cacheFile, DistancePrecision.DOUBLE);
+        assertTrue(cache.get() instanceof MappedFileDistanceCache);
+
+        cache = DistanceCacheFactory.newDistanceCache(indexCount,
+                floatSize - 1L, 0L, cacheFile, DistancePrecision.QUANTIZED_16);
+        assertTrue(cache.get() instanceof QuantizedRAMDistanceCache);
+
+        assertEquals(indexCount, DistanceCacheFactory.tupleLimit(floatSize, DistancePrecision.FLOAT));
+    }
+
+    @Test
+    public void testQuantizationIsMonotone() {
+        Random random = new Random(41L);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(20.0 * random.nextDouble() - 10.0);
+        }
+        values[0] = 0.0;
+        Arrays.sort(values);
+        for (int i = 1; i < values.length; i++) {
+            char c1 = QuantizedRAMDistanceCache.encode(values[i - 1]);
+            char c2 = QuantizedRAMDistanceCache.encode(values[i]);
+            assertTrue(c1 <= c2);
+            assertTrue(QuantizedRAMDistanceCache.decode(c1) <= QuantizedRAMDistanceCache.decode(c2));
+        }
+        for (double v : values) {
+            double q = QuantizedRAMDistanceCache.decode(QuantizedRAMDistanceCache.encode(v));
+            assertEquals(v, q, v / 128.0);
+        }
+    }
+
+    @Test
+    public void testSegmentedCacheMatchesRAMCache() throws Exception {
+        final int indexCount = 300;
+        DistanceCache expected = new RAMDistanceCache(indexCount);
+        SegmentedRAMDistanceCache actual = new SegmentedRAMDistanceCache(indexCount);
+        fillRandomly(expected, 53L);
+        fillRandomly(actual, 53L);
+        assertSameDistances(expected, actual);
+        for (int i = 0; i < indexCount; i += 7) {
+            for (int j = i + 1; j < indexCount; j += 11) {
+                assertEquals(expected.distancePos(i, j), actual.distancePos(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void testStoreEvictsLeastRecentlyUsed() throws Exception {
+        File directory = Files.createTempDirectory("dstore").toFile();
+        try {
+            final int indexCount = 50;
+            long entrySize = DistanceCacheFactory.distanceCacheSize(indexCount);
+            DistanceCacheStore store = new DistanceCacheStore(directory, 2L * entrySize);
+
+            DistanceCache cache = new RAMDistanceCache(indexCount);
+            fillRandomly(cache, 61L);
+            assertTrue(store.store("a", cache));
+            assertTrue(store.store("b", cache));
+            store.getFile("a").setLastModified(System.currentTimeMillis() - 60000L);
+            store.getFile("b").setLastModified(System.currentTimeMillis() - 30000L);
+
+            // Loading "a" makes "b" the least recently used.
+            DistanceCache loaded = new RAMDistanceCache(indexCount);
+            assertTrue(store.load("a", loaded));
+            assertSameDistances(cache, loaded);
+
+            assertTrue(store.store("c", cache));
+            assertTrue(store.contains("a"));
+            assertFalse(store.contains("b"));
+            assertTrue(store.contains("c"));
+            assertEquals(2L * entrySize, store.getTotalSize());
+            assertFalse(store.load("b", loaded));
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testStoreLoadsIntoFileCaches() throws Exception {
+        File directory = Files.createTempDirectory("dstore").toFile();
+        try {
+            final int indexCount = 50;
+            DistanceCacheStore store = new DistanceCacheStore(directory, Long.MAX_VALUE);
+            DistanceCache cache = new RAMDistanceCache(indexCount);
+            fillRandomly(cache, 67L);
+            assertTrue(store.store("a", cache));
+
+            MappedFileDistanceCache mapped = new MappedFileDistanceCache(indexCount, cacheFile);
+            assertTrue(store.load("a", mapped));
+            assertSameDistances(cache, mapped);
+            mapped.close();
+            assertSameDistances(cache, new MappedFileDistanceCache(cacheFile));
+
+            FileDistanceCache file = new FileDistanceCache(indexCount, savedFile);
+            assertTrue(store.load("a", file));
+            assertSameDistances(cache, file);
+            file.closeFile();
+
+            // The entry is left as it was.
+            DistanceCache loaded = new RAMDistanceCache(indexCount);
+            assertTrue(store.load("a", loaded));
+            assertSameDistances(cache, loaded);
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testStoreRejectsInvalidEntries() throws Exception {
+        File directory = Files.createTempDirectory("dstore").toFile();
+        try {
+            final int indexCount = 50;
+            DistanceCacheStore store = new DistanceCacheStore(directory, Long.MAX_VALUE);
+            DistanceCache cache = new RAMDistanceCache(indexCount);
+            fillRandomly(cache, 71L);
+            assertTrue(store.store("a", cache));
+
+            try {
+                store.load("a", new RAMDistanceCache(indexCount + 1));
+                fail("expected an IOException");
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            try (RandomAccessFile raFile = new RandomAccessFile(store.getFile("a"), "rw")) {
+                raFile.setLength(raFile.length() - 8L);
+            }
+            try {
+                store.load("a", new RAMDistanceCache(indexCount));
+                fail("expected an IOException");
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            assertTrue(store.remove("a"));
+            assertFalse(store.contains("a"));
+            assertFalse(store.remove("a"));
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    static void fillRandomly(DistanceCache cache, long seed) throws Exception {
+        Random random = new Random(seed);
+        final int n = cache.getNumIndices();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                cache.setDistance(i, j, random.nextDouble());
+            }
+        }
+    }
+
+    static void assertSameDistances(ReadOnlyDistanceCache expected, ReadOnlyDistanceCache actual)
+            throws Exception {
+        final int n = expected.getNumIndices();
+        assertEquals(n, actual.getNumIndices());
+        assertEquals(expected.getNumDistances(), actual.getNumDistances());
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                assertEquals(expected.getDistance(i, j), actual.getDistance(i, j), 0.0);
+            }
+        }
+    }
+}
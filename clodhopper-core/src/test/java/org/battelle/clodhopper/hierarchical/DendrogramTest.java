@@ -0,0 +1,333 @@
+package org.battelle.clodhopper.hierarchical;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.ClusterStats;
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.battelle.clodhopper.tuple.TupleMath;
+import org.battelle.clodhopper.util.ArrayIntIterator;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * DendrogramTest.java
+ *
+ *===================================================================*/
+public class DendrogramTest {
+
+    @Test
+    public void testGenerateOptimalClustersMatchesExhaustiveSearch() {
+        for (HierarchicalParams.Linkage linkage : HierarchicalParams.Linkage.values()) {
+            TupleList tuples = generateBlobTuples(6, 40, 4, 789L);
+            Dendrogram dendrogram = StandardHierarchicalClustererTest.buildDendrogram(
+                    tuples, linkage, true, true);
+
+            List<Cluster> expected = exhaustiveOptimalClusters(dendrogram, tuples);
+            List<Cluster> actual = dendrogram.generateOptimalClusters(tuples);
+
+            assertEquals(expected.size(), actual.size());
+            assertEquals(ClusterStats.computeBIC(tuples, expected),
+                    ClusterStats.computeBIC(tuples, actual), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void testGenerateOptimalClustersSkipsNaN() {
+        TupleList tuples = generateBlobTuples(6, 40, 4, 975L);
+        Dendrogram dendrogram = StandardHierarchicalClustererTest.buildDendrogram(
+                tuples, HierarchicalParams.Linkage.MEAN, true, true);
+
+        // Knock out a scattering of values, all of one dimension of one tuple.
+        final int tupleLength = tuples.getTupleLength();
+        TupleList withNaN = new ArrayTupleList(tupleLength, tuples.getTupleCount());
+        double[] buf = new double[tupleLength];
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            tuples.getTuple(i, buf);
+            buf[i % tupleLength] = i % 7 == 0 ? Double.NaN : buf[i % tupleLength];
+            if (i == 11) {
+                Arrays.fill(buf, Double.NaN);
+            }
+            withNaN.setTuple(i, buf);
+        }
+
+        List<Cluster> actual = dendrogram.generateOptimalClusters(withNaN);
+        assertTrue(actual.size() > 1);
+
+        // The search from scratch, with centers that skip NaN as ClusterStats does.
+        double maxBIC = -Double.MAX_VALUE;
+        int expectedSize = 0;
+        for (int numClusters = 1; numClusters <= tuples.getTupleCount(); numClusters++) {
+            List<Cluster> clusters = new ArrayList<Cluster>();
+            for (int[] members : dendrogram.generateClusterGroupings(numClusters)) {
+                clusters.add(new Cluster(members, averageSkippingNaN(withNaN, members)));
+            }
+            double bic = ClusterStats.computeBIC(withNaN, clusters);
+            assertFalse(Double.isNaN(bic));
+            if (bic > maxBIC) {
+                maxBIC = bic;
+                expectedSize = numClusters;
+            } else if (bic < 0.0 || maxBIC / bic >= 2.0) {
+                break;
+            }
+        }
+        assertEquals(expectedSize, actual.size());
+    }
+
+    @Test
+    public void testCutsAreRangesOfOrderedLeafIDs() {
+        TupleList tuples = generateBlobTuples(5, 30, 3, 321L);
+        Dendrogram dendrogram = StandardHierarchicalClustererTest.buildDendrogram(
+                tuples, HierarchicalParams.Linkage.MEAN, true, true);
+
+        int[] clusterCounts = { 1, 2, 5, 17, 64, tuples.getTupleCount() };
+        List<DendrogramCut> cuts = dendrogram.generateCuts(clusterCounts, tuples);
+        assertEquals(clusterCounts.length, cuts.size());
+
+        int[] orderedLeafIDs = dendrogram.getOrderedLeafIDs();
+        for (int c = 0; c < clusterCounts.length; c++) {
+            DendrogramCut cut = cuts.get(c);
+            assertArrayEquals(orderedLeafIDs, cut.getLeafOrder());
+            assertEquals(clusterCounts[c], cut.getClusterCount());
+            int memberTotal = 0;
+            for (int i = 0; i < cut.getClusterCount(); i++) {
+                int[] members = cut.getMembers(i);
+                assertArrayEquals(dendrogram.getNodeIDs(cut.getNodeIndex(i)), members);
+                assertArrayEquals(TupleMath.average(tuples, new ArrayIntIterator(members)),
+                        cut.getCenter(i), 1.0e-9);
+                memberTotal += members.length;
+            }
+            assertEquals(tuples.getTupleCount(), memberTotal);
+        }
+    }
+
+    @Test
+    public void testSavedDendrogramOpensMapped() throws Exception {
+        TupleList tuples = generateBlobTuples(4, 25, 3, 654L);
+        Dendrogram dendrogram = StandardHierarchicalClustererTest.buildDendrogram(
+                tuples, HierarchicalParams.Linkage.MEAN, true, true);
+
+        File f = File.createTempFile("dendrogram", null);
+        f.deleteOnExit();
+        try {
+            dendrogram.save(f);
+            Dendrogram opened = Dendrogram.open(f);
+
+            assertTrue(opened.isFinished());
+            assertEquals(dendrogram.getLeafCount(), opened.getLeafCount());
+            assertArrayEquals(dendrogram.getOrderedLeafIDs(0), opened.getOrderedLeafIDs());
+            assertArrayEquals(dendrogram.getOrderedLeafIDs(), opened.getOrderedLeafIDs(0));
+            for (int level = 0; level < dendrogram.getLeafCount() - 1; level++) {
+                Dendrogram.Node expected = dendrogram.getNode(level);
+                Dendrogram.Node actual = opened.getNode(level);
+                assertEquals(expected.getID(), actual.getID());
+                assertEquals(expected.leftChild().getID(), actual.leftChild().getID());
+                assertEquals(expected.rightChild().getID(), actual.rightChild().getID());
+                assertEquals(expected.distance(), actual.distance(), 0.0);
+                assertEquals(expected.coherence(), actual.coherence(), 0.0);
+            }
+            for (int clusters : new int[] { 1, 3, 10, tuples.getTupleCount() }) {
+                List<int[]> expected = dendrogram.generateClusterGroupings(clusters);
+                List<int[]> actual = opened.generateClusterGroupings(clusters);
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertArrayEquals(expected.get(i), actual.get(i));
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testCutsExpandLeavesToTheirMembers() throws Exception {
+        TupleList tuples = generateBlobTuples(4, 30, 3, 975L);
+        final int tupleCount = tuples.getTupleCount();
+
+        // Groups of 1 to 5 tuples, taken in a shuffled order, stand for micro-clusters.
+        int[] members = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            members[i] = i;
+        }
+        Random random = new Random(531L);
+        for (int i = tupleCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = members[i];
+            members[i] = members[j];
+            members[j] = t;
+        }
+        int[] starts = new int[tupleCount + 1];
+        int leafCount = 0;
+        for (int m = 0; m < tupleCount; m += 1 + random.nextInt(5)) {
+            starts[leafCount++] = m;
+        }
+        starts[leafCount] = tupleCount;
+        starts = Arrays.copyOf(starts, leafCount + 1);
+
+        double[] centroids = new double[leafCount * tuples.getTupleLength()];
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            double[] centroid = TupleMath.average(tuples, 
+                    new ArrayIntIterator(Arrays.copyOfRange(members, starts[leaf], starts[leaf + 1])));
+            System.arraycopy(centroid, 0, centroids, leaf * centroid.length, centroid.length);
+        }
+        Dendrogram dendrogram = StandardHierarchicalClustererTest.buildDendrogram(
+                new ArrayTupleList(tuples.getTupleLength(), leafCount, centroids), 
+                HierarchicalParams.Linkage.MEAN, true, false);
+        dendrogram.setLeafMembers(starts, members);
+
+        assertTrue(dendrogram.hasLeafMembers());
+        assertEquals(tupleCount, dendrogram.getTupleCount());
+        assertEquals(tupleCount, dendrogram.nodeWeight(dendrogram.getRootID()));
+
+        File f = File.createTempFile("dendrogram", null);
+        f.deleteOnExit();
+        try {
+            dendrogram.save(f);
+            Dendrogram opened = Dendrogram.open(f);
+            for (Dendrogram d : new Dendrogram[] { dendrogram, opened }) {
+                assertEquals(tupleCount, d.getTupleCount());
+                for (int clusters : new int[] { 1, 2, 7, leafCount }) {
+                    DendrogramCut cut = d.generateCut(clusters, tuples);
+                    int memberTotal = 0;
+                    for (int i = 0; i < cut.getClusterCount(); i++) {
+                        // The members of a cluster are those of its leaves.
+                        int[] expected = new int[0];
+                        for (int leaf : d.getNodeIDs(cut.getNodeIndex(i))) {
+                            int[] leafMembers = d.getLeafMembers(leaf);
+                            int n = expected.length;
+                            expected = Arrays.copyOf(expected, n + leafMembers.length);
+                            System.arraycopy(leafMembers, 0, expected, n, leafMembers.length);
+                        }
+                        int[] actual = cut.getMembers(i);
+                        assertEquals(expected.length, cut.getMemberCount(i));
+                        Arrays.sort(expected);
+                        Arrays.sort(actual);
+                        assertArrayEquals(expected, actual);
+                        assertArrayEquals(TupleMath.average(tuples, new ArrayIntIterator(actual)),
+                                cut.getCenter(i), 1.0e-9);
+                        memberTotal += actual.length;
+                    }
+                    assertEquals(tupleCount, memberTotal);
+                }
+            }
+            assertEquals(dendrogram.generateOptimalClusters(tuples).size(),
+                    opened.generateOptimalClusters(tuples).size());
+        } finally {
+            f.delete();
+        }
+    }
+
+    // The search generateOptimalClusters() used to do, recomputing every cut from scratch.
+    private static List<Cluster> exhaustiveOptimalClusters(Dendrogram dendrogram, TupleList tuples) {
+        double maxBIC = -Double.MAX_VALUE;
+        List<Cluster> bestClusters = null;
+        for (int numClusters = 1; numClusters <= tuples.getTupleCount(); numClusters++) {
+            List<Cluster> clusters = dendrogram.generateClusters(numClusters, tuples);
+            double bic = ClusterStats.computeBIC(tuples, clusters);
+            if (bic > maxBIC) {
+                maxBIC = bic;
+                bestClusters = clusters;
+            } else if (bic < 0.0 || maxBIC / bic >= 2.0) {
+                break;
+            }
+        }
+        return bestClusters;
+    }
+
+    private static double[] averageSkippingNaN(TupleList tuples, int[] members) {
+        final int tupleLength = tuples.getTupleLength();
+        double[] average = new double[tupleLength];
+        int[] counts = new int[tupleLength];
+        double[] buf = new double[tupleLength];
+        for (int m : members) {
+            tuples.getTuple(m, buf);
+            for (int j = 0; j < tupleLength; j++) {
+                if (!Double.isNaN(buf[j])) {
+                    average[j] += buf[j];
+                    counts[j]++;
+                }
+            }
+        }
+        for (int j = 0; j < tupleLength; j++) {
+            average[j] = counts[j] > 0 ? average[j] / counts[j] : 0.0;
+        }
+        return average;
+    }
+
+    // Repeats every tuple as many times as its weight.
+    static TupleList repeatTuples(TupleList tuples, int[] weights) {
+        final int tupleLength = tuples.getTupleLength();
+        int count = 0;
+        for (int w : weights) {
+            count += w;
+        }
+        ArrayTupleList repeated = new ArrayTupleList(tupleLength, count);
+        double[] buf = new double[tupleLength];
+        int n = 0;
+        for (int i = 0; i < weights.length; i++) {
+            tuples.getTuple(i, buf);
+            for (int k = 0; k < weights[i]; k++) {
+                repeated.setTuple(n++, buf);
+            }
+        }
+        return repeated;
+    }
+
+    // The merge distances of the top levels of a dendrogram in increasing order.
+    static double[] topDistances(Dendrogram dendrogram, int levelCount) {
+        double[] distances = new double[dendrogram.getLeafCount() - 1];
+        for (int level = 0; level < distances.length; level++) {
+            distances[level] = dendrogram.getNode(level).distance();
+        }
+        Arrays.sort(distances);
+        return Arrays.copyOfRange(distances, distances.length - levelCount, distances.length);
+    }
+
+    static TupleList generateBlobTuples(int blobCount, int tuplesPerBlob, int tupleLength, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[blobCount * tuplesPerBlob * tupleLength];
+        int n = 0;
+        for (int b = 0; b < blobCount; b++) {
+            double[] center = new double[tupleLength];
+            for (int j = 0; j < tupleLength; j++) {
+                center[j] = 20.0 * random.nextDouble();
+            }
+            for (int i = 0; i < tuplesPerBlob; i++) {
+                for (int j = 0; j < tupleLength; j++) {
+                    values[n++] = center[j] + random.nextGaussian();
+                }
+            }
+        }
+        return new ArrayTupleList(tupleLength, blobCount * tuplesPerBlob, values);
+    }
+}
@@ -0,0 +1,120 @@
+package org.battelle.clodhopper.hierarchical;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.junit.Test;
+
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * MicroClusterHierarchicalClustererTest.java
+ *
+ *===================================================================*/
+public class MicroClusterHierarchicalClustererTest {
+
+    private static final int BLOB_COUNT = 5;
+    private static final int TUPLES_PER_BLOB = 300;
+
+    @Test
+    public void testClustersOfMicroClustersAreBlobs() throws Exception {
+        TupleList tuples = TestTuples.separatedBlobs(BLOB_COUNT, TUPLES_PER_BLOB, BLOB_COUNT, 852L);
+        for (boolean reverseNearestNeighbors : new boolean[] { false, true }) {
+            MicroClusterHierarchicalClusterer clusterer = runClusterer(tuples, BLOB_COUNT, null, 
+                    reverseNearestNeighbors);
+            Dendrogram dendrogram = clusterer.getDendrogram();
+            assertTrue(dendrogram.hasLeafMembers());
+            assertTrue(dendrogram.getLeafCount() <= 40);
+            assertEquals(tuples.getTupleCount(), dendrogram.getTupleCount());
+            assertBlobs(clusterer.get(), tuples.getTupleCount());
+
+            // Reclustering from the dendrogram gives clusters of the tuples too.
+            List<Cluster> clusters = runClusterer(tuples, 2 * BLOB_COUNT, dendrogram, 
+                    reverseNearestNeighbors).get();
+            assertEquals(2 * BLOB_COUNT, clusters.size());
+            assertEachTupleOnce(clusters, tuples.getTupleCount());
+        }
+    }
+
+    @Test
+    public void testFewTuplesAreTheirOwnMicroClusters() {
+        TupleList tuples = TestTuples.uniform(30, 3, 159L);
+        MicroClusterHierarchicalClusterer clusterer = runClusterer(tuples, 4, null, false);
+        assertEquals(tuples.getTupleCount(), clusterer.getDendrogram().getLeafCount());
+        StandardHierarchicalClustererTest.assertSameDendrogram(
+                StandardHierarchicalClustererTest.buildDendrogram(tuples, 
+                        HierarchicalParams.Linkage.MEAN, true, false),
+                clusterer.getDendrogram());
+    }
+
+    private static MicroClusterHierarchicalClusterer runClusterer(TupleList tuples, int clusterCount,
+            Dendrogram dendrogram, boolean reverseNearestNeighbors) {
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .linkage(HierarchicalParams.Linkage.MEAN)
+                .clusterCount(clusterCount)
+                .workerThreadCount(2)
+                .randomSeed(42L)
+                .build();
+        MicroClusterHierarchicalClusterer clusterer = new MicroClusterHierarchicalClusterer(tuples, 
+                params, dendrogram);
+        clusterer.setMicroClusterCount(40);
+        clusterer.setReverseNearestNeighbors(reverseNearestNeighbors);
+        clusterer.run();
+        assertTrue(clusterer.getErrorMessage(), clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+        return clusterer;
+    }
+
+    private static void assertBlobs(List<Cluster> clusters, int tupleCount) {
+        assertEquals(BLOB_COUNT, clusters.size());
+        assertEachTupleOnce(clusters, tupleCount);
+        for (Cluster cluster : clusters) {
+            assertEquals(TUPLES_PER_BLOB, cluster.getMemberCount());
+            int blob = cluster.getMember(0) / TUPLES_PER_BLOB;
+            for (int m = 0; m < cluster.getMemberCount(); m++) {
+                assertEquals(blob, cluster.getMember(m) / TUPLES_PER_BLOB);
+            }
+        }
+    }
+
+    private static void assertEachTupleOnce(List<Cluster> clusters, int tupleCount) {
+        boolean[] seen = new boolean[tupleCount];
+        int total = 0;
+        for (Cluster cluster : clusters) {
+            for (int m = 0; m < cluster.getMemberCount(); m++) {
+                int member = cluster.getMember(m);
+                assertFalse(seen[member]);
+                seen[member] = true;
+            }
+            total += cluster.getMemberCount();
+        }
+        assertEquals(tupleCount, total);
+    }
+}
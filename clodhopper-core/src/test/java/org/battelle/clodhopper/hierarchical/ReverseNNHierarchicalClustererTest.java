@@ -0,0 +1,202 @@
+package org.battelle.clodhopper.hierarchical;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.battelle.clodhopper.distance.CosineDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.NearestNeighborGraph;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * ReverseNNHierarchicalClustererTest.java
+ *
+ *===================================================================*/
+public class ReverseNNHierarchicalClustererTest {
+
+    @Test
+    public void testSpatialIndexMatchesScan() {
+        TupleList tuples = DendrogramTest.generateBlobTuples(8, 60, 3, 246L);
+        for (DistanceMetric metric : new DistanceMetric[] {
+                new EuclideanDistanceMetric(), new ManhattanDistanceMetric() }) {
+            Dendrogram expected = buildDendrogram(tuples, metric, false);
+            Dendrogram actual = buildDendrogram(tuples, metric, true);
+            StandardHierarchicalClustererTest.assertSameDendrogram(expected, actual);
+        }
+    }
+
+    @Test
+    public void testUnsupportedMetricFallsBackToScan() {
+        TupleList tuples = DendrogramTest.generateBlobTuples(4, 30, 5, 135L);
+        Dendrogram expected = buildDendrogram(tuples, new CosineDistanceMetric(), false);
+        Dendrogram actual = buildDendrogram(tuples, new CosineDistanceMetric(), true);
+        StandardHierarchicalClustererTest.assertSameDendrogram(expected, actual);
+    }
+
+    @Test
+    public void testBatchedMergingMakesTheSameMerges() {
+        TupleList tuples = DendrogramTest.generateBlobTuples(6, 50, 4, 468L);
+        for (boolean spatialIndex : new boolean[] { false, true }) {
+            Dendrogram expected = buildDendrogram(tuples, new EuclideanDistanceMetric(), spatialIndex, false);
+            Dendrogram actual = buildDendrogram(tuples, new EuclideanDistanceMetric(), spatialIndex, true);
+            assertTrue(actual.isFinished());
+            // The levels may be in a different order, but the nodes are the same.
+            Map<String, Double> expectedNodes = nodeDistances(expected);
+            Map<String, Double> actualNodes = nodeDistances(actual);
+            assertEquals(expectedNodes.keySet(), actualNodes.keySet());
+            for (Map.Entry<String, Double> entry : expectedNodes.entrySet()) {
+                assertEquals(entry.getValue(), actualNodes.get(entry.getKey()), 1.0e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testLeafWeightsCountAsRepeatedTuples() {
+        TupleList tuples = DendrogramTest.generateBlobTuples(4, 15, 3, 357L);
+        Random random = new Random(753L);
+        int[] weights = new int[tuples.getTupleCount()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1 + random.nextInt(4);
+        }
+        final int levelCount = tuples.getTupleCount() - 1;
+        double[] expected = DendrogramTest.topDistances(buildDendrogram(
+                DendrogramTest.repeatTuples(tuples, weights), new EuclideanDistanceMetric(), false), 
+                levelCount);
+        for (boolean spatialIndex : new boolean[] { false, true }) {
+            HierarchicalParams params = new HierarchicalParams.Builder()
+                    .workerThreadCount(2)
+                    .randomSeed(97L)
+                    .build();
+            ReverseNNHierarchicalClusterer clusterer = new ReverseNNHierarchicalClusterer(tuples, params);
+            clusterer.setSpatialIndex(spatialIndex);
+            clusterer.setLeafWeights(weights);
+            clusterer.run();
+            assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertArrayEquals(expected, DendrogramTest.topDistances(clusterer.getDendrogram(), levelCount), 
+                    1.0e-9);
+        }
+    }
+
+    @Test
+    public void testSpatialIndexHandlesRepeatedTuples() {
+        // Far more copies of each tuple than fit in a leaf of the index.
+        TupleList distinct = DendrogramTest.generateBlobTuples(3, 4, 3, 864L);
+        int[] copies = new int[distinct.getTupleCount()];
+        Arrays.fill(copies, 100);
+        TupleList tuples = DendrogramTest.repeatTuples(distinct, copies);
+        final int levelCount = tuples.getTupleCount() - 1;
+        double[] expected = DendrogramTest.topDistances(
+                buildDendrogram(tuples, new EuclideanDistanceMetric(), false), levelCount);
+        double[] actual = DendrogramTest.topDistances(
+                buildDendrogram(tuples, new EuclideanDistanceMetric(), true), levelCount);
+        assertArrayEquals(expected, actual, 1.0e-9);
+    }
+
+    @Test
+    public void testBatchedMergingFailsCleanlyOnNaN() {
+        double[] values = new double[4 * 2];
+        Arrays.fill(values, Double.NaN);
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .workerThreadCount(1)
+                .build();
+        ReverseNNHierarchicalClusterer clusterer = new ReverseNNHierarchicalClusterer(
+                new ArrayTupleList(2, 4, values), params);
+        clusterer.setSpatialIndex(false);
+        clusterer.setBatchedMerging(true);
+        clusterer.run();
+        assertEquals(TaskOutcome.ERROR, clusterer.getTaskOutcome());
+        assertEquals("problem finding nearest neighbors", clusterer.getErrorMessage());
+    }
+
+    @Test
+    public void testNearestNeighborGraphMakesTheSameMerges() throws Exception {
+        TupleList tuples = DendrogramTest.generateBlobTuples(5, 40, 3, 579L);
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 4, false, 2, null);
+        for (boolean spatialIndex : new boolean[] { false, true }) {
+            for (boolean batchedMerging : new boolean[] { false, true }) {
+                Dendrogram expected = buildDendrogram(tuples, metric, spatialIndex, batchedMerging);
+                HierarchicalParams params = new HierarchicalParams.Builder()
+                        .distanceMetric(metric)
+                        .workerThreadCount(2)
+                        .randomSeed(97L)
+                        .build();
+                ReverseNNHierarchicalClusterer clusterer = new ReverseNNHierarchicalClusterer(tuples, params);
+                clusterer.setSpatialIndex(spatialIndex);
+                clusterer.setBatchedMerging(batchedMerging);
+                clusterer.setNearestNeighborGraph(graph);
+                clusterer.run();
+                assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+                Map<String, Double> expectedNodes = nodeDistances(expected);
+                Map<String, Double> actualNodes = nodeDistances(clusterer.getDendrogram());
+                assertEquals(expectedNodes.keySet(), actualNodes.keySet());
+                for (Map.Entry<String, Double> entry : expectedNodes.entrySet()) {
+                    assertEquals(entry.getValue(), actualNodes.get(entry.getKey()), 1.0e-9);
+                }
+            }
+        }
+    }
+
+    // Maps the sorted members of every non-leaf node to its merge distance.
+    private static Map<String, Double> nodeDistances(Dendrogram dendrogram) {
+        Map<String, Double> map = new HashMap<String, Double>();
+        for (int level = 0; level < dendrogram.getLeafCount() - 1; level++) {
+            int[] members = dendrogram.getNodeIDs(level);
+            Arrays.sort(members);
+            map.put(Arrays.toString(members), dendrogram.getNode(level).distance());
+        }
+        return map;
+    }
+
+    static Dendrogram buildDendrogram(TupleList tuples, DistanceMetric metric, boolean spatialIndex) {
+        return buildDendrogram(tuples, metric, spatialIndex, false);
+    }
+
+    static Dendrogram buildDendrogram(TupleList tuples, DistanceMetric metric, boolean spatialIndex,
+            boolean batchedMerging) {
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .distanceMetric(metric)
+                .workerThreadCount(2)
+                .randomSeed(97L)
+                .build();
+        ReverseNNHierarchicalClusterer clusterer = new ReverseNNHierarchicalClusterer(tuples, params);
+        clusterer.setSpatialIndex(spatialIndex);
+        clusterer.setBatchedMerging(batchedMerging);
+        clusterer.run();
+        assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+        return clusterer.getDendrogram();
+    }
+}
@@ -0,0 +1,251 @@
+package org.battelle.clodhopper.hierarchical;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.distance.DistanceCacheFactory;
+import org.battelle.clodhopper.distance.DistanceCacheStore;
+import org.battelle.clodhopper.distance.DistancePrecision;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.ArrayTupleList;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * StandardHierarchicalClustererTest.java
+ *
+ *===================================================================*/
+public class StandardHierarchicalClustererTest {
+
+    @Test
+    public void testNearestNeighborChainMatchesClosestPair() {
+        TupleList tuples = TestTuples.uniform(300, 5, 123L);
+        for (HierarchicalParams.Linkage linkage : HierarchicalParams.Linkage.values()) {
+            Dendrogram expected = buildDendrogram(tuples, linkage, false, false);
+            Dendrogram actual = buildDendrogram(tuples, linkage, true, false);
+            assertSameDendrogram(expected, actual);
+        }
+    }
+
+    @Test
+    public void testNearestNeighborChainFailsCleanlyOnNaN() {
+        double[] values = new double[4 * 2];
+        Arrays.fill(values, Double.NaN);
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .linkage(HierarchicalParams.Linkage.MEAN)
+                .workerThreadCount(1)
+                .build();
+        StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(
+                new ArrayTupleList(2, 4, values), params);
+        clusterer.setNearestNeighborChain(true);
+        clusterer.setMinimumSpanningTree(false);
+        clusterer.run();
+        assertEquals(TaskOutcome.ERROR, clusterer.getTaskOutcome());
+        assertEquals("problem finding nearest neighbors", clusterer.getErrorMessage());
+    }
+
+    @Test
+    public void testMinimumSpanningTreeMatchesSingleLinkage() {
+        TupleList tuples = TestTuples.uniform(300, 5, 456L);
+        Dendrogram expected = buildDendrogram(tuples, HierarchicalParams.Linkage.SINGLE, false, false);
+        Dendrogram actual = buildDendrogram(tuples, HierarchicalParams.Linkage.SINGLE, false, true);
+        assertSameDendrogram(expected, actual);
+    }
+
+    @Test
+    public void testComputingDistancesAsNeededMatchesCache() {
+        TupleList tuples = TestTuples.uniform(300, 5, 789L);
+        for (HierarchicalParams.Linkage linkage : HierarchicalParams.Linkage.values()) {
+            Dendrogram expected = buildDendrogram(tuples, linkage, false, false);
+            HierarchicalParams params = new HierarchicalParams.Builder()
+                    .linkage(linkage)
+                    .workerThreadCount(2)
+                    .build();
+            StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(tuples, params);
+            clusterer.setMinimumSpanningTree(false);
+            // No room for a cache, and only enough memory for 20 rows of distances,
+            // so most rows have to be recomputed.
+            clusterer.setDistanceCacheFileThreshold(0L);
+            clusterer.setDistanceCacheMemoryThreshold(20L * 8L * tuples.getTupleCount());
+            clusterer.run();
+            assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertSameDendrogram(expected, clusterer.getDendrogram());
+        }
+    }
+
+    @Test
+    public void testLeafWeightsCountAsRepeatedTuples() {
+        TupleList tuples = TestTuples.uniform(60, 3, 864L);
+        Random random = new Random(246L);
+        int[] weights = new int[tuples.getTupleCount()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1 + random.nextInt(4);
+        }
+        TupleList repeated = DendrogramTest.repeatTuples(tuples, weights);
+        final int levelCount = tuples.getTupleCount() - 1;
+        double[] expected = DendrogramTest.topDistances(
+                buildDendrogram(repeated, HierarchicalParams.Linkage.MEAN, false, false), levelCount);
+
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .linkage(HierarchicalParams.Linkage.MEAN)
+                .workerThreadCount(2)
+                .build();
+        for (int mode = 0; mode < 3; mode++) {
+            StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(tuples, params);
+            clusterer.setMinimumSpanningTree(false);
+            clusterer.setNearestNeighborChain(mode == 1);
+            if (mode == 2) {
+                clusterer.setDistanceCacheFileThreshold(0L);
+                clusterer.setDistanceCacheMemoryThreshold(10L * 8L * tuples.getTupleCount());
+            }
+            clusterer.setLeafWeights(weights);
+            clusterer.run();
+            assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertArrayEquals(expected, DendrogramTest.topDistances(clusterer.getDendrogram(), levelCount), 
+                    1.0e-9);
+        }
+    }
+
+    @Test
+    public void testStoredDistancesAreReused() throws Exception {
+        TupleList tuples = TestTuples.uniform(200, 4, 135L);
+        File directory = Files.createTempDirectory("dstore").toFile();
+        try {
+            for (HierarchicalParams.Linkage linkage : HierarchicalParams.Linkage.values()) {
+                for (boolean nearestNeighborChain : new boolean[] { true, false }) {
+                    HierarchicalParams params = new HierarchicalParams.Builder()
+                            .linkage(linkage)
+                            .workerThreadCount(2)
+                            .build();
+                    StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(tuples, params);
+                    clusterer.setMinimumSpanningTree(false);
+                    clusterer.setNearestNeighborChain(nearestNeighborChain);
+                    clusterer.setDistanceCacheDirectory(directory);
+                    clusterer.run();
+                    assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+                    assertSameDendrogram(buildDendrogram(tuples, linkage, nearestNeighborChain, false),
+                            clusterer.getDendrogram());
+                }
+            }
+            // Only the first run had to compute the distances.
+            File[] files = directory.listFiles();
+            assertEquals(1, files.length);
+            String key = DistanceCacheStore.computeKey(tuples, new EuclideanDistanceMetric(),
+                    DistancePrecision.DOUBLE);
+            assertEquals(key + DistanceCacheStore.FILE_EXTENSION, files[0].getName());
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidStoredDistancesAreRecomputed() throws Exception {
+        TupleList tuples = TestTuples.uniform(100, 3, 137L);
+        File directory = Files.createTempDirectory("dstore").toFile();
+        try {
+            String key = DistanceCacheStore.computeKey(tuples, new EuclideanDistanceMetric(),
+                    DistancePrecision.DOUBLE);
+            File entry = new DistanceCacheStore(directory, Long.MAX_VALUE).getFile(key);
+            Files.write(entry.toPath(), new byte[100]);
+
+            HierarchicalParams params = new HierarchicalParams.Builder()
+                    .linkage(HierarchicalParams.Linkage.COMPLETE)
+                    .workerThreadCount(2)
+                    .build();
+            StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(tuples, params);
+            clusterer.setMinimumSpanningTree(false);
+            clusterer.setDistanceCacheDirectory(directory);
+            clusterer.run();
+            assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertSameDendrogram(buildDendrogram(tuples, HierarchicalParams.Linkage.COMPLETE, true, false),
+                    clusterer.getDendrogram());
+
+            // The invalid entry was replaced by the computed distances.
+            assertEquals(DistanceCacheFactory.distanceCacheSize(tuples.getTupleCount()), entry.length());
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    static Dendrogram buildDendrogram(TupleList tuples, HierarchicalParams.Linkage linkage,
+            boolean nearestNeighborChain, boolean minimumSpanningTree) {
+        HierarchicalParams params = new HierarchicalParams.Builder()
+                .linkage(linkage)
+                .workerThreadCount(2)
+                .build();
+        StandardHierarchicalClusterer clusterer = new StandardHierarchicalClusterer(tuples, params);
+        clusterer.setNearestNeighborChain(nearestNeighborChain);
+        clusterer.setMinimumSpanningTree(minimumSpanningTree);
+        clusterer.run();
+        assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+        return clusterer.getDendrogram();
+    }
+
+    static void assertSameDendrogram(Dendrogram expected, Dendrogram actual) {
+        assertTrue(actual.isFinished());
+        final int leafCount = expected.getLeafCount();
+        assertEquals(leafCount, actual.getLeafCount());
+        for (int level = 0; level < leafCount - 1; level++) {
+            assertEquals(expected.getNode(level).distance(), actual.getNode(level).distance(), 1.0e-9);
+        }
+        for (int k = 1; k <= leafCount; k += 7) {
+            List<int[]> expectedGroups = expected.generateClusterGroupings(k);
+            List<int[]> actualGroups = actual.generateClusterGroupings(k);
+            assertEquals(expectedGroups.size(), actualGroups.size());
+            assertArrayEquals(groupLabels(expectedGroups, leafCount), groupLabels(actualGroups, leafCount));
+        }
+    }
+
+    // Labels each leaf by the smallest leaf in its group, so groupings can be compared
+    // regardless of the order of the groups.
+    private static int[] groupLabels(List<int[]> groups, int leafCount) {
+        int[] labels = new int[leafCount];
+        for (int[] group : groups) {
+            int min = Integer.MAX_VALUE;
+            for (int id : group) {
+                min = Math.min(min, id);
+            }
+            for (int id : group) {
+                labels[id] = min;
+            }
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,190 @@
+package org.battelle.clodhopper.jarvispatrick;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.battelle.clodhopper.Cluster;
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.task.TaskOutcome;
+import org.battelle.clodhopper.tuple.NearestNeighborGraph;
+import org.battelle.clodhopper.tuple.TupleList;
+import org.junit.Test;
+
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * JarvisPatrickClustererTest.java
+ *
+ *===================================================================*/
+public class JarvisPatrickClustererTest {
+
+    @Test
+    public void testLinkingMatchesAllPairs() throws Exception {
+        TupleList tuples = TestTuples.uniform(400, 3, 3579L);
+        for (boolean mutualNN : new boolean[] { true, false }) {
+            for (int workerCount : new int[] { 1, 4 }) {
+                JarvisPatrickParams params = new JarvisPatrickParams.Builder()
+                        .nearestNeighborsToExamine(8)
+                        .nearestNeighborOverlap(3)
+                        .mutualNearestNeighbors(mutualNN)
+                        .workerThreadCount(workerCount)
+                        .build();
+                JarvisPatrickClusterer clusterer = new JarvisPatrickClusterer(tuples, params);
+                clusterer.run();
+                assertTrue(clusterer.getTaskOutcome() == TaskOutcome.SUCCESS);
+                List<Cluster> clusters = clusterer.get();
+
+                int[] expected = allPairsLabels(tuples, 8, 3, mutualNN);
+                int[] actual = new int[tuples.getTupleCount()];
+                for (int c = 0; c < clusters.size(); c++) {
+                    Cluster cluster = clusters.get(c);
+                    for (int m = 0; m < cluster.getMemberCount(); m++) {
+                        actual[cluster.getMember(m)] = c;
+                    }
+                }
+                // Linked clusters come first, in the order of their smallest members.
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testSuppliedGraphIsUsed() throws Exception {
+        TupleList tuples = TestTuples.uniform(300, 3, 8642L);
+        // A graph with more neighbors than are examined serves as well.
+        NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, new EuclideanDistanceMetric(), 
+                12, false, 2, null);
+        for (boolean mutualNN : new boolean[] { true, false }) {
+            JarvisPatrickParams params = new JarvisPatrickParams.Builder()
+                    .nearestNeighborsToExamine(8)
+                    .nearestNeighborOverlap(3)
+                    .mutualNearestNeighbors(mutualNN)
+                    .workerThreadCount(2)
+                    .build();
+            JarvisPatrickClusterer computed = new JarvisPatrickClusterer(tuples, params);
+            computed.run();
+            assertTrue(computed.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertNotNull(computed.getNearestNeighborGraph());
+
+            JarvisPatrickClusterer supplied = new JarvisPatrickClusterer(tuples, params, graph);
+            supplied.run();
+            assertTrue(supplied.getTaskOutcome() == TaskOutcome.SUCCESS);
+            assertSame(graph, supplied.getNearestNeighborGraph());
+
+            assertEquals(computed.get(), supplied.get());
+        }
+
+        // But not one with fewer.
+        JarvisPatrickParams params = new JarvisPatrickParams.Builder()
+                .nearestNeighborsToExamine(16)
+                .nearestNeighborOverlap(3)
+                .build();
+        JarvisPatrickClusterer clusterer = new JarvisPatrickClusterer(tuples, params, graph);
+        clusterer.run();
+        assertTrue(clusterer.getTaskOutcome() == TaskOutcome.ERROR);
+    }
+
+    // Labels the tuples by testing every pair, as the clusterer once did.
+    private static int[] allPairsLabels(TupleList tuples, int k, int minOverlap, boolean mutualNN) {
+        final int tupleCount = tuples.getTupleCount();
+        int[][] nearestNeighbors = new int[tupleCount][];
+        for (int i = 0; i < tupleCount; i++) {
+            nearestNeighbors[i] = nearestNeighbors(tuples, i, k);
+        }
+
+        int[] parents = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < tupleCount; i++) {
+            for (int j = i + 1; j < tupleCount; j++) {
+                if (mutualNN && (Arrays.binarySearch(nearestNeighbors[i], j) < 0 
+                        || Arrays.binarySearch(nearestNeighbors[j], i) < 0)) {
+                    continue;
+                }
+                int overlap = 0;
+                for (int nn : nearestNeighbors[i]) {
+                    if (Arrays.binarySearch(nearestNeighbors[j], nn) >= 0) {
+                        overlap++;
+                    }
+                }
+                if (overlap >= minOverlap) {
+                    int ri = root(parents, i);
+                    int rj = root(parents, j);
+                    parents[Math.max(ri, rj)] = Math.min(ri, rj);
+                }
+            }
+        }
+
+        int[] sizes = new int[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            sizes[root(parents, i)]++;
+        }
+        int[] labels = new int[tupleCount];
+        int label = 0;
+        for (int i = 0; i < tupleCount; i++) {
+            if (root(parents, i) == i && sizes[i] > 1) {
+                labels[i] = label++;
+            }
+        }
+        for (int i = 0; i < tupleCount; i++) {
+            int r = root(parents, i);
+            labels[i] = sizes[r] > 1 ? labels[r] : label++;
+        }
+        return labels;
+    }
+
+    private static int root(int[] parents, int i) {
+        while (parents[i] != i) {
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static int[] nearestNeighbors(TupleList tuples, int index, int k) {
+        final int tupleCount = tuples.getTupleCount();
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        double[] query = tuples.getTuple(index, null);
+        double[] buf = new double[tuples.getTupleLength()];
+        final double[] distances = new double[tupleCount];
+        Integer[] order = new Integer[tupleCount];
+        for (int i = 0; i < tupleCount; i++) {
+            distances[i] = i == index ? Double.MAX_VALUE : metric.distance(query, tuples.getTuple(i, buf));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+        int[] nn = new int[k];
+        for (int i = 0; i < k; i++) {
+            nn[i] = order[i];
+        }
+        Arrays.sort(nn);
+        return nn;
+    }
+}
@@ -0,0 +1,199 @@
+package org.battelle.clodhopper.tuple;
+
+import static org.junit.Assert.*;
+import static org.battelle.clodhopper.tuple.TupleTestUtils.*;
+
+import java.util.List;
+
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.distance.ChebyshevDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * BucketKDTreeTest.java
+ *
+ *===================================================================*/
+public class BucketKDTreeTest {
+
+    @Test
+    public void testLeafCount() {
+        for (int leafSize : new int[] { 1, 2, 3, 16, 32 }) {
+            for (int count = 1; count < 2000; count++) {
+                assertEquals(leavesBySplitting(count, leafSize), BucketKDTree.leafCount(count, leafSize));
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesMatchAllDistances() {
+        TupleList tuples = TestTuples.uniform(1000, 4, 8642L);
+        // The last is searched like any metric the kd-tree knows nothing about.
+        for (DistanceMetric metric : new DistanceMetric[] { new EuclideanDistanceMetric(), 
+                new ManhattanDistanceMetric(), new ChebyshevDistanceMetric(), new WrappedDistanceMetric() }) {
+            for (int leafSize : new int[] { 1, 5, 32 }) {
+                for (int workerCount : new int[] { 1, 4 }) {
+                    BucketKDTree kdTree = new BucketKDTree(tuples, metric, leafSize, workerCount);
+                    for (int i = 0; i < tuples.getTupleCount(); i += 17) {
+                        List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+                        int[] nn = kdTree.nearest(i, 15);
+                        assertEquals(15, nn.length);
+                        for (int j = 0; j < nn.length; j++) {
+                            assertEquals(entries.get(j).getIndex(), nn[j]);
+                        }
+                        assertEquals(entries.get(0).getIndex(), kdTree.nearestNeighbor(i));
+                        // A coordinate query finds the tuple itself first.
+                        assertEquals(i, kdTree.nearest(tuples.getTuple(i, null)));
+                        double maxDistance = entries.get(24).getDistance();
+                        int[] close = kdTree.closeTo(i, maxDistance);
+                        assertEquals(25, close.length);
+                        for (int j = 0; j < close.length; j++) {
+                            assertEquals(entries.get(j).getIndex(), close[j]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsTupleKDTree() {
+        TupleList tuples = TestTuples.uniform(3000, 3, 1234L);
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        BucketKDTree bucketTree = new BucketKDTree(tuples, metric);
+        TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, metric);
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            assertArrayEquals(kdTree.nearest(i, 10), bucketTree.nearest(i, 10));
+        }
+    }
+
+    @Test
+    public void testAllNearestMatchesQueries() {
+        TupleList tuples = TestTuples.uniform(1500, 3, 9753L);
+        final int num = 12;
+        for (DistanceMetric metric : new DistanceMetric[] { new EuclideanDistanceMetric(), 
+                new ManhattanDistanceMetric(), new ChebyshevDistanceMetric(), new WrappedDistanceMetric() }) {
+            for (int leafSize : new int[] { 1, 8, 32 }) {
+                BucketKDTree kdTree = new BucketKDTree(tuples, metric, leafSize, 2);
+                for (int workerCount : new int[] { 1, 4 }) {
+                    double[] distances = new double[tuples.getTupleCount() * num];
+                    int[] matrix = kdTree.allNearest(num, distances, workerCount, null);
+                    assertEquals(tuples.getTupleCount() * num, matrix.length);
+                    for (int i = 0; i < tuples.getTupleCount(); i++) {
+                        int[] nn = kdTree.nearest(i, num);
+                        double[] tuple = tuples.getTuple(i, null);
+                        for (int j = 0; j < num; j++) {
+                            assertEquals(nn[j], matrix[i * num + j]);
+                            assertEquals(metric.distance(tuple, tuples.getTuple(nn[j], null)), 
+                                    distances[i * num + j], 0.0);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAllNearestInParallel() {
+        // Enough tuples for the subtrees of queries to be split between threads.
+        TupleList tuples = TestTuples.uniform(40000, 2, 4321L);
+        BucketKDTree kdTree = new BucketKDTree(tuples, new EuclideanDistanceMetric(), 16, 4);
+        int[] matrix = kdTree.allNearest(6, 4);
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            int[] nn = kdTree.nearest(i, 6);
+            for (int j = 0; j < nn.length; j++) {
+                assertEquals(nn[j], matrix[i * 6 + j]);
+            }
+        }
+    }
+
+    @Test
+    public void testApproximateNearest() {
+        TupleList tuples = TestTuples.uniform(2000, 16, 2468L);
+        final int num = 10;
+        final double epsilon = 1.0;
+        for (DistanceMetric metric : new DistanceMetric[] { new EuclideanDistanceMetric(), 
+                new ManhattanDistanceMetric(), new ChebyshevDistanceMetric(), new WrappedDistanceMetric() }) {
+            BucketKDTree kdTree = new BucketKDTree(tuples, metric, 8, 2);
+            double[] distances = new double[tuples.getTupleCount() * num];
+            int[] matrix = kdTree.allNearest(num, epsilon, distances, 2, null);
+            for (int i = 0; i < tuples.getTupleCount(); i += 7) {
+                List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+                assertArrayEquals(kdTree.nearest(i, num), kdTree.nearest(i, num, 0.0));
+                int[] nn = kdTree.nearest(i, num, epsilon);
+                double[] tuple = tuples.getTuple(i, null);
+                for (int j = 0; j < num; j++) {
+                    double bound = (1.0 + epsilon) * entries.get(j).getDistance();
+                    assertTrue(nn[j] != i);
+                    assertTrue(metric.distance(tuple, tuples.getTuple(nn[j], null)) <= bound);
+                    assertTrue(matrix[i * num + j] != i);
+                    assertTrue(distances[i * num + j] <= bound);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDuplicateTuples() {
+        // Every tuple is one of only three points.
+        final int tupleCount = 500;
+        TupleList tuples = new ArrayTupleList(2, tupleCount);
+        for (int i = 0; i < tupleCount; i++) {
+            tuples.setTuple(i, new double[] { i % 3, 0.0 });
+        }
+        BucketKDTree kdTree = new BucketKDTree(tuples, new EuclideanDistanceMetric(), 4, 2);
+        for (int i = 0; i < tupleCount; i += 11) {
+            int[] nn = kdTree.nearest(i, 5);
+            for (int j = 0; j < nn.length; j++) {
+                assertTrue(nn[j] != i);
+                assertEquals(i % 3, nn[j] % 3);
+            }
+            assertEquals(tupleCount / 3 + (i % 3 < tupleCount % 3 ? 1 : 0) - 1, kdTree.closeTo(i, 0.0).length);
+        }
+    }
+
+    @Test
+    public void testEmptyAndSingleTuple() {
+        BucketKDTree empty = new BucketKDTree(new ArrayTupleList(3, 0), new EuclideanDistanceMetric());
+        assertEquals(-1, empty.nearest(new double[3]));
+        assertEquals(0, empty.closeTo(new double[3], 1.0).length);
+        BucketKDTree single = new BucketKDTree(new ArrayTupleList(3, 1), new EuclideanDistanceMetric());
+        assertEquals(-1, single.nearestNeighbor(0));
+        assertEquals(0, single.nearest(new double[3]));
+    }
+
+    // The number of leaves found by splitting as the tree does.
+    private static long leavesBySplitting(int count, int leafSize) {
+        if (count <= leafSize) {
+            return 1L;
+        }
+        int half = count / 2;
+        return leavesBySplitting(half, leafSize) + leavesBySplitting(count - half, leafSize);
+    }
+}
@@ -3,6 +3,7 @@ package org.battelle.clodhopper.tuple;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
 
 import org.battelle.clodhopper.tuple.ArrayTupleList;
@@ -87,4 +88,55 @@ public class FileMappedTupleListTest {
 		fmTuples.close();
 	}
 
+	@Test
+	public void testFormatIsUnchanged() throws Exception {
+
+		Random random = new Random(77L);
+		int tlen = 7;
+		int tcount = 50000;
+
+		TupleList arrayTuples = new ArrayTupleList(tlen, tcount);
+		double[] buffer = new double[tlen];
+		for (int i=0; i<tcount; i++) {
+			for (int j=0; j<tlen; j++) {
+				buffer[j] = random.nextGaussian();
+			}
+			arrayTuples.setTuple(i, buffer);
+		}
+
+		// The format as written before the files were written through channels.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(tlen);
+		out.writeInt(tcount);
+		for (int i=0; i<tcount; i++) {
+			arrayTuples.getTuple(i, buffer);
+			for (int j=0; j<tlen; j++) {
+				out.writeDouble(buffer[j]);
+			}
+		}
+		out.close();
+
+		ArrayTupleList.saveToFile(arrayTuples, tempFile);
+		assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(tempFile.toPath()));
+
+		TupleList loaded = ArrayTupleList.loadFromFile(tempFile);
+		assertEquals(tcount, loaded.getTupleCount());
+		assertEquals(tlen, loaded.getTupleLength());
+		for (int i=0; i<tcount; i+=97) {
+			assertArrayEquals(arrayTuples.getTuple(i, null), loaded.getTuple(i, null), 0.0);
+		}
+
+		// Empty files are all zeros after the header, whether sparse or not.
+		FileMappedTupleList.createNew(tempFile, tlen, tcount, true).close();
+		byte[] sparse = Files.readAllBytes(tempFile.toPath());
+		FileMappedTupleList.createNew(tempFile, tlen, tcount, false).close();
+		byte[] dense = Files.readAllBytes(tempFile.toPath());
+		assertArrayEquals(dense, sparse);
+		assertEquals(8 + 8 * tlen * tcount, dense.length);
+		for (int i=8; i<dense.length; i++) {
+			assertEquals(0, dense[i]);
+		}
+	}
+
 }
@@ -0,0 +1,150 @@
+package org.battelle.clodhopper.tuple;
+
+import static org.junit.Assert.*;
+import static org.battelle.clodhopper.tuple.TupleTestUtils.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.distance.CanberraDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.TanimotoDistanceMetric;
+import org.junit.Before;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * NearestNeighborGraphTest.java
+ *
+ *===================================================================*/
+public class NearestNeighborGraphTest {
+
+    private File tempFile;
+
+    @Before
+    public void setup() throws Exception {
+        tempFile = File.createTempFile("nearestNeighborGraph", "tmp");
+        tempFile.deleteOnExit();
+    }
+
+    @Test
+    public void testBuildMatchesAllDistances() throws Exception {
+        TupleList tuples = TestTuples.uniform(300, 4, 2468L);
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        for (int workerCount : new int[] { 1, 3 }) {
+            NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 10, true, workerCount, null);
+            assertEquals(300, graph.getTupleCount());
+            assertEquals(10, graph.getNeighborCount());
+            assertTrue(graph.hasDistances());
+            checkGraph(tuples, metric, graph);
+        }
+    }
+
+    @Test
+    public void testBuildWithMetricTree() throws Exception {
+        // The Canberra metric is searched with a vantage-point tree.
+        TupleList tuples = TestTuples.uniform(300, 4, 8642L);
+        DistanceMetric metric = new CanberraDistanceMetric();
+        NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 10, true, 2, null);
+        checkGraph(tuples, metric, graph);
+    }
+
+    @Test
+    public void testBuildWithLinearSearch() throws Exception {
+        // The Tanimoto distance is not a metric, so every tuple is compared.
+        TupleList tuples = TestTuples.uniform(200, 4, 7531L);
+        DistanceMetric metric = new TanimotoDistanceMetric();
+        NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 8, true, 2, null);
+        checkGraph(tuples, metric, graph);
+    }
+
+    @Test
+    public void testPrefixesAreNearestNeighbors() throws Exception {
+        TupleList tuples = TestTuples.uniform(200, 3, 1357L);
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 12, false, 2, null);
+        assertFalse(graph.hasDistances());
+        TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, metric);
+        for (int k : new int[] { 1, 5, 12 }) {
+            int[] matrix = graph.copyNeighbors(k);
+            assertEquals(200 * k, matrix.length);
+            for (int i = 0; i < 200; i++) {
+                int[] nn = kdTree.nearest(i, k);
+                for (int n = 0; n < k; n++) {
+                    assertEquals(nn[n], matrix[i * k + n]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndOpen() throws Exception {
+        TupleList tuples = TestTuples.uniform(250, 5, 9753L);
+        DistanceMetric metric = new EuclideanDistanceMetric();
+        for (boolean keepDistances : new boolean[] { true, false }) {
+            NearestNeighborGraph graph = NearestNeighborGraph.build(tuples, metric, 7, keepDistances, 2, null);
+            graph.save(tempFile);
+            NearestNeighborGraph opened = NearestNeighborGraph.open(tempFile);
+            assertEquals(graph.getTupleCount(), opened.getTupleCount());
+            assertEquals(graph.getNeighborCount(), opened.getNeighborCount());
+            assertEquals(keepDistances, opened.hasDistances());
+            assertArrayEquals(graph.copyNeighbors(7), opened.copyNeighbors(7));
+            if (keepDistances) {
+                for (int i = 0; i < 250; i++) {
+                    assertArrayEquals(graph.getDistances(i, 7, null), opened.getDistances(i, 7, null), 0.0);
+                }
+            }
+        }
+    }
+
+    // Checks every row of the graph against the distances to all the other tuples.
+    private static void checkGraph(TupleList tuples, DistanceMetric metric, NearestNeighborGraph graph) {
+        final int tupleCount = tuples.getTupleCount();
+        final int k = graph.getNeighborCount();
+        double[] buf1 = new double[tuples.getTupleLength()];
+        double[] buf2 = new double[tuples.getTupleLength()];
+        for (int i = 0; i < tupleCount; i++) {
+            tuples.getTuple(i, buf1);
+            double[] distances = new double[tupleCount - 1];
+            int m = 0;
+            for (int j = 0; j < tupleCount; j++) {
+                if (j != i) {
+                    distances[m++] = metric.distance(buf1, tuples.getTuple(j, buf2));
+                }
+            }
+            Arrays.sort(distances);
+            for (int n = 0; n < k; n++) {
+                int nn = graph.getNeighbor(i, n);
+                assertTrue(nn != i);
+                double d = metric.distance(buf1, tuples.getTuple(nn, buf2));
+                assertEquals(distances[n], d, 0.0);
+                assertEquals(d, graph.getDistance(i, n), 0.0);
+            }
+        }
+    }
+}
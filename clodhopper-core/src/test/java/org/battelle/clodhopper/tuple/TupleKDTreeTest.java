@@ -1,15 +1,16 @@
 package org.battelle.clodhopper.tuple;
 
 import static org.junit.Assert.*;
+import static org.battelle.clodhopper.tuple.TupleTestUtils.*;
 
-import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import org.battelle.clodhopper.distance.ChebyshevDistanceMetric;
 import org.battelle.clodhopper.distance.DistanceMetric;
 import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
 import org.junit.Test;
 
 public class TupleKDTreeTest {
@@ -184,27 +185,95 @@ public class TupleKDTreeTest {
     }
   }
   
-  private static List<TupleKDTree.DistanceEntry> sortedDistanceEntries(int ndx, TupleList tuples, DistanceMetric distanceMetric) {
-    
+  @Test
+  public void testQueriesMatchAllDistances() {
+
+    TupleList tuples = generateTestTuples(400, 4, 5, 321L);
+
+    // The last is searched like any metric the kd-tree knows nothing about.
+    for (DistanceMetric distMetric : new DistanceMetric[] { new EuclideanDistanceMetric(), 
+        new ManhattanDistanceMetric(), new ChebyshevDistanceMetric(), new WrappedDistanceMetric() }) {
+
+      TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, distMetric);
+
+      for (int i=0; i<tuples.getTupleCount(); i+=7) {
+        List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, distMetric);
+        int[] nn = kdTree.nearest(i, 12);
+        for (int j=0; j<nn.length; j++) {
+          assertEquals(entries.get(j).getIndex(), nn[j]);
+        }
+        // Everything up to the 20th nearest neighbor, in the order of distance.
+        double maxDistance = entries.get(19).getDistance();
+        int[] close = kdTree.closeTo(i, maxDistance);
+        assertEquals(20, close.length);
+        for (int j=0; j<close.length; j++) {
+          assertEquals(entries.get(j).getIndex(), close[j]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testApproximateNearest() {
+
+    TupleList tuples = generateTestTuples(600, 12, 6, 987L);
+    final double epsilon = 1.0;
+
+    for (DistanceMetric distMetric : new DistanceMetric[] { new EuclideanDistanceMetric(), 
+        new ManhattanDistanceMetric(), new ChebyshevDistanceMetric(), new WrappedDistanceMetric() }) {
+
+      TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, distMetric);
+      double[] buf = new double[tuples.getTupleLength()];
+
+      for (int i=0; i<tuples.getTupleCount(); i+=5) {
+        List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, distMetric);
+        assertArrayEquals(kdTree.nearest(i, 10), kdTree.nearest(i, 10, 0.0));
+        int[] nn = kdTree.nearest(i, 10, epsilon);
+        double[] tuple = tuples.getTuple(i, null);
+        for (int j=0; j<nn.length; j++) {
+          assertTrue(nn[j] != i);
+          double d = distMetric.distance(tuple, tuples.getTuple(nn[j], buf));
+          assertTrue(d <= (1.0 + epsilon) * entries.get(j).getDistance());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentQueries() throws Exception {
+
+    final TupleList tuples = generateTestTuples(500, 3, 4, 654L);
+    final TupleKDTree kdTree = TupleKDTree.forTupleListBalanced(tuples, new EuclideanDistanceMetric());
     final int tupleCount = tuples.getTupleCount();
-    List<TupleKDTree.DistanceEntry> distEntries = new ArrayList<TupleKDTree.DistanceEntry>(tupleCount - 1);
-    
-    double[] buf1 = new double[tuples.getTupleLength()];
-    double[] buf2 = new double[tuples.getTupleLength()];
-    
-    tuples.getTuple(ndx, buf1);
-    
+
+    final int[][] expected = new int[tupleCount][];
     for (int i=0; i<tupleCount; i++) {
-      if (i != ndx) {
-        tuples.getTuple(i, buf2);
-        double dist = distanceMetric.distance(buf1, buf2);
-        distEntries.add(new TupleKDTree.DistanceEntry(i, dist));
+      expected[i] = kdTree.nearest(i, 8);
+    }
+
+    final int threadCount = 4;
+    final int[][][] actual = new int[threadCount][tupleCount][];
+    Thread[] threads = new Thread[threadCount];
+    for (int t=0; t<threadCount; t++) {
+      final int[][] results = actual[t];
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i=0; i<tupleCount; i++) {
+            results[i] = kdTree.nearest(i, 8);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int t=0; t<threadCount; t++) {
+      for (int i=0; i<tupleCount; i++) {
+        assertArrayEquals(expected[i], actual[t][i]);
       }
     }
-    
-    Collections.sort(distEntries);
-    
-    return distEntries;
   }
 
   public static String toStr(int[] n) {
@@ -215,33 +284,4 @@ public class TupleKDTreeTest {
     }
     return sb.toString();
   }
-
-  private static TupleList generateTestTuples(int tupleCount, int tupleLength, int numClusters, long seed) {
-    
-    // The exemplars are the random points to use as the cluster centers.
-    double[][] exemplars = new double[numClusters][tupleLength];
-    
-    Random random = new Random(seed);
-    
-    for (int i=0; i<numClusters; i++) {
-      double[] exemplar = exemplars[i];
-      for (int j=0; j<tupleLength; j++) {
-        exemplar[j] = random.nextDouble();
-      }
-    }
-    
-    TupleList tuples = new ArrayTupleList(tupleLength, tupleCount);
-    double[] buffer = new double[tupleLength];
-    
-    for (int i=0; i<tupleCount; i++) {
-      double[] exemplar = exemplars[random.nextInt(numClusters)];
-      for (int j=0; j<tupleLength; j++) {
-        // Add noise to each element.
-        buffer[j] = exemplar[j] + random.nextDouble()*0.4 - 0.2;
-      }
-      tuples.setTuple(i, buffer);
-    }
-    
-    return tuples;
-  }
 }
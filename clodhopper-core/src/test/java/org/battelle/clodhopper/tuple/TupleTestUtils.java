@@ -0,0 +1,118 @@
+package org.battelle.clodhopper.tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+
+/*=====================================================================
+ * 
+ *                       CLODHOPPER CLUSTERING API
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Copyright (C) 2013 Battelle Memorial Institute 
+ * http://www.battelle.org
+ * 
+ * -------------------------------------------------------------------- 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * -------------------------------------------------------------------- 
+ * *
+ * TupleTestUtils.java
+ *
+ *===================================================================*/
+/**
+ * Test data and brute-force answers shared by the tests of the neighbor
+ * searches.
+ */
+final class TupleTestUtils {
+
+    private TupleTestUtils() {
+    }
+
+    /**
+     * Euclidean distance hidden behind a class the searches do not recognize,
+     * so they treat it as they would any unknown metric.
+     */
+    static class WrappedDistanceMetric implements DistanceMetric {
+
+        private final DistanceMetric euclidean = new EuclideanDistanceMetric();
+
+        @Override
+        public double distance(double[] tuple1, double[] tuple2) {
+            return euclidean.distance(tuple1, tuple2);
+        }
+
+        @Override
+        public DistanceMetric clone() {
+            return new WrappedDistanceMetric();
+        }
+    }
+
+    /**
+     * Computes the distances from a tuple to all the others, sorted nearest
+     * first.
+     */
+    static List<TupleKDTree.DistanceEntry> sortedDistanceEntries(int ndx, TupleList tuples,
+            DistanceMetric distanceMetric) {
+        final int tupleCount = tuples.getTupleCount();
+        List<TupleKDTree.DistanceEntry> entries = new ArrayList<>(tupleCount - 1);
+        double[] buf1 = tuples.getTuple(ndx, null);
+        double[] buf2 = new double[tuples.getTupleLength()];
+        for (int i = 0; i < tupleCount; i++) {
+            if (i != ndx) {
+                entries.add(new TupleKDTree.DistanceEntry(i, distanceMetric.distance(buf1, tuples.getTuple(i, buf2))));
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Generates tuples scattered uniformly within 0.2 of each coordinate of
+     * randomly chosen cluster centers in the unit hypercube.
+     */
+    static TupleList generateTestTuples(int tupleCount, int tupleLength, int numClusters, long seed) {
+
+        // The exemplars are the random points to use as the cluster centers.
+        double[][] exemplars = new double[numClusters][tupleLength];
+
+        Random random = new Random(seed);
+
+        for (int i = 0; i < numClusters; i++) {
+            double[] exemplar = exemplars[i];
+            for (int j = 0; j < tupleLength; j++) {
+                exemplar[j] = random.nextDouble();
+            }
+        }
+
+        TupleList tuples = new ArrayTupleList(tupleLength, tupleCount);
+        double[] buffer = new double[tupleLength];
+
+        for (int i = 0; i < tupleCount; i++) {
+            double[] exemplar = exemplars[random.nextInt(numClusters)];
+            for (int j = 0; j < tupleLength; j++) {
+                // Add noise to each element.
+                buffer[j] = exemplar[j] + random.nextDouble() * 0.4 - 0.2;
+            }
+            tuples.setTuple(i, buffer);
+        }
+
+        return tuples;
+    }
+}
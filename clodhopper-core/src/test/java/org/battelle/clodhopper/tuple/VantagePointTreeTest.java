@@ -0,0 +1,265 @@
+package org.battelle.clodhopper.tuple;
+
+import static org.junit.Assert.*;
+import static org.battelle.clodhopper.tuple.TupleTestUtils.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.battelle.clodhopper.TestTuples;
+import org.battelle.clodhopper.distance.CanberraDistanceMetric;
+import org.battelle.clodhopper.distance.ChebyshevDistanceMetric;
+import org.battelle.clodhopper.distance.CosineDistanceMetric;
+import org.battelle.clodhopper.distance.DistanceMetric;
+import org.battelle.clodhopper.distance.EuclideanDistanceMetric;
+import org.battelle.clodhopper.distance.ManhattanDistanceMetric;
+import org.battelle.clodhopper.distance.TanimotoDistanceMetric;
+import org.junit.Test;
+
+/*=====================================================================
+ *
+ *                       CLODHOPPER CLUSTERING API
+ *
+ * --------------------------------------------------------------------
+ *
+ * Copyright (C) 2013 Battelle Memorial Institute
+ * http://www.battelle.org
+ *
+ * --------------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * --------------------------------------------------------------------
+ *
+ * VantagePointTreeTest.java
+ *
+ *===================================================================*/
+public class VantagePointTreeTest {
+
+    @Test
+    public void testNodeCount() {
+        for (int leafSize : new int[] { 1, 2, 5, 16 }) {
+            for (int count = 1; count < 300; count++) {
+                assertEquals(nodesBySplitting(count, leafSize), VantagePointTree.nodeCount(count, leafSize));
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesMatchAllDistances() {
+        TupleList tuples = TestTuples.uniform(600, 5, 1234L);
+        Random random = new Random(5678L);
+        for (DistanceMetric metric : new DistanceMetric[] { new CanberraDistanceMetric(), 
+                new EuclideanDistanceMetric(), new ManhattanDistanceMetric() }) {
+            for (int leafSize : new int[] { 1, 4, 16 }) {
+                VantagePointTree tree = new VantagePointTree(tuples, metric, leafSize, 2);
+                for (int i = 0; i < tuples.getTupleCount(); i += 7) {
+                    List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+                    int[] nn = tree.nearest(i, 12);
+                    for (int j = 0; j < nn.length; j++) {
+                        assertEquals(entries.get(j).getIndex(), nn[j]);
+                    }
+                    assertEquals(entries.get(0).getIndex(), tree.nearestNeighbor(i));
+                    // Everything up to the 20th nearest neighbor, in the order of distance.
+                    int[] close = tree.closeTo(i, entries.get(19).getDistance());
+                    assertEquals(20, close.length);
+                    for (int j = 0; j < close.length; j++) {
+                        assertEquals(entries.get(j).getIndex(), close[j]);
+                    }
+                }
+                for (int n = 0; n < 20; n++) {
+                    double[] coords = new double[tuples.getTupleLength()];
+                    for (int i = 0; i < coords.length; i++) {
+                        coords[i] = random.nextDouble();
+                    }
+                    int[] nn = tree.nearest(coords, 5);
+                    double[] buf = new double[coords.length];
+                    double least = Double.POSITIVE_INFINITY;
+                    for (int i = 0; i < tuples.getTupleCount(); i++) {
+                        least = Math.min(least, metric.distance(coords, tuples.getTuple(i, buf)));
+                    }
+                    assertEquals(least, metric.distance(coords, tuples.getTuple(nn[0], buf)), 0.0);
+                    assertEquals(nn[0], tree.nearest(coords));
+                    for (int j = 1; j < nn.length; j++) {
+                        assertTrue(metric.distance(coords, tuples.getTuple(nn[j - 1], null)) 
+                                <= metric.distance(coords, tuples.getTuple(nn[j], null)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCosineMatchesAllDistances() {
+        // Signed coordinates, so that the absolute value of the cosine matters.
+        Random random = new Random(3579L);
+        ArrayTupleList tuples = new ArrayTupleList(6, 800);
+        double[] tuple = new double[6];
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            for (int j = 0; j < tuple.length; j++) {
+                tuple[j] = random.nextGaussian();
+            }
+            tuples.setTuple(i, tuple);
+        }
+        DistanceMetric metric = new CosineDistanceMetric();
+        for (int leafSize : new int[] { 1, 16 }) {
+            VantagePointTree tree = new VantagePointTree(tuples, metric, leafSize, 2);
+            double[] distances = new double[tuples.getTupleCount() * 10];
+            int[] matrix = tree.allNearest(10, 0.0, distances, 2, null);
+            for (int i = 0; i < tuples.getTupleCount(); i++) {
+                List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+                int[] nn = tree.nearest(i, 10);
+                for (int j = 0; j < nn.length; j++) {
+                    assertEquals(entries.get(j).getIndex(), nn[j]);
+                    assertEquals(entries.get(j).getIndex(), matrix[i * 10 + j]);
+                    assertEquals(entries.get(j).getDistance(), distances[i * 10 + j], 0.0);
+                }
+                int[] close = tree.closeTo(i, entries.get(14).getDistance());
+                assertEquals(15, close.length);
+                for (int j = 0; j < close.length; j++) {
+                    assertEquals(entries.get(j).getIndex(), close[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAllNearestMatchesQueries() {
+        TupleList tuples = TestTuples.uniform(1500, 4, 9753L);
+        final int num = 8;
+        DistanceMetric metric = new CanberraDistanceMetric();
+        VantagePointTree tree = new VantagePointTree(tuples, metric, 8, 2);
+        for (int workerCount : new int[] { 1, 4 }) {
+            double[] distances = new double[tuples.getTupleCount() * num];
+            int[] matrix = tree.allNearest(num, 0.0, distances, workerCount, null);
+            assertEquals(tuples.getTupleCount() * num, matrix.length);
+            for (int i = 0; i < tuples.getTupleCount(); i++) {
+                int[] nn = tree.nearest(i, num);
+                double[] tuple = tuples.getTuple(i, null);
+                for (int j = 0; j < num; j++) {
+                    assertEquals(nn[j], matrix[i * num + j]);
+                    assertEquals(metric.distance(tuple, tuples.getTuple(nn[j], null)), 
+                            distances[i * num + j], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testApproximateNearest() {
+        TupleList tuples = TestTuples.uniform(1000, 12, 2468L);
+        final int num = 10;
+        final double epsilon = 1.0;
+        DistanceMetric metric = new CanberraDistanceMetric();
+        VantagePointTree tree = new VantagePointTree(tuples, metric, 8, 2);
+        double[] distances = new double[tuples.getTupleCount() * num];
+        tree.allNearest(num, epsilon, distances, 2, null);
+        for (int i = 0; i < tuples.getTupleCount(); i += 7) {
+            List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+            int[] nn = tree.nearest(i, num, epsilon);
+            double[] tuple = tuples.getTuple(i, null);
+            for (int j = 0; j < num; j++) {
+                double bound = (1.0 + epsilon) * entries.get(j).getDistance();
+                assertTrue(nn[j] != i);
+                assertTrue(metric.distance(tuple, tuples.getTuple(nn[j], null)) <= bound);
+                assertTrue(distances[i * num + j] <= bound);
+            }
+        }
+    }
+
+    @Test
+    public void testBuiltInParallel() {
+        // Enough tuples for the subtrees to be built by separate threads.
+        TupleList tuples = TestTuples.uniform(40000, 3, 4321L);
+        DistanceMetric metric = new CanberraDistanceMetric();
+        VantagePointTree serial = new VantagePointTree(tuples, metric, 16, 1);
+        VantagePointTree parallel = new VantagePointTree(tuples, metric, 16, 4);
+        for (int i = 0; i < tuples.getTupleCount(); i += 97) {
+            assertArrayEquals(serial.nearest(i, 6), parallel.nearest(i, 6));
+        }
+    }
+
+    @Test
+    public void testForMetric() {
+        TupleList tuples = TestTuples.uniform(100, 3, 1111L);
+        assertTrue(NeighborSearchTree.forMetric(tuples, new EuclideanDistanceMetric(), 2) instanceof BucketKDTree);
+        assertTrue(NeighborSearchTree.forMetric(tuples, new ChebyshevDistanceMetric(), 2) instanceof BucketKDTree);
+        assertTrue(NeighborSearchTree.forMetric(tuples, new CanberraDistanceMetric(), 2) instanceof VantagePointTree);
+        assertTrue(NeighborSearchTree.forMetric(tuples, new CosineDistanceMetric(), 2) instanceof LinearNeighborSearch);
+        assertTrue(NeighborSearchTree.forMetric(tuples, new TanimotoDistanceMetric(), 2) instanceof LinearNeighborSearch);
+    }
+
+    @Test
+    public void testCosineForMetricFindsOrthogonalAndZeroTuples() {
+        // Axis-aligned tuples, each orthogonal to those on other axes and so at
+        // distance 0 from them, zero tuples, at distance 0 from every tuple, and
+        // random ones among them.
+        Random random = new Random(2468L);
+        ArrayTupleList tuples = new ArrayTupleList(4, 300);
+        double[] tuple = new double[4];
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            Arrays.fill(tuple, 0.0);
+            switch (i % 3) {
+            case 0:
+                tuple[random.nextInt(tuple.length)] = random.nextGaussian();
+                break;
+            case 1:
+                for (int j = 0; j < tuple.length; j++) {
+                    tuple[j] = random.nextGaussian();
+                }
+                break;
+            default:
+                if (i % 30 != 2) {
+                    tuple[random.nextInt(tuple.length)] = 1.0 + random.nextDouble();
+                }
+            }
+            tuples.setTuple(i, tuple);
+        }
+        DistanceMetric metric = new CosineDistanceMetric();
+        NeighborSearchTree tree = NeighborSearchTree.forMetric(tuples, metric, 2);
+        for (int i = 0; i < tuples.getTupleCount(); i++) {
+            List<TupleKDTree.DistanceEntry> entries = sortedDistanceEntries(i, tuples, metric);
+            double[] distances = new double[10];
+            int[] nn = tree.nearest(i, 10);
+            for (int j = 0; j < nn.length; j++) {
+                distances[j] = metric.distance(tuples.getTuple(i, null), tuples.getTuple(nn[j], null));
+                assertEquals(entries.get(j).getDistance(), distances[j], 0.0);
+            }
+            int zeroCount = 0;
+            while (zeroCount < entries.size() && entries.get(zeroCount).getDistance() == 0.0) {
+                zeroCount++;
+            }
+            assertEquals(zeroCount, tree.closeTo(i, 0.0).length);
+        }
+    }
+
+    @Test
+    public void testEmptyAndSingleTuple() {
+        VantagePointTree empty = new VantagePointTree(new ArrayTupleList(3, 0), new CanberraDistanceMetric());
+        assertEquals(-1, empty.nearest(new double[3]));
+        assertEquals(0, empty.closeTo(new double[3], 1.0).length);
+        VantagePointTree single = new VantagePointTree(new ArrayTupleList(3, 1), new CanberraDistanceMetric());
+        assertEquals(-1, single.nearestNeighbor(0));
+        assertEquals(0, single.nearest(new double[3]));
+    }
+
+    // The number of nodes found by splitting as the tree does.
+    private static int nodesBySplitting(int count, int leafSize) {
+        if (count <= leafSize || count < 3) {
+            return 1;
+        }
+        int left = (count - 1) / 2;
+        return 1 + nodesBySplitting(left, leafSize) + nodesBySplitting(count - 1 - left, leafSize);
+    }
+}